@@ -0,0 +1,126 @@
+package eliza;
+
+import eliza.matching.GlobMatch;
+import eliza.wrapper.Decomposition;
+import eliza.wrapper.Keyword;
+
+/**
+ * Analysis holds the part of the response to an input which does not depend on
+ * chance: whether the input asks to quit, and otherwise which keywords of the
+ * highest priority apply together with the decomposition rule each of them
+ * uses and the groups it captures. An Analysis is immutable, so the same one
+ * can be used to answer the same input many times.
+ *
+ * @author Ole & Peter
+ *
+ */
+class Analysis {
+	// The script the input was analysed with.
+	private final Script script;
+	// The largest number of edits misspelt keywords were corrected by.
+	private final int fuzzy;
+	// Whether keywords were looked up by their stems.
+	private final boolean stemmed;
+	private final boolean quit;
+	// The keywords found in the input, once for each sentence holding them.
+	private final Keyword[] found;
+	// The keywords of the highest priority which fit the input.
+	private final Candidate[] candidates;
+
+	/**
+	 * Creates a new Analysis.
+	 *
+	 * @param script
+	 *            The script the input was analysed with.
+	 * @param fuzzy
+	 *            The largest number of edits misspelt keywords were corrected
+	 *            by, 0 if they were not.
+	 * @param stemmed
+	 *            Whether keywords were looked up by their stems.
+	 * @param quit
+	 *            Whether the input contains a quit command.
+	 * @param found
+	 *            The keywords found in the input, once for each sentence
+	 *            holding them.
+	 * @param candidates
+	 *            The keywords of the highest priority which fit the input, in
+	 *            the order they were found.
+	 */
+	Analysis(Script script, int fuzzy, boolean stemmed, boolean quit,
+			Keyword[] found, Candidate[] candidates) {
+		this.script = script;
+		this.fuzzy = fuzzy;
+		this.stemmed = stemmed;
+		this.quit = quit;
+		this.found = found;
+		this.candidates = candidates;
+	}
+
+	Script getScript() {
+		return script;
+	}
+
+	int getFuzzy() {
+		return fuzzy;
+	}
+
+	boolean isStemmed() {
+		return stemmed;
+	}
+
+	boolean isQuit() {
+		return quit;
+	}
+
+	/**
+	 * @return The number of keywords found in the input, counting a keyword
+	 *         once for each sentence holding it.
+	 */
+	int getFoundKeyCount() {
+		return found.length;
+	}
+
+	Keyword getFoundKey(int i) {
+		return found[i];
+	}
+
+	/**
+	 * @return The number of keywords which may be used to respond, 0 if none
+	 *         fits the input.
+	 */
+	int getCandidateCount() {
+		return candidates.length;
+	}
+
+	Candidate getCandidate(int i) {
+		return candidates[i];
+	}
+
+	/**
+	 * A keyword which fits the input, along with the first of its
+	 * decomposition rules to fit and the groups that rule captures.
+	 */
+	static class Candidate {
+		private final Keyword key;
+		private final Decomposition decomposition;
+		private final GlobMatch match;
+
+		Candidate(Keyword key, Decomposition decomposition, GlobMatch match) {
+			this.key = key;
+			this.decomposition = decomposition;
+			this.match = match;
+		}
+
+		Keyword getKey() {
+			return key;
+		}
+
+		Decomposition getDecomposition() {
+			return decomposition;
+		}
+
+		GlobMatch getMatch() {
+			return match;
+		}
+	}
+}
@@ -1,20 +1,22 @@
 package eliza;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
 
+import eliza.Analysis.Candidate;
+import eliza.cache.LruCache;
 import eliza.exception.FileFormatException;
+import eliza.matching.GlobMatch;
+import eliza.matching.KeywordIndex;
+import eliza.matching.ReassemblyTemplate;
+import eliza.metrics.EngineMetrics;
+import eliza.metrics.EngineMetrics.Stage;
 import eliza.methods.RandomMethods;
-import eliza.wrapper.StringArrayRandomizer;
+import eliza.methods.StringMethods;
 import eliza.wrapper.Decomposition;
 import eliza.wrapper.Keyword;
-import eliza.wrapper.SubstitutionRule;
 
 /**
  * The Engine class is contains the Eliza engine. It requires a script to run,
@@ -22,340 +24,196 @@ import eliza.wrapper.SubstitutionRule;
  * pre-substitution rules, scanning for keywords and applying the most
  * appropriate decomposition rule.
  * 
+ * An Engine holds no conversation state and may be shared between threads.
+ * Each conversation keeps its state in its own Session. The script can be
+ * replaced while the engine is in use: each call reads the current script once,
+ * so calls in progress finish against the script they started with.
+ * 
  * @author Ole & Peter
  * 
  */
 public class Engine {
-	private static final String SPACE_UNDERSCORE_STRING = " _";
-	private static final String UNDERSCORE_STRING = "_";
-	private static final String TWO_STRING = "2";
-	private static final String ONE_STRING = "1";
-	// Character used in decomposition rules signifying the keyword.
-	private static final String KEYWORD_SYNONYM_CHARACTER = "$";
-	private static final String SENTENCE_SEPARATOR_REGEX = "[.,:;!?] *";
-	private static final String EMPTY_STRING = "";
-	private static final String FILTER_REGEX = "[\\W_&&[^ -'.,:;!?]]";
-	// Regular expression for word boundary.
-	private static final String WORD_BOUNDARY = "\\b";
-	// String containing a space.
-	private static final String SPACE = " ";
-	// Regular expression for two or more spaces.
-	private static final String DOUBLE_SPACE_REGEX = " {2,}";
-	// Messages Eliza uses to start the conversation.
-	private ArrayList<String> welcomeMessages = new ArrayList<String>();
-	/*
-	 * Messages Eliza uses after it recognizes a quit command (which terminates
-	 * the conversation).
-	 */
-	private ArrayList<String> finalMessages = new ArrayList<String>();
-	/*
-	 * A list of pre-substitution rules which are applied before checking for
-	 * keywords.
-	 */
-	private ArrayList<SubstitutionRule> presub = new ArrayList<SubstitutionRule>();
-	/*
-	 * A list of post-substitution rules which are applied during application of
-	 * reassembly rules.
-	 */
-	private ArrayList<SubstitutionRule> postsub = new ArrayList<SubstitutionRule>();
-	/*
-	 * A list of keywords which are used as the basis for transforming the input
-	 * sentence and creating an output sentence.
-	 */
-	private ArrayList<Keyword> keywords = new ArrayList<Keyword>();
-	/*
-	 * A list of responses which are used when no applicable keywords are found
-	 * in an input phrase.
-	 */
-	private StringArrayRandomizer otherResponses;
-	// A list of commands which Eliza recognises as conversation terminators.
-	private ArrayList<String> quitCommands = new ArrayList<String>();
-
-	/*
-	 * Used to tell if the conversation has been terminated using a quit
-	 * command.
-	 */
-	private boolean alive = true;
+	// The candidates of an input which quits the conversation.
+	private static final Candidate[] NO_CANDIDATES = new Candidate[0];
+	private static final Keyword[] NO_KEYWORDS = new Keyword[0];
+	// The compiled script shared by all sessions.
+	private volatile Script script;
+	// Records the latency of each stage and counts rule hits.
+	private volatile EngineMetrics metrics = EngineMetrics.DISABLED;
+	// Analyses of recent inputs, or null if they are not cached.
+	private volatile LruCache<String, Analysis> cache;
+	// The largest number of edits to correct a misspelt keyword by, or 0.
+	private volatile int fuzzy;
+	// Whether keywords are looked up by their stems.
+	private volatile boolean stemmed;
 
 	/**
-	 * Read welcome messages and store them in memory.
+	 * Creates a new Engine by reading a script file.
 	 * 
-	 * @param in
-	 *            A BufferedReader reading from the script file.
+	 * @param filename
+	 *            The path of the script file.
 	 * @throws IOException
 	 *             If there is an error reading the file.
 	 * @throws FileFormatException
 	 *             If the script file is formatted incorrectly.
 	 */
-	public Engine(String filename) throws FileFormatException {
-
-		try {
-			BufferedReader in = new BufferedReader(new FileReader(filename));
-			// skip first line
-			in.readLine();
-			readWelcomeMessages(in);
-			readFinalMessages(in);
-			readPreSubstitutionRules(in);
-			readPostSubstitutionRules(in);
-			readKeywords(in);
-			// sort keywords by priority
-			sort(keywords, 0, keywords.size() - 1);
-			readOtherResponses(in);
-			readQuitCommands(in);
-			// close script file.
-			in.close();
-		} catch (FileNotFoundException e) {
-			System.err
-					.println("ERROR: Script file is not in the specified location.");
-			System.exit(0);
-		} catch (IOException e) {
-			System.err.println("ERROR reading script file:\n" + e.getMessage());
-			System.exit(0);
-		}
+	public Engine(String filename) throws IOException, FileFormatException {
+		this(new Script(filename));
 	}
 
 	/**
-	 * Read welcome messages and store them in memory.
+	 * Creates a new Engine using an already compiled script.
 	 * 
-	 * @param in
-	 *            A BufferedReader reading from the script file.
-	 * @throws IOException
-	 *             If there is an error reading the file.
-	 * @throws FileFormatException
-	 *             If the script file is formatted incorrectly.
+	 * @param script
+	 *            A compiled script.
 	 */
-	private void readWelcomeMessages(BufferedReader in) throws IOException {
-		String line;
-		while ((line = in.readLine()) != null && !line.equals(";Final")) {
-			welcomeMessages.add(line);
-		}
+	public Engine(Script script) {
+		this.script = script;
 	}
 
-	/**
-	 * Read final messages and store them in memory.
-	 * 
-	 * @param in
-	 *            A BufferedReader reading from the script file.
-	 * @throws IOException
-	 *             If there is an error reading the file.
-	 * @throws FileFormatException
-	 *             If the script file is formatted incorrectly.
-	 */
-	private void readFinalMessages(BufferedReader in) throws IOException {
-		String line;
-		while ((line = in.readLine()) != null && !line.equals(";Pre")) {
-			finalMessages.add(line);
-		}
+	public Script getScript() {
+		return script;
 	}
 
 	/**
-	 * Read pre-substitution rules store them in memory.
+	 * Replace the script. Calls already in progress finish against the old
+	 * script, and all later calls use the new one. Sessions keep going, but
+	 * start new shuffles of the reassembly rules.
 	 * 
-	 * @param in
-	 *            A BufferedReader reading from the script file.
-	 * @throws IOException
-	 *             If there is an error reading the file.
-	 * @throws FileFormatException
-	 *             If the script file is formatted incorrectly.
-	 */
-	private void readPreSubstitutionRules(BufferedReader in)
-			throws IOException, FileFormatException {
-		String line;
-		while ((line = in.readLine()) != null && !line.equals(";Post")) {
-			String[] split = line.split("\t");
-			if (split.length != 2) {
-				String msg = "Problem in line:\n" + line;
-				throw new FileFormatException(msg);
-			}
-			presub.add(new SubstitutionRule(split[0], split[1]));
-		}
+	 * @param script
+	 *            The new script.
+	 */
+	public void setScript(Script script) {
+		script.getKeywordIndex(stemmed);
+		if (fuzzy > 0)
+			script.getFuzzyIndex();
+		this.script = script;
+	}
+
+	public EngineMetrics getMetrics() {
+		return metrics;
 	}
 
 	/**
-	 * Read post-substitution rules and store them in memory.
+	 * Instrument the engine. Use EngineMetrics.DISABLED to turn
+	 * instrumentation off.
 	 * 
-	 * @param in
-	 *            A BufferedReader reading from the script file.
-	 * @throws IOException
-	 *             If there is an error reading the file.
-	 * @throws FileFormatException
-	 *             If the script file is formatted incorrectly.
+	 * @param metrics
+	 *            The metrics to record to.
 	 */
-	private void readPostSubstitutionRules(BufferedReader in)
-			throws IOException, FileFormatException {
-		String line;
-		while ((line = in.readLine()) != null && !line.equals(";Keywords")) {
-			String[] split = line.split("\t");
-			if (split.length != 2) {
-				String msg = "Problem in line:\n" + line;
-				throw new FileFormatException(msg);
-			}
-			postsub.add(new SubstitutionRule(split[0], split[1]));
-		}
+	public void setMetrics(EngineMetrics metrics) {
+		this.metrics = metrics;
 	}
 
 	/**
-	 * Read keywords and store them in memory.
+	 * Cache the analysis of recent inputs, so that an input seen before skips
+	 * pre-substitution, splitting and the keyword scan. Only the deterministic
+	 * work is cached: the reassembly rule and any typo are still chosen at
+	 * random on every call. Replaces any previous cache.
 	 * 
-	 * @param in
-	 *            A BufferedReader reading from the script file.
-	 * @throws IOException
-	 *             If there is an error reading the file.
-	 * @throws FileFormatException
-	 *             If the script file is formatted incorrectly.
-	 */
-	private void readKeywords(BufferedReader in) throws IOException,
-			FileFormatException {
-		String line;
-		String[] keysAndP = null;
-		String[] decompRules = null;
-		ArrayList<Decomposition> decomp = null;
-		ArrayList<String> reass = null;
-		while ((line = in.readLine()) != null) {
-			if (line.startsWith("k:") || line.equals(";Other")) {
-				if (keysAndP != null) {
-					if (decompRules != null && !reass.isEmpty())
-					{
-						createDecomps(decompRules, decomp, reass);
-						decompRules = null;
-					}
-					addKeys(keysAndP, decomp);
-					if (line.equals(";Other")) {
-						// break out of while loop
-						break;
-					}
-				}
-				line = line.substring(2);
-				keysAndP = line.split(SPACE);
-				decomp = new ArrayList<Decomposition>();
-			} else if (line.startsWith("d:")) {
-				if (decompRules != null && !reass.isEmpty())
-				{
-					createDecomps(decompRules, decomp, reass);
-					decompRules = null;
-				}
-				/*
-				 * Remove the "d:" and any whitespace before and after the
-				 * string and split it around the slashes.
-				 */
-				decompRules = line.substring(2).trim().split("/");
-				reass = new ArrayList<String>();
-			} else if (line.startsWith("r:")) {
-				line = line.substring(2);
-				reass.add(line);
-			}
-		}
+	 * @param maxSize
+	 *            The maximum number of inputs to cache, or 0 to turn caching
+	 *            off.
+	 * @param ttlMillis
+	 *            How long an analysis is kept, or 0 to keep it until evicted.
+	 */
+	public void setCache(int maxSize, long ttlMillis) {
+		cache = maxSize > 0 ? new LruCache<String, Analysis>(maxSize,
+				ttlMillis) : null;
+	}
+
+	public int getFuzzy() {
+		return fuzzy;
 	}
 
 	/**
-	 * Create decomposition objects with given decomposition rules and
-	 * reassembly rules, and add them to decomp ArrayList.
+	 * Correct misspelt keywords in the input, so that "mohter" is taken for
+	 * "mother". A word is only corrected if it is not a word of the script,
+	 * and to the closest keyword starting with the same letter, see
+	 * FuzzyKeywordIndex. The corrected input goes through the keyword scan as
+	 * though it had been typed, so keywords found by correction compete by
+	 * priority with the others and the corrected word appears in the reply.
+	 * The index of the keywords is built here, and again whenever the script
+	 * is replaced.
 	 * 
-	 * @param decompRules
-	 *            An array of Strings containing decomposition rules.
-	 * @param decomp
-	 *            An ArrayList of Decomposition rules to which the rules are to
-	 *            be added.
-	 * @param reass
-	 *            An ArrayList of Strings containing reassembly rules.
-	 */
-	private void createDecomps(String[] decompRules,
-			ArrayList<Decomposition> decomp, ArrayList<String> reass) {
-		for (String rule : decompRules) {
-			Decomposition d = new Decomposition(rule, reass);
-			decomp.add(d);
-		}
+	 * @param maxDistance
+	 *            The largest number of edits to correct a word by, or 0 to
+	 *            turn correction off.
+	 */
+	public void setFuzzy(int maxDistance) {
+		if (maxDistance > 0)
+			script.getFuzzyIndex();
+		fuzzy = Math.max(maxDistance, 0);
+	}
+
+	public boolean isStemming() {
+		return stemmed;
 	}
 
 	/**
-	 * Parse the priority of a list of keywords and report any errors as
-	 * appropriate.
+	 * Choose how keywords are looked up. A stemmed index files keywords of a
+	 * single word by their stems, so inflected keywords such as "believe" and
+	 * "believes" share one entry, and looks up each input word by its stem.
+	 * It finds exactly the keywords the plain index does, so the replies are
+	 * the same, but takes far less memory for scripts with many keywords. The
+	 * index is built here, and again whenever the script is replaced; the
+	 * index of an engine never told is built when first needed.
 	 * 
-	 * @param keysAndP
-	 *            An array of strings. The last element should contain the
-	 *            priority while the others contain keywords.
-	 * @return The priority.
-	 * @throws FileFormatException
+	 * @param stemmed
+	 *            Whether to look up keywords by their stems.
 	 */
-	private int parsePriority(String[] keysAndP) throws FileFormatException {
-		int priority = 0;
-		int index = keysAndP.length - 1;
-		try {
-			priority = Integer.parseInt(keysAndP[index]);
-		} catch (NumberFormatException e) {
-			throw new FileFormatException(
-					"Script file not formatted correctly. "
-							+ "Problem in line with keyword:\n" + keysAndP[0],
-					e);
-		}
-		return priority;
+	public void setStemming(boolean stemmed) {
+		script.getKeywordIndex(stemmed);
+		this.stemmed = stemmed;
 	}
 
 	/**
-	 * Adds keywords with same priority and decomposition/reassembly rules to
-	 * keywords array.
+	 * Starts a new conversation.
 	 * 
-	 * @param keysAndP
-	 *            Array of keywords, last element is expected to contain the
-	 *            priority and should be ignored.
-	 * @param priority
-	 *            The priority of this keyword
-	 * @param decomp
-	 * @throws FileFormatException
+	 * @return A new Session holding the state of the conversation.
 	 */
-	private void addKeys(String[] keysAndP, ArrayList<Decomposition> decomp)
-			throws FileFormatException {
-		int priority = parsePriority(keysAndP);
-		for (int i = 0; i < keysAndP.length - 1; i++) {
-			Keyword key = new Keyword(keysAndP[i], priority, decomp);
-			keywords.add(key);
-		}
+	public Session newSession() {
+		return new Session(script, null);
 	}
 
 	/**
-	 * Read other responses (which are used when no keywords are found in an
-	 * input string) and store them in memory.
+	 * Starts a new conversation whose random choices are drawn from a seeded
+	 * generator. Two sessions with the same seed given the same inputs give
+	 * the same replies.
 	 * 
-	 * @param in
-	 *            A BufferedReader reading from the script file.
-	 * @throws IOException
-	 *             If there is an error reading the file.
-	 * @throws FileFormatException
-	 *             If the script file is formatted incorrectly.
+	 * @param seed
+	 *            The seed.
+	 * @return A new Session holding the state of the conversation.
 	 */
-	private void readOtherResponses(BufferedReader in) throws IOException {
-		String line;
-		ArrayList<String> otherResponses = new ArrayList<String>();
-		while ((line = in.readLine()) != null && !line.equals(";Quit")) {
-			otherResponses.add(line);
-		}
-		this.otherResponses = new StringArrayRandomizer(otherResponses);
+	public Session newSession(long seed) {
+		return new Session(script, new SplittableRandom(seed));
 	}
 
 	/**
-	 * Read quit commands and store them in memory.
+	 * Returns the current script and makes sure the session's state belongs
+	 * to it.
 	 * 
-	 * @param in
-	 *            A BufferedReader reading from the script file.
-	 * @throws IOException
-	 *             If there is an error reading the file.
-	 * @throws FileFormatException
-	 *             If the script file is formatted incorrectly.
-	 */
-	private void readQuitCommands(BufferedReader in) throws IOException {
-		String line;
-		while ((line = in.readLine()) != null) {
-			quitCommands.add(line);
-		}
+	 * @param session
+	 *            The conversation.
+	 * @return The script to use for the rest of the call.
+	 */
+	private Script attach(Session session) {
+		Script current = script;
+		session.attach(current);
+		return current;
 	}
 
 	/**
 	 * Returns one of the welcome messages Eliza uses to start a conversation.
 	 * 
+	 * @param session
+	 *            The conversation.
 	 * @return A welcome message.
 	 */
-	public String getWelcomeMessage() {
-		return RandomMethods.random(welcomeMessages);
+	public String getWelcomeMessage(Session session) {
+		Script script = attach(session);
+		return RandomMethods.random(session.getRandom(), script
+				.getWelcomeMessages());
 	}
 
 	/**
@@ -363,103 +221,223 @@ public class Engine {
 	 * split input into sentences, find highest priority keyword with suitable
 	 * decomposition rule and apply a reassembly rule.
 	 * 
+	 * @param session
+	 *            The conversation the input belongs to.
 	 * @param input
 	 *            A string containing one or more input sentences.
 	 * @return A reply to one of the input sentence(s).
 	 */
-	public String generateResponse(String input) {
-		input = input.trim().toLowerCase();
-		// apply pre-substitution rules
-		input = preSubstitution(input);
-		// remove all non-characters with a few exceptions.
-		input = Pattern.compile(FILTER_REGEX).matcher(input).replaceAll(
-				EMPTY_STRING);
-		input = deleteDoubleSpaces(input);
-		// split input string into separate sentences
-		String[] sentences = input.split(SENTENCE_SEPARATOR_REGEX);
-
-		for (String sentence : sentences) {
-			// is a sentence contains a quit command, quit.
-			if (isQuitCommand(sentence)) {
-				alive = false;
-				return RandomMethods.random(finalMessages);
-			}
+	public String generateResponse(Session session, String input) {
+		Script script = attach(session);
+		EngineMetrics metrics = this.metrics;
+		metrics.response();
+		Analysis analysis = lookup(script, metrics, input);
+		// counted here rather than in analyse, so cached inputs count too
+		for (int i = 0; i < analysis.getFoundKeyCount(); i++) {
+			metrics.keywordHit(analysis.getFoundKey(i));
 		}
-
-		/*
-		 * A list used to store keywords which match in order to find the most
-		 * suitable one.
-		 */
-		ArrayList<Keyword> possibleKeys = new ArrayList<Keyword>();
-		// A HashMap used for mapping keywords with matching input sentences.
-		HashMap<Keyword, String> map = new HashMap<Keyword, String>();
-
-		int priority = 11;
-		// find keyword(s) for each sentence
-		for (String sentence : sentences) {
-			for (Keyword key : keywords) {
-				if (key.getPriority() > priority)
-					// if a keyword has lower priority than one already found,
-					// go to next sentence
-					break;
-				if (key.matches(sentence)) {
-					// if the keyword matches the sentence, add to list of
-					// possible keywords
-					possibleKeys.add(key);
-					// add keyword and sentence pair to HashMap
-					map.put(key, sentence);
-					priority = key.getPriority();
-				}
-			}
+		RandomGenerator random = session.getRandom();
+		session.setKeyword(null);
+		if (analysis.isQuit()) {
+			session.end();
+			return RandomMethods.random(random, script.getFinalMessages());
 		}
 		/*
 		 * If none of the input sentences match any of the keywords
 		 * decomposition rules.
 		 */
-		if (possibleKeys.size() == 0) {
-			return otherResponse();
+		if (analysis.getCandidateCount() == 0) {
+			metrics.otherResponse();
+			return otherResponse(script, session);
 		}
 
-		Keyword key = findMaxPriority(possibleKeys);
-		// get sentence which matched the keyword
-		String sentence = map.get(key);
-		String output = applyKeyword(key, sentence);
+		long time = metrics.start();
+		// choose a random keyword of the highest priority
+		Candidate candidate = analysis.getCandidate(RandomMethods.random(
+				random, analysis.getCandidateCount()));
+		session.setKeyword(candidate.getKey().getKeyword());
+		String output = applyKeyword(script, metrics, session, candidate);
+		metrics.record(Stage.APPLY_KEYWORD, time);
 		// 2 % (1/50) chance of Eliza making a "typo"
-		if (RandomMethods.random(50) == 0) {
-			output = generateTypo(output);
+		if (RandomMethods.random(random, 50) == 0) {
+			metrics.typo();
+			output = generateTypo(random, output);
 		}
 		return output;
 	}
 
 	/**
-	 * Make any double spaces into single spaces.
+	 * Analyse an input, or reuse the analysis of the same input if it is
+	 * cached.
+	 * 
+	 * @param script
+	 *            The script to analyse the input with.
+	 * @param metrics
+	 *            The metrics to record to.
+	 * @param input
+	 *            An input string.
+	 * @return The analysis of the input.
+	 */
+	private Analysis lookup(Script script, EngineMetrics metrics, String input) {
+		LruCache<String, Analysis> cache = this.cache;
+		int fuzzy = this.fuzzy;
+		boolean stemmed = this.stemmed;
+		if (cache == null)
+			return analyse(script, metrics, fuzzy, stemmed, input);
+		Analysis analysis = cache.get(input);
+		// an analysis made with a script since replaced, or with other
+		// settings, is of no use
+		if (analysis != null && analysis.getScript() == script
+				&& analysis.getFuzzy() == fuzzy
+				&& analysis.isStemmed() == stemmed) {
+			metrics.cacheHit();
+			return analysis;
+		}
+		metrics.cacheMiss();
+		analysis = analyse(script, metrics, fuzzy, stemmed, input);
+		cache.put(input, analysis);
+		return analysis;
+	}
+
+	/**
+	 * Apply pre-substitution rules, split the input into sentences and find
+	 * the highest priority keywords with suitable decomposition rules.
 	 * 
+	 * @param script
+	 *            The script to analyse the input with.
+	 * @param metrics
+	 *            The metrics to record to.
+	 * @param fuzzy
+	 *            The largest number of edits to correct a misspelt keyword
+	 *            by, or 0.
+	 * @param stemmed
+	 *            Whether to look up keywords by their stems.
 	 * @param input
 	 *            An input string.
-	 * @return The filtered string.
+	 * @return The analysis of the input.
 	 */
-	private String deleteDoubleSpaces(String input) {
-		return Pattern.compile(DOUBLE_SPACE_REGEX).matcher(input).replaceAll(
-				SPACE);
+	private static Analysis analyse(Script script, EngineMetrics metrics,
+			int fuzzy, boolean stemmed, String input) {
+		Normalizer normalizer = Normalizer.acquire();
+		try {
+			return analyse(script, metrics, fuzzy, stemmed, normalizer, input);
+		} finally {
+			normalizer.release();
+		}
+	}
+
+	private static Analysis analyse(Script script, EngineMetrics metrics,
+			int fuzzy, boolean stemmed, Normalizer normalizer, String input) {
+		long time = metrics.start();
+		// apply pre-substitution rules
+		normalizer.substitute(script, input);
+		time = metrics.record(Stage.PRE_SUBSTITUTION, time);
+		// remove all non-characters with a few exceptions and split input
+		// string into separate sentences
+		normalizer.split();
+		time = metrics.record(Stage.NORMALIZATION, time);
+		int sentences = normalizer.getSentenceCount();
+
+		for (int i = 0; i < sentences; i++) {
+			// is a sentence contains a quit command, quit.
+			if (isQuitCommand(script, normalizer.getSentence(i))) {
+				metrics.record(Stage.QUIT_CHECK, time);
+				return new Analysis(script, fuzzy, stemmed, true, NO_KEYWORDS,
+						NO_CANDIDATES);
+			}
+		}
+		time = metrics.record(Stage.QUIT_CHECK, time);
+		if (fuzzy > 0) {
+			// misspelt keywords are corrected after the quit check, so a typo
+			// never ends the conversation
+			normalizer.correct(script.getFuzzyIndex(), fuzzy);
+			time = metrics.record(Stage.FUZZY_CORRECTION, time);
+		}
+
+		KeywordIndex index = script.getKeywordIndex(stemmed);
+		// find keyword(s) for each sentence
+		for (int i = 0; i < sentences; i++) {
+			// the keywords contained in the current sentence
+			ArrayList<Keyword> present = normalizer.getPresent();
+			index.find(normalizer.getSentence(i), present);
+			for (int j = 0; j < present.size(); j++) {
+				Keyword key = present.get(j);
+				normalizer.addFoundKey(key, i, index.getBucket(key));
+			}
+		}
+		/*
+		 * Try the keywords found from the highest priority down, and stop at
+		 * the first priority with a keyword matching its sentence.
+		 */
+		int found = normalizer.getFoundKeyCount();
+		Keyword[] foundKeys = found == 0 ? NO_KEYWORDS : new Keyword[found];
+		for (int i = 0; i < found; i++) {
+			foundKeys[i] = normalizer.getFoundKey(i);
+		}
+		int bucket = -1;
+		while (normalizer.getPossibleKeyCount() == 0) {
+			// the next priority among the keywords found
+			int next = Integer.MAX_VALUE;
+			for (int i = 0; i < found; i++) {
+				int b = normalizer.getFoundBucket(i);
+				if (b > bucket && b < next)
+					next = b;
+			}
+			if (next == Integer.MAX_VALUE)
+				break;
+			bucket = next;
+			for (int i = 0; i < found; i++) {
+				if (normalizer.getFoundBucket(i) != bucket)
+					continue;
+				Keyword key = normalizer.getFoundKey(i);
+				int sentence = normalizer.getFoundSentence(i);
+				if (key.fits(normalizer.getSentence(sentence))) {
+					// if the keyword matches the sentence, add to list of
+					// possible keywords along with the sentence
+					normalizer.addPossibleKey(key, sentence);
+				}
+			}
+		}
+		int possible = normalizer.getPossibleKeyCount();
+		Candidate[] candidates = new Candidate[possible];
+		for (int i = 0; i < possible; i++) {
+			Keyword key = normalizer.getPossibleKey(i);
+			// a keyword fitting several sentences is applied to the last one
+			int last = i;
+			for (int j = i + 1; j < possible; j++) {
+				if (normalizer.getPossibleKey(j) == key)
+					last = j;
+			}
+			String sentence = normalizer.getSentenceString(normalizer
+					.getPossibleSentence(last));
+			for (Decomposition d : key.getDecomp()) {
+				GlobMatch m = d.match(sentence);
+				// if the sentence fits the decomposition rule
+				if (m != null) {
+					candidates[i] = new Candidate(key, d, m);
+					break;
+				}
+			}
+		}
+		metrics.record(Stage.KEYWORD_SCAN, time);
+		return new Analysis(script, fuzzy, stemmed, false, foundKeys,
+				candidates);
 	}
 
 	/**
 	 * Method determining whether an input sentence contains any quit commands.
 	 * 
+	 * @param script
+	 *            The script holding the quit commands.
 	 * @param input
 	 *            An input sentence.
 	 * @return Whether the input sentence contains any of the quit commands.
 	 */
-	private boolean isQuitCommand(String input) {
-		for (String command : quitCommands) {
+	static boolean isQuitCommand(Script script, CharSequence input) {
+		for (String command : script.getQuitWords()) {
 			// Check if input contains the word with word boundaries on both
 			// sides.
-			String regex = WORD_BOUNDARY + command.toLowerCase()
-					+ WORD_BOUNDARY;
-			Pattern p = Pattern.compile(regex);
-			Matcher m = p.matcher(input);
-			// if the input sentence contains the regex
-			if (m.find()) {
+			if (StringMethods.containsWord(input, command)) {
 				return true;
 			}
 		}
@@ -467,182 +445,101 @@ public class Engine {
 	}
 
 	/**
-	 * Tells whether the Eliza conversation is still going.
-	 * 
-	 * @return false if the conversation has been terminated, true if not.
-	 */
-	public boolean isAlive() {
-		return alive;
-	}
-
-	/**
-	 * Apply Keyword to a sentence. Precondition: The sentence matches one of
-	 * the decomposition rules.
+	 * Apply a keyword to the sentence it was found in, using the decomposition
+	 * rule which fit the sentence and the groups it captured.
 	 * 
-	 * @param key
-	 *            The keyword whose decomposition and reassembly rules is to be
-	 *            applied.
-	 * @param sentence
-	 *            A sentence to which the decomposition and reassembly rules are
-	 *            to be applied.
+	 * @param script
+	 *            The script holding the post-substitution rules.
+	 * @param metrics
+	 *            The metrics to record the post-substitution latency to.
+	 * @param session
+	 *            The conversation.
+	 * @param candidate
+	 *            The keyword whose reassembly rules are to be applied, with
+	 *            its matching decomposition rule.
 	 * @return A reassembled response.
 	 */
-	private String applyKeyword(Keyword key, String sentence) {
-		for (Decomposition d : key.getDecomp()) {
-			String rule = d.getRule();
-			rule = key.formatDecomposition(rule);
-			Matcher m = Pattern.compile(rule).matcher(sentence);
-			// if the sentence doesn't fit the decomposition rule
-			if (!m.find())
-				// go to next decomposition rule
-				continue;
-			String reass = d.getReassembly();
-			reass = reass.replace(KEYWORD_SYNONYM_CHARACTER, key.getKeyword());
-			int count = m.groupCount();
-			/*
-			 * If there is a star in the matching decomposition rule and a 1 in
-			 * the reassembly rule.
-			 */
-			if (count >= 1 && reass.contains(ONE_STRING)) {
-				String r = m.group(1);
-				r = postSubstitution(r);
-				reass = reass.replace(ONE_STRING, r);
-			}
-			/*
-			 * If there is a second star in the matching decomposition rule and
-			 * a 2 in the reassembly rule.
-			 */
-			if (count >= 2 && reass.contains(TWO_STRING)) {
-				String r = m.group(2);
-				r = postSubstitution(r);
-				reass = reass.replace(TWO_STRING, r);
+	private static String applyKeyword(Script script, EngineMetrics metrics,
+			Session session, Candidate candidate) {
+		Keyword key = candidate.getKey();
+		Decomposition d = candidate.getDecomposition();
+		GlobMatch m = candidate.getMatch();
+		metrics.decompositionHit(key, d);
+		ReassemblyTemplate template = d.getTemplate(session);
+		String[] groups = new String[m.groupCount() + 1];
+		// only the groups the reply refers to are post-substituted
+		for (int i = 1; i < groups.length; i++) {
+			if (template.references(i)) {
+				long time = metrics.start();
+				groups[i] = postSubstitution(script, m.group(i));
+				metrics.record(Stage.POST_SUBSTITUTION, time);
 			}
-			return reass;
 		}
-		// unreachable as the keyword has already been confirmed to fit
-		return null;
+		return template.render(key.getKeyword(), groups);
 	}
 
 	/**
 	 * Apply pre-substitution rules to an input String.
 	 * 
+	 * @param script
+	 *            The script holding the rules.
 	 * @param input
 	 *            An input string.
 	 * @return A string to which the pre-substitution rules have been applied.
 	 */
-	private String preSubstitution(String input) {
-		return applySubstitution(input, presub).toLowerCase();
+	static String preSubstitution(Script script, String input) {
+		return script.getPreSubstitution().apply(input).toLowerCase();
 	}
 
 	/**
 	 * Apply post-substitution rules to an input String.
 	 * 
+	 * @param script
+	 *            The script holding the rules.
 	 * @param input
 	 *            An input string.
 	 * @return A string to which the post-substitution rules have been applied.
 	 */
-	private String postSubstitution(String output) {
-		return applySubstitution(output, postsub);
-	}
-
-	/**
-	 * Apply substitutions using SubstitutionRule objects.
-	 * 
-	 * @param str
-	 *            The string to which the substitution(s) are to be applied.
-	 * @param rules
-	 *            The rules which are to be applied.
-	 * @param ignoreCase
-	 * @return A string to which the substitution rules have been applied.
-	 */
-	private String applySubstitution(String str,
-			ArrayList<SubstitutionRule> rules) {
-		String find;
-		String replacement;
-		for (SubstitutionRule rule : rules) {
-			find = rule.getFind().toLowerCase();
-			// skip if the string does not contain the phrase
-			if (!str.contains(find))
-				continue;
-			find = WORD_BOUNDARY + find + WORD_BOUNDARY;
-			replacement = rule.getReplacement();
-			if (replacement.equals(UNDERSCORE_STRING)) {
-				replacement = EMPTY_STRING;
-			} else {
-				/*
-				 * In order to avoid the substitution rule to be applied twice,
-				 * add _ to each side of the replacement, then remove them after
-				 * all substitutions have been made.
-				 */
-				replacement = UNDERSCORE_STRING + replacement;
-			}
-			// for it to work with several-word substitutions
-			replacement = replacement.replace(SPACE, SPACE_UNDERSCORE_STRING);
-			str = Pattern.compile(find).matcher(str).replaceAll(replacement);
-		}
-		// all substitutions have been made: remove all underscores
-		return str.replace(UNDERSCORE_STRING, EMPTY_STRING);
-	}
-
-	/**
-	 * Finds the keyword(s) of the highest priority in an ArrayList of keys and
-	 * returns one of them.
-	 * 
-	 * @param keys
-	 *            An array of keywords.
-	 * @return One of the keywords of the highest priority in the ArrayList.
-	 */
-	private Keyword findMaxPriority(ArrayList<Keyword> keys) {
-		int maxPriority = 11;
-		ArrayList<Keyword> max = new ArrayList<Keyword>();
-
-		// find which keyword(s) are more significant
-		for (int i = 0; i < keys.size(); i++) {
-			int prior = keys.get(i).getPriority();
-			// if a word of higher priority is found
-			if (prior < maxPriority) {
-				maxPriority = prior;
-				// empty list
-				max.clear();
-				max.add(keys.get(i));
-			} else if (prior == maxPriority) {
-				max.add(keys.get(i));
-			}
-		}
-		// choose a random keyword of the highest priority
-		return RandomMethods.random(max);
+	static String postSubstitution(Script script, String output) {
+		return script.getPostSubstitution().apply(output);
 	}
 
 	/**
 	 * Returns a string response which is used when no suitable keyword is found
 	 * in the input string.
 	 * 
+	 * @param script
+	 *            The script holding the responses.
+	 * @param session
+	 *            The conversation.
 	 * @return A string response.
 	 */
-	private String otherResponse() {
-		return otherResponses.next();
+	private static String otherResponse(Script script, Session session) {
+		return script.getOtherResponses().next(session);
 	}
 
 	/**
 	 * Generate a "typo" by swapping two adjacent characters in a string.
 	 * 
+	 * @param random
+	 *            The random number generator choosing the characters.
 	 * @param str
 	 *            A string.
 	 * @return The same string, but with a "typo".
 	 */
-	private static String generateTypo(String str) {
+	private static String generateTypo(RandomGenerator random, String str) {
 		int len = str.length();
 		if (len == 2) {
 			return new String(new char[] { str.charAt(1), str.charAt(0) });
 		}
-		int ran = RandomMethods.random(len);
+		int ran = RandomMethods.random(random, len);
 		int other;
 		if (ran == 0) {
 			other = 1;
 		} else if (ran == len - 1) {
 			other = len - 2;
 		} else {
-			boolean before = RandomMethods.random(2) == 1;
+			boolean before = RandomMethods.random(random, 2) == 1;
 			if (before) {
 				other = ran - 1;
 			} else {
@@ -671,66 +568,4 @@ public class Engine {
 		chars[a] = temp;
 		return new String(chars);
 	}
-
-	/**
-	 * Sorts an array using the compareTo method. Modified version of the
-	 * algorithm found on:
-	 * http://www.mycstutorials.com/articles/sorting/quicksort
-	 * 
-	 * @param arr
-	 *            The array to be sorted
-	 * @param start
-	 *            The start index of the array partition to be sorted
-	 * @param end
-	 *            The index of the last element in the array partition to be
-	 *            sorted
-	 */
-	private void sort(ArrayList<Keyword> arr, int start, int end) {
-		int i = start;
-		int k = end;
-
-		if (end - start >= 1) {
-			// set the pivot as the third cell in the first row in the partition
-			Keyword pivot = arr.get(start);
-
-			// while the scan indices from left and right have not met
-			while (k > i) {
-				// from the left, look for the first
-				while (arr.get(i).compareTo(pivot) <= 0 && i <= end && k > i) {
-					i++;
-				}
-				// element greater than the pivot
-				// from the right, look for the first
-				while (arr.get(k).compareTo(pivot) > 0 && k >= start && k >= i) {
-					k--;
-				}
-				// element not greater than the pivot
-				if (k > i) // if the left seek index is still smaller than
-				{
-					swap(arr, i, k);
-				}
-				// the right index, swap the corresponding elements
-			}
-			swap(arr, start, k);
-			// after the indices have crossed, swap the last element in
-			sort(arr, start, k - 1); // quicksort the left partition
-			sort(arr, k + 1, end); // quicksort the right partition
-		}
-	}
-
-	/**
-	 * Swaps element in index a and b in the array arr.
-	 * 
-	 * @param arr
-	 *            The array in which the element are to be swapped
-	 * @param a
-	 *            represents an element in the array of Keywords
-	 * @param b
-	 *            represents an second element in the array of Keywords
-	 */
-	private void swap(ArrayList<Keyword> arr, int a, int b) {
-		Keyword temp = arr.get(a);
-		arr.set(a, arr.get(b));
-		arr.set(b, temp);
-	}
 }
@@ -0,0 +1,98 @@
+package eliza;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import eliza.exception.FileFormatException;
+
+/**
+ * EngineRegistry holds one Engine per tenant, e.g. the personas of a server
+ * which are variants of one script. All scripts are read with the same
+ * RulePool, so a tenant whose script differs from the others in a few
+ * messages or keywords only costs the heap those differences take.
+ *
+ * @author Ole & Peter
+ *
+ */
+public class EngineRegistry {
+	private final RulePool pool = new RulePool();
+	private final ConcurrentHashMap<String, Engine> engines = new ConcurrentHashMap<String, Engine>();
+
+	/**
+	 * Read a tenant's script and register an engine for it. If the tenant
+	 * already has an engine, its script is replaced, as by
+	 * Engine.setScript, and the parts of the old script no other tenant uses
+	 * are dropped from the pool.
+	 *
+	 * @param tenant
+	 *            The name of the tenant.
+	 * @param filename
+	 *            The path of the tenant's script file.
+	 * @return The engine of the tenant.
+	 * @throws IOException
+	 *             If there is an error reading the script file.
+	 * @throws FileFormatException
+	 *             If the script file is formatted incorrectly.
+	 */
+	public Engine load(String tenant, String filename) throws IOException,
+			FileFormatException {
+		Script script = new Script(filename, pool);
+		Script old;
+		Engine existing;
+		synchronized (this) {
+			Engine engine = new Engine(script);
+			existing = engines.putIfAbsent(tenant, engine);
+			if (existing == null)
+				return engine;
+			old = existing.getScript();
+			existing.setScript(script);
+		}
+		old.release();
+		return existing;
+	}
+
+	/**
+	 * Returns the engine of a tenant.
+	 *
+	 * @param tenant
+	 *            The name of the tenant.
+	 * @return The engine, or null if the tenant is not registered.
+	 */
+	public Engine get(String tenant) {
+		return engines.get(tenant);
+	}
+
+	/**
+	 * Returns the names of all registered tenants.
+	 *
+	 * @return The names.
+	 */
+	public Set<String> getTenants() {
+		return engines.keySet();
+	}
+
+	/**
+	 * Returns the pool the scripts of all tenants share their parts through.
+	 * Other scripts read with it share their parts with the tenants.
+	 *
+	 * @return The pool.
+	 */
+	public RulePool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Returns the number of shuffle cursors a Session of any tenant needs at
+	 * most with the scripts loaded now.
+	 *
+	 * @return The number of cursors.
+	 */
+	public int getRandomizerCount() {
+		int count = 0;
+		for (Engine engine : engines.values()) {
+			count = Math.max(count, engine.getScript().getRandomizerCount());
+		}
+		return count;
+	}
+}
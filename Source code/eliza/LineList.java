@@ -0,0 +1,89 @@
+package eliza;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import eliza.wrapper.StringArrayRandomizer;
+
+/**
+ * LineList collects lines of a script read with a ScriptReader by their
+ * position in its buffer, so that a list of reassembly rules takes only a few
+ * ints until it is first used. Lines from different files of a script, which
+ * only happens when an include splits a list, are decoded straight away.
+ *
+ * @author Ole & Peter
+ *
+ */
+class LineList {
+	// The buffer all lines come from, or null if the list is empty or the
+	// lines have been decoded.
+	private ByteBuffer buffer;
+	// The start and end of each line.
+	private int[] bounds = new int[8];
+	private int size;
+	// The decoded lines, or null while they are kept as positions.
+	private ArrayList<String> decoded;
+
+	/**
+	 * Add the current line of a reader, after a prefix.
+	 *
+	 * @param in
+	 *            The reader.
+	 * @param skip
+	 *            The length of an ASCII prefix of the line to leave out.
+	 */
+	void add(ScriptReader in, int skip) {
+		if (decoded != null) {
+			decoded.add(in.getLine(skip));
+			return;
+		}
+		if (buffer != null && buffer != in.getBuffer()) {
+			decoded = toStrings();
+			buffer = null;
+			decoded.add(in.getLine(skip));
+			return;
+		}
+		buffer = in.getBuffer();
+		if (2 * size == bounds.length)
+			bounds = Arrays.copyOf(bounds, 2 * bounds.length);
+		bounds[2 * size] = in.getStart() + skip;
+		bounds[2 * size + 1] = in.getEnd();
+		size++;
+	}
+
+	boolean isEmpty() {
+		return decoded == null ? size == 0 : decoded.isEmpty();
+	}
+
+	/**
+	 * Decode the lines.
+	 *
+	 * @return The lines, in order.
+	 */
+	ArrayList<String> toStrings() {
+		if (decoded != null)
+			return decoded;
+		ArrayList<String> lines = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			lines.add(ScriptReader.decode(buffer, bounds[2 * i],
+					bounds[2 * i + 1]));
+		}
+		return lines;
+	}
+
+	/**
+	 * Create a randomizer of the lines, which decodes them when it is first
+	 * used.
+	 *
+	 * @param id
+	 *            The index of the randomizer's state in a Session.
+	 * @return A new StringArrayRandomizer.
+	 */
+	StringArrayRandomizer toRandomizer(int id) {
+		if (decoded != null || buffer == null)
+			return new StringArrayRandomizer(toStrings(), id);
+		return new StringArrayRandomizer(buffer, Arrays.copyOf(bounds,
+				2 * size), id);
+	}
+}
@@ -0,0 +1,389 @@
+package eliza;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import eliza.matching.FuzzyKeywordIndex;
+import eliza.matching.SubstitutionTrie;
+import eliza.methods.StringMethods;
+import eliza.wrapper.Keyword;
+
+/**
+ * Normalizer turns an input string into the sentences the keyword scan works
+ * on, without creating intermediate strings. The input is trimmed, lower cased
+ * and pre-substituted into one buffer. A single pass then removes unwanted
+ * characters, collapses runs of spaces and finds the sentence boundaries,
+ * which are kept as offsets into the normalized text. A Normalizer also holds
+ * the lists the keyword scan fills, so those are reused as well.
+ *
+ * The result is the same as that of trimming and lower casing the input,
+ * applying the pre-substitution rules, lower casing again, removing the
+ * characters matched by [\W_&&[^ -'.,:;!?]], replacing " {2,}" with a single
+ * space and splitting around "[.,:;!?] *". The only exception is that lower
+ * casing does not depend on the default locale, as it is done as in the root
+ * locale.
+ *
+ * Normalizers are not thread safe. They are kept in a small pool shared by all
+ * threads, rather than in a ThreadLocal, so that the many short lived
+ * threads of a server do not each get their own buffers.
+ *
+ * @author Ole & Peter
+ *
+ */
+class Normalizer {
+	// Characters ending a sentence.
+	private static final String SENTENCE_SEPARATORS = ".,:;!?";
+	// The only character String.toLowerCase turns into two characters.
+	private static final char CAPITAL_I_WITH_DOT = '\u0130';
+	// The second character it is lower cased to.
+	private static final char COMBINING_DOT_ABOVE = '\u0307';
+	// The initial size of the buffers.
+	private static final int INITIAL_CAPACITY = 256;
+	// Normalizers whose buffers have grown beyond this are not pooled.
+	private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+	// Idle normalizers, indexed by the id of the thread which last used them.
+	private static final AtomicReferenceArray<Normalizer> POOL = new AtomicReferenceArray<Normalizer>(
+			poolSize());
+
+	// The trimmed and lower cased input.
+	private char[] lower = new char[INITIAL_CAPACITY];
+	// The input after pre-substitution.
+	private char[] substituted = new char[INITIAL_CAPACITY];
+	private int substitutedLength;
+	// The normalized text.
+	private char[] text = new char[INITIAL_CAPACITY];
+	private int textLength;
+	// The text with misspelt keywords corrected, swapped with text afterwards.
+	private char[] corrected = new char[INITIAL_CAPACITY];
+	// The start and end of each sentence in the text.
+	private int[] bounds = new int[16];
+	private int sentences;
+	// The view of the sentence last asked for.
+	private final Sentence sentence = new Sentence();
+
+	// The keywords contained in the sentence being scanned.
+	private final ArrayList<Keyword> present = new ArrayList<Keyword>();
+	// The keywords contained in any of the sentences.
+	private final ArrayList<Keyword> foundKeys = new ArrayList<Keyword>();
+	// The sentence each of the keywords was found in.
+	private int[] foundSentences = new int[16];
+	// The priority bucket of each of the keywords found.
+	private int[] foundBuckets = new int[16];
+	// The keywords which fit one of the sentences.
+	private final ArrayList<Keyword> possibleKeys = new ArrayList<Keyword>();
+	// The sentence each of the possible keywords fits.
+	private int[] possibleSentences = new int[16];
+
+	/**
+	 * Take a normalizer from the pool, or create one if none is available.
+	 * Must be followed by a call to release.
+	 *
+	 * @return A normalizer for the current thread to use.
+	 */
+	static Normalizer acquire() {
+		Normalizer normalizer = POOL.getAndSet(slot(), null);
+		return normalizer != null ? normalizer : new Normalizer();
+	}
+
+	/**
+	 * Return this normalizer to the pool. It must not be used afterwards.
+	 */
+	void release() {
+		present.clear();
+		foundKeys.clear();
+		possibleKeys.clear();
+		if (lower.length <= MAX_POOLED_CAPACITY
+				&& substituted.length <= MAX_POOLED_CAPACITY
+				&& text.length <= MAX_POOLED_CAPACITY
+				&& corrected.length <= MAX_POOLED_CAPACITY)
+			POOL.set(slot(), this);
+	}
+
+	private static int slot() {
+		return (int) Thread.currentThread().getId() & (POOL.length() - 1);
+	}
+
+	private static int poolSize() {
+		int size = 1;
+		while (size < 2 * Runtime.getRuntime().availableProcessors())
+			size *= 2;
+		return size;
+	}
+
+	/**
+	 * Trim and lower case the input and apply the pre-substitution rules.
+	 *
+	 * @param script
+	 *            The script holding the pre-substitution rules.
+	 * @param input
+	 *            An input string.
+	 */
+	void substitute(Script script, String input) {
+		int start = 0;
+		int end = input.length();
+		// trim as String.trim does
+		while (start < end && input.charAt(start) <= ' ')
+			start++;
+		while (end > start && input.charAt(end - 1) <= ' ')
+			end--;
+		int len = 0;
+		if (lower.length < end - start)
+			lower = new char[Math.max(end - start, 2 * lower.length)];
+		for (int i = start; i < end; i++) {
+			char c = input.charAt(i);
+			if (c == CAPITAL_I_WITH_DOT) {
+				/*
+				 * String.toLowerCase turns this into two characters, and the
+				 * second one makes a word boundary for the pre-substitution
+				 * rules.
+				 */
+				if (lower.length < len + 2 + end - i)
+					lower = Arrays.copyOf(lower, 2 * (len + 2 + end - i));
+				lower[len++] = 'i';
+				lower[len++] = COMBINING_DOT_ABOVE;
+			} else {
+				lower[len++] = Character.toLowerCase(c);
+			}
+		}
+		SubstitutionTrie presub = script.getPreSubstitution();
+		while ((substitutedLength = presub.apply(lower, len, substituted)) < 0)
+			substituted = new char[2 * substituted.length];
+	}
+
+	/**
+	 * Lower case the substituted input, remove unwanted characters, collapse
+	 * runs of spaces and split it into sentences.
+	 */
+	void split() {
+		if (text.length < substitutedLength)
+			text = new char[substituted.length];
+		int len = 0;
+		int start = 0;
+		boolean separated = false;
+		sentences = 0;
+		for (int i = 0; i < substitutedLength; i++) {
+			char c = Character.toLowerCase(substituted[i]);
+			if (!isKept(c))
+				continue;
+			if (c == ' ') {
+				// a run of spaces becomes a single space
+				if (len > 0 && text[len - 1] == ' ')
+					continue;
+				text[len++] = c;
+				// a space after a separator belongs to neither sentence
+				if (start == len - 1 && len > 1 && isSeparator(text[len - 2]))
+					start = len;
+				continue;
+			}
+			text[len++] = c;
+			if (isSeparator(c)) {
+				addSentence(start, len - 1);
+				start = len;
+				separated = true;
+			}
+		}
+		addSentence(start, len);
+		textLength = len;
+		// split drops trailing empty sentences, unless nothing was split
+		if (separated) {
+			while (sentences > 0
+					&& bounds[2 * sentences - 2] == bounds[2 * sentences - 1])
+				sentences--;
+		}
+	}
+
+	/**
+	 * Replace the words of the split text which are misspelt keywords with
+	 * the keywords, moving the sentence boundaries to match.
+	 *
+	 * @param index
+	 *            The index of the keywords of the script.
+	 * @param maxDistance
+	 *            The largest number of edits to correct a word by.
+	 */
+	void correct(FuzzyKeywordIndex index, int maxDistance) {
+		int len = 0;
+		// the next sentence boundary to move
+		int b = 0;
+		int i = 0;
+		while (true) {
+			// no word spans a sentence boundary
+			while (b < 2 * sentences && bounds[b] == i)
+				bounds[b++] = len;
+			if (i == textLength)
+				break;
+			int end = i + 1;
+			if (StringMethods.isWordCharacter(text[i])) {
+				while (end < textLength
+						&& StringMethods.isWordCharacter(text[end]))
+					end++;
+			}
+			String keyword = end - i > 1 ? index.correct(text, i, end,
+					maxDistance) : null;
+			int length = keyword == null ? end - i : keyword.length();
+			if (corrected.length < len + length + textLength - end)
+				corrected = Arrays.copyOf(corrected, 2 * (len + length
+						+ textLength - end));
+			if (keyword == null)
+				System.arraycopy(text, i, corrected, len, length);
+			else
+				keyword.getChars(0, length, corrected, len);
+			len += length;
+			i = end;
+		}
+		char[] old = text;
+		text = corrected;
+		corrected = old;
+		textLength = len;
+	}
+
+	private void addSentence(int start, int end) {
+		if (bounds.length < 2 * sentences + 2)
+			bounds = Arrays.copyOf(bounds, 2 * bounds.length);
+		bounds[2 * sentences] = start;
+		bounds[2 * sentences + 1] = end;
+		sentences++;
+	}
+
+	/**
+	 * @return Whether c is left in place by the filter.
+	 */
+	private static boolean isKept(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+				|| (c >= '0' && c <= '9') || (c >= ' ' && c <= '\'')
+				|| isSeparator(c);
+	}
+
+	private static boolean isSeparator(char c) {
+		return SENTENCE_SEPARATORS.indexOf(c) >= 0;
+	}
+
+	/**
+	 * @return The number of sentences in the input.
+	 */
+	int getSentenceCount() {
+		return sentences;
+	}
+
+	/**
+	 * Get a view of a sentence. The view is reused, so it is only valid until
+	 * the next call.
+	 *
+	 * @param i
+	 *            The index of the sentence.
+	 * @return The sentence.
+	 */
+	CharSequence getSentence(int i) {
+		sentence.start = bounds[2 * i];
+		sentence.length = bounds[2 * i + 1] - sentence.start;
+		return sentence;
+	}
+
+	/**
+	 * @param i
+	 *            The index of the sentence.
+	 * @return A copy of the sentence.
+	 */
+	String getSentenceString(int i) {
+		return new String(text, bounds[2 * i], bounds[2 * i + 1] - bounds[2 * i]);
+	}
+
+	/**
+	 * @return An empty list for the keyword scan to add the keywords of a
+	 *         sentence to.
+	 */
+	ArrayList<Keyword> getPresent() {
+		present.clear();
+		return present;
+	}
+
+	/**
+	 * Record a keyword contained in a sentence.
+	 *
+	 * @param key
+	 *            The keyword.
+	 * @param sentence
+	 *            The index of the sentence.
+	 * @param bucket
+	 *            The priority bucket of the keyword.
+	 */
+	void addFoundKey(Keyword key, int sentence, int bucket) {
+		int i = foundKeys.size();
+		if (foundSentences.length == i) {
+			foundSentences = Arrays.copyOf(foundSentences, 2 * i);
+			foundBuckets = Arrays.copyOf(foundBuckets, 2 * i);
+		}
+		foundKeys.add(key);
+		foundSentences[i] = sentence;
+		foundBuckets[i] = bucket;
+	}
+
+	int getFoundKeyCount() {
+		return foundKeys.size();
+	}
+
+	Keyword getFoundKey(int i) {
+		return foundKeys.get(i);
+	}
+
+	int getFoundSentence(int i) {
+		return foundSentences[i];
+	}
+
+	int getFoundBucket(int i) {
+		return foundBuckets[i];
+	}
+
+	/**
+	 * Record a keyword which fits a sentence.
+	 *
+	 * @param key
+	 *            The keyword.
+	 * @param sentence
+	 *            The index of the sentence.
+	 */
+	void addPossibleKey(Keyword key, int sentence) {
+		int i = possibleKeys.size();
+		if (possibleSentences.length == i)
+			possibleSentences = Arrays.copyOf(possibleSentences, 2 * i);
+		possibleKeys.add(key);
+		possibleSentences[i] = sentence;
+	}
+
+	int getPossibleKeyCount() {
+		return possibleKeys.size();
+	}
+
+	Keyword getPossibleKey(int i) {
+		return possibleKeys.get(i);
+	}
+
+	int getPossibleSentence(int i) {
+		return possibleSentences[i];
+	}
+
+	/**
+	 * A sentence of the normalized text, viewed as a CharSequence.
+	 */
+	private class Sentence implements CharSequence {
+		private int start;
+		private int length;
+
+		public int length() {
+			return length;
+		}
+
+		public char charAt(int index) {
+			return text[start + index];
+		}
+
+		public CharSequence subSequence(int from, int to) {
+			return new String(text, start + from, to - from);
+		}
+
+		public String toString() {
+			return new String(text, start, length);
+		}
+	}
+}
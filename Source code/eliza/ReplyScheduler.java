@@ -0,0 +1,88 @@
+package eliza;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import eliza.methods.RandomMethods;
+
+/**
+ * ReplyScheduler delays replies by a random time, as though Eliza were typing
+ * them. The reply is generated straight away and handed over when its delay
+ * has passed, so no thread is held while a conversation waits: a pending reply
+ * costs one entry in the queue of a single shared timer thread.
+ *
+ * The futures returned are completed on the timer thread, so work done when a
+ * reply is due should be short or be handed to another executor, e.g. with
+ * CompletableFuture.thenAcceptAsync.
+ *
+ * @author Ole & Peter
+ *
+ */
+public class ReplyScheduler {
+	private final int minDelay;
+	private final int maxDelay;
+	private final ScheduledThreadPoolExecutor timer;
+
+	/**
+	 * Creates a new ReplyScheduler.
+	 *
+	 * @param minDelay
+	 *            The shortest delay in milliseconds.
+	 * @param maxDelay
+	 *            The longest delay in milliseconds.
+	 */
+	public ReplyScheduler(int minDelay, int maxDelay) {
+		this.minDelay = minDelay;
+		this.maxDelay = Math.max(minDelay, maxDelay);
+		timer = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread t = new Thread(r, "eliza-reply-timer");
+			t.setDaemon(true);
+			return t;
+		});
+		// replies of closed conversations should not stay queued
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Hand over a reply once a random delay has passed since the input was
+	 * received. Time spent generating the reply counts towards the delay.
+	 *
+	 * @param reply
+	 *            The reply.
+	 * @param received
+	 *            When the input was received, as given by
+	 *            System.currentTimeMillis().
+	 * @return A future completed with the reply when it is due. Cancelling it
+	 *         removes the reply from the timer.
+	 */
+	public CompletableFuture<String> schedule(final String reply, long received) {
+		long due = received + RandomMethods.random(minDelay, maxDelay + 1);
+		long delay = Math.max(0, due - System.currentTimeMillis());
+		final CompletableFuture<String> future = new CompletableFuture<String>();
+		final ScheduledFuture<?> task = timer.schedule(
+				() -> future.complete(reply), delay, TimeUnit.MILLISECONDS);
+		future.whenComplete((r, e) -> {
+			if (future.isCancelled())
+				task.cancel(false);
+		});
+		return future;
+	}
+
+	/**
+	 * Returns the number of replies waiting for their delay to pass.
+	 *
+	 * @return The number of pending replies.
+	 */
+	public int getPending() {
+		return timer.getQueue().size();
+	}
+
+	/**
+	 * Stop the timer. Replies still pending are never completed.
+	 */
+	public void shutdown() {
+		timer.shutdownNow();
+	}
+}
@@ -0,0 +1,441 @@
+package eliza;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import eliza.matching.KeywordIndex;
+import eliza.matching.SubstitutionTrie;
+import eliza.wrapper.Decomposition;
+import eliza.wrapper.Keyword;
+import eliza.wrapper.StringArrayRandomizer;
+import eliza.wrapper.SubstitutionRule;
+
+/**
+ * A RulePool stores the parts of several scripts so that parts which are the
+ * same in more than one script are kept only once. Scripts read with the same
+ * pool share their strings, message lists, substitution tables, reassembly
+ * lists, decompositions and keywords wherever they are equal, so a script
+ * which differs from the others in a few places only adds those differences
+ * to the heap.
+ *
+ * Reassembly lists are shared through their StringArrayRandomizer. Its id is
+ * given out by the pool, and each script maps the ids of its randomizers to
+ * the shuffle states of a Session, so a Session only has room for the
+ * randomizers of its own script. The n-th occurrence of a list in a script is
+ * matched with the n-th occurrence in the other scripts, so that lists which
+ * appear twice in one script keep separate shuffle states as they would
+ * without a pool.
+ *
+ * Each script takes its parts through a Lease, which counts the scripts using
+ * each part. Releasing the lease of a script which has been replaced drops the
+ * parts no other script uses, and frees the ids of its randomizers for reuse,
+ * so a pool whose scripts are reloaded over and over does not grow.
+ *
+ * A RulePool may be used by several threads at once.
+ *
+ * @author Ole & Peter
+ *
+ */
+public class RulePool {
+	private final HashMap<String, String> strings = new HashMap<String, String>();
+	private final HashMap<ArrayList<String>, ArrayList<String>> lists = new HashMap<ArrayList<String>, ArrayList<String>>();
+	private final HashMap<ArrayList<String>, ArrayList<SubstitutionRule>> rules = new HashMap<ArrayList<String>, ArrayList<SubstitutionRule>>();
+	private final IdentityHashMap<ArrayList<SubstitutionRule>, SubstitutionTrie> tries = new IdentityHashMap<ArrayList<SubstitutionRule>, SubstitutionTrie>();
+	private final HashMap<Key, StringArrayRandomizer> randomizers = new HashMap<Key, StringArrayRandomizer>();
+	private final HashMap<Key, Decomposition> decompositions = new HashMap<Key, Decomposition>();
+	private final HashMap<ArrayList<Decomposition>, ArrayList<Decomposition>> decompositionLists = new HashMap<ArrayList<Decomposition>, ArrayList<Decomposition>>();
+	private final HashMap<Key, Keyword> keywords = new HashMap<Key, Keyword>();
+	private final HashMap<Key, KeywordIndex> indexes = new HashMap<Key, KeywordIndex>();
+	// The keywords of each index which is not layered, for finding a base
+	// for the indexes of other scripts.
+	private final IdentityHashMap<KeywordIndex, HashSet<Keyword>> bases = new IdentityHashMap<KeywordIndex, HashSet<Keyword>>();
+	// The entry of each stored part, by identity.
+	private final IdentityHashMap<Object, Entry> entries = new IdentityHashMap<Object, Entry>();
+	// The number of randomizer ids handed out, which is the next new id.
+	private int randomizerCount;
+	// Ids of released randomizers, to be handed out again.
+	private int[] freeIds = new int[16];
+	private int freeIdCount;
+
+	/**
+	 * Start taking the parts of a new script from the pool.
+	 *
+	 * @return A lease counting the parts the script uses.
+	 */
+	public Lease newLease() {
+		return new Lease();
+	}
+
+	/**
+	 * Give back the parts of a script which is no longer used. The parts no
+	 * other script uses are dropped from the pool. Releasing a lease twice
+	 * does nothing.
+	 *
+	 * @param lease
+	 *            The lease the script took its parts through.
+	 */
+	public synchronized void release(Lease lease) {
+		if (lease.released)
+			return;
+		lease.released = true;
+		for (Object part : lease.parts) {
+			Entry entry = entries.get(part);
+			if (--entry.uses > 0)
+				continue;
+			entry.map.remove(entry.key);
+			entries.remove(part);
+			if (part instanceof StringArrayRandomizer)
+				freeId(((StringArrayRandomizer) part).getId());
+			else if (part instanceof KeywordIndex)
+				bases.remove(part);
+		}
+		lease.parts.clear();
+	}
+
+	/**
+	 * Returns the stored copy of a string.
+	 *
+	 * @param lease
+	 *            The lease of the script using the string.
+	 * @param str
+	 *            A string.
+	 * @return An equal string, the same object for all equal strings.
+	 */
+	public synchronized String intern(Lease lease, String str) {
+		String stored = strings.get(str);
+		if (stored == null) {
+			stored = str;
+			store(strings, stored, stored);
+		}
+		acquire(lease, stored);
+		return stored;
+	}
+
+	/**
+	 * Returns the stored copy of a list of strings, e.g. the welcome messages.
+	 * The list must not be modified afterwards.
+	 *
+	 * @param lease
+	 *            The lease of the script using the list.
+	 * @param list
+	 *            A list of strings.
+	 * @return An equal list, the same object for all equal lists.
+	 */
+	public synchronized ArrayList<String> internList(Lease lease,
+			ArrayList<String> list) {
+		ArrayList<String> stored = lists.get(list);
+		if (stored == null) {
+			stored = new ArrayList<String>(list.size());
+			for (String str : list) {
+				stored.add(intern(lease, str));
+			}
+			store(lists, stored, stored, stored.toArray());
+		}
+		acquire(lease, stored);
+		return stored;
+	}
+
+	/**
+	 * Returns the stored copy of a list of substitution rules.
+	 *
+	 * @param lease
+	 *            The lease of the script using the rules.
+	 * @param list
+	 *            The rules, in order.
+	 * @return A list of the same rules, the same object for all lists of
+	 *         equal rules.
+	 */
+	public synchronized ArrayList<SubstitutionRule> internRules(Lease lease,
+			ArrayList<SubstitutionRule> list) {
+		ArrayList<String> key = new ArrayList<String>(list.size() * 2);
+		for (SubstitutionRule rule : list) {
+			key.add(rule.getFind());
+			key.add(rule.getReplacement());
+		}
+		ArrayList<SubstitutionRule> stored = rules.get(key);
+		if (stored == null) {
+			stored = new ArrayList<SubstitutionRule>(list.size());
+			ArrayList<String> parts = new ArrayList<String>(key.size());
+			for (SubstitutionRule rule : list) {
+				String find = intern(lease, rule.getFind());
+				String replacement = intern(lease, rule.getReplacement());
+				stored.add(new SubstitutionRule(find, replacement));
+				parts.add(find);
+				parts.add(replacement);
+			}
+			store(rules, key, stored, parts.toArray());
+		}
+		acquire(lease, stored);
+		return stored;
+	}
+
+	/**
+	 * Returns the trie of a list of substitution rules returned by
+	 * internRules, building it the first time.
+	 *
+	 * @param lease
+	 *            The lease of the script using the trie.
+	 * @param list
+	 *            The stored rules.
+	 * @return The trie, shared by all scripts with these rules.
+	 */
+	public synchronized SubstitutionTrie getTrie(Lease lease,
+			ArrayList<SubstitutionRule> list) {
+		SubstitutionTrie trie = tries.get(list);
+		if (trie == null) {
+			trie = new SubstitutionTrie(list);
+			store(tries, list, trie, list);
+		}
+		acquire(lease, trie);
+		return trie;
+	}
+
+	/**
+	 * Returns the randomizer of a reassembly list.
+	 *
+	 * @param lease
+	 *            The lease of the script using the randomizer.
+	 * @param values
+	 *            The strings to choose from.
+	 * @param occurrence
+	 *            How many equal lists the script has used before this one.
+	 * @return A randomizer of the strings, the same object for equal lists of
+	 *         the same occurrence.
+	 */
+	public synchronized StringArrayRandomizer getRandomizer(Lease lease,
+			ArrayList<String> values, int occurrence) {
+		ArrayList<String> stored = internList(lease, values);
+		Key key = new Key(stored, occurrence);
+		StringArrayRandomizer randomizer = randomizers.get(key);
+		if (randomizer == null) {
+			int id = freeIdCount > 0 ? freeIds[--freeIdCount]
+					: randomizerCount++;
+			randomizer = new StringArrayRandomizer(stored, id);
+			store(randomizers, key, randomizer, stored);
+		}
+		acquire(lease, randomizer);
+		return randomizer;
+	}
+
+	/**
+	 * Returns the stored decomposition of a rule.
+	 *
+	 * @param lease
+	 *            The lease of the script using the decomposition.
+	 * @param rule
+	 *            The decomposition rule.
+	 * @param reassembly
+	 *            The randomizer of its reassembly rules, as returned by
+	 *            getRandomizer.
+	 * @return An equal decomposition, the same object for equal ones.
+	 */
+	public synchronized Decomposition getDecomposition(Lease lease,
+			String rule, StringArrayRandomizer reassembly) {
+		Key key = new Key(rule, reassembly);
+		Decomposition decomposition = decompositions.get(key);
+		if (decomposition == null) {
+			String stored = intern(lease, rule);
+			decomposition = new Decomposition(stored, reassembly);
+			store(decompositions, key, decomposition, stored, reassembly);
+		}
+		acquire(lease, decomposition);
+		return decomposition;
+	}
+
+	/**
+	 * Returns the stored keyword with the given decompositions.
+	 *
+	 * @param lease
+	 *            The lease of the script using the keyword.
+	 * @param keyword
+	 *            The keyword.
+	 * @param priority
+	 *            Its priority.
+	 * @param decomp
+	 *            Its decompositions, as returned by getDecomposition.
+	 * @return An equal keyword, the same object for equal ones.
+	 */
+	public synchronized Keyword getKeyword(Lease lease, String keyword,
+			int priority, ArrayList<Decomposition> decomp) {
+		ArrayList<Decomposition> list = decompositionLists.get(decomp);
+		if (list == null) {
+			list = new ArrayList<Decomposition>(decomp);
+			store(decompositionLists, list, list, list.toArray());
+		}
+		Key key = new Key(keyword, priority, list);
+		Keyword stored = keywords.get(key);
+		if (stored == null) {
+			String word = intern(lease, keyword);
+			stored = new Keyword(word, priority, list);
+			store(keywords, key, stored, word, list);
+		}
+		acquire(lease, stored);
+		return stored;
+	}
+
+	/**
+	 * Returns the index of a list of keywords returned by getKeyword,
+	 * building it the first time. If most of the keywords are those of an
+	 * index already built, the new index is layered on that one and only
+	 * holds the other keywords.
+	 *
+	 * @param lease
+	 *            The lease of the script using the index. If it has been
+	 *            released, an index which is not stored yet is built without
+	 *            storing it.
+	 * @param list
+	 *            The keywords of a script, in order.
+	 * @param stemmed
+	 *            Whether the index files keywords by their stems.
+	 * @return The index, shared by all scripts with the same keywords.
+	 */
+	public synchronized KeywordIndex getKeywordIndex(Lease lease,
+			ArrayList<Keyword> list, boolean stemmed) {
+		Key listKey = new Key(list, stemmed);
+		KeywordIndex index = indexes.get(listKey);
+		if (index != null) {
+			acquire(lease, index);
+			return index;
+		}
+		// nothing would ever drop it from the pool
+		if (lease.released)
+			return new KeywordIndex(null, list, stemmed);
+		HashSet<Keyword> keys = new HashSet<Keyword>(list);
+		KeywordIndex base = null;
+		int baseSize = 0;
+		for (KeywordIndex candidate : bases.keySet()) {
+			HashSet<Keyword> candidateKeys = bases.get(candidate);
+			if (candidate.isStemmed() == stemmed
+					&& candidateKeys.size() > baseSize
+					&& keys.containsAll(candidateKeys)) {
+				base = candidate;
+				baseSize = candidateKeys.size();
+			}
+		}
+		// a base holding less than half of the keywords saves little
+		if (base != null && baseSize * 2 >= keys.size()) {
+			HashSet<Keyword> baseKeys = bases.get(base);
+			ArrayList<Keyword> extra = new ArrayList<Keyword>();
+			for (Keyword key : list) {
+				if (!baseKeys.contains(key))
+					extra.add(key);
+			}
+			index = new KeywordIndex(base, extra, stemmed);
+			store(indexes, new Key(new ArrayList<Keyword>(list), stemmed),
+					index, base);
+		} else {
+			index = new KeywordIndex(null, list, stemmed);
+			bases.put(index, keys);
+			store(indexes, new Key(new ArrayList<Keyword>(list), stemmed),
+					index);
+		}
+		acquire(lease, index);
+		return index;
+	}
+
+	/**
+	 * Returns the number of parts stored, e.g. to check that replaced scripts
+	 * have been released.
+	 *
+	 * @return The number of strings, lists, rules, randomizers,
+	 *         decompositions, keywords, tries and indexes in the pool.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Add a part to one of the maps, with no uses yet.
+	 *
+	 * @param map
+	 *            The map the part is found in.
+	 * @param key
+	 *            The key of the part in the map.
+	 * @param part
+	 *            The part.
+	 * @param parts
+	 *            The stored parts the part refers to, which are used as long
+	 *            as it is.
+	 */
+	private <K, V> void store(Map<K, V> map, K key, V part, Object... parts) {
+		map.put(key, part);
+		entries.put(part, new Entry(map, key, parts));
+	}
+
+	/**
+	 * Count a script as using a part, and the parts it refers to, unless it
+	 * already is.
+	 */
+	private void acquire(Lease lease, Object part) {
+		if (lease.released || !lease.parts.add(part))
+			return;
+		Entry entry = entries.get(part);
+		entry.uses++;
+		for (Object referred : entry.parts) {
+			acquire(lease, referred);
+		}
+	}
+
+	private void freeId(int id) {
+		if (freeIdCount == freeIds.length)
+			freeIds = Arrays.copyOf(freeIds, 2 * freeIdCount);
+		freeIds[freeIdCount++] = id;
+	}
+
+	/**
+	 * The parts of the pool one script uses, each counted once however often
+	 * the script uses it. Leases are only used by the pool which made them.
+	 */
+	public static class Lease {
+		private final Set<Object> parts = Collections
+				.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		private boolean released;
+
+		private Lease() {
+		}
+	}
+
+	/**
+	 * Where a stored part is kept and how many scripts use it.
+	 */
+	private static class Entry {
+		private final Map<?, ?> map;
+		private final Object key;
+		private final Object[] parts;
+		private int uses;
+
+		private Entry(Map<?, ?> map, Object key, Object[] parts) {
+			this.map = map;
+			this.key = key;
+			this.parts = parts;
+		}
+	}
+
+	/**
+	 * A key made of several parts. Strings and lists are compared by their
+	 * contents, rules by identity, so a key only matches parts which are
+	 * already stored in the pool.
+	 */
+	private static class Key {
+		private final Object[] parts;
+
+		private Key(Object... parts) {
+			this.parts = parts;
+		}
+
+		public boolean equals(Object other) {
+			return other instanceof Key
+					&& Arrays.equals(parts, ((Key) other).parts);
+		}
+
+		public int hashCode() {
+			return Arrays.hashCode(parts);
+		}
+	}
+}
@@ -1,9 +1,20 @@
 package eliza;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Scanner;
 
+import javax.management.JMException;
+
+import eliza.batch.BatchRunner;
 import eliza.exception.FileFormatException;
-import eliza.methods.RandomMethods;
+import eliza.metrics.EngineMetrics;
+import eliza.server.ChatServer;
+import eliza.server.SessionManager;
+import eliza.server.SessionStore;
+import eliza.server.SidecarServer;
+import eliza.transcript.TranscriptLogger;
 
 /**
  * The Runner class is the main class and the only one to contain a main method.
@@ -26,6 +37,29 @@ public class Runner {
 	private static final boolean DEFAULT_ENABLE_SLEEPING_OPTION = false;
 	// The filename of the default script to be used.
 	private static final String DEFAULT_SCRIPT = "script.txt";
+	// The default number of seconds before an idle server session is evicted.
+	private static final int DEFAULT_IDLE_TIMEOUT = 30 * 60;
+	// The filename of the default transcript written in batch mode.
+	private static final String DEFAULT_TRANSCRIPT = "transcript.txt";
+	// The default number of inputs whose analysis is cached: none, unless
+	// asked for with cache=.
+	private static final int DEFAULT_CACHE_SIZE = 0;
+	// The default number of seconds an input's analysis is cached, once
+	// caching is turned on.
+	private static final int DEFAULT_CACHE_TTL = 10 * 60;
+	// The default number of sessions a new session store has room for.
+	private static final int DEFAULT_STORE_SIZE = 1 << 20;
+	// Milliseconds between writing the session store to disk.
+	private static final int STORE_FLUSH_INTERVAL = 1000;
+	// How many times the cursors of the scripts a new session store has room
+	// for.
+	private static final int STORE_CURSOR_HEADROOM = 2;
+	// The default size in megabytes past which the exchange log is rotated.
+	private static final int DEFAULT_LOG_SIZE = 64;
+	// The number of exchanges buffered before being written to the log.
+	private static final int LOG_BUFFER_SIZE = 8192;
+	// The id exchanges of the console conversation are logged with.
+	private static final String CONSOLE_SESSION = "console";
 
 	/**
 	 * The main method which controls user input and engine output.
@@ -35,27 +69,178 @@ public class Runner {
 	public static void main(String[] args) {
 		String script = DEFAULT_SCRIPT;
 		boolean enableSleeping = DEFAULT_ENABLE_SLEEPING_OPTION;
+		// the port to serve conversations over HTTP on, or -1 to run in the
+		// console
+		int port = -1;
+		// the Unix domain socket to serve conversations on, or null
+		String socket = null;
+		int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+		// the file of conversations to replay, or null to run in the console
+		String batch = null;
+		String transcript = DEFAULT_TRANSCRIPT;
+		int threads = Runtime.getRuntime().availableProcessors();
+		// a compiled snapshot of the script to load, or null
+		String snapshot = null;
+		// where to write a compiled snapshot of the script, or null
+		String compile = null;
+		// whether to reload the script when the file changes
+		boolean reload = false;
+		// the seed of the conversation's random choices, or null
+		Long seed = null;
+		// whether to publish engine metrics over JMX
+		boolean metrics = false;
+		// the number of inputs to cache the analysis of, or 0 for none
+		int cacheSize = DEFAULT_CACHE_SIZE;
+		int cacheTtl = DEFAULT_CACHE_TTL;
+		// the largest number of edits to correct a misspelt keyword by, or 0
+		int fuzzy = 0;
+		// whether to look up keywords by their stems
+		boolean stem = false;
+		// the file server sessions are saved to, or null
+		String store = null;
+		int storeSize = DEFAULT_STORE_SIZE;
+		// the file every exchange is logged to, or null
+		String log = null;
+		int logSize = DEFAULT_LOG_SIZE;
+		boolean logCompress = false;
+		TranscriptLogger.OverflowPolicy logFull = TranscriptLogger.OverflowPolicy.DROP;
+		// the names and script files of the server's tenants
+		ArrayList<String[]> tenants = new ArrayList<String[]>();
 
 		for (String arg : args) {
-			if (arg.startsWith("script=")) {
-				script = arg.substring(7);
-			} else if (arg.startsWith("sleep=")) {
-				enableSleeping = Boolean.parseBoolean(arg.substring(6));
-			} else {
+			// a malformed number or policy is reported like an unknown
+			// argument
+			try {
+				if (arg.startsWith("script=")) {
+					script = arg.substring(7);
+				} else if (arg.startsWith("sleep=")) {
+					enableSleeping = Boolean.parseBoolean(arg.substring(6));
+				} else if (arg.startsWith("server=")) {
+					port = Integer.parseInt(arg.substring(7));
+				} else if (arg.startsWith("socket=")) {
+					socket = arg.substring(7);
+				} else if (arg.startsWith("idle=")) {
+					idleTimeout = Integer.parseInt(arg.substring(5));
+				} else if (arg.startsWith("batch=")) {
+					batch = arg.substring(6);
+				} else if (arg.startsWith("out=")) {
+					transcript = arg.substring(4);
+				} else if (arg.startsWith("threads=")) {
+					threads = Integer.parseInt(arg.substring(8));
+				} else if (arg.startsWith("snapshot=")) {
+					snapshot = arg.substring(9);
+				} else if (arg.startsWith("compile=")) {
+					compile = arg.substring(8);
+				} else if (arg.startsWith("reload=")) {
+					reload = Boolean.parseBoolean(arg.substring(7));
+				} else if (arg.startsWith("seed=")) {
+					seed = Long.parseLong(arg.substring(5));
+				} else if (arg.startsWith("metrics=")) {
+					metrics = Boolean.parseBoolean(arg.substring(8));
+				} else if (arg.startsWith("cache=")) {
+					cacheSize = Integer.parseInt(arg.substring(6));
+				} else if (arg.startsWith("cachettl=")) {
+					cacheTtl = Integer.parseInt(arg.substring(9));
+				} else if (arg.startsWith("fuzzy=")) {
+					fuzzy = Integer.parseInt(arg.substring(6));
+				} else if (arg.startsWith("stem=")) {
+					stem = Boolean.parseBoolean(arg.substring(5));
+				} else if (arg.startsWith("store=")) {
+					store = arg.substring(6);
+				} else if (arg.startsWith("storesize=")) {
+					storeSize = Integer.parseInt(arg.substring(10));
+				} else if (arg.startsWith("log=")) {
+					log = arg.substring(4);
+				} else if (arg.startsWith("logsize=")) {
+					logSize = Integer.parseInt(arg.substring(8));
+				} else if (arg.startsWith("logcompress=")) {
+					logCompress = Boolean.parseBoolean(arg.substring(12));
+				} else if (arg.startsWith("tenant=") && arg.indexOf(':') > 7) {
+					tenants.add(arg.substring(7).split(":", 2));
+				} else if (arg.startsWith("logfull=")) {
+					logFull = TranscriptLogger.OverflowPolicy.valueOf(arg
+							.substring(8).toUpperCase());
+				} else {
+					System.out.println("Invalid argument: " + arg);
+				}
+			} catch (IllegalArgumentException e) {
 				System.out.println("Invalid argument: " + arg);
 			}
 		}
 		Engine engine = null;
+		// the engines of the tenants, or null if there are none
+		EngineRegistry registry = null;
 		try {
-			engine = new Engine(script);
+			if (compile != null) {
+				ScriptSnapshot.compile(script, compile);
+				System.out.println("Compiled " + script + " to " + compile
+						+ ".");
+				return;
+			}
+			if (tenants.isEmpty()) {
+				engine = new Engine(loadScript(script, snapshot));
+			} else {
+				// the tenants share the parts of their scripts with the main
+				// script, so it is read into the same pool
+				registry = new EngineRegistry();
+				engine = new Engine(new Script(script, registry.getPool()));
+				for (String[] tenant : tenants) {
+					Engine tenantEngine = registry.load(tenant[0], tenant[1]);
+					tenantEngine.setCache(cacheSize, cacheTtl * 1000L);
+					tenantEngine.setFuzzy(fuzzy);
+					tenantEngine.setStemming(stem);
+				}
+			}
+		} catch (FileNotFoundException e) {
+			System.err
+					.println("ERROR: Script file is not in the specified location.");
+			return;
+		} catch (IOException e) {
+			System.err.println("ERROR reading script file:\n" + e.getMessage());
+			return;
 		} catch (FileFormatException e) {
 			System.out.println("Script file not formatted properly. "
 					+ e.getMessage());
 			System.out.println("Now terminating.");
 			return;
 		}
+		engine.setCache(cacheSize, cacheTtl * 1000L);
+		engine.setFuzzy(fuzzy);
+		engine.setStemming(stem);
+		if (reload) {
+			watch(engine, registry, script, tenants);
+		}
+		if (metrics) {
+			instrument(engine, "eliza");
+			if (registry != null) {
+				for (String tenant : registry.getTenants()) {
+					instrument(registry.get(tenant), "eliza." + tenant);
+				}
+			}
+		}
+		// delays replies as though Eliza were typing them, or null
+		ReplyScheduler replies = enableSleeping ? new ReplyScheduler(
+				MIN_SLEEP, MAX_SLEEP) : null;
+		TranscriptLogger logger = null;
+		if (log != null) {
+			logger = openLog(log, logSize * 1024L * 1024L, logCompress,
+					logFull);
+			if (logger == null)
+				return;
+		}
+		if (port >= 0 || socket != null) {
+			serve(engine, registry, port, socket, threads, idleTimeout,
+					replies, store, storeSize, logger);
+			return;
+		}
+		if (batch != null) {
+			replay(engine, batch, transcript, threads, seed);
+			return;
+		}
 
-		String welcomeMessage = engine.getWelcomeMessage();
+		Session session = seed == null ? engine.newSession() : engine
+				.newSession(seed);
+		String welcomeMessage = engine.getWelcomeMessage(session);
 		System.out.println(AI_PREFIX + welcomeMessage);
 		String input;
 		String output;
@@ -66,23 +251,257 @@ public class Runner {
 			// if the user doesn't enter anything: jump to start of loop
 			if (input.equals(""))
 				continue;
-			long start = System.currentTimeMillis();
-			output = engine.generateResponse(input);
-
-			if (enableSleeping) {
-				long end = System.currentTimeMillis();
-				int delay = RandomMethods.random(MIN_SLEEP, MAX_SLEEP);
-				int sleepTime = (int) (end - start + delay);
-				sleep(sleepTime);
-			}
+			long received = System.currentTimeMillis();
+			output = engine.generateResponse(session, input);
+			if (logger != null)
+				logger.log(CONSOLE_SESSION, input, output, session
+						.getKeyword(), received, System.currentTimeMillis());
+
+			// the console holds a single conversation, which has nothing to
+			// do but wait for its reply
+			if (replies != null)
+				output = replies.schedule(output, received).join();
 			System.out.println(AI_PREFIX + output);
-		} while (engine.isAlive());
+		} while (session.isAlive());
+	}
+
+	/**
+	 * Load a script, from its compiled snapshot if there is an up to date one.
+	 * 
+	 * @param script
+	 *            The path of the script file.
+	 * @param snapshot
+	 *            The path of the snapshot, or null to parse the script file.
+	 * @return The loaded script.
+	 * @throws IOException
+	 *             If there is an error reading the script file.
+	 * @throws FileFormatException
+	 *             If the script file is formatted incorrectly.
+	 */
+	private static Script loadScript(String script, String snapshot)
+			throws IOException, FileFormatException {
+		if (snapshot != null) {
+			try {
+				return ScriptSnapshot.read(snapshot, script);
+			} catch (IOException e) {
+				System.out.println("Could not read snapshot: "
+						+ e.getMessage());
+			} catch (FileFormatException e) {
+				System.out.println("Ignoring snapshot. " + e.getMessage());
+			}
+		}
+		return new Script(script);
 	}
 
-	private static void sleep(int sleepTime) {
+	/**
+	 * Start reloading the script whenever the script file changes, and the
+	 * script of each tenant whenever its file changes.
+	 * 
+	 * @param engine
+	 *            The engine whose script is replaced.
+	 * @param registry
+	 *            The engines of the tenants, or null if there are none.
+	 * @param script
+	 *            The path of the script file.
+	 * @param tenants
+	 *            The name and script file of each tenant.
+	 */
+	private static void watch(Engine engine, EngineRegistry registry,
+			String script, ArrayList<String[]> tenants) {
 		try {
-			Thread.sleep(sleepTime);
-		} catch (InterruptedException e) {
+			if (registry == null) {
+				new ScriptWatcher(engine, script).start();
+				return;
+			}
+			new ScriptWatcher(engine, registry.getPool(), script).start();
+			for (String[] tenant : tenants) {
+				new ScriptWatcher(registry, tenant[0], tenant[1]).start();
+			}
+		} catch (IOException e) {
+			System.out.println("Could not watch script file: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Record engine metrics and publish them over JMX.
+	 * 
+	 * @param engine
+	 *            The engine to instrument.
+	 * @param name
+	 *            The name the metrics are published under.
+	 */
+	private static void instrument(Engine engine, String name) {
+		EngineMetrics metrics = new EngineMetrics();
+		try {
+			metrics.register(name);
+		} catch (JMException e) {
+			System.out.println("Could not publish metrics: " + e.getMessage());
+			return;
+		}
+		engine.setMetrics(metrics);
+	}
+
+	/**
+	 * Serve conversations over HTTP, a Unix domain socket or both until the
+	 * process is terminated. Both servers share the same sessions.
+	 * 
+	 * @param engine
+	 *            The engine backing conversations without a tenant.
+	 * @param registry
+	 *            The engines of the tenants, or null.
+	 * @param port
+	 *            The port to listen on, or -1 not to serve HTTP.
+	 * @param socket
+	 *            The path of the socket to listen on, or null.
+	 * @param workers
+	 *            The number of threads generating replies for the socket.
+	 * @param idleTimeout
+	 *            Seconds before an idle conversation is evicted.
+	 * @param replies
+	 *            The scheduler delaying HTTP replies, or null to send them
+	 *            straight away.
+	 * @param store
+	 *            The file sessions are saved to, or null to keep them in
+	 *            memory only.
+	 * @param storeSize
+	 *            The number of sessions a new store file has room for.
+	 * @param transcript
+	 *            Where exchanges are logged, or null.
+	 */
+	private static void serve(Engine engine, EngineRegistry registry,
+			int port, String socket, int workers, int idleTimeout,
+			ReplyScheduler replies, String store, int storeSize,
+			TranscriptLogger transcript) {
+		SessionStore sessionStore = null;
+		if (store != null) {
+			int cursors = engine.getScript().getRandomizerCount();
+			if (registry != null)
+				cursors = Math.max(cursors, registry.getRandomizerCount());
+			try {
+				// leave room for reassembly lists added by later reloads
+				sessionStore = open(store, storeSize, STORE_CURSOR_HEADROOM
+						* cursors);
+			} catch (IOException e) {
+				System.out.println("Could not open session store: "
+						+ e.getMessage());
+				return;
+			}
+		}
+		// shared by both servers and kept until the process exits
+		SessionManager sessions = new SessionManager(engine, registry,
+				idleTimeout * 1000L, sessionStore);
+		try {
+			if (port >= 0) {
+				ChatServer server = new ChatServer(sessions, port, replies);
+				server.setTranscript(transcript);
+				server.start();
+				System.out.println("Serving Eliza on port " + port + ".");
+			}
+			if (socket != null) {
+				SidecarServer sidecar = new SidecarServer(sessions, socket,
+						workers);
+				sidecar.setTranscript(transcript);
+				sidecar.start();
+				System.out.println("Serving Eliza on " + socket + ".");
+			}
+		} catch (IOException e) {
+			System.out.println("Could not start server: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Open a session store, which is written to disk when the process exits.
+	 * 
+	 * @param filename
+	 *            The path of the store file.
+	 * @param capacity
+	 *            The number of sessions a new file has room for.
+	 * @param cursors
+	 *            The number of cursors a record of a new file has room for.
+	 * @return The opened store.
+	 * @throws IOException
+	 *             If the store cannot be opened.
+	 */
+	private static SessionStore open(String filename, int capacity,
+			int cursors) throws IOException {
+		final SessionStore store = new SessionStore(filename, capacity,
+				cursors, STORE_FLUSH_INTERVAL);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				store.close();
+			} catch (IOException e) {
+				System.err.println("ERROR closing session store:\n"
+						+ e.getMessage());
+			}
+		}, "eliza-session-store-closer"));
+		return store;
+	}
+
+	/**
+	 * Open the exchange log, which is flushed when the process exits.
+	 * 
+	 * @param filename
+	 *            The path of the log.
+	 * @param maxSize
+	 *            The size in bytes past which the log is rotated.
+	 * @param compress
+	 *            Whether to compress rotated logs.
+	 * @param policy
+	 *            What to do with exchanges when the log falls behind.
+	 * @return The opened logger, or null if the log cannot be opened.
+	 */
+	private static TranscriptLogger openLog(String filename, long maxSize,
+			boolean compress, TranscriptLogger.OverflowPolicy policy) {
+		final TranscriptLogger transcript;
+		try {
+			transcript = new TranscriptLogger(filename, maxSize, compress,
+					LOG_BUFFER_SIZE, policy);
+		} catch (IOException e) {
+			System.out.println("Could not open log: " + e.getMessage());
+			return null;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				transcript.close();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (transcript.getDropped() > 0)
+				System.err.println("Dropped " + transcript.getDropped()
+						+ " exchanges from the log.");
+		}, "eliza-transcript-closer"));
+		return transcript;
+	}
+
+	/**
+	 * Replay a file of conversations in parallel and report the throughput.
+	 * 
+	 * @param engine
+	 *            The engine to replay the conversations through.
+	 * @param input
+	 *            The file of conversations.
+	 * @param output
+	 *            The transcript file to write.
+	 * @param threads
+	 *            The number of conversations processed in parallel.
+	 * @param seed
+	 *            The seed of the first conversation, or null for unseeded
+	 *            conversations.
+	 */
+	private static void replay(Engine engine, String input, String output,
+			int threads, Long seed) {
+		BatchRunner runner = new BatchRunner(engine, threads);
+		if (seed != null)
+			runner.setSeed(seed);
+		try {
+			runner.run(input, output);
+		} catch (IOException e) {
+			System.out.println("Batch run failed: " + e.getMessage());
+			return;
 		}
+		System.out.printf("Replayed %d utterances in %d conversations "
+				+ "(%.0f utterances/sec).%n", runner.getUtterances(), runner
+				.getConversations(), runner.getUtterancesPerSecond());
 	}
 }
@@ -0,0 +1,749 @@
+package eliza;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.zip.CRC32;
+
+import eliza.exception.FileFormatException;
+import eliza.matching.FuzzyKeywordIndex;
+import eliza.matching.KeywordIndex;
+import eliza.matching.SubstitutionTrie;
+import eliza.wrapper.Decomposition;
+import eliza.wrapper.Keyword;
+import eliza.wrapper.StringArrayRandomizer;
+import eliza.wrapper.SubstitutionRule;
+
+/**
+ * The Script class holds a parsed and compiled Eliza script. A Script is not
+ * modified after it has been read, so it can be shared by any number of
+ * conversations and threads. All state belonging to a conversation is kept in
+ * a Session.
+ * 
+ * A script file may include fragments shared with other scripts, see
+ * ScriptReader. Scripts read with the same RulePool share the parts they
+ * have in common, and a script read with a pool should be released once it
+ * has been replaced.
+ * 
+ * The script file is read into a buffer outside the heap, see ScriptReader,
+ * and is expected to be UTF-8. The reassembly rules and other responses are
+ * kept as UTF-8 outside the heap and decoded when first used, and the
+ * decomposition rules of a keyword are compiled when the keyword is first
+ * found, so a large script costs the heap little more than its keyword index
+ * until it is used. Once the script has been read the rules are copied out of
+ * the buffer of the file into one holding only them, and the buffer of the
+ * file is dropped, so the script file may be edited in any way while the
+ * Script is in use. A
+ * script read with a RulePool is decoded in full, since its parts are
+ * shared by content. The keyword index is built when an Engine first needs
+ * it, in the form the engine uses, see Engine.setStemming.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+public class Script {
+	// String containing a space.
+	private static final String SPACE = " ";
+	// The ASCII prefixes of the lines of the keywords section.
+	private static final String KEYWORD_PREFIX = "k:";
+	private static final String DECOMPOSITION_PREFIX = "d:";
+	private static final String REASSEMBLY_PREFIX = "r:";
+	// Messages Eliza uses to start the conversation.
+	private ArrayList<String> welcomeMessages = new ArrayList<String>();
+	/*
+	 * Messages Eliza uses after it recognizes a quit command (which terminates
+	 * the conversation).
+	 */
+	private ArrayList<String> finalMessages = new ArrayList<String>();
+	/*
+	 * A list of pre-substitution rules which are applied before checking for
+	 * keywords.
+	 */
+	private ArrayList<SubstitutionRule> presubRules;
+	// The pre-substitution rules compiled into a trie.
+	private SubstitutionTrie presub;
+	/*
+	 * A list of post-substitution rules which are applied during application of
+	 * reassembly rules.
+	 */
+	private ArrayList<SubstitutionRule> postsubRules;
+	// The post-substitution rules compiled into a trie.
+	private SubstitutionTrie postsub;
+	/*
+	 * A list of keywords which are used as the basis for transforming the input
+	 * sentence and creating an output sentence.
+	 */
+	private ArrayList<Keyword> keywords = new ArrayList<Keyword>();
+	// Finds the keywords contained in a sentence in a single pass, or null
+	// until first asked for.
+	private volatile KeywordIndex keywordIndex;
+	// The same, with keywords of a single word filed by their stems.
+	private volatile KeywordIndex stemmedIndex;
+	// Corrects misspelt keywords, or null until first asked for.
+	private volatile FuzzyKeywordIndex fuzzyIndex;
+	/*
+	 * A list of responses which are used when no applicable keywords are found
+	 * in an input phrase.
+	 */
+	private StringArrayRandomizer otherResponses;
+	// A list of commands which Eliza recognises as conversation terminators.
+	private ArrayList<String> quitCommands = new ArrayList<String>();
+	// The quit commands in lower case, as they are looked for in input.
+	private String[] quitWords;
+	// All StringArrayRandomizers of the script, indexed by the position of
+	// their shuffle state in a Session.
+	private ArrayList<StringArrayRandomizer> randomizers = new ArrayList<StringArrayRandomizer>();
+	// The position of the shuffle state of each randomizer, indexed by its id,
+	// or null if the ids are the positions.
+	private int[] slots;
+	// Stores the parts shared with other scripts, or null.
+	private RulePool pool;
+	// The parts taken from the pool, or null.
+	private RulePool.Lease lease;
+	// The script file and the fragments it includes, empty if the script was
+	// not read from a file.
+	private ArrayList<Path> files = new ArrayList<Path>();
+	// How often each reassembly list has been used while reading the script.
+	private HashMap<ArrayList<String>, Integer> listUses;
+
+	/**
+	 * Read a script file and compile it.
+	 * 
+	 * @param filename
+	 *            The path of the script file.
+	 * @throws FileNotFoundException
+	 *             If there is no script file at the given path.
+	 * @throws IOException
+	 *             If there is an error reading the file.
+	 * @throws FileFormatException
+	 *             If the script file is formatted incorrectly.
+	 */
+	public Script(String filename) throws IOException, FileFormatException {
+		this(filename, null);
+	}
+
+	/**
+	 * Read a script file and compile it, sharing equal parts with the other
+	 * scripts of a pool.
+	 * 
+	 * @param filename
+	 *            The path of the script file.
+	 * @param pool
+	 *            The pool storing the parts of the script, or null to give the
+	 *            script its own copies.
+	 * @throws FileNotFoundException
+	 *             If there is no script file at the given path.
+	 * @throws IOException
+	 *             If there is an error reading the file.
+	 * @throws FileFormatException
+	 *             If the script file is formatted incorrectly.
+	 */
+	public Script(String filename, RulePool pool) throws IOException,
+			FileFormatException {
+		this(filename, pool, null);
+	}
+
+	/**
+	 * Read a script file and compile it, computing the checksum of the bytes
+	 * it was read from, see ScriptSnapshot.
+	 * 
+	 * @param filename
+	 *            The path of the script file.
+	 * @param pool
+	 *            The pool storing the parts of the script, or null.
+	 * @param checksum
+	 *            Updated with the bytes of the script file and the fragments
+	 *            it includes, or null.
+	 * @throws FileNotFoundException
+	 *             If there is no script file at the given path.
+	 * @throws IOException
+	 *             If there is an error reading the file.
+	 * @throws FileFormatException
+	 *             If the script file is formatted incorrectly.
+	 */
+	Script(String filename, RulePool pool, CRC32 checksum) throws IOException,
+			FileFormatException {
+		this.pool = pool;
+		if (pool != null) {
+			lease = pool.newLease();
+			listUses = new HashMap<ArrayList<String>, Integer>();
+		}
+		try {
+			ScriptReader in = new ScriptReader(filename, checksum);
+			// skip first line
+			in.nextLine();
+			readWelcomeMessages(in);
+			readFinalMessages(in);
+			readPreSubstitutionRules(in);
+			readPostSubstitutionRules(in);
+			readKeywords(in);
+			readOtherResponses(in);
+			readQuitCommands(in);
+			files = in.getFiles();
+			compactRules();
+			listUses = null;
+			validate();
+			if (pool != null) {
+				welcomeMessages = pool.internList(lease, welcomeMessages);
+				finalMessages = pool.internList(lease, finalMessages);
+				presubRules = pool.internRules(lease, presubRules);
+				postsubRules = pool.internRules(lease, postsubRules);
+				quitCommands = pool.internList(lease, quitCommands);
+			}
+			compile();
+		} catch (IOException | FileFormatException | RuntimeException e) {
+			// the parts taken so far are not used by any script
+			release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Create a script from already parsed parts, as stored in a
+	 * ScriptSnapshot.
+	 * 
+	 * @param welcomeMessages
+	 *            The welcome messages.
+	 * @param finalMessages
+	 *            The final messages.
+	 * @param presubRules
+	 *            The pre-substitution rules, in order.
+	 * @param postsubRules
+	 *            The post-substitution rules, in order.
+	 * @param keywords
+	 *            The keywords, in the order they are listed in the script.
+	 * @param randomizers
+	 *            All randomizers used by the keywords and the other responses,
+	 *            indexed by their id.
+	 * @param otherResponses
+	 *            The responses used when no keyword applies.
+	 * @param quitCommands
+	 *            The quit commands.
+	 * @throws FileFormatException
+	 *             If the script lacks a part an Engine needs.
+	 */
+	Script(ArrayList<String> welcomeMessages, ArrayList<String> finalMessages,
+			ArrayList<SubstitutionRule> presubRules,
+			ArrayList<SubstitutionRule> postsubRules,
+			ArrayList<Keyword> keywords,
+			ArrayList<StringArrayRandomizer> randomizers,
+			StringArrayRandomizer otherResponses, ArrayList<String> quitCommands)
+			throws FileFormatException {
+		this.welcomeMessages = welcomeMessages;
+		this.finalMessages = finalMessages;
+		this.presubRules = presubRules;
+		this.postsubRules = postsubRules;
+		this.keywords = keywords;
+		this.randomizers = randomizers;
+		this.otherResponses = otherResponses;
+		this.quitCommands = quitCommands;
+		validate();
+		compile();
+	}
+
+	/**
+	 * Check that the script has everything an Engine needs to answer any
+	 * input, e.g. so that a truncated save of the script file is not
+	 * reloaded in place of a working script.
+	 * 
+	 * @throws FileFormatException
+	 *             If a section is empty or missing, or a decomposition rule
+	 *             has no reassembly rules.
+	 */
+	private void validate() throws FileFormatException {
+		if (welcomeMessages.isEmpty())
+			throw new FileFormatException("Script has no welcome messages.");
+		if (finalMessages.isEmpty())
+			throw new FileFormatException("Script has no final messages.");
+		if (otherResponses == null || otherResponses.size() == 0)
+			throw new FileFormatException("Script has no ;Other responses.");
+		if (quitCommands.isEmpty())
+			throw new FileFormatException("Script has no ;Quit commands.");
+		for (Keyword key : keywords) {
+			for (Decomposition d : key.getRules()) {
+				if (d.getReassemblyRules().size() == 0)
+					throw new FileFormatException("Decomposition rule "
+							+ d.getRule() + " of keyword " + key
+							+ " has no reassembly rules.");
+			}
+		}
+	}
+
+	/**
+	 * Build the structures used for matching from the parsed rules.
+	 */
+	private void compile() {
+		if (pool == null) {
+			presub = new SubstitutionTrie(presubRules);
+			postsub = new SubstitutionTrie(postsubRules);
+		} else {
+			presub = pool.getTrie(lease, presubRules);
+			postsub = pool.getTrie(lease, postsubRules);
+			// the ids are given out by the pool
+			int maxId = -1;
+			for (StringArrayRandomizer randomizer : randomizers) {
+				maxId = Math.max(maxId, randomizer.getId());
+			}
+			slots = new int[maxId + 1];
+			for (int i = 0; i < randomizers.size(); i++) {
+				slots[randomizers.get(i).getId()] = i;
+			}
+		}
+		quitWords = new String[quitCommands.size()];
+		for (int i = 0; i < quitWords.length; i++) {
+			quitWords[i] = quitCommands.get(i).toLowerCase();
+		}
+	}
+
+	/**
+	 * Read welcome messages and store them in memory.
+	 * 
+	 * @param in
+	 *            A ScriptReader reading from the script file.
+	 * @throws IOException
+	 *             If there is an error reading the file.
+	 * @throws FileFormatException
+	 *             If the script file is formatted incorrectly.
+	 */
+	private void readWelcomeMessages(ScriptReader in) throws IOException {
+		while (in.nextLine() && !in.lineEquals(";Final")) {
+			welcomeMessages.add(in.getLine());
+		}
+	}
+
+	/**
+	 * Read final messages and store them in memory.
+	 * 
+	 * @param in
+	 *            A ScriptReader reading from the script file.
+	 * @throws IOException
+	 *             If there is an error reading the file.
+	 * @throws FileFormatException
+	 *             If the script file is formatted incorrectly.
+	 */
+	private void readFinalMessages(ScriptReader in) throws IOException {
+		while (in.nextLine() && !in.lineEquals(";Pre")) {
+			finalMessages.add(in.getLine());
+		}
+	}
+
+	/**
+	 * Read pre-substitution rules store them in memory.
+	 * 
+	 * @param in
+	 *            A ScriptReader reading from the script file.
+	 * @throws IOException
+	 *             If there is an error reading the file.
+	 * @throws FileFormatException
+	 *             If the script file is formatted incorrectly.
+	 */
+	private void readPreSubstitutionRules(ScriptReader in)
+			throws IOException, FileFormatException {
+		presubRules = readSubstitutionRules(in, ";Post");
+	}
+
+	/**
+	 * Read post-substitution rules and store them in memory.
+	 * 
+	 * @param in
+	 *            A ScriptReader reading from the script file.
+	 * @throws IOException
+	 *             If there is an error reading the file.
+	 * @throws FileFormatException
+	 *             If the script file is formatted incorrectly.
+	 */
+	private void readPostSubstitutionRules(ScriptReader in)
+			throws IOException, FileFormatException {
+		postsubRules = readSubstitutionRules(in, ";Keywords");
+	}
+
+	/**
+	 * Read substitution rules up to the line marking the end of the section.
+	 * 
+	 * @param in
+	 *            A ScriptReader reading from the script file.
+	 * @param end
+	 *            The line following the last rule.
+	 * @return A list of the substitution rules, in order.
+	 * @throws IOException
+	 *             If there is an error reading the file.
+	 * @throws FileFormatException
+	 *             If the script file is formatted incorrectly.
+	 */
+	private ArrayList<SubstitutionRule> readSubstitutionRules(
+			ScriptReader in, String end) throws IOException,
+			FileFormatException {
+		ArrayList<SubstitutionRule> rules = new ArrayList<SubstitutionRule>();
+		while (in.nextLine() && !in.lineEquals(end)) {
+			String line = in.getLine();
+			String[] split = line.split("\t");
+			if (split.length != 2) {
+				String msg = "Problem in line:\n" + line;
+				throw new FileFormatException(msg);
+			}
+			rules.add(new SubstitutionRule(split[0], split[1]));
+		}
+		return rules;
+	}
+
+	/**
+	 * Read keywords and store them in memory.
+	 * 
+	 * @param in
+	 *            A ScriptReader reading from the script file.
+	 * @throws IOException
+	 *             If there is an error reading the file.
+	 * @throws FileFormatException
+	 *             If the script file is formatted incorrectly.
+	 */
+	private void readKeywords(ScriptReader in) throws IOException,
+			FileFormatException {
+		String[] keysAndP = null;
+		String[] decompRules = null;
+		ArrayList<Decomposition> decomp = null;
+		LineList reass = null;
+		while (in.nextLine()) {
+			boolean other = in.lineEquals(";Other");
+			if (other || in.startsWith(KEYWORD_PREFIX)) {
+				if (keysAndP != null) {
+					if (decompRules != null && !reass.isEmpty())
+					{
+						createDecomps(decompRules, decomp, reass);
+						decompRules = null;
+					}
+					addKeys(keysAndP, decomp);
+					if (other) {
+						// break out of while loop
+						break;
+					}
+				}
+				keysAndP = in.getLine(KEYWORD_PREFIX.length()).split(SPACE);
+				decomp = new ArrayList<Decomposition>();
+			} else if (in.startsWith(DECOMPOSITION_PREFIX)) {
+				if (decompRules != null && !reass.isEmpty())
+				{
+					createDecomps(decompRules, decomp, reass);
+					decompRules = null;
+				}
+				/*
+				 * Remove the "d:" and any whitespace before and after the
+				 * string and split it around the slashes.
+				 */
+				decompRules = in.getLine(DECOMPOSITION_PREFIX.length()).trim()
+						.split("/");
+				reass = new LineList();
+			} else if (in.startsWith(REASSEMBLY_PREFIX)) {
+				// kept as a position in the script file until first used
+				reass.add(in, REASSEMBLY_PREFIX.length());
+			}
+		}
+	}
+
+	/**
+	 * Create decomposition objects with given decomposition rules and
+	 * reassembly rules, and add them to decomp ArrayList.
+	 * 
+	 * @param decompRules
+	 *            An array of Strings containing decomposition rules.
+	 * @param decomp
+	 *            An ArrayList of Decomposition rules to which the rules are to
+	 *            be added.
+	 * @param reass
+	 *            The lines containing the reassembly rules.
+	 */
+	private void createDecomps(String[] decompRules,
+			ArrayList<Decomposition> decomp, LineList reass) {
+		// the rules on one line share their reassembly rules
+		StringArrayRandomizer reassembly = newRandomizer(reass);
+		for (String rule : decompRules) {
+			Decomposition d = pool == null ? new Decomposition(rule,
+					reassembly) : pool.getDecomposition(lease, rule, reassembly);
+			decomp.add(d);
+		}
+	}
+
+	/**
+	 * Parse the priority of a list of keywords and report any errors as
+	 * appropriate.
+	 * 
+	 * @param keysAndP
+	 *            An array of strings. The last element should contain the
+	 *            priority while the others contain keywords.
+	 * @return The priority.
+	 * @throws FileFormatException
+	 */
+	private int parsePriority(String[] keysAndP) throws FileFormatException {
+		int priority = 0;
+		int index = keysAndP.length - 1;
+		try {
+			priority = Integer.parseInt(keysAndP[index]);
+		} catch (NumberFormatException e) {
+			throw new FileFormatException(
+					"Script file not formatted correctly. "
+							+ "Problem in line with keyword:\n" + keysAndP[0],
+					e);
+		}
+		return priority;
+	}
+
+	/**
+	 * Adds keywords with same priority and decomposition/reassembly rules to
+	 * keywords array.
+	 * 
+	 * @param keysAndP
+	 *            Array of keywords, last element is expected to contain the
+	 *            priority and should be ignored.
+	 * @param priority
+	 *            The priority of this keyword
+	 * @param decomp
+	 * @throws FileFormatException
+	 */
+	private void addKeys(String[] keysAndP, ArrayList<Decomposition> decomp)
+			throws FileFormatException {
+		int priority = parsePriority(keysAndP);
+		for (int i = 0; i < keysAndP.length - 1; i++) {
+			Keyword key = pool == null ? new Keyword(keysAndP[i], priority,
+					decomp) : pool.getKeyword(lease, keysAndP[i], priority,
+					decomp);
+			keywords.add(key);
+		}
+	}
+
+	/**
+	 * Read other responses (which are used when no keywords are found in an
+	 * input string) and store them in memory.
+	 * 
+	 * @param in
+	 *            A ScriptReader reading from the script file.
+	 * @throws IOException
+	 *             If there is an error reading the file.
+	 * @throws FileFormatException
+	 *             If the script file is formatted incorrectly.
+	 */
+	private void readOtherResponses(ScriptReader in) throws IOException {
+		LineList otherResponses = new LineList();
+		while (in.nextLine() && !in.lineEquals(";Quit")) {
+			otherResponses.add(in, 0);
+		}
+		this.otherResponses = newRandomizer(otherResponses);
+	}
+
+	/**
+	 * Read quit commands and store them in memory.
+	 * 
+	 * @param in
+	 *            A ScriptReader reading from the script file.
+	 * @throws IOException
+	 *             If there is an error reading the file.
+	 * @throws FileFormatException
+	 *             If the script file is formatted incorrectly.
+	 */
+	private void readQuitCommands(ScriptReader in) throws IOException {
+		while (in.nextLine()) {
+			quitCommands.add(in.getLine());
+		}
+	}
+
+	/**
+	 * Copy the rules not yet decoded out of the buffers of the script file and
+	 * its fragments into a buffer of their own, so that the buffers of the
+	 * files, which hold the whole text, are not kept alive by them.
+	 */
+	private void compactRules() {
+		long length = 0;
+		for (StringArrayRandomizer randomizer : randomizers) {
+			length += randomizer.getEncodedLength();
+		}
+		if (length == 0 || length > Integer.MAX_VALUE)
+			return;
+		ByteBuffer rules = ByteBuffer.allocateDirect((int) length);
+		for (StringArrayRandomizer randomizer : randomizers) {
+			randomizer.moveTo(rules);
+		}
+	}
+
+	/**
+	 * Create a StringArrayRandomizer with the next free index into the
+	 * per-session state, or take it from the pool.
+	 * 
+	 * @param lines
+	 *            The lines holding the strings to choose from.
+	 * @return A new StringArrayRandomizer.
+	 */
+	private StringArrayRandomizer newRandomizer(LineList lines) {
+		StringArrayRandomizer randomizer;
+		if (pool == null) {
+			randomizer = lines.toRandomizer(randomizers.size());
+		} else {
+			ArrayList<String> values = lines.toStrings();
+			Integer uses = listUses.get(values);
+			int occurrence = uses == null ? 0 : uses;
+			listUses.put(values, occurrence + 1);
+			randomizer = pool.getRandomizer(lease, values, occurrence);
+		}
+		randomizers.add(randomizer);
+		return randomizer;
+	}
+
+	/**
+	 * Returns the files the script was read from, so that they can be watched
+	 * for changes, see ScriptWatcher.
+	 * 
+	 * @return The absolute paths of the script file and the fragments it
+	 *         includes, or an empty list if it was not read from a file.
+	 */
+	ArrayList<Path> getFiles() {
+		return files;
+	}
+
+	ArrayList<String> getWelcomeMessages() {
+		return welcomeMessages;
+	}
+
+	ArrayList<String> getFinalMessages() {
+		return finalMessages;
+	}
+
+	ArrayList<SubstitutionRule> getPreSubstitutionRules() {
+		return presubRules;
+	}
+
+	ArrayList<SubstitutionRule> getPostSubstitutionRules() {
+		return postsubRules;
+	}
+
+	SubstitutionTrie getPreSubstitution() {
+		return presub;
+	}
+
+	SubstitutionTrie getPostSubstitution() {
+		return postsub;
+	}
+
+	ArrayList<Keyword> getKeywords() {
+		return keywords;
+	}
+
+	/**
+	 * Returns the index finding the keywords of a sentence, building it on
+	 * first use. Both kinds of index find the same keywords; the stemmed one
+	 * takes less memory for scripts with many keywords.
+	 * 
+	 * @param stemmed
+	 *            Whether to use the index filing keywords by their stems.
+	 * @return The keyword index.
+	 */
+	KeywordIndex getKeywordIndex(boolean stemmed) {
+		KeywordIndex index = stemmed ? stemmedIndex : keywordIndex;
+		return index != null ? index : buildKeywordIndex(stemmed);
+	}
+
+	private synchronized KeywordIndex buildKeywordIndex(boolean stemmed) {
+		KeywordIndex index = stemmed ? stemmedIndex : keywordIndex;
+		if (index == null) {
+			index = pool == null ? new KeywordIndex(null, keywords, stemmed)
+					: pool.getKeywordIndex(lease, keywords, stemmed);
+			if (stemmed)
+				stemmedIndex = index;
+			else
+				keywordIndex = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the index correcting misspelt keywords, building it on first
+	 * use. Besides the keywords, the words of the substitution rules, the
+	 * decomposition rules and the quit commands are known to the index and
+	 * never corrected. The reassembly rules are left out, so that they are
+	 * not decoded.
+	 * 
+	 * @return The fuzzy keyword index.
+	 */
+	FuzzyKeywordIndex getFuzzyIndex() {
+		FuzzyKeywordIndex index = fuzzyIndex;
+		return index != null ? index : buildFuzzyIndex();
+	}
+
+	private synchronized FuzzyKeywordIndex buildFuzzyIndex() {
+		if (fuzzyIndex == null) {
+			HashSet<String> vocabulary = new HashSet<String>();
+			for (SubstitutionRule rule : presubRules) {
+				vocabulary.add(rule.getFind());
+				vocabulary.add(rule.getReplacement());
+			}
+			for (SubstitutionRule rule : postsubRules) {
+				vocabulary.add(rule.getFind());
+				vocabulary.add(rule.getReplacement());
+			}
+			for (Keyword key : keywords) {
+				for (Decomposition d : key.getRules()) {
+					vocabulary.add(d.getRule());
+				}
+			}
+			vocabulary.addAll(quitCommands);
+			fuzzyIndex = new FuzzyKeywordIndex(keywords, vocabulary);
+		}
+		return fuzzyIndex;
+	}
+
+	StringArrayRandomizer getOtherResponses() {
+		return otherResponses;
+	}
+
+	ArrayList<String> getQuitCommands() {
+		return quitCommands;
+	}
+
+	String[] getQuitWords() {
+		return quitWords;
+	}
+
+	/**
+	 * Returns the StringArrayRandomizers of this script, indexed by the
+	 * position of their shuffle state in a Session. That is their id unless
+	 * the script was read with a RulePool.
+	 * 
+	 * @return The randomizers.
+	 */
+	ArrayList<StringArrayRandomizer> getRandomizers() {
+		return randomizers;
+	}
+
+	/**
+	 * Returns the number of shuffle cursors a Session needs, which is the
+	 * number of StringArrayRandomizers in this script.
+	 * 
+	 * @return The number of cursors.
+	 */
+	int getRandomizerCount() {
+		return randomizers.size();
+	}
+
+	/**
+	 * Returns the position of the shuffle state of a randomizer of this
+	 * script in a Session.
+	 * 
+	 * @param id
+	 *            The id of the randomizer.
+	 * @return The index of its cursor.
+	 */
+	int getSlot(int id) {
+		return slots == null ? id : slots[id];
+	}
+
+	/**
+	 * Give the parts of this script back to its RulePool, so that those no
+	 * other script uses are dropped. Call once the script has been replaced;
+	 * conversations still using it are not affected. Does nothing if the
+	 * script was not read with a pool.
+	 */
+	void release() {
+		if (lease != null)
+			pool.release(lease);
+	}
+}
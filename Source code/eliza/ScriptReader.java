@@ -0,0 +1,287 @@
+package eliza;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.zip.CRC32;
+
+/**
+ * ScriptReader reads a script file line by line from a direct buffer holding
+ * the file, so that even a very large script is not copied into the heap as a
+ * whole. Lines are compared with section markers byte by byte and only decoded
+ * from UTF-8 when asked for; a caller may instead keep the position of a line
+ * in the buffer, see LineList, and decode it when it is first needed.
+ *
+ * A line of the form ";Include path" is replaced with the lines of the named
+ * fragment file, which is read in turn. Fragments may include other
+ * fragments, and a relative path is resolved against the directory of the
+ * file containing the include. This lets several scripts share common
+ * sections, e.g. the substitution rules or a set of keywords. A file may be at
+ * most 2 GB.
+ * 
+ * Each file is read into its buffer in one pass, rather than mapped, so the
+ * buffer belongs to the reader alone. A script file may therefore be edited,
+ * truncated or replaced while Scripts read from an earlier version of it are
+ * still in use; a mapping of the file itself would show them the new bytes,
+ * or fault once the file had shrunk.
+ *
+ * @author Ole & Peter
+ *
+ */
+class ScriptReader {
+	// The start of an include line.
+	private static final String INCLUDE = ";Include ";
+
+	// The files being read, innermost first, the script file last.
+	private final ArrayDeque<ScriptFile> files = new ArrayDeque<ScriptFile>();
+	// Every file read so far, the script file first.
+	private final LinkedHashSet<Path> read = new LinkedHashSet<Path>();
+	// Updated with the bytes of every file read, or null.
+	private final CRC32 checksum;
+	// The buffer, start and end of the current line.
+	private ByteBuffer buffer;
+	private int start;
+	private int end;
+
+	/**
+	 * Open a script file.
+	 *
+	 * @param filename
+	 *            The path of the script file.
+	 * @throws FileNotFoundException
+	 *             If there is no script file at the given path.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 */
+	ScriptReader(String filename) throws IOException {
+		this(filename, null);
+	}
+
+	/**
+	 * Open a script file, computing the checksum of it and the fragments it
+	 * includes as they are read.
+	 *
+	 * @param filename
+	 *            The path of the script file.
+	 * @param checksum
+	 *            Updated with the raw bytes of each file when it is read, so
+	 *            it covers all of them once every line has been read.
+	 * @throws FileNotFoundException
+	 *             If there is no script file at the given path.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 */
+	ScriptReader(String filename, CRC32 checksum) throws IOException {
+		this.checksum = checksum;
+		open(Paths.get(filename).toAbsolutePath().normalize());
+	}
+
+	/**
+	 * Move to the next line of the script, with includes expanded.
+	 *
+	 * @return false at the end of the script.
+	 * @throws IOException
+	 *             If an included file cannot be read, or a file includes
+	 *             itself.
+	 */
+	boolean nextLine() throws IOException {
+		while (!files.isEmpty()) {
+			ScriptFile file = files.peek();
+			ByteBuffer text = file.text;
+			int limit = text.limit();
+			if (file.position >= limit) {
+				files.pop();
+				continue;
+			}
+			// a line ends at \n, \r or \r\n, as for BufferedReader
+			int i = file.position;
+			while (i < limit && text.get(i) != '\n' && text.get(i) != '\r') {
+				i++;
+			}
+			buffer = text;
+			start = file.position;
+			end = i;
+			if (i < limit && text.get(i) == '\r' && i + 1 < limit
+					&& text.get(i + 1) == '\n')
+				i++;
+			file.position = i + 1;
+			if (!startsWith(INCLUDE))
+				return true;
+			include(getLine(INCLUDE.length()).trim());
+		}
+		return false;
+	}
+
+	/**
+	 * Tells whether the current line is a given ASCII string.
+	 *
+	 * @param ascii
+	 *            A string of ASCII characters.
+	 * @return Whether the line consists of exactly those characters.
+	 */
+	boolean lineEquals(String ascii) {
+		return end - start == ascii.length() && startsWith(ascii);
+	}
+
+	/**
+	 * Tells whether the current line starts with a given ASCII string.
+	 *
+	 * @param ascii
+	 *            A string of ASCII characters.
+	 * @return Whether the line starts with those characters.
+	 */
+	boolean startsWith(String ascii) {
+		if (end - start < ascii.length())
+			return false;
+		for (int i = 0; i < ascii.length(); i++) {
+			if (buffer.get(start + i) != ascii.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Decode the current line.
+	 *
+	 * @return The line.
+	 */
+	String getLine() {
+		return getLine(0);
+	}
+
+	/**
+	 * Decode the current line after a prefix.
+	 *
+	 * @param skip
+	 *            The length of an ASCII prefix of the line to leave out.
+	 * @return The rest of the line.
+	 */
+	String getLine(int skip) {
+		return decode(buffer, start + skip, end);
+	}
+
+	/**
+	 * @return The buffer holding the current line.
+	 */
+	ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return The position of the first byte of the current line.
+	 */
+	int getStart() {
+		return start;
+	}
+
+	/**
+	 * @return The position after the last byte of the current line, not
+	 *         counting the line terminator.
+	 */
+	int getEnd() {
+		return end;
+	}
+
+	/**
+	 * Returns the files read so far. Once every line has been read, these are
+	 * the script file and all fragments it includes.
+	 *
+	 * @return The absolute paths of the files, the script file first.
+	 */
+	ArrayList<Path> getFiles() {
+		return new ArrayList<Path>(read);
+	}
+
+	/**
+	 * Decode part of a buffer from UTF-8. Malformed input is replaced, as by
+	 * an InputStreamReader.
+	 *
+	 * @param buffer
+	 *            The buffer.
+	 * @param start
+	 *            The position of the first byte.
+	 * @param end
+	 *            The position after the last byte.
+	 * @return The decoded text.
+	 */
+	static String decode(ByteBuffer buffer, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		buffer.get(start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Start reading a fragment.
+	 *
+	 * @param name
+	 *            The path of the fragment, relative to the current file.
+	 */
+	private void include(String name) throws IOException {
+		Path parent = files.peek().path.getParent();
+		Path file = (parent == null ? Paths.get(name) : parent.resolve(name))
+				.normalize();
+		for (ScriptFile open : files) {
+			if (open.path.equals(file))
+				throw new IOException(file + " includes itself.");
+		}
+		open(file);
+	}
+
+	/**
+	 * Read a file and start reading its lines.
+	 */
+	private void open(Path path) throws IOException {
+		ScriptFile file = new ScriptFile(path);
+		read.add(path);
+		if (checksum != null)
+			checksum.update(file.text.duplicate());
+		files.push(file);
+	}
+
+	/**
+	 * A file read into a buffer and how far its lines have been read.
+	 */
+	private static class ScriptFile {
+		private final Path path;
+		private final ByteBuffer text;
+		private int position;
+
+		private ScriptFile(Path path) throws IOException {
+			this.path = path;
+			text = read(path);
+		}
+
+		/**
+		 * Read a whole file into a direct buffer, outside the heap. If the
+		 * file changes size meanwhile, the bytes read up to its end are kept.
+		 */
+		private static ByteBuffer read(Path file) throws IOException {
+			FileChannel channel;
+			try {
+				channel = FileChannel.open(file, StandardOpenOption.READ);
+			} catch (NoSuchFileException e) {
+				throw new FileNotFoundException(file + " does not exist.");
+			}
+			try {
+				long size = channel.size();
+				if (size > Integer.MAX_VALUE)
+					throw new IOException(file + " is too large to read.");
+				ByteBuffer text = ByteBuffer.allocateDirect((int) size);
+				while (text.hasRemaining() && channel.read(text) >= 0) {
+				}
+				return text.flip().asReadOnlyBuffer();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package eliza;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+import eliza.exception.FileFormatException;
+import eliza.wrapper.Decomposition;
+import eliza.wrapper.Keyword;
+import eliza.wrapper.StringArrayRandomizer;
+import eliza.wrapper.SubstitutionRule;
+
+/**
+ * ScriptSnapshot writes a parsed script to a compact binary file and reads it
+ * back, which is much faster than parsing the text script. The keywords are
+ * stored in the order of the script file, and each reassembly list is stored
+ * once however many keywords share it. The snapshot is read through a memory
+ * mapping of the file.
+ * 
+ * The keyword index is not stored, since it depends on whether the engine
+ * stems keywords and may be shared with other scripts through a RulePool. It
+ * is built when first needed, as for a parsed script.
+ * 
+ * A snapshot carries a CRC32 checksum of the bytes of the script it was
+ * compiled from and any fragments it includes, and is rejected if the script
+ * has changed since. The checksum is computed from the same bytes the script
+ * is parsed from. Checking it when a snapshot is read means reading the script
+ * and its fragments once more; that takes far less time than parsing them,
+ * but still grows with their size.
+ * 
+ * The snapshot also carries a CRC32 checksum of its own contents, so a
+ * damaged snapshot is rejected before anything is read from it. It is written
+ * to a temporary file which is then moved into place, so a snapshot being
+ * written is never read half done.
+ * 
+ * <pre>
+ * magic, version, source checksum, checksum of the rest
+ * randomizers:   count, then for each: count, strings
+ * welcome:       count, strings
+ * final:         count, strings
+ * pre, post:     count, then for each: find, replacement
+ * keywords:      count, then for each: keyword, priority, count of
+ *                decompositions, then for each: rule, randomizer id
+ * other:         randomizer id
+ * quit:          count, strings
+ * </pre>
+ * 
+ * Strings are stored as their length in bytes followed by UTF-8 bytes.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+public class ScriptSnapshot {
+	// Marks a file as an Eliza script snapshot ("ELIZ").
+	private static final int MAGIC = 0x454C495A;
+	// Incremented whenever the format changes.
+	private static final int VERSION = 3;
+
+	/**
+	 * Compile a script file and write a snapshot of it.
+	 * 
+	 * @param source
+	 *            The path of the script file.
+	 * @param snapshot
+	 *            The path of the snapshot to write.
+	 * @throws IOException
+	 *             If reading or writing a file fails.
+	 * @throws FileFormatException
+	 *             If the script file is formatted incorrectly.
+	 */
+	public static void compile(String source, String snapshot)
+			throws IOException, FileFormatException {
+		CRC32 checksum = new CRC32();
+		Script script = new Script(source, null, checksum);
+		write(script, checksum.getValue(), snapshot);
+	}
+
+	/**
+	 * Write a snapshot of a script.
+	 * 
+	 * @param script
+	 *            The script, which must not have been read with a RulePool,
+	 *            since the randomizer ids are stored.
+	 * @param checksum
+	 *            The checksum of the script file the script was read from.
+	 * @param snapshot
+	 *            The path of the snapshot to write.
+	 * @throws IOException
+	 *             If writing the file fails.
+	 */
+	public static void write(Script script, long checksum, String snapshot)
+			throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		writeBody(script, new DataOutputStream(body));
+		CRC32 bodyChecksum = new CRC32();
+		bodyChecksum.update(body.toByteArray());
+		Path target = Paths.get(snapshot).toAbsolutePath();
+		Path temp = Files.createTempFile(target.getParent(), target
+				.getFileName().toString(), ".tmp");
+		try {
+			try (OutputStream file = Files.newOutputStream(temp)) {
+				DataOutputStream out = new DataOutputStream(file);
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(checksum);
+				out.writeLong(bodyChecksum.getValue());
+				body.writeTo(out);
+				out.flush();
+			}
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Write the contents of a snapshot following its header.
+	 */
+	private static void writeBody(Script script, DataOutputStream out)
+			throws IOException {
+		ArrayList<StringArrayRandomizer> randomizers = script
+				.getRandomizers();
+		out.writeInt(randomizers.size());
+		for (StringArrayRandomizer randomizer : randomizers) {
+			out.writeInt(randomizer.size());
+			for (int i = 0; i < randomizer.size(); i++) {
+				writeString(out, randomizer.get(i));
+			}
+		}
+		writeStrings(out, script.getWelcomeMessages());
+		writeStrings(out, script.getFinalMessages());
+		writeRules(out, script.getPreSubstitutionRules());
+		writeRules(out, script.getPostSubstitutionRules());
+		ArrayList<Keyword> keywords = script.getKeywords();
+		out.writeInt(keywords.size());
+		for (Keyword key : keywords) {
+			writeString(out, key.getKeyword());
+			out.writeInt(key.getPriority());
+			// the rules as given, so that no keyword is compiled
+			out.writeInt(key.getRules().size());
+			for (Decomposition d : key.getRules()) {
+				writeString(out, d.getRule());
+				out.writeInt(d.getReassemblyRules().getId());
+			}
+		}
+		out.writeInt(script.getOtherResponses().getId());
+		writeStrings(out, script.getQuitCommands());
+	}
+
+	/**
+	 * Read a snapshot, checking that it was compiled from the current version
+	 * of its script file.
+	 * 
+	 * @param snapshot
+	 *            The path of the snapshot.
+	 * @param source
+	 *            The path of the script file the snapshot was compiled from.
+	 * @return The script.
+	 * @throws IOException
+	 *             If reading a file fails.
+	 * @throws FileFormatException
+	 *             If the snapshot is corrupt or out of date.
+	 */
+	public static Script read(String snapshot, String source)
+			throws IOException, FileFormatException {
+		ByteBuffer in;
+		try (FileChannel channel = FileChannel.open(Paths.get(snapshot),
+				StandardOpenOption.READ)) {
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		try {
+			if (in.getInt() != MAGIC || in.getInt() != VERSION)
+				throw new FileFormatException("Not a script snapshot: "
+						+ snapshot);
+			if (in.getLong() != checksum(source))
+				throw new FileFormatException("Snapshot " + snapshot
+						+ " is out of date with " + source);
+			long bodyChecksum = in.getLong();
+			CRC32 crc = new CRC32();
+			crc.update(in.duplicate());
+			if (crc.getValue() != bodyChecksum)
+				throw new FileFormatException("Snapshot is corrupt: "
+						+ snapshot);
+			return read(in);
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new FileFormatException("Snapshot is corrupt: " + snapshot, e);
+		}
+	}
+
+	/**
+	 * Read the contents of a snapshot following its header.
+	 */
+	private static Script read(ByteBuffer in) throws FileFormatException {
+		int count = readCount(in);
+		ArrayList<StringArrayRandomizer> randomizers = new ArrayList<StringArrayRandomizer>(
+				count);
+		for (int id = 0; id < count; id++) {
+			randomizers.add(new StringArrayRandomizer(readStrings(in), id));
+		}
+		ArrayList<String> welcomeMessages = readStrings(in);
+		ArrayList<String> finalMessages = readStrings(in);
+		ArrayList<SubstitutionRule> presub = readRules(in);
+		ArrayList<SubstitutionRule> postsub = readRules(in);
+		count = readCount(in);
+		ArrayList<Keyword> keywords = new ArrayList<Keyword>(count);
+		for (int i = 0; i < count; i++) {
+			String keyword = readString(in);
+			int priority = in.getInt();
+			int decompCount = readCount(in);
+			ArrayList<Decomposition> decomp = new ArrayList<Decomposition>(
+					decompCount);
+			for (int j = 0; j < decompCount; j++) {
+				String rule = readString(in);
+				decomp.add(new Decomposition(rule, randomizer(randomizers, in
+						.getInt())));
+			}
+			keywords.add(new Keyword(keyword, priority, decomp));
+		}
+		StringArrayRandomizer otherResponses = randomizer(randomizers, in
+				.getInt());
+		ArrayList<String> quitCommands = readStrings(in);
+		return new Script(welcomeMessages, finalMessages, presub, postsub,
+				keywords, randomizers, otherResponses, quitCommands);
+	}
+
+	/**
+	 * Computes the checksum of a script file.
+	 * 
+	 * @param source
+	 *            The path of the script file.
+	 * @return The CRC32 checksum of the bytes of the script file and the
+	 *         fragments it includes, in the order they are included.
+	 * @throws IOException
+	 *             If reading a file fails.
+	 */
+	public static long checksum(String source) throws IOException {
+		CRC32 crc = new CRC32();
+		ScriptReader in = new ScriptReader(source, crc);
+		// every included file is read, and added, once its line is reached
+		while (in.nextLine()) {
+		}
+		return crc.getValue();
+	}
+
+	private static StringArrayRandomizer randomizer(
+			ArrayList<StringArrayRandomizer> randomizers, int id)
+			throws FileFormatException {
+		if (id < 0 || id >= randomizers.size())
+			throw new FileFormatException("Snapshot refers to randomizer "
+					+ id + " which does not exist.");
+		return randomizers.get(id);
+	}
+
+	private static void writeString(DataOutputStream out, String str)
+			throws IOException {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeStrings(DataOutputStream out,
+			ArrayList<String> strings) throws IOException {
+		out.writeInt(strings.size());
+		for (String str : strings) {
+			writeString(out, str);
+		}
+	}
+
+	private static void writeRules(DataOutputStream out,
+			ArrayList<SubstitutionRule> rules) throws IOException {
+		out.writeInt(rules.size());
+		for (SubstitutionRule rule : rules) {
+			writeString(out, rule.getFind());
+			writeString(out, rule.getReplacement());
+		}
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		ByteBuffer bytes = in.slice();
+		bytes.limit(length);
+		in.position(in.position() + length);
+		return StandardCharsets.UTF_8.decode(bytes).toString();
+	}
+
+	/**
+	 * Read the number of items which follow, each of which takes at least
+	 * four bytes.
+	 */
+	private static int readCount(ByteBuffer in) throws FileFormatException {
+		int count = in.getInt();
+		if (count < 0 || count > in.remaining() / 4)
+			throw new FileFormatException("Snapshot holds a count of " + count
+					+ ", which does not fit in it.");
+		return count;
+	}
+
+	private static ArrayList<String> readStrings(ByteBuffer in)
+			throws FileFormatException {
+		int count = readCount(in);
+		ArrayList<String> strings = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			strings.add(readString(in));
+		}
+		return strings;
+	}
+
+	private static ArrayList<SubstitutionRule> readRules(ByteBuffer in)
+			throws FileFormatException {
+		int count = readCount(in);
+		ArrayList<SubstitutionRule> rules = new ArrayList<SubstitutionRule>(
+				count);
+		for (int i = 0; i < count; i++) {
+			rules.add(new SubstitutionRule(readString(in), readString(in)));
+		}
+		return rules;
+	}
+}
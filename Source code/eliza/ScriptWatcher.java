@@ -0,0 +1,273 @@
+package eliza;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import eliza.exception.FileFormatException;
+
+/**
+ * ScriptWatcher reloads the script of an Engine whenever the script file
+ * changes. The new version is parsed on the watcher's own thread and swapped in
+ * only if it is valid, so conversations are never interrupted: if the new
+ * version cannot be read or is formatted incorrectly, the error is reported
+ * and the engine keeps using the old script.
+ * 
+ * The fragments the script includes, see ScriptReader, are watched as well,
+ * and the files watched are updated after each reload, so a fragment added to
+ * the script is watched from then on.
+ * 
+ * A watcher may instead reload the script of a tenant of an EngineRegistry,
+ * through the registry's pool. Each tenant whose script should be reloaded
+ * needs a watcher of its own.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+public class ScriptWatcher implements Runnable {
+	// How long to wait for more changes before reloading, in milliseconds.
+	private static final long SETTLE_TIME = 200;
+
+	private final Engine engine;
+	// The pool to read the script with, or null.
+	private final RulePool pool;
+	// The registry and tenant whose script is reloaded, or null if it is
+	// the script of the engine.
+	private final EngineRegistry registry;
+	private final String tenant;
+	private final Path file;
+	private final WatchService watcher;
+	// The script file and the fragments it included when last read.
+	private volatile Set<Path> files;
+	// The folders of those files, with the keys they are watched with.
+	private final HashMap<Path, WatchKey> folders = new HashMap<Path, WatchKey>();
+	// The error of the last failed reload, or null if it succeeded.
+	private volatile Exception lastError;
+
+	/**
+	 * Creates a new ScriptWatcher. The watcher does nothing until started.
+	 * 
+	 * @param engine
+	 *            The engine whose script is replaced.
+	 * @param filename
+	 *            The path of the script file.
+	 * @throws IOException
+	 *             If the folder of the script file cannot be watched.
+	 */
+	public ScriptWatcher(Engine engine, String filename) throws IOException {
+		this(engine, null, null, null, filename);
+	}
+
+	/**
+	 * Creates a new ScriptWatcher for an engine whose script was read with a
+	 * RulePool. The watcher does nothing until started.
+	 * 
+	 * @param engine
+	 *            The engine whose script is replaced.
+	 * @param pool
+	 *            The pool to read the new versions of the script with.
+	 * @param filename
+	 *            The path of the script file.
+	 * @throws IOException
+	 *             If the folder of the script file cannot be watched.
+	 */
+	public ScriptWatcher(Engine engine, RulePool pool, String filename)
+			throws IOException {
+		this(engine, pool, null, null, filename);
+	}
+
+	/**
+	 * Creates a new ScriptWatcher for the script of a tenant. The watcher does
+	 * nothing until started.
+	 * 
+	 * @param registry
+	 *            The registry the tenant is registered with.
+	 * @param tenant
+	 *            The name of the tenant.
+	 * @param filename
+	 *            The path of the tenant's script file.
+	 * @throws IOException
+	 *             If the folder of the script file cannot be watched.
+	 */
+	public ScriptWatcher(EngineRegistry registry, String tenant,
+			String filename) throws IOException {
+		this(null, null, registry, tenant, filename);
+	}
+
+	private ScriptWatcher(Engine engine, RulePool pool,
+			EngineRegistry registry, String tenant, String filename)
+			throws IOException {
+		this.engine = engine;
+		this.pool = pool;
+		this.registry = registry;
+		this.tenant = tenant;
+		this.file = Paths.get(filename).toAbsolutePath().normalize();
+		watcher = FileSystems.getDefault().newWatchService();
+		Engine current = registry != null ? registry.get(tenant) : engine;
+		try {
+			watch(current != null ? current.getScript().getFiles()
+					: new HashSet<Path>());
+		} catch (IOException e) {
+			watcher.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Start watching the script file on a daemon thread.
+	 */
+	public void start() {
+		Thread thread = new Thread(this, "eliza-script-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop watching the script file.
+	 * 
+	 * @throws IOException
+	 *             If closing the watch service fails.
+	 */
+	public void close() throws IOException {
+		watcher.close();
+	}
+
+	/**
+	 * Wait for changes to the script file and reload it, until closed.
+	 */
+	public void run() {
+		try {
+			while (true) {
+				if (!changed(watcher.take()))
+					continue;
+				// let the writer finish, and take all changes in one reload
+				Thread.sleep(SETTLE_TIME);
+				WatchKey more;
+				while ((more = watcher.poll()) != null) {
+					changed(more);
+				}
+				reload();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			// closed: stop watching
+		}
+	}
+
+	/**
+	 * Watch the folders of the script file and the fragments of the script,
+	 * and stop watching folders none of them are in any more.
+	 * 
+	 * @param read
+	 *            The files the script was read from.
+	 */
+	private synchronized void watch(Collection<Path> read) throws IOException {
+		HashSet<Path> files = new HashSet<Path>(read);
+		files.add(file);
+		HashSet<Path> needed = new HashSet<Path>();
+		for (Path f : files) {
+			Path folder = f.getParent();
+			needed.add(folder);
+			if (!folders.containsKey(folder)) {
+				// editors often replace the file, so watch the whole folder
+				folders.put(folder, folder.register(watcher,
+						StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY));
+			}
+		}
+		Iterator<Map.Entry<Path, WatchKey>> watched = folders.entrySet()
+				.iterator();
+		while (watched.hasNext()) {
+			Map.Entry<Path, WatchKey> entry = watched.next();
+			if (!needed.contains(entry.getKey())) {
+				entry.getValue().cancel();
+				watched.remove();
+			}
+		}
+		this.files = files;
+	}
+
+	/**
+	 * Tells whether a set of events concerns the script file or one of its
+	 * fragments, and resets the key so that it receives more events.
+	 */
+	private boolean changed(WatchKey key) {
+		boolean changed = false;
+		Path folder = (Path) key.watchable();
+		Set<Path> files = this.files;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			Object context = event.context();
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW
+					|| context instanceof Path
+					&& files.contains(folder.resolve((Path) context))) {
+				changed = true;
+			}
+		}
+		key.reset();
+		return changed;
+	}
+
+	/**
+	 * Parse the script file and swap it into the engine if it is valid. A
+	 * script is only valid if it has all sections, see Script, so a save
+	 * which is cut short keeps the old script. The files of a new script are
+	 * watched from then on.
+	 * 
+	 * @return Whether the script was replaced.
+	 */
+	public boolean reload() {
+		Script script;
+		try {
+			if (registry != null) {
+				script = registry.load(tenant, file.toString()).getScript();
+			} else {
+				script = new Script(file.toString(), pool);
+				Script old = engine.getScript();
+				engine.setScript(script);
+				old.release();
+			}
+		} catch (IOException e) {
+			lastError = e;
+			System.err.println("ERROR reading script file, keeping the old "
+					+ "script:\n" + e.getMessage());
+			return false;
+		} catch (FileFormatException e) {
+			lastError = e;
+			System.err.println("Script file not formatted properly, keeping "
+					+ "the old script. " + e.getMessage());
+			return false;
+		}
+		lastError = null;
+		System.err.println("Reloaded script " + file + ".");
+		try {
+			watch(script.getFiles());
+		} catch (IOException e) {
+			System.err.println("ERROR watching the files of script " + file
+					+ ":\n" + e.getMessage());
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the error of the last reload.
+	 * 
+	 * @return The exception which made the last reload fail, or null if it
+	 *         succeeded or no reload has been attempted.
+	 */
+	public Exception getLastError() {
+		return lastError;
+	}
+}
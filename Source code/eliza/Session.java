@@ -0,0 +1,165 @@
+package eliza;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
+/**
+ * A Session holds the state of one conversation: whether it is still going,
+ * and where each StringArrayRandomizer of the script is in its current
+ * shuffle. The script itself is shared, so a Session only needs a few bytes
+ * per randomizer.
+ * 
+ * A Session is meant to be used by one conversation at a time and is not
+ * thread-safe.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+public class Session {
+	// The script the shuffle states belong to.
+	private Script script;
+	// The shuffle state of each StringArrayRandomizer, in the order of the
+	// script's randomizers.
+	private long[] cursors;
+	/*
+	 * Used to tell if the conversation has been terminated using a quit
+	 * command.
+	 */
+	private boolean alive = true;
+	/*
+	 * The random number generator of this conversation, or null to use the
+	 * calling thread's ThreadLocalRandom.
+	 */
+	private RandomGenerator random;
+	// The keyword the last reply was made from, or null.
+	private String keyword;
+
+	/**
+	 * Creates a new Session.
+	 * 
+	 * @param script
+	 *            The script the conversation starts with.
+	 * @param random
+	 *            The random number generator of the conversation, or null to
+	 *            use ThreadLocalRandom.
+	 */
+	Session(Script script, RandomGenerator random) {
+		this.random = random;
+		attach(script);
+	}
+
+	/**
+	 * Make sure the shuffle states belong to a script. If the script has been
+	 * replaced since the session was last used, the old states are dropped.
+	 * 
+	 * @param script
+	 *            The script about to be used.
+	 */
+	void attach(Script script) {
+		if (this.script != script) {
+			this.script = script;
+			cursors = new long[script.getRandomizerCount()];
+		}
+	}
+
+	/**
+	 * Tells whether the Eliza conversation is still going.
+	 * 
+	 * @return false if the conversation has been terminated, true if not.
+	 */
+	public boolean isAlive() {
+		return alive;
+	}
+
+	/**
+	 * Returns the random number generator all random choices of this
+	 * conversation are drawn from.
+	 * 
+	 * @return The session's seeded generator, or the calling thread's
+	 *         ThreadLocalRandom if the session is not seeded.
+	 */
+	public RandomGenerator getRandom() {
+		return random != null ? random : ThreadLocalRandom.current();
+	}
+
+	/**
+	 * Returns the keyword the last reply was made from.
+	 * 
+	 * @return The keyword, or null if the last reply did not come from a
+	 *         keyword, e.g. because none was found in the input.
+	 */
+	public String getKeyword() {
+		return keyword;
+	}
+
+	void setKeyword(String keyword) {
+		this.keyword = keyword;
+	}
+
+	/**
+	 * Terminate the conversation.
+	 */
+	void end() {
+		alive = false;
+	}
+
+	/**
+	 * Returns the number of shuffle states, one for each StringArrayRandomizer
+	 * of the script the session was last used with.
+	 * 
+	 * @return The number of shuffle states.
+	 */
+	public int getCursorCount() {
+		return cursors.length;
+	}
+
+	/**
+	 * Returns a shuffle state, e.g. to store it.
+	 * 
+	 * @param i
+	 *            The index of the shuffle state, in the range 0 to
+	 *            getCursorCount() - 1.
+	 * @return The shuffle state, 0 if the randomizer has not been used yet.
+	 */
+	public long getCursor(int i) {
+		return cursors[i];
+	}
+
+	/**
+	 * Restores a shuffle state.
+	 * 
+	 * @param i
+	 *            The index of the shuffle state, in the range 0 to
+	 *            getCursorCount() - 1.
+	 * @param cursor
+	 *            The new shuffle state.
+	 */
+	public void setCursor(int i, long cursor) {
+		cursors[i] = cursor;
+	}
+
+	/**
+	 * Returns the shuffle state of a StringArrayRandomizer of the script the
+	 * session was last used with.
+	 * 
+	 * @param id
+	 *            The id of the randomizer.
+	 * @return The shuffle state, 0 if the randomizer has not been used yet.
+	 */
+	public long getRandomizerCursor(int id) {
+		return cursors[script.getSlot(id)];
+	}
+
+	/**
+	 * Stores the shuffle state of a StringArrayRandomizer of the script the
+	 * session was last used with.
+	 * 
+	 * @param id
+	 *            The id of the randomizer.
+	 * @param cursor
+	 *            The new shuffle state.
+	 */
+	public void setRandomizerCursor(int id, long cursor) {
+		cursors[script.getSlot(id)] = cursor;
+	}
+}
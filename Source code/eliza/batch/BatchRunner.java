@@ -0,0 +1,191 @@
+package eliza.batch;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import eliza.Engine;
+import eliza.Session;
+
+/**
+ * BatchRunner replays a file of conversations through the engine. The input
+ * file holds one utterance per line, and conversations are separated by empty
+ * lines. Conversations are processed in parallel, and their transcripts are
+ * written to the output file in input order, in the same format as the
+ * console.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+public class BatchRunner {
+	// The prefix used in front of Eliza output.
+	private static final String AI_PREFIX = "Eliza: ";
+	// The prefix used in front of user input.
+	private static final String USER_INPUT_PREFIX = ">>";
+	// Conversations read ahead of the writer, per thread.
+	private static final int WINDOW_PER_THREAD = 16;
+
+	private final Engine engine;
+	private final int threads;
+	// The seed of the first conversation, or null for unseeded conversations.
+	private Long seed;
+
+	// Statistics of the last run.
+	private long conversations;
+	private long utterances;
+	private long elapsedNanos;
+
+	/**
+	 * Creates a new BatchRunner.
+	 * 
+	 * @param engine
+	 *            The engine to replay the conversations through.
+	 * @param threads
+	 *            The number of conversations processed in parallel.
+	 */
+	public BatchRunner(Engine engine, int threads) {
+		this.engine = engine;
+		this.threads = threads;
+	}
+
+	/**
+	 * Seed the conversations, so that a run can be reproduced exactly. The
+	 * n-th conversation of the file is seeded with seed + n.
+	 * 
+	 * @param seed
+	 *            The seed of the first conversation.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Replay all conversations in a file.
+	 * 
+	 * @param input
+	 *            The path of the file of conversations.
+	 * @param output
+	 *            The path of the transcript file to write.
+	 * @throws IOException
+	 *             If reading or writing a file fails.
+	 */
+	public void run(String input, String output) throws IOException {
+		conversations = 0;
+		utterances = 0;
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayDeque<Future<String>> pending = new ArrayDeque<Future<String>>();
+		int window = threads * WINDOW_PER_THREAD;
+		try (BufferedReader in = Files.newBufferedReader(Paths.get(input),
+				StandardCharsets.UTF_8);
+				BufferedWriter out = Files.newBufferedWriter(
+						Paths.get(output), StandardCharsets.UTF_8)) {
+			ArrayList<String> conversation;
+			while ((conversation = readConversation(in)) != null) {
+				final ArrayList<String> lines = conversation;
+				final Session session = seed == null ? engine.newSession()
+						: engine.newSession(seed + conversations);
+				pending.add(pool.submit(() -> replay(session, lines)));
+				conversations++;
+				// write finished transcripts in order, keeping memory bounded
+				while (pending.size() >= window
+						|| (!pending.isEmpty() && pending.peek().isDone())) {
+					out.write(await(pending.remove()));
+				}
+			}
+			while (!pending.isEmpty()) {
+				out.write(await(pending.remove()));
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		elapsedNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Read the next conversation.
+	 * 
+	 * @param in
+	 *            A reader positioned at the start of a conversation or at
+	 *            empty lines before it.
+	 * @return The utterances of the conversation, or null at end of file.
+	 */
+	private ArrayList<String> readConversation(BufferedReader in)
+			throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (!line.trim().isEmpty()) {
+				lines.add(line);
+			} else if (!lines.isEmpty()) {
+				break;
+			}
+		}
+		if (lines.isEmpty())
+			return null;
+		utterances += lines.size();
+		return lines;
+	}
+
+	/**
+	 * Replay one conversation. Utterances following a quit command are
+	 * ignored, as in the console.
+	 * 
+	 * @param session
+	 *            A new session for the conversation.
+	 * @param lines
+	 *            The utterances.
+	 * @return The transcript of the conversation.
+	 */
+	private String replay(Session session, ArrayList<String> lines) {
+		StringBuilder transcript = new StringBuilder(lines.size() * 96);
+		transcript.append(AI_PREFIX).append(engine.getWelcomeMessage(session))
+				.append('\n');
+		for (String input : lines) {
+			if (!session.isAlive())
+				break;
+			String output = engine.generateResponse(session, input);
+			transcript.append(USER_INPUT_PREFIX).append(input).append('\n');
+			transcript.append(AI_PREFIX).append(output).append('\n');
+		}
+		return transcript.append('\n').toString();
+	}
+
+	private static String await(Future<String> transcript) throws IOException {
+		try {
+			return transcript.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while replaying", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Replaying a conversation failed", e
+					.getCause());
+		}
+	}
+
+	public long getConversations() {
+		return conversations;
+	}
+
+	public long getUtterances() {
+		return utterances;
+	}
+
+	/**
+	 * Returns the throughput of the last run.
+	 * 
+	 * @return Utterances read per second.
+	 */
+	public double getUtterancesPerSecond() {
+		return utterances * 1e9 / Math.max(1, elapsedNanos);
+	}
+}
@@ -0,0 +1,155 @@
+package eliza.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LruCache is a bounded cache which may be used by many threads at once. When
+ * it is full, the least recently used entry is evicted, and entries expire a
+ * fixed time after they were added.
+ *
+ * The entries are spread over a number of segments, each a LinkedHashMap in
+ * access order guarded by its own lock, so that threads looking up different
+ * keys rarely wait for each other. The least recently used entry is thus
+ * evicted per segment rather than for the cache as a whole.
+ *
+ * @author Ole & Peter
+ *
+ * @param <K>
+ *            The type of the keys.
+ * @param <V>
+ *            The type of the values.
+ */
+public class LruCache<K, V> {
+	// The maximum number of segments, a power of two.
+	private static final int MAX_SEGMENTS = 16;
+
+	private final Segment<K, V>[] segments;
+	private final long ttlNanos;
+
+	/**
+	 * Creates a new LruCache.
+	 *
+	 * @param maxSize
+	 *            The maximum number of entries.
+	 * @param ttlMillis
+	 *            How long an entry stays valid after being added, or 0 for
+	 *            entries never to expire.
+	 */
+	@SuppressWarnings("unchecked")
+	public LruCache(int maxSize, long ttlMillis) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("Cache size must be positive: "
+					+ maxSize);
+		int count = 1;
+		while (count < MAX_SEGMENTS && count * 2 <= maxSize)
+			count *= 2;
+		segments = (Segment<K, V>[]) new Segment<?, ?>[count];
+		for (int i = 0; i < count; i++) {
+			// spread the remainder over the first segments
+			int capacity = maxSize / count + (i < maxSize % count ? 1 : 0);
+			segments[i] = new Segment<K, V>(capacity);
+		}
+		this.ttlNanos = ttlMillis * 1000000L;
+	}
+
+	/**
+	 * Look up a key.
+	 *
+	 * @param key
+	 *            The key.
+	 * @return The value stored for the key, or null if there is none or it has
+	 *         expired.
+	 */
+	public V get(K key) {
+		Segment<K, V> segment = segment(key);
+		synchronized (segment) {
+			Entry<V> entry = segment.get(key);
+			if (entry == null)
+				return null;
+			if (ttlNanos > 0 && System.nanoTime() - entry.created > ttlNanos) {
+				segment.remove(key);
+				return null;
+			}
+			return entry.value;
+		}
+	}
+
+	/**
+	 * Store a value, replacing any value stored for the key.
+	 *
+	 * @param key
+	 *            The key.
+	 * @param value
+	 *            The value.
+	 */
+	public void put(K key, V value) {
+		Segment<K, V> segment = segment(key);
+		Entry<V> entry = new Entry<V>(value, System.nanoTime());
+		synchronized (segment) {
+			segment.put(key, entry);
+		}
+	}
+
+	/**
+	 * @return The number of entries, including expired entries which have not
+	 *         yet been removed.
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public void clear() {
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	private Segment<K, V> segment(K key) {
+		int h = key.hashCode();
+		// mix the high bits in, as only the low bits choose the segment
+		h ^= h >>> 16;
+		return segments[h & (segments.length - 1)];
+	}
+
+	/**
+	 * A value and the time it was added.
+	 */
+	private static class Entry<V> {
+		private final V value;
+		private final long created;
+
+		private Entry(V value, long created) {
+			this.value = value;
+			this.created = created;
+		}
+	}
+
+	/**
+	 * A part of the cache, evicting its least recently used entry when full.
+	 */
+	private static class Segment<K, V> extends LinkedHashMap<K, Entry<V>> {
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+
+		private Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+			return size() > capacity;
+		}
+	}
+}
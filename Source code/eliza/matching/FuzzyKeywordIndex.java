@@ -0,0 +1,316 @@
+package eliza.matching;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import eliza.methods.StringMethods;
+import eliza.wrapper.Keyword;
+
+/**
+ * FuzzyKeywordIndex finds the keyword a misspelt input word was probably meant
+ * to be, such as "mother" for "mohter". The single word keywords of a script
+ * are kept in BK-trees, one for each first letter, so a word is only compared
+ * with the few keywords the triangle inequality cannot rule out rather than
+ * with all of them.
+ *
+ * Words are compared by their Damerau-Levenshtein distance, in which swapping
+ * two adjacent letters counts as one edit like inserting, deleting or
+ * replacing a letter. To keep ordinary words from being "corrected", a word
+ * is left alone if it is a keyword itself or another word the script knows,
+ * if it does not start with the same letter as the keyword, or if it is
+ * short: words of up to 4 letters are never corrected, words of up to 8
+ * letters by one edit and longer words by two. If several keywords are
+ * equally close, the one of the highest priority is chosen, and then the
+ * first in alphabetical order.
+ *
+ * The index is not modified after it has been built, so it may be shared
+ * between threads.
+ *
+ * @author Ole & Peter
+ *
+ */
+public class FuzzyKeywordIndex {
+	// Words of at most this length are never corrected.
+	private static final int MAX_EXACT_LENGTH = 4;
+	// Words of at most this length are corrected by at most one edit.
+	private static final int MAX_ONE_EDIT_LENGTH = 8;
+	// The characters input words and keywords may consist of.
+	private static final int ALPHABET = 128;
+	private static final Node[] NO_CHILDREN = new Node[0];
+
+	// The trees, indexed by the first letter of their keywords.
+	private final Node[] roots = new Node[ALPHABET];
+	// The words which are never corrected.
+	private final HashSet<String> known = new HashSet<String>();
+	// The number of keywords in the trees.
+	private int size;
+	// The length of the longest keyword in the trees.
+	private int maxLength;
+
+	/**
+	 * Builds the index of a list of keywords.
+	 *
+	 * @param keywords
+	 *            The keywords. Keywords of several words, or with characters
+	 *            other than ASCII letters and digits, are only used as known
+	 *            words.
+	 * @param vocabulary
+	 *            Other words of the script which should not be corrected,
+	 *            such as those of the substitution and decomposition rules.
+	 */
+	public FuzzyKeywordIndex(List<Keyword> keywords,
+			Collection<String> vocabulary) {
+		// the highest priority of each keyword string
+		HashMap<String, Integer> priorities = new HashMap<String, Integer>();
+		for (Keyword key : keywords) {
+			String word = key.getKeyword().toLowerCase();
+			addWords(word);
+			if (!isSimpleWord(word))
+				continue;
+			Integer priority = priorities.get(word);
+			if (priority == null || key.getPriority() < priority)
+				priorities.put(word, key.getPriority());
+		}
+		for (String text : vocabulary) {
+			addWords(text.toLowerCase());
+		}
+		// insert in a fixed order, so the trees do not depend on hashing
+		String[] words = priorities.keySet().toArray(new String[0]);
+		Arrays.sort(words);
+		for (String word : words) {
+			add(word, priorities.get(word));
+		}
+	}
+
+	/**
+	 * @return The number of distinct keywords which input words may be
+	 *         corrected to.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Add the words of a text to the known words.
+	 *
+	 * @param text
+	 *            A keyword or rule, in lower case.
+	 */
+	private void addWords(String text) {
+		int i = 0;
+		int len = text.length();
+		while (i < len) {
+			if (!StringMethods.isWordCharacter(text.charAt(i))) {
+				i++;
+				continue;
+			}
+			int start = i;
+			while (i < len && StringMethods.isWordCharacter(text.charAt(i)))
+				i++;
+			known.add(text.substring(start, i));
+		}
+	}
+
+	/**
+	 * @return Whether a keyword is a single word of ASCII letters and digits,
+	 *         as input words are after normalization.
+	 */
+	private static boolean isSimpleWord(String word) {
+		if (word.isEmpty())
+			return false;
+		for (int i = 0; i < word.length(); i++) {
+			char c = word.charAt(i);
+			if (!(c >= 'a' && c <= 'z') && !(c >= '0' && c <= '9'))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Add a keyword to the tree of its first letter.
+	 *
+	 * @param word
+	 *            The keyword.
+	 * @param priority
+	 *            The highest priority of the keywords with this string.
+	 */
+	private void add(String word, int priority) {
+		size++;
+		maxLength = Math.max(maxLength, word.length());
+		Node added = new Node(word, priority);
+		Node node = roots[word.charAt(0)];
+		if (node == null) {
+			roots[word.charAt(0)] = added;
+			return;
+		}
+		char[] chars = word.toCharArray();
+		int[] scratch = new int[scratchSize(chars.length)];
+		while (true) {
+			int d = distance(chars, 0, chars.length, node.word, scratch);
+			if (d >= node.children.length)
+				node.children = Arrays.copyOf(node.children, d + 1);
+			if (node.children[d] == null) {
+				node.children[d] = added;
+				return;
+			}
+			node = node.children[d];
+		}
+	}
+
+	/**
+	 * Find the keyword a word of a text was probably meant to be.
+	 *
+	 * @param text
+	 *            The normalized input text.
+	 * @param start
+	 *            The index of the first character of the word.
+	 * @param end
+	 *            The index after the last character of the word.
+	 * @param maxDistance
+	 *            The largest number of edits to correct any word by.
+	 * @return The closest keyword, or null if the word is to be left as it
+	 *         is.
+	 */
+	public String correct(char[] text, int start, int end, int maxDistance) {
+		int len = end - start;
+		int allowed = len <= MAX_EXACT_LENGTH ? 0
+				: len <= MAX_ONE_EDIT_LENGTH ? 1 : 2;
+		allowed = Math.min(allowed, maxDistance);
+		char first = text[start];
+		if (allowed <= 0 || first >= ALPHABET || roots[first] == null
+				|| len > maxLength + allowed)
+			return null;
+		String word = new String(text, start, len);
+		if (known.contains(word))
+			return null;
+		int[] scratch = new int[scratchSize(len)];
+		Node best = null;
+		int bestDistance = allowed + 1;
+		// the nodes left to visit
+		Node[] stack = new Node[16];
+		int depth = 0;
+		stack[depth++] = roots[first];
+		while (depth > 0) {
+			Node node = stack[--depth];
+			int d = distance(text, start, end, node.word, scratch);
+			if (d < bestDistance
+					|| (d == bestDistance && d <= allowed && node.isBefore(best))) {
+				best = node;
+				bestDistance = d;
+			}
+			// only children at a distance of d +- allowed from this node can
+			// be within allowed of the word
+			int from = Math.max(1, d - allowed);
+			int to = Math.min(node.children.length - 1, d + allowed);
+			for (int i = from; i <= to; i++) {
+				if (node.children[i] == null)
+					continue;
+				if (depth == stack.length)
+					stack = Arrays.copyOf(stack, 2 * depth);
+				stack[depth++] = node.children[i];
+			}
+		}
+		return best == null ? null : best.word;
+	}
+
+	/**
+	 * @return The size of the scratch array needed to compare a word of the
+	 *         given length with any keyword.
+	 */
+	private int scratchSize(int length) {
+		return ALPHABET + (length + 2) * (maxLength + 2);
+	}
+
+	/**
+	 * Compute the unrestricted Damerau-Levenshtein distance between a word of
+	 * a text and a keyword, which unlike the optimal string alignment
+	 * distance satisfies the triangle inequality a BK-tree relies on.
+	 *
+	 * @param a
+	 *            The text.
+	 * @param start
+	 *            The index of the first character of the word.
+	 * @param end
+	 *            The index after the last character of the word.
+	 * @param b
+	 *            The keyword.
+	 * @param scratch
+	 *            An array of at least scratchSize(end - start) ints.
+	 * @return The least number of edits turning one into the other.
+	 */
+	private static int distance(char[] a, int start, int end, String b,
+			int[] scratch) {
+		int m = end - start;
+		int n = b.length();
+		// the last row in which each character occurred in the word
+		Arrays.fill(scratch, 0, ALPHABET, 0);
+		int width = n + 2;
+		int infinity = m + n;
+		// d(i, j) is kept at ALPHABET + (i + 1) * width + (j + 1)
+		scratch[ALPHABET] = infinity;
+		for (int i = 0; i <= m; i++) {
+			scratch[ALPHABET + (i + 1) * width] = infinity;
+			scratch[ALPHABET + (i + 1) * width + 1] = i;
+		}
+		for (int j = 0; j <= n; j++) {
+			scratch[ALPHABET + j + 1] = infinity;
+			scratch[ALPHABET + width + j + 1] = j;
+		}
+		for (int i = 1; i <= m; i++) {
+			char ca = a[start + i - 1];
+			// the last column in this row in which the characters matched
+			int lastMatch = 0;
+			for (int j = 1; j <= n; j++) {
+				char cb = b.charAt(j - 1);
+				int k = cb < ALPHABET ? scratch[cb] : 0;
+				int l = lastMatch;
+				int cost = 1;
+				if (ca == cb) {
+					cost = 0;
+					lastMatch = j;
+				}
+				int row = ALPHABET + (i + 1) * width;
+				int above = ALPHABET + i * width;
+				int d = Math.min(scratch[above + j] + cost, Math.min(
+						scratch[row + j] + 1, scratch[above + j + 1] + 1));
+				if (k > 0 && l > 0) {
+					int transposed = scratch[ALPHABET + k * width + l]
+							+ (i - k - 1) + 1 + (j - l - 1);
+					d = Math.min(d, transposed);
+				}
+				scratch[row + j + 1] = d;
+			}
+			if (ca < ALPHABET)
+				scratch[ca] = i;
+		}
+		return scratch[ALPHABET + (m + 1) * width + n + 1];
+	}
+
+	/**
+	 * A keyword in a BK-tree. The child at index d holds the keywords at a
+	 * distance of d from this one.
+	 */
+	private static class Node {
+		private final String word;
+		private final int priority;
+		private Node[] children = NO_CHILDREN;
+
+		private Node(String word, int priority) {
+			this.word = word;
+			this.priority = priority;
+		}
+
+		/**
+		 * @return Whether this keyword is preferred to another equally close
+		 *         one.
+		 */
+		private boolean isBefore(Node other) {
+			if (priority != other.priority)
+				return priority < other.priority;
+			return word.compareTo(other.word) < 0;
+		}
+	}
+}
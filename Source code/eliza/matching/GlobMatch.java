@@ -0,0 +1,54 @@
+package eliza.matching;
+
+/**
+ * The groups captured by the stars of a GlobPattern when matching a sentence.
+ *
+ * @author Ole & Peter
+ *
+ */
+public class GlobMatch {
+	private String sentence;
+	// The start and end of each group, one pair per star.
+	private int[] bounds;
+
+	GlobMatch(String sentence, int[] bounds) {
+		this.sentence = sentence;
+		this.bounds = bounds;
+	}
+
+	/**
+	 * @return The number of captured groups.
+	 */
+	public int groupCount() {
+		return bounds.length / 2;
+	}
+
+	/**
+	 * Get the text captured by a star.
+	 *
+	 * @param group
+	 *            The number of the star, counting from 1.
+	 * @return The text captured by the star.
+	 */
+	public String group(int group) {
+		return sentence.substring(start(group), end(group));
+	}
+
+	/**
+	 * @param group
+	 *            The number of the star, counting from 1.
+	 * @return The index of the first character captured by the star.
+	 */
+	public int start(int group) {
+		return bounds[2 * group - 2];
+	}
+
+	/**
+	 * @param group
+	 *            The number of the star, counting from 1.
+	 * @return The index after the last character captured by the star.
+	 */
+	public int end(int group) {
+		return bounds[2 * group - 1];
+	}
+}
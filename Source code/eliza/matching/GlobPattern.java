@@ -0,0 +1,214 @@
+package eliza.matching;
+
+import java.util.ArrayList;
+
+/**
+ * GlobPattern matches a whole sentence against a decomposition rule. A rule
+ * consists of literal text and stars, where each star matches any number of
+ * characters and is captured as a group. A space in the rule matches any
+ * whitespace character.
+ *
+ * The captures are the same as those of the regular expression the rule used
+ * to be translated to, with every star as a greedy (.*) group: the first star
+ * takes as much of the sentence as possible, then the second and so on.
+ * Instead of backtracking, the matcher first works out from the end of the
+ * sentence which positions the rest of the rule can be matched from, so a
+ * match takes at most O(n*m) time for a sentence of length n and a rule of
+ * length m, however many stars the rule has.
+ *
+ * @author Ole & Peter
+ *
+ */
+public class GlobPattern {
+	// Matches any number of characters.
+	private static final char STAR = '*';
+	// Matches any whitespace character.
+	private static final char SPACE = ' ';
+
+	// The literal text before, between and after the stars.
+	private String[] literals;
+
+	/**
+	 * Compiles a rule.
+	 *
+	 * @param rule
+	 *            A rule made of literal text and stars.
+	 */
+	public GlobPattern(String rule) {
+		ArrayList<String> parts = new ArrayList<String>();
+		int start = 0;
+		int star;
+		while ((star = rule.indexOf(STAR, start)) >= 0) {
+			parts.add(rule.substring(start, star));
+			start = star + 1;
+		}
+		parts.add(rule.substring(start));
+		literals = parts.toArray(new String[parts.size()]);
+	}
+
+	/**
+	 * @return The number of stars, and thus groups, in the rule.
+	 */
+	public int groupCount() {
+		return literals.length - 1;
+	}
+
+	/**
+	 * Check whether a sentence fits the rule. Unless a line terminator keeps a
+	 * star from matching some part of the sentence, this needs no table: the
+	 * literals between the stars can then each be taken at their first
+	 * occurrence, so the check allocates nothing.
+	 *
+	 * @param sentence
+	 *            An input sentence.
+	 * @return Whether the whole sentence fits the rule.
+	 */
+	public boolean matches(CharSequence sentence) {
+		int n = sentence.length();
+		String first = literals[0];
+		if (!literalAt(sentence, 0, first))
+			return false;
+		int stars = literals.length - 1;
+		if (stars == 0)
+			return first.length() == n;
+		String last = literals[stars];
+		int tail = n - last.length();
+		if (tail < first.length() || !literalAt(sentence, tail, last))
+			return false;
+		int pos = first.length();
+		for (int i = pos; i < tail; i++) {
+			if (isLineTerminator(sentence.charAt(i)))
+				return reachable(sentence)[pos];
+		}
+		for (int s = 1; s < stars; s++) {
+			String literal = literals[s];
+			while (pos + literal.length() <= tail
+					&& !literalAt(sentence, pos, literal))
+				pos++;
+			if (pos + literal.length() > tail)
+				return false;
+			pos += literal.length();
+		}
+		return true;
+	}
+
+	/**
+	 * Match a sentence against the rule.
+	 *
+	 * @param sentence
+	 *            An input sentence.
+	 * @return The captured groups, or null if the sentence does not fit the
+	 *         rule.
+	 */
+	public GlobMatch match(String sentence) {
+		int pos = literals[0].length();
+		if (!literalAt(sentence, 0, literals[0]))
+			return null;
+		int stars = literals.length - 1;
+		int[] bounds = new int[2 * stars];
+		if (stars == 0)
+			return pos == sentence.length() ? new GlobMatch(sentence, bounds)
+					: null;
+		int n = sentence.length();
+		boolean[] reach = reachable(sentence);
+		if (!reach[pos])
+			return null;
+		for (int s = 0; s < stars; s++) {
+			String next = literals[s + 1];
+			int end = -1;
+			// the star cannot extend past a line terminator
+			int limit = pos;
+			while (limit < n && !isLineTerminator(sentence.charAt(limit)))
+				limit++;
+			// greedy: try the longest capture first
+			for (int k = limit; k >= pos; k--) {
+				if (literalAt(sentence, k, next)
+						&& rest(reach, n, s + 1, k + next.length())) {
+					end = k;
+					break;
+				}
+			}
+			bounds[2 * s] = pos;
+			bounds[2 * s + 1] = end;
+			pos = end + next.length();
+		}
+		return new GlobMatch(sentence, bounds);
+	}
+
+	/**
+	 * Work out, for every star and every position in the sentence, whether the
+	 * star and the rest of the rule after it can match the sentence from that
+	 * position to the end.
+	 *
+	 * @param sentence
+	 *            An input sentence.
+	 * @return A table where index s * (n + 1) + i tells whether star s can
+	 *         start at position i, n being the length of the sentence.
+	 */
+	private boolean[] reachable(CharSequence sentence) {
+		int n = sentence.length();
+		int stars = literals.length - 1;
+		boolean[] reach = new boolean[stars * (n + 1)];
+		for (int s = stars - 1; s >= 0; s--) {
+			String next = literals[s + 1];
+			int row = s * (n + 1);
+			for (int i = n; i >= 0; i--) {
+				// the star is empty and the rest of the rule follows, or the
+				// star takes one more character
+				reach[row + i] = (literalAt(sentence, i, next) && rest(reach,
+						n, s + 1, i + next.length()))
+						|| (i < n && !isLineTerminator(sentence.charAt(i)) && reach[row
+								+ i + 1]);
+			}
+		}
+		return reach;
+	}
+
+	/**
+	 * Check whether the part of the rule starting with star s matches the
+	 * sentence from a position, the literal before star s having been matched.
+	 */
+	private boolean rest(boolean[] reach, int n, int s, int i) {
+		if (s == literals.length - 1)
+			return i == n;
+		return reach[s * (n + 1) + i];
+	}
+
+	/**
+	 * Check whether a literal part of the rule occurs at a position of the
+	 * sentence.
+	 */
+	private static boolean literalAt(CharSequence sentence, int i,
+			String literal) {
+		int len = literal.length();
+		if (i + len > sentence.length())
+			return false;
+		for (int j = 0; j < len; j++) {
+			char r = literal.charAt(j);
+			char c = sentence.charAt(i + j);
+			if (r == SPACE ? !isWhitespace(c) : r != c)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return Whether c is a whitespace character, as matched by \s.
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B'
+				|| c == '\f' || c == '\r';
+	}
+
+	/**
+	 * @return Whether c ends a line, and thus is not matched by a star.
+	 */
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028'
+				|| c == '\u2029';
+	}
+
+	public String toString() {
+		return String.join(String.valueOf(STAR), literals);
+	}
+}
@@ -0,0 +1,469 @@
+package eliza.matching;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import eliza.methods.StringMethods;
+import eliza.wrapper.Keyword;
+
+/**
+ * KeywordIndex finds every keyword contained in a sentence in a single pass,
+ * using an Aho-Corasick automaton built from all keywords of a script. A
+ * keyword is only reported if it has a word boundary on both sides, which
+ * gives the same result as searching for \bkeyword\b with a regular
+ * expression.
+ * 
+ * The index also sorts the keywords into buckets by priority, so that the
+ * keywords found can be tried from the highest priority down without sorting
+ * the keywords. Bucket 0 holds the keywords of the highest priority, that is
+ * the lowest priority value, and priorities may be any int.
+ * 
+ * An index may be layered on top of the index of another script with mostly
+ * the same keywords, in which case it only holds the automaton of the
+ * keywords the other script lacks.
+ * 
+ * A stemmed index keeps keywords of a single word out of the automaton.
+ * Instead they are filed in a hash table by their stem, see SuffixStemmer, so
+ * that inflected keywords such as "believe" and "believes" share one entry,
+ * and each word of a sentence is looked up by its stem once the scan reaches
+ * its end. The entry of a stem then picks the keywords equal to the word,
+ * so a stemmed index finds exactly the keywords a plain one does, in the same
+ * order, but takes a fraction of the memory for scripts with many keywords.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+public class KeywordIndex {
+	private static final Keyword[] NO_KEYWORDS = new Keyword[0];
+	private static final char[] NO_LABELS = new char[0];
+	private static final Node[] NO_CHILDREN = new Node[0];
+	// The largest share of the stem table in use.
+	private static final float MAX_LOAD = 0.75f;
+
+	private Node root = new Node(0);
+	// The hash of the stem in each slot of the stem table, or null if the
+	// index is not stemmed.
+	private int[] stemHashes;
+	/*
+	 * The keywords of the stem in each slot: a Keyword if the stem has a single
+	 * keyword, else a Keyword[][] holding the keywords of each word with that
+	 * stem.
+	 */
+	private Object[] stemEntries;
+	// The distinct priorities of the keywords, in ascending order.
+	private int[] priorities;
+	// The index this one is layered on, or null.
+	private KeywordIndex base;
+
+	/**
+	 * Builds the automaton for a list of keywords.
+	 * 
+	 * @param keywords
+	 *            The keywords to index. Several Keyword objects may share the
+	 *            same keyword string.
+	 */
+	public KeywordIndex(List<Keyword> keywords) {
+		this(null, keywords, false);
+	}
+
+	/**
+	 * Builds an index of the keywords of another index and some more. Only
+	 * the extra keywords are put in a new automaton, so the index takes little
+	 * memory, but it makes one more pass over each sentence and reports the
+	 * keywords of the base index first.
+	 * 
+	 * @param base
+	 *            The index to layer the new one on, or null.
+	 * @param keywords
+	 *            The keywords which are not in the base index.
+	 */
+	public KeywordIndex(KeywordIndex base, List<Keyword> keywords) {
+		this(base, keywords, false);
+	}
+
+	/**
+	 * Builds an index of the keywords of another index and some more, which
+	 * may file keywords of a single word by their stems.
+	 * 
+	 * @param base
+	 *            The index to layer the new one on, or null.
+	 * @param keywords
+	 *            The keywords which are not in the base index.
+	 * @param stemmed
+	 *            Whether to file keywords of a single word by their stems.
+	 */
+	public KeywordIndex(KeywordIndex base, List<Keyword> keywords,
+			boolean stemmed) {
+		this.base = base;
+		int offset = base == null ? 0 : base.priorities.length;
+		int[] all = new int[offset + keywords.size()];
+		if (base != null)
+			System.arraycopy(base.priorities, 0, all, 0, offset);
+		// the keywords of each stem, by their string, in order
+		LinkedHashMap<String, LinkedHashMap<String, ArrayList<Keyword>>> stems = null;
+		if (stemmed)
+			stems = new LinkedHashMap<String, LinkedHashMap<String, ArrayList<Keyword>>>();
+		for (int i = 0; i < keywords.size(); i++) {
+			Keyword key = keywords.get(i);
+			if (stemmed && isWord(key.getKeyword()))
+				file(stems, key);
+			else
+				add(key);
+			all[offset + i] = key.getPriority();
+		}
+		link();
+		if (stemmed)
+			buildStemTable(stems);
+		Arrays.sort(all);
+		int count = 0;
+		for (int i = 0; i < all.length; i++) {
+			if (count == 0 || all[i] != all[count - 1])
+				all[count++] = all[i];
+		}
+		priorities = Arrays.copyOf(all, count);
+	}
+
+	/**
+	 * @return The number of distinct priorities among the keywords.
+	 */
+	public int getBucketCount() {
+		return priorities.length;
+	}
+
+	/**
+	 * Tells whether this index files keywords by their stems.
+	 * 
+	 * @return Whether the index is stemmed.
+	 */
+	public boolean isStemmed() {
+		return stemEntries != null;
+	}
+
+	/**
+	 * Tells whether this index is layered on another.
+	 * 
+	 * @return Whether some of the keywords are found by a base index.
+	 */
+	public boolean isLayered() {
+		return base != null;
+	}
+
+	/**
+	 * Get the bucket of a keyword of the index.
+	 * 
+	 * @param key
+	 *            A keyword of the index.
+	 * @return The number of distinct priorities higher than that of the
+	 *         keyword.
+	 */
+	public int getBucket(Keyword key) {
+		return Arrays.binarySearch(priorities, key.getPriority());
+	}
+
+	/**
+	 * Add a keyword to the trie.
+	 * 
+	 * @param key
+	 *            A keyword.
+	 */
+	private void add(Keyword key) {
+		String word = key.getKeyword();
+		Node node = root;
+		for (int i = 0; i < word.length(); i++) {
+			node = node.childOrCreate(word.charAt(i));
+		}
+		node.keywords = Arrays.copyOf(node.keywords, node.keywords.length + 1);
+		node.keywords[node.keywords.length - 1] = key;
+	}
+
+	/**
+	 * @return Whether a keyword consists of word characters only.
+	 */
+	private static boolean isWord(String keyword) {
+		if (keyword.isEmpty())
+			return false;
+		for (int i = 0; i < keyword.length(); i++) {
+			if (!StringMethods.isWordCharacter(keyword.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * File a keyword of a single word under its stem.
+	 * 
+	 * @param stems
+	 *            The keywords of each stem, by their string.
+	 * @param key
+	 *            The keyword.
+	 */
+	private static void file(
+			LinkedHashMap<String, LinkedHashMap<String, ArrayList<Keyword>>> stems,
+			Keyword key) {
+		String word = key.getKeyword();
+		String stem = word.substring(0, SuffixStemmer.stemLength(word, 0,
+				word.length()));
+		LinkedHashMap<String, ArrayList<Keyword>> words = stems.get(stem);
+		if (words == null) {
+			words = new LinkedHashMap<String, ArrayList<Keyword>>();
+			stems.put(stem, words);
+		}
+		ArrayList<Keyword> same = words.get(word);
+		if (same == null) {
+			same = new ArrayList<Keyword>(1);
+			words.put(word, same);
+		}
+		same.add(key);
+	}
+
+	/**
+	 * Build the open addressing table of the stems.
+	 * 
+	 * @param stems
+	 *            The keywords of each stem, by their string.
+	 */
+	private void buildStemTable(
+			LinkedHashMap<String, LinkedHashMap<String, ArrayList<Keyword>>> stems) {
+		int capacity = 1;
+		while (capacity * MAX_LOAD < stems.size() + 1)
+			capacity *= 2;
+		stemHashes = new int[capacity];
+		stemEntries = new Object[capacity];
+		for (String stem : stems.keySet()) {
+			LinkedHashMap<String, ArrayList<Keyword>> words = stems.get(stem);
+			Object entry;
+			ArrayList<Keyword> first = words.values().iterator().next();
+			if (words.size() == 1 && first.size() == 1) {
+				entry = first.get(0);
+			} else {
+				Keyword[][] byWord = new Keyword[words.size()][];
+				int i = 0;
+				for (ArrayList<Keyword> same : words.values()) {
+					byWord[i++] = same.toArray(NO_KEYWORDS);
+				}
+				entry = byWord;
+			}
+			int hash = stem.hashCode();
+			int slot = spread(hash) & (capacity - 1);
+			while (stemEntries[slot] != null) {
+				slot = (slot + 1) & (capacity - 1);
+			}
+			stemHashes[slot] = hash;
+			stemEntries[slot] = entry;
+		}
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Set the failure and output links of all nodes, in breadth first order.
+	 */
+	private void link() {
+		ArrayDeque<Node> queue = new ArrayDeque<Node>();
+		root.fail = root;
+		for (int i = 0; i < root.size; i++) {
+			root.children[i].fail = root;
+			queue.add(root.children[i]);
+		}
+		while (!queue.isEmpty()) {
+			Node node = queue.remove();
+			for (int i = 0; i < node.size; i++) {
+				char c = node.labels[i];
+				Node child = node.children[i];
+				Node fail = node.fail;
+				while (fail != root && fail.child(c) == null) {
+					fail = fail.fail;
+				}
+				Node next = fail.child(c);
+				child.fail = next == null ? root : next;
+				// the closest node on the failure chain ending a keyword
+				child.output = child.fail.keywords.length > 0 ? child.fail
+						: child.fail.output;
+				queue.add(child);
+			}
+		}
+	}
+
+	/**
+	 * Find all keywords contained in a sentence. Each keyword is added at
+	 * most once, in the order in which its first occurrence ends, those of a
+	 * base index first.
+	 * 
+	 * @param sentence
+	 *            An input sentence.
+	 * @param result
+	 *            The list to which the found keywords are added.
+	 */
+	public void find(CharSequence sentence, ArrayList<Keyword> result) {
+		if (base != null)
+			base.find(sentence, result);
+		int len = sentence.length();
+		Node node = root;
+		// the start of the word the scan is in
+		int word = 0;
+		for (int i = 0; i < len; i++) {
+			char c = sentence.charAt(i);
+			// a stemmed index may have no keywords left in the automaton
+			if (root.size > 0)
+				node = step(node, sentence, i, result);
+			if (stemEntries == null || !StringMethods.isWordCharacter(c))
+				continue;
+			if (i == 0 || !StringMethods.isWordCharacter(sentence.charAt(i - 1)))
+				word = i;
+			/*
+			 * Other keywords ending here are longer than the word, so they were
+			 * reported first by the automaton, as they are by a plain index.
+			 */
+			if (i + 1 == len
+					|| !StringMethods.isWordCharacter(sentence.charAt(i + 1)))
+				findWord(sentence, word, i + 1, result);
+		}
+	}
+
+	/**
+	 * Feed the automaton a character of a sentence and add the keywords
+	 * ending at it.
+	 * 
+	 * @param node
+	 *            The state before the character.
+	 * @param sentence
+	 *            The sentence.
+	 * @param i
+	 *            The index of the character.
+	 * @param result
+	 *            The list to which the found keywords are added.
+	 * @return The state after the character.
+	 */
+	private Node step(Node node, CharSequence sentence, int i,
+			ArrayList<Keyword> result) {
+		char c = sentence.charAt(i);
+		Node next = node.child(c);
+		while (next == null && node != root) {
+			node = node.fail;
+			next = node.child(c);
+		}
+		node = next == null ? root : next;
+		Node match = node.keywords.length > 0 ? node : node.output;
+		for (; match != null; match = match.output) {
+			int start = i + 1 - match.depth;
+			if (StringMethods.isWordBoundary(sentence, start)
+					&& StringMethods.isWordBoundary(sentence, i + 1)
+					&& !result.contains(match.keywords[0])) {
+				for (Keyword key : match.keywords) {
+					result.add(key);
+				}
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Look up a word of a sentence in the stem table and add the keywords
+	 * equal to it.
+	 * 
+	 * @param sentence
+	 *            The sentence.
+	 * @param start
+	 *            The index of the first character of the word.
+	 * @param end
+	 *            The index after the last character of the word.
+	 * @param result
+	 *            The list to which the found keywords are added.
+	 */
+	private void findWord(CharSequence sentence, int start, int end,
+			ArrayList<Keyword> result) {
+		int stemEnd = start + SuffixStemmer.stemLength(sentence, start, end);
+		// the hash of the stem, as String.hashCode would compute it
+		int hash = 0;
+		for (int i = start; i < stemEnd; i++) {
+			hash = 31 * hash + sentence.charAt(i);
+		}
+		int mask = stemEntries.length - 1;
+		for (int slot = spread(hash) & mask; stemEntries[slot] != null; slot = (slot + 1)
+				& mask) {
+			if (stemHashes[slot] != hash)
+				continue;
+			Object entry = stemEntries[slot];
+			if (entry instanceof Keyword) {
+				Keyword key = (Keyword) entry;
+				if (isWordAt(sentence, start, end, key.getKeyword())) {
+					if (!result.contains(key))
+						result.add(key);
+					return;
+				}
+				continue;
+			}
+			for (Keyword[] same : (Keyword[][]) entry) {
+				if (isWordAt(sentence, start, end, same[0].getKeyword())) {
+					if (!result.contains(same[0])) {
+						for (Keyword key : same) {
+							result.add(key);
+						}
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Whether the word of a sentence between start and end is the
+	 *         given keyword.
+	 */
+	private static boolean isWordAt(CharSequence sentence, int start, int end,
+			String keyword) {
+		return keyword.length() == end - start
+				&& StringMethods.regionMatches(sentence, start, keyword);
+	}
+
+	/**
+	 * A node in the trie. Children are kept in a sorted array to keep the
+	 * memory use low for scripts with many keywords.
+	 */
+	private static class Node {
+		private char[] labels = NO_LABELS;
+		private Node[] children = NO_CHILDREN;
+		private int size;
+		// the length of the string leading to this node
+		private int depth;
+		// the keywords ending in this node
+		private Keyword[] keywords = NO_KEYWORDS;
+		// the longest proper suffix of this node which is also in the trie
+		private Node fail;
+		// the longest proper suffix of this node which ends a keyword
+		private Node output;
+
+		private Node(int depth) {
+			this.depth = depth;
+		}
+
+		private Node child(char c) {
+			int i = Arrays.binarySearch(labels, 0, size, c);
+			return i >= 0 ? children[i] : null;
+		}
+
+		private Node childOrCreate(char c) {
+			int i = Arrays.binarySearch(labels, 0, size, c);
+			if (i >= 0)
+				return children[i];
+			i = -i - 1;
+			if (size == labels.length) {
+				int capacity = Math.max(2, size * 2);
+				labels = Arrays.copyOf(labels, capacity);
+				children = Arrays.copyOf(children, capacity);
+			}
+			System.arraycopy(labels, i, labels, i + 1, size - i);
+			System.arraycopy(children, i, children, i + 1, size - i);
+			Node child = new Node(depth + 1);
+			labels[i] = c;
+			children[i] = child;
+			size++;
+			return child;
+		}
+	}
+}
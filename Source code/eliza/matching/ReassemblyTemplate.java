@@ -0,0 +1,136 @@
+package eliza.matching;
+
+import java.util.ArrayList;
+
+/**
+ * ReassemblyTemplate is a reassembly rule split into literal text and
+ * references, so that a reply is built in one pass over the rule. A "$" refers
+ * to the keyword, and a digit from 1 to the number of stars of the
+ * decomposition rule refers to the text captured by that star. A digit only
+ * counts as a reference when it stands on its own, so the digits of a longer
+ * number or of a word like "mp3" are kept as they are.
+ *
+ * @author Ole & Peter
+ *
+ */
+public class ReassemblyTemplate {
+	// Refers to the keyword.
+	private static final char KEYWORD = '$';
+	// The reference number of the keyword.
+	private static final int KEYWORD_REF = 0;
+
+	// The literal text before, between and after the references.
+	private final String[] literals;
+	// What each reference refers to: KEYWORD_REF or the number of a star.
+	private final int[] refs;
+	// The total length of the literals.
+	private final int length;
+
+	/**
+	 * Compiles a reassembly rule.
+	 *
+	 * @param rule
+	 *            The reassembly rule.
+	 * @param groupCount
+	 *            The number of stars in the decomposition rule it belongs to.
+	 */
+	public ReassemblyTemplate(String rule, int groupCount) {
+		ArrayList<String> parts = new ArrayList<String>();
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		int start = 0;
+		for (int i = 0; i < rule.length(); i++) {
+			int ref = reference(rule, i, groupCount);
+			if (ref >= 0) {
+				parts.add(rule.substring(start, i));
+				found.add(ref);
+				start = i + 1;
+			}
+		}
+		parts.add(rule.substring(start));
+		literals = parts.toArray(new String[parts.size()]);
+		refs = new int[found.size()];
+		for (int i = 0; i < refs.length; i++) {
+			refs[i] = found.get(i);
+		}
+		int length = 0;
+		for (String literal : literals) {
+			length += literal.length();
+		}
+		this.length = length;
+	}
+
+	/**
+	 * Tells whether the template refers to the text captured by a star, so
+	 * that only those groups need to be post-substituted.
+	 *
+	 * @param group
+	 *            The number of the star, counting from 1.
+	 * @return Whether the group is referred to.
+	 */
+	public boolean references(int group) {
+		if (group == KEYWORD_REF)
+			return false;
+		for (int ref : refs) {
+			if (ref == group)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Build a reply from the template.
+	 *
+	 * @param keyword
+	 *            The keyword to put in place of "$".
+	 * @param groups
+	 *            The text to put in place of each referenced star, indexed by
+	 *            the number of the star. Index 0 is not used.
+	 * @return The reply.
+	 */
+	public String render(String keyword, String[] groups) {
+		int size = length;
+		for (int ref : refs) {
+			size += ref == KEYWORD_REF ? keyword.length() : groups[ref]
+					.length();
+		}
+		StringBuilder reply = new StringBuilder(size);
+		reply.append(literals[0]);
+		for (int i = 0; i < refs.length; i++) {
+			reply.append(refs[i] == KEYWORD_REF ? keyword : groups[refs[i]]);
+			reply.append(literals[i + 1]);
+		}
+		return reply.toString();
+	}
+
+	/**
+	 * Returns what the character at an index of a rule refers to.
+	 *
+	 * @return KEYWORD_REF, the number of a star, or -1 if the character is
+	 *         literal text.
+	 */
+	private static int reference(String rule, int i, int groupCount) {
+		char c = rule.charAt(i);
+		if (c == KEYWORD)
+			return KEYWORD_REF;
+		if (c < '1' || c > '9' || c - '0' > groupCount)
+			return -1;
+		if (i > 0 && Character.isLetterOrDigit(rule.charAt(i - 1)))
+			return -1;
+		if (i + 1 < rule.length()
+				&& Character.isLetterOrDigit(rule.charAt(i + 1)))
+			return -1;
+		return c - '0';
+	}
+
+	public String toString() {
+		StringBuilder rule = new StringBuilder(literals[0]);
+		for (int i = 0; i < refs.length; i++) {
+			if (refs[i] == KEYWORD_REF)
+				rule.append(KEYWORD);
+			else
+				rule.append(refs[i]);
+			rule.append(literals[i + 1]);
+		}
+		return rule.toString();
+	}
+}
@@ -0,0 +1,280 @@
+package eliza.matching;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import eliza.methods.StringMethods;
+import eliza.wrapper.SubstitutionRule;
+
+/**
+ * SubstitutionTrie applies a list of substitution rules to a string in a
+ * single left to right scan. The phrases to look for are stored in a trie,
+ * and a phrase is only substituted if it has word boundaries on both sides.
+ * Substituted text is never looked at again, so a rule is never applied to
+ * the output of another rule.
+ * 
+ * Where phrases overlap, the result is the same as that of applying the rules
+ * one by one in the order they are listed in the script: the rule listed first
+ * is applied to each of its occurrences from left to right, and a rule listed
+ * later is only applied where no rule before it has been. A phrase is
+ * therefore not always replaced by the rule starting furthest to the left, as
+ * with the rules am and i am, listed in that order, applied to "i am".
+ * 
+ * @author Ole & Peter
+ * 
+ */
+public class SubstitutionTrie {
+	// A replacement consisting of only this string deletes the phrase.
+	private static final String DELETE_REPLACEMENT = "_";
+	private static final char[] NO_LABELS = new char[0];
+	private static final Node[] NO_CHILDREN = new Node[0];
+
+	private Node root = new Node();
+
+	/**
+	 * Builds a trie from a list of substitution rules. The phrases are matched
+	 * in lower case.
+	 * 
+	 * @param rules
+	 *            The substitution rules, in the order they are listed in the
+	 *            script.
+	 */
+	public SubstitutionTrie(List<SubstitutionRule> rules) {
+		for (int i = 0; i < rules.size(); i++) {
+			SubstitutionRule rule = rules.get(i);
+			String find = rule.getFind().toLowerCase();
+			if (find.isEmpty())
+				continue;
+			Node node = root;
+			for (int j = 0; j < find.length(); j++) {
+				node = node.childOrCreate(find.charAt(j));
+			}
+			// if the phrase is listed twice, the first rule wins
+			if (node.replacement == null) {
+				String replacement = rule.getReplacement();
+				if (replacement.equals(DELETE_REPLACEMENT))
+					replacement = "";
+				node.replacement = replacement;
+				node.order = i;
+			}
+		}
+	}
+
+	/**
+	 * Apply the substitution rules to a string.
+	 * 
+	 * @param str
+	 *            The string to which the substitutions are to be applied.
+	 * @return A string to which the substitution rules have been applied. The
+	 *         same string is returned if no rule applies.
+	 */
+	public String apply(String str) {
+		int len = str.length();
+		StringBuilder result = null;
+		// the index up to which str has been copied to the result
+		int copied = 0;
+		Matches matches = null;
+		for (int i = 0; i <= len; i++) {
+			if (matches != null && i >= matches.end && matches.size > 0) {
+				matches.resolve();
+				if (result == null)
+					result = new StringBuilder(len + 16);
+				for (int m = 0; m < matches.size; m++) {
+					result.append(str, copied, matches.starts[m]).append(
+							matches.nodes[m].replacement);
+					copied = matches.ends[m];
+				}
+				matches.clear();
+			}
+			if (i == len || !StringMethods.isWordBoundary(str, i))
+				continue;
+			Node node = root;
+			for (int j = i; j < len; j++) {
+				node = node.child(str.charAt(j));
+				if (node == null)
+					break;
+				if (node.replacement != null
+						&& StringMethods.isWordBoundary(str, j + 1)) {
+					if (matches == null)
+						matches = new Matches();
+					matches.add(i, j + 1, node);
+				}
+			}
+		}
+		if (result == null)
+			return str;
+		return result.append(str, copied, len).toString();
+	}
+
+	/**
+	 * Apply the substitution rules to the start of a char array, writing the
+	 * result to another array.
+	 * 
+	 * @param src
+	 *            The characters to which the substitutions are to be applied.
+	 * @param len
+	 *            The number of characters of src to use.
+	 * @param dst
+	 *            The array to which the result is written.
+	 * @return The number of characters written, or -1 if the result does not
+	 *         fit in dst.
+	 */
+	public int apply(char[] src, int len, char[] dst) {
+		int written = 0;
+		// the index up to which src has been copied to dst
+		int copied = 0;
+		Matches matches = null;
+		for (int i = 0; i <= len; i++) {
+			if (matches != null && i >= matches.end && matches.size > 0) {
+				matches.resolve();
+				for (int m = 0; m < matches.size; m++) {
+					int start = matches.starts[m];
+					String replacement = matches.nodes[m].replacement;
+					int length = replacement.length();
+					if (written + start - copied + length > dst.length)
+						return -1;
+					System.arraycopy(src, copied, dst, written, start - copied);
+					written += start - copied;
+					replacement.getChars(0, length, dst, written);
+					written += length;
+					copied = matches.ends[m];
+				}
+				matches.clear();
+			}
+			if (i == len || !StringMethods.isWordBoundary(src, len, i))
+				continue;
+			Node node = root;
+			for (int j = i; j < len; j++) {
+				node = node.child(src[j]);
+				if (node == null)
+					break;
+				if (node.replacement != null
+						&& StringMethods.isWordBoundary(src, len, j + 1)) {
+					if (matches == null)
+						matches = new Matches();
+					matches.add(i, j + 1, node);
+				}
+			}
+		}
+		if (written + len - copied > dst.length)
+			return -1;
+		System.arraycopy(src, copied, dst, written, len - copied);
+		return written + len - copied;
+	}
+
+	/**
+	 * The phrases found in a stretch of a string in which each phrase overlaps
+	 * one of the others, in the order of their start. Phrases which do not
+	 * overlap any other are kept on their own, so that the choice between
+	 * overlapping phrases is made between as few as possible.
+	 */
+	private static class Matches {
+		private int[] starts = new int[4];
+		private int[] ends = new int[4];
+		private Node[] nodes = new Node[4];
+		private int size;
+		// the end of the last phrase to end
+		private int end;
+		// the characters covered by the phrases applied by resolve
+		private BitSet taken;
+		// the order of each rule followed by its index, for sorting by order
+		private long[] keys;
+
+		private void add(int start, int end, Node node) {
+			if (size == starts.length) {
+				starts = Arrays.copyOf(starts, 2 * size);
+				ends = Arrays.copyOf(ends, 2 * size);
+				nodes = Arrays.copyOf(nodes, 2 * size);
+			}
+			starts[size] = start;
+			ends[size] = end;
+			nodes[size] = node;
+			size++;
+			this.end = Math.max(this.end, end);
+		}
+
+		private void clear() {
+			size = 0;
+			end = 0;
+		}
+
+		/**
+		 * Keep only the phrases the rules would replace if they were applied
+		 * one by one in the order they are listed in the script, each to every
+		 * occurrence left over by the rules before it from left to right.
+		 */
+		private void resolve() {
+			if (size == 1)
+				return;
+			if (keys == null || keys.length < size) {
+				keys = new long[Math.max(size, 2 * starts.length)];
+				taken = new BitSet();
+			}
+			for (int m = 0; m < size; m++)
+				keys[m] = (long) nodes[m].order << 32 | m;
+			Arrays.sort(keys, 0, size);
+			int offset = starts[0];
+			taken.clear();
+			for (int k = 0; k < size; k++) {
+				int m = (int) keys[k];
+				int from = starts[m] - offset;
+				int to = ends[m] - offset;
+				int next = taken.nextSetBit(from);
+				if (next >= 0 && next < to) {
+					// a rule listed earlier has already replaced part of it
+					nodes[m] = null;
+					continue;
+				}
+				taken.set(from, to);
+			}
+			int kept = 0;
+			for (int m = 0; m < size; m++) {
+				if (nodes[m] == null)
+					continue;
+				starts[kept] = starts[m];
+				ends[kept] = ends[m];
+				nodes[kept] = nodes[m];
+				kept++;
+			}
+			size = kept;
+		}
+	}
+
+	/**
+	 * A node in the trie, with children kept in a sorted array.
+	 */
+	private static class Node {
+		private char[] labels = NO_LABELS;
+		private Node[] children = NO_CHILDREN;
+		private int size;
+		// the replacement if a phrase ends in this node, or null
+		private String replacement;
+		// the position of the rule in the script
+		private int order;
+
+		private Node child(char c) {
+			int i = Arrays.binarySearch(labels, 0, size, c);
+			return i >= 0 ? children[i] : null;
+		}
+
+		private Node childOrCreate(char c) {
+			int i = Arrays.binarySearch(labels, 0, size, c);
+			if (i >= 0)
+				return children[i];
+			i = -i - 1;
+			if (size == labels.length) {
+				int capacity = Math.max(2, size * 2);
+				labels = Arrays.copyOf(labels, capacity);
+				children = Arrays.copyOf(children, capacity);
+			}
+			System.arraycopy(labels, i, labels, i + 1, size - i);
+			System.arraycopy(children, i, children, i + 1, size - i);
+			Node child = new Node();
+			labels[i] = c;
+			children[i] = child;
+			size++;
+			return child;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package eliza.matching;
+
+import eliza.methods.StringMethods;
+
+/**
+ * SuffixStemmer finds the stem of a word by cutting off a common English
+ * inflection, so that "believe", "believes", "believed" and "believing" all
+ * have the stem "believ". The stem is always a prefix of the word, which lets
+ * a word be looked up by its stem without copying it.
+ *
+ * The stemmer is deliberately simple and sometimes gives unrelated words the
+ * same stem, or related words different stems. A KeywordIndex only uses stems
+ * to group keywords, so this costs a little time but never changes which
+ * keyword is found.
+ *
+ * @author Ole & Peter
+ *
+ */
+class SuffixStemmer {
+	// The inflections cut off, the first which applies is used.
+	private static final String[] SUFFIXES = { "ingly", "edly", "ness",
+			"ings", "ing", "ies", "ied", "ed", "es", "ly", "s" };
+	// A stem is never cut shorter than this.
+	private static final int MIN_STEM_LENGTH = 3;
+
+	/**
+	 * Find the stem of a word.
+	 *
+	 * @param word
+	 *            A text containing the word.
+	 * @param start
+	 *            The index of the first character of the word.
+	 * @param end
+	 *            The index after the last character of the word.
+	 * @return The length of the stem, which starts where the word does.
+	 */
+	static int stemLength(CharSequence word, int start, int end) {
+		int length = end - start;
+		for (String suffix : SUFFIXES) {
+			if (length - suffix.length() >= MIN_STEM_LENGTH
+					&& StringMethods.regionMatches(word, end - suffix.length(),
+							suffix)) {
+				// a double s belongs to the word, as in "less"
+				if (suffix.length() == 1 && word.charAt(end - 2) == 's')
+					break;
+				length -= suffix.length();
+				break;
+			}
+		}
+		// "believe" and "believes", "happy" and "happiness"
+		if (length > MIN_STEM_LENGTH) {
+			char last = word.charAt(start + length - 1);
+			if (last == 'e' || last == 'y' || last == 'i')
+				length--;
+		}
+		return length;
+	}
+}
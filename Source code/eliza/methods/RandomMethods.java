@@ -1,38 +1,45 @@
 package eliza.methods;
 
 import java.util.ArrayList;
-
-import eliza.wrapper.Keyword;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
 
 /**
  * A class containing the random number generator methods used by some of the
  * other classes, most notably eliza.Engine.
  * 
+ * Each method takes the RandomGenerator to draw from, normally the one of the
+ * conversation's Session, so that a seeded conversation can be replayed. The
+ * methods without one use ThreadLocalRandom, which unlike Math.random() is not
+ * shared between threads.
+ * 
  * @author Ole & Peter
  * 
  */
 public class RandomMethods {
 
 	/**
-	 * Return a random element of an ArrayList of Strings.
+	 * Return a random element of an ArrayList.
 	 * 
 	 * @param list
-	 *            An ArrayList of Strings.
-	 * @return A random String from the list.
+	 *            An ArrayList of any element type, e.g. Strings or Keywords.
+	 * @return A random element from the list.
 	 */
-	public static String random(ArrayList<String> list) {
-		return list.get(random(list.size()));
+	public static <T> T random(ArrayList<T> list) {
+		return random(ThreadLocalRandom.current(), list);
 	}
 
 	/**
-	 * Return a random element of an ArrayList of Keywords.
+	 * Return a random element of an ArrayList.
 	 * 
+	 * @param random
+	 *            The random number generator to use.
 	 * @param list
-	 *            An ArrayList of Keywords.
-	 * @return A random Keywords from the list.
+	 *            An ArrayList of any element type, e.g. Strings or Keywords.
+	 * @return A random element from the list.
 	 */
-	public static Keyword random(ArrayList<Keyword> list) {
-		return list.get(random(list.size()));
+	public static <T> T random(RandomGenerator random, ArrayList<T> list) {
+		return list.get(random(random, list.size()));
 	}
 
 	/**
@@ -46,6 +53,19 @@ public class RandomMethods {
 		return random(0, max);
 	}
 
+	/**
+	 * Returns a random number in the range 0 to max - 1.
+	 * 
+	 * @param random
+	 *            The random number generator to use.
+	 * @param max
+	 *            An integer.
+	 * @return A random number in the range 0 to max - 1.
+	 */
+	public static int random(RandomGenerator random, int max) {
+		return random(random, 0, max);
+	}
+
 	/**
 	 * Returns a number in the range min to max - 1.
 	 * 
@@ -56,6 +76,21 @@ public class RandomMethods {
 	 * @return a number in the range min to max - 1.
 	 */
 	public static int random(int min, int max) {
-		return (int) ((max - min) * Math.random()) + min;
+		return random(ThreadLocalRandom.current(), min, max);
+	}
+
+	/**
+	 * Returns a number in the range min to max - 1.
+	 * 
+	 * @param random
+	 *            The random number generator to use.
+	 * @param min
+	 *            An integer.
+	 * @param max
+	 *            An integer.
+	 * @return a number in the range min to max - 1.
+	 */
+	public static int random(RandomGenerator random, int min, int max) {
+		return (int) ((max - min) * random.nextDouble()) + min;
 	}
 }
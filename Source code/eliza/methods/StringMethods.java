@@ -0,0 +1,154 @@
+package eliza.methods;
+
+/**
+ * A class containing string helper methods used when matching keywords and
+ * substitution rules without regular expressions.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+public class StringMethods {
+
+	/**
+	 * Tells whether a character is a word character, as matched by \w in a
+	 * regular expression.
+	 * 
+	 * @param c
+	 *            A character.
+	 * @return Whether the character is a letter, a digit or an underscore.
+	 */
+	public static boolean isWordCharacter(char c) {
+		return c == '_' || Character.isLetterOrDigit(c);
+	}
+
+	/**
+	 * Tells whether there is a word boundary (\b in a regular expression)
+	 * before the character at a given index.
+	 * 
+	 * @param str
+	 *            A string.
+	 * @param index
+	 *            An index in the range 0 to str.length().
+	 * @return Whether a word character is on exactly one side of the index.
+	 *         As for \b, a character may be a letter or digit outside the
+	 *         Basic Multilingual Plane, and a non-spacing mark after a letter
+	 *         or digit is part of its word.
+	 */
+	public static boolean isWordBoundary(CharSequence str, int index) {
+		boolean before = index > 0
+				&& isWordPart(str, Character.codePointBefore(str, index),
+						index - 1);
+		boolean after = index < str.length()
+				&& isWordPart(str, Character.codePointAt(str, index), index);
+		return before != after;
+	}
+
+	/**
+	 * Tells whether there is a word boundary before the character at a given
+	 * index of the start of a char array.
+	 * 
+	 * @param chars
+	 *            A char array.
+	 * @param length
+	 *            The number of characters of the array in use.
+	 * @param index
+	 *            An index in the range 0 to length.
+	 * @return Whether a word character is on exactly one side of the index.
+	 */
+	public static boolean isWordBoundary(char[] chars, int length, int index) {
+		boolean before = index > 0
+				&& isWordPart(chars, Character.codePointBefore(chars, index),
+						index - 1);
+		boolean after = index < length
+				&& isWordPart(chars, Character.codePointAt(chars, index,
+						length), index);
+		return before != after;
+	}
+
+	/**
+	 * Tells whether a code point is part of a word, as for \b: a letter, digit
+	 * or underscore, or a non-spacing mark which follows a letter or digit,
+	 * such as the dot U+0130 gets when lower cased.
+	 * 
+	 * @param str
+	 *            The string holding the code point.
+	 * @param c
+	 *            The code point.
+	 * @param index
+	 *            The index of the code point in the string.
+	 * @return Whether the code point belongs to a word.
+	 */
+	private static boolean isWordPart(CharSequence str, int c, int index) {
+		if (c == '_' || Character.isLetterOrDigit(c))
+			return true;
+		if (Character.getType(c) != Character.NON_SPACING_MARK)
+			return false;
+		for (int i = index - 1; i >= 0; i--) {
+			int base = Character.codePointAt(str, i);
+			if (Character.isLetterOrDigit(base))
+				return true;
+			if (Character.getType(base) != Character.NON_SPACING_MARK)
+				return false;
+		}
+		return false;
+	}
+
+	private static boolean isWordPart(char[] chars, int c, int index) {
+		if (c == '_' || Character.isLetterOrDigit(c))
+			return true;
+		if (Character.getType(c) != Character.NON_SPACING_MARK)
+			return false;
+		for (int i = index - 1; i >= 0; i--) {
+			int base = Character.codePointAt(chars, i);
+			if (Character.isLetterOrDigit(base))
+				return true;
+			if (Character.getType(base) != Character.NON_SPACING_MARK)
+				return false;
+		}
+		return false;
+	}
+
+	/**
+	 * Tells whether a string contains a word, with word boundaries on both
+	 * sides, as found by \bword\b in a regular expression.
+	 * 
+	 * @param str
+	 *            A string.
+	 * @param word
+	 *            The word to look for.
+	 * @return Whether the word is contained in the string.
+	 */
+	public static boolean containsWord(CharSequence str, String word) {
+		int len = word.length();
+		int last = str.length() - len;
+		for (int i = 0; i <= last; i++) {
+			if (regionMatches(str, i, word) && isWordBoundary(str, i)
+					&& isWordBoundary(str, i + len))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Tells whether a string contains another string at a given index.
+	 * 
+	 * @param str
+	 *            A string.
+	 * @param index
+	 *            The index of str to compare from.
+	 * @param other
+	 *            The string to look for.
+	 * @return Whether other occurs in str at the index.
+	 */
+	public static boolean regionMatches(CharSequence str, int index,
+			String other) {
+		int len = other.length();
+		if (index < 0 || index + len > str.length())
+			return false;
+		for (int i = 0; i < len; i++) {
+			if (str.charAt(index + i) != other.charAt(i))
+				return false;
+		}
+		return true;
+	}
+}
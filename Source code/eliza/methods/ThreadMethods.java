@@ -0,0 +1,30 @@
+package eliza.methods;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A class containing thread helper methods used by the servers and the load
+ * generator.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+public class ThreadMethods {
+
+	/**
+	 * Returns an executor starting a new virtual thread for each task. Virtual
+	 * threads need Java 21, so on older runtimes a cached pool of platform
+	 * threads is returned instead.
+	 * 
+	 * @return An executor with one thread per task.
+	 */
+	public static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package eliza.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import eliza.wrapper.Decomposition;
+import eliza.wrapper.Keyword;
+
+/**
+ * EngineMetrics records how long each stage of Engine.generateResponse takes,
+ * and counts how often keywords and decomposition rules are hit, how often no
+ * keyword applies and how often a typo is made. The metrics can be published
+ * as JMX MBeans.
+ * 
+ * The filtering of input, the removal of double spaces and the splitting into
+ * sentences were once timed as three stages. They are now done in a single
+ * pass by the Normalizer, so they are timed together as the normalization
+ * stage.
+ * 
+ * Recording never allocates, except the first time a keyword or rule is hit,
+ * and uses LongAdders so that it stays cheap when many threads record at once.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+public class EngineMetrics implements EngineMetricsMXBean {
+
+	/**
+	 * The timed stages of generating a response. NORMALIZATION covers
+	 * filtering, deleting double spaces and splitting into sentences.
+	 */
+	public enum Stage {
+		PRE_SUBSTITUTION("preSubstitution"), NORMALIZATION("normalization"), QUIT_CHECK(
+				"quitCheck"), FUZZY_CORRECTION("fuzzyCorrection"), KEYWORD_SCAN(
+				"keywordScan"), APPLY_KEYWORD("applyKeyword"), POST_SUBSTITUTION(
+				"postSubstitution");
+
+		private final String name;
+
+		private Stage(String name) {
+			this.name = name;
+		}
+
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * Metrics which record nothing, used when an Engine is not instrumented.
+	 */
+	public static final EngineMetrics DISABLED = new EngineMetrics(false);
+
+	private final boolean enabled;
+	private final LatencyHistogram[] stages;
+	private final LongAdder responses = new LongAdder();
+	private final LongAdder keywordHits = new LongAdder();
+	private final LongAdder decompositionHits = new LongAdder();
+	private final LongAdder otherResponses = new LongAdder();
+	private final LongAdder typos = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+	// Hits per keyword.
+	private final ConcurrentHashMap<String, LongAdder> keywordCounts = new ConcurrentHashMap<String, LongAdder>();
+	// Hits per decomposition rule, by keyword.
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>> decompositionCounts = new ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>>();
+
+	/**
+	 * Creates new, empty metrics.
+	 */
+	public EngineMetrics() {
+		this(true);
+	}
+
+	private EngineMetrics(boolean enabled) {
+		this.enabled = enabled;
+		Stage[] values = Stage.values();
+		stages = new LatencyHistogram[enabled ? values.length : 0];
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Returns the time at which a stage starts.
+	 * 
+	 * @return The current value of System.nanoTime(), or 0 if disabled.
+	 */
+	public long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Record the duration of a stage.
+	 * 
+	 * @param stage
+	 *            The stage which has finished.
+	 * @param start
+	 *            The time the stage started, as returned by start() or
+	 *            record().
+	 * @return The current time, which is the start of the next stage.
+	 */
+	public long record(Stage stage, long start) {
+		if (!enabled)
+			return 0;
+		long now = System.nanoTime();
+		stages[stage.ordinal()].record(now - start);
+		return now;
+	}
+
+	/**
+	 * Count a response.
+	 */
+	public void response() {
+		if (enabled)
+			responses.increment();
+	}
+
+	/**
+	 * Count a keyword found in an input sentence.
+	 * 
+	 * @param key
+	 *            The keyword.
+	 */
+	public void keywordHit(Keyword key) {
+		if (!enabled)
+			return;
+		keywordHits.increment();
+		counter(keywordCounts, key.getKeyword()).increment();
+	}
+
+	/**
+	 * Count a decomposition rule used to build a response.
+	 * 
+	 * @param key
+	 *            The keyword the rule belongs to.
+	 * @param d
+	 *            The decomposition rule.
+	 */
+	public void decompositionHit(Keyword key, Decomposition d) {
+		if (!enabled)
+			return;
+		decompositionHits.increment();
+		ConcurrentHashMap<String, LongAdder> rules = decompositionCounts
+				.get(key.getKeyword());
+		if (rules == null)
+			rules = decompositionCounts.computeIfAbsent(key.getKeyword(),
+					k -> new ConcurrentHashMap<String, LongAdder>());
+		counter(rules, d.getRule()).increment();
+	}
+
+	/**
+	 * Count a response made because no keyword applied.
+	 */
+	public void otherResponse() {
+		if (enabled)
+			otherResponses.increment();
+	}
+
+	/**
+	 * Count a typo.
+	 */
+	public void typo() {
+		if (enabled)
+			typos.increment();
+	}
+
+	/**
+	 * Count an input whose analysis was found in the cache.
+	 */
+	public void cacheHit() {
+		if (enabled)
+			cacheHits.increment();
+	}
+
+	/**
+	 * Count an input which had to be analysed as it was not cached.
+	 */
+	public void cacheMiss() {
+		if (enabled)
+			cacheMisses.increment();
+	}
+
+	private static LongAdder counter(ConcurrentHashMap<String, LongAdder> map,
+			String key) {
+		LongAdder counter = map.get(key);
+		if (counter == null)
+			counter = map.computeIfAbsent(key, k -> new LongAdder());
+		return counter;
+	}
+
+	/**
+	 * Returns the latencies of a stage.
+	 * 
+	 * @param stage
+	 *            A stage.
+	 * @return The histogram of the stage's durations.
+	 */
+	public LatencyHistogram getLatency(Stage stage) {
+		return stages[stage.ordinal()];
+	}
+
+	public long getResponses() {
+		return responses.sum();
+	}
+
+	public long getKeywordHits() {
+		return keywordHits.sum();
+	}
+
+	public long getDecompositionHits() {
+		return decompositionHits.sum();
+	}
+
+	public long getOtherResponses() {
+		return otherResponses.sum();
+	}
+
+	public long getTypos() {
+		return typos.sum();
+	}
+
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	public double getCacheHitRatio() {
+		long hits = cacheHits.sum();
+		long lookups = hits + cacheMisses.sum();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	public Map<String, Long> getKeywordHitCounts() {
+		TreeMap<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e : keywordCounts.entrySet()) {
+			counts.put(e.getKey(), e.getValue().sum());
+		}
+		return counts;
+	}
+
+	public Map<String, Long> getDecompositionHitCounts() {
+		TreeMap<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, ConcurrentHashMap<String, LongAdder>> key : decompositionCounts
+				.entrySet()) {
+			for (Map.Entry<String, LongAdder> rule : key.getValue().entrySet()) {
+				counts.put(key.getKey() + ": " + rule.getKey(), rule.getValue()
+						.sum());
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Publish the metrics in the platform MBean server, as
+	 * eliza:type=Engine,name=<name> and one
+	 * eliza:type=Stage,engine=<name>,name=<stage> per stage.
+	 * 
+	 * @param name
+	 *            The name of the engine.
+	 * @throws JMException
+	 *             If the beans cannot be registered.
+	 */
+	public void register(String name) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		String quoted = ObjectName.quote(name);
+		server.registerMBean(this, new ObjectName("eliza:type=Engine,name="
+				+ quoted));
+		for (Stage stage : Stage.values()) {
+			server.registerMBean(getLatency(stage), new ObjectName(
+					"eliza:type=Stage,engine=" + quoted + ",name=" + stage));
+		}
+	}
+}
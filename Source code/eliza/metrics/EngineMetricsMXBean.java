@@ -0,0 +1,36 @@
+package eliza.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of EngineMetrics. The latencies of the stages are
+ * published as separate LatencyHistogram beans.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+public interface EngineMetricsMXBean {
+
+	long getResponses();
+
+	long getKeywordHits();
+
+	long getDecompositionHits();
+
+	long getOtherResponses();
+
+	long getTypos();
+
+	long getCacheHits();
+
+	long getCacheMisses();
+
+	/**
+	 * @return The share of inputs whose analysis was found in the cache.
+	 */
+	double getCacheHitRatio();
+
+	Map<String, Long> getKeywordHitCounts();
+
+	Map<String, Long> getDecompositionHitCounts();
+}
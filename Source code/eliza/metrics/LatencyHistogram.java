@@ -0,0 +1,159 @@
+package eliza.metrics;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram records durations in log-linear buckets, in the style of an
+ * HDR histogram: each power of two is split into eight buckets, so any
+ * recorded value is known to within 12.5%. Each bucket is a LongAdder, so
+ * recording never allocates once a bucket has been used and is cheap when many
+ * threads record at the same time.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+	// Each power of two is split into 2^SUB_BUCKET_BITS buckets.
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Values of 2^MAX_EXPONENT nanoseconds (about 18 minutes) or more share
+	// the last bucket.
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2)
+			* SUB_BUCKETS;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder total = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Creates a new, empty histogram.
+	 */
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Record a duration.
+	 * 
+	 * @param nanos
+	 *            The duration in nanoseconds.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		buckets[index(nanos)].increment();
+		total.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * Returns the bucket a value is counted in.
+	 */
+	private static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT)
+			return BUCKETS - 1;
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+				& (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Returns the largest value counted in a bucket.
+	 */
+	private static long highestValue(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int sub = index % SUB_BUCKETS;
+		int shift = exponent - SUB_BUCKET_BITS;
+		return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * Returns a percentile of the recorded durations. The counts are read
+	 * while other threads may be recording, so the result is approximate.
+	 * 
+	 * @param percentile
+	 *            A percentile in the range 0 to 100.
+	 * @return The duration in nanoseconds below which the given percentage of
+	 *         durations fall.
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			count += counts[i];
+		}
+		if (count == 0)
+			return 0;
+		long rank = (long) Math.ceil(percentile / 100 * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0)
+				return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Returns the counts of the non-empty buckets. The counts are read while
+	 * other threads may be recording, so they may be slightly out of date.
+	 * 
+	 * @return The number of durations counted in each bucket, keyed by the
+	 *         largest duration in nanoseconds the bucket holds, in ascending
+	 *         order.
+	 */
+	public SortedMap<Long, Long> getDistribution() {
+		SortedMap<Long, Long> distribution = new TreeMap<Long, Long>();
+		for (int i = 0; i < BUCKETS; i++) {
+			long count = buckets[i].sum();
+			if (count > 0)
+				distribution.put(highestValue(i), count);
+		}
+		return distribution;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) total.sum() / count;
+	}
+
+	public long getMedian() {
+		return getPercentile(50);
+	}
+
+	public long get90thPercentile() {
+		return getPercentile(90);
+	}
+
+	public long get99thPercentile() {
+		return getPercentile(99);
+	}
+
+	public long get999thPercentile() {
+		return getPercentile(99.9);
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+}
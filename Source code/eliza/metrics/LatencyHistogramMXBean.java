@@ -0,0 +1,24 @@
+package eliza.metrics;
+
+/**
+ * Management interface of a LatencyHistogram. All times are in nanoseconds.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+public interface LatencyHistogramMXBean {
+
+	long getCount();
+
+	double getMean();
+
+	long getMedian();
+
+	long get90thPercentile();
+
+	long get99thPercentile();
+
+	long get999thPercentile();
+
+	long getMax();
+}
@@ -0,0 +1,64 @@
+package eliza.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * BufferPool hands out direct buffers of one size and takes them back, so that
+ * a server does not allocate a buffer for every request. Buffers not returned
+ * are simply collected, and buffers returned when the pool is full are
+ * dropped.
+ *
+ * @author Ole & Peter
+ *
+ */
+class BufferPool {
+	private final int bufferSize;
+	private final ArrayBlockingQueue<ByteBuffer> free;
+
+	/**
+	 * Creates an empty pool.
+	 *
+	 * @param bufferSize
+	 *            The capacity of each buffer.
+	 * @param maxFree
+	 *            The maximum number of unused buffers kept.
+	 */
+	BufferPool(int bufferSize, int maxFree) {
+		this.bufferSize = bufferSize;
+		free = new ArrayBlockingQueue<ByteBuffer>(maxFree);
+	}
+
+	/**
+	 * Returns the capacity of the pooled buffers.
+	 *
+	 * @return The capacity in bytes.
+	 */
+	int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Take a cleared buffer from the pool, or a new one if the pool is empty.
+	 *
+	 * @return A buffer of the pool's size.
+	 */
+	ByteBuffer take() {
+		ByteBuffer buffer = free.poll();
+		return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	/**
+	 * Return a buffer to the pool. Buffers which did not come from a pool of
+	 * this size are ignored.
+	 *
+	 * @param buffer
+	 *            The buffer, which must not be used afterwards.
+	 */
+	void release(ByteBuffer buffer) {
+		if (buffer.isDirect() && buffer.capacity() == bufferSize) {
+			buffer.clear();
+			free.offer(buffer);
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package eliza.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import eliza.Engine;
+import eliza.ReplyScheduler;
+import eliza.Session;
+import eliza.methods.ThreadMethods;
+import eliza.transcript.TranscriptLogger;
+
+/**
+ * ChatServer serves Eliza conversations over HTTP, using the JDK's built-in
+ * HTTP server with one virtual thread per request (a cached thread pool before
+ * Java 21). One Engine backs all conversations.
+ * 
+ * <pre>
+ * POST   /sessions       open a session, returns the welcome message;
+ *                        ?seed=n makes the session's replies reproducible,
+ *                        ?tenant=name opens it with a tenant's engine
+ * POST   /sessions/{id}  send the request body as input, returns the reply
+ * DELETE /sessions/{id}  close a session
+ * </pre>
+ * 
+ * Replies are JSON objects with the fields "session", "output" and "alive".
+ * 
+ * If a ReplyScheduler is given, replies to input are sent once their typing
+ * delay has passed. The request is left open meanwhile, but no thread waits
+ * for it.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+public class ChatServer {
+	private static final String CONTEXT = "/sessions";
+	private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+	// Maximum length of an input in bytes.
+	private static final int MAX_INPUT_LENGTH = 64 * 1024;
+
+	private final SessionManager sessions;
+	// Whether the sessions were created by, and are shut down with, the server.
+	private final boolean ownsSessions;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	// Delays replies to input, or null to send them straight away.
+	private final ReplyScheduler replies;
+	// Where exchanges are logged, or null.
+	private volatile TranscriptLogger transcript;
+
+	/**
+	 * Creates a new ChatServer. The server is not started.
+	 * 
+	 * @param engine
+	 *            The engine backing all sessions.
+	 * @param port
+	 *            The port to listen on.
+	 * @param idleTimeoutMillis
+	 *            How long a session may be unused before it is evicted.
+	 * @throws IOException
+	 *             If the port cannot be bound.
+	 */
+	public ChatServer(Engine engine, int port, long idleTimeoutMillis)
+			throws IOException {
+		this(engine, port, idleTimeoutMillis, null);
+	}
+
+	/**
+	 * Creates a new ChatServer whose replies are delayed. The server is not
+	 * started.
+	 * 
+	 * @param engine
+	 *            The engine backing all sessions.
+	 * @param port
+	 *            The port to listen on.
+	 * @param idleTimeoutMillis
+	 *            How long a session may be unused before it is evicted.
+	 * @param replies
+	 *            The scheduler delaying replies, or null to send them straight
+	 *            away.
+	 * @throws IOException
+	 *             If the port cannot be bound.
+	 */
+	public ChatServer(Engine engine, int port, long idleTimeoutMillis,
+			ReplyScheduler replies) throws IOException {
+		this(new SessionManager(engine, idleTimeoutMillis), true, port,
+				replies);
+	}
+
+	/**
+	 * Creates a new ChatServer for the sessions of a SessionManager. The
+	 * server is not started. The SessionManager may be shared with other
+	 * servers, so stopping the server does not shut it down.
+	 * 
+	 * @param sessions
+	 *            The sessions to serve.
+	 * @param port
+	 *            The port to listen on.
+	 * @param replies
+	 *            The scheduler delaying replies, or null to send them straight
+	 *            away.
+	 * @throws IOException
+	 *             If the port cannot be bound.
+	 */
+	public ChatServer(SessionManager sessions, int port,
+			ReplyScheduler replies) throws IOException {
+		this(sessions, false, port, replies);
+	}
+
+	private ChatServer(SessionManager sessions, boolean ownsSessions,
+			int port, ReplyScheduler replies) throws IOException {
+		this.replies = replies;
+		this.sessions = sessions;
+		this.ownsSessions = ownsSessions;
+		executor = ThreadMethods.newThreadPerTaskExecutor();
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.setExecutor(executor);
+		server.createContext(CONTEXT, this::handle);
+	}
+
+	/**
+	 * Start accepting requests.
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stop the server, waiting at most a given number of seconds for requests
+	 * being handled to complete. The SessionManager is shut down only if the
+	 * server created it.
+	 * 
+	 * @param delay
+	 *            The maximum time to wait in seconds.
+	 */
+	public void stop(int delay) {
+		server.stop(delay);
+		executor.shutdown();
+		if (ownsSessions)
+			sessions.shutdown();
+	}
+
+	public SessionManager getSessions() {
+		return sessions;
+	}
+
+	/**
+	 * Log every exchange to a transcript.
+	 * 
+	 * @param transcript
+	 *            The transcript logger, or null to stop logging.
+	 */
+	public void setTranscript(TranscriptLogger transcript) {
+		this.transcript = transcript;
+	}
+
+	/**
+	 * Dispatch a request to the matching endpoint.
+	 * 
+	 * @param exchange
+	 *            The request and response.
+	 * @throws IOException
+	 *             If the client connection fails.
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+		// whether the response is sent later by the reply scheduler
+		boolean pending = false;
+		try {
+			String path = exchange.getRequestURI().getPath();
+			String method = exchange.getRequestMethod();
+			String id = path.length() > CONTEXT.length() + 1 ? path
+					.substring(CONTEXT.length() + 1) : null;
+			if (id == null && method.equals("POST")) {
+				open(exchange);
+			} else if (id == null || id.indexOf('/') >= 0) {
+				send(exchange, 404, null);
+			} else if (method.equals("POST")) {
+				pending = respond(exchange, id);
+			} else if (method.equals("DELETE")) {
+				send(exchange, sessions.close(id) ? 204 : 404, null);
+			} else {
+				send(exchange, 405, null);
+			}
+		} finally {
+			if (!pending)
+				exchange.close();
+		}
+	}
+
+	private void open(HttpExchange exchange) throws IOException {
+		String seed = queryParameter(exchange, "seed");
+		String tenant = queryParameter(exchange, "tenant");
+		String id;
+		try {
+			id = sessions.open(tenant, seed == null ? null : Long
+					.parseLong(seed));
+		} catch (NumberFormatException e) {
+			send(exchange, 400, null);
+			return;
+		}
+		if (id == null) {
+			send(exchange, 404, null);
+			return;
+		}
+		Session session = sessions.get(id);
+		String welcome = sessions.getSessionEngine(id).getWelcomeMessage(
+				session);
+		sessions.save(id);
+		send(exchange, 201, toJson(id, welcome, true));
+	}
+
+	/**
+	 * Reply to an input.
+	 * 
+	 * @return Whether the reply is delayed, in which case it is sent and the
+	 *         exchange closed once the delay has passed.
+	 */
+	private boolean respond(final HttpExchange exchange, String id)
+			throws IOException {
+		long received = System.currentTimeMillis();
+		Session session = sessions.get(id);
+		Engine engine = sessions.getSessionEngine(id);
+		if (session == null || engine == null) {
+			send(exchange, 404, null);
+			return false;
+		}
+		String input = readBody(exchange.getRequestBody());
+		if (input == null) {
+			send(exchange, 413, null);
+			return false;
+		}
+		String output;
+		boolean alive;
+		// a session holds the state of one conversation at a time
+		synchronized (session) {
+			if (!session.isAlive()) {
+				send(exchange, 410, null);
+				return false;
+			}
+			output = engine.generateResponse(session, input);
+			alive = session.isAlive();
+			TranscriptLogger transcript = this.transcript;
+			if (transcript != null)
+				transcript.log(id, input, output, session.getKeyword(),
+						received, System.currentTimeMillis());
+			if (alive)
+				sessions.save(id);
+		}
+		if (!alive)
+			sessions.close(id);
+		final String json = toJson(id, output, alive);
+		if (replies == null) {
+			send(exchange, 200, json);
+			return false;
+		}
+		// the timer thread only queues the response, a request thread sends it
+		replies.schedule(json, received).thenAcceptAsync(reply -> {
+			try {
+				send(exchange, 200, reply);
+			} catch (IOException e) {
+				// the client has gone away
+			} finally {
+				exchange.close();
+			}
+		}, executor);
+		return true;
+	}
+
+	/**
+	 * Returns the value of a query parameter.
+	 * 
+	 * @return The value, or null if the parameter is not given.
+	 */
+	private static String queryParameter(HttpExchange exchange, String name) {
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null)
+			return null;
+		for (String pair : query.split("&")) {
+			if (pair.startsWith(name + "="))
+				return URLDecoder.decode(pair.substring(name.length() + 1),
+						StandardCharsets.UTF_8);
+		}
+		return null;
+	}
+
+	/**
+	 * Read the request body as UTF-8 text.
+	 * 
+	 * @return The body, or null if it is longer than MAX_INPUT_LENGTH.
+	 */
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			body.write(buffer, 0, n);
+			if (body.size() > MAX_INPUT_LENGTH)
+				return null;
+		}
+		return body.toString(StandardCharsets.UTF_8);
+	}
+
+	private static void send(HttpExchange exchange, int status, String json)
+			throws IOException {
+		if (json == null) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", JSON_CONTENT_TYPE);
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+	}
+
+	private static String toJson(String id, String output, boolean alive) {
+		StringBuilder json = new StringBuilder(output.length() + 80);
+		json.append("{\"session\":");
+		appendString(json, id);
+		json.append(",\"output\":");
+		appendString(json, output);
+		json.append(",\"alive\":").append(alive).append('}');
+		return json.toString();
+	}
+
+	/**
+	 * Append a string as a quoted and escaped JSON string.
+	 */
+	private static void appendString(StringBuilder json, String str) {
+		json.append('"');
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		json.append('"');
+	}
+}
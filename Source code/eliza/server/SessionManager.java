@@ -0,0 +1,357 @@
+package eliza.server;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import eliza.Engine;
+import eliza.EngineRegistry;
+import eliza.Session;
+
+/**
+ * SessionManager keeps track of the open conversations of a server. All
+ * sessions share one Engine. Sessions which have not been used for longer than
+ * the idle timeout are evicted by a background thread.
+ * 
+ * If a SessionStore is given, every session is saved to it after each reply,
+ * and a session which is not in memory, for example after a restart, is
+ * restored from it when it is next used. The store knows the tenant of a
+ * session by name, so a session whose tenant is no longer registered is
+ * dropped rather than restored for another tenant. Records of idle sessions
+ * are expired a batch at a time, every EXPIRE_PERIOD milliseconds.
+ * 
+ * If an EngineRegistry is given, a session may be opened for one of its
+ * tenants and is then backed by that tenant's engine.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+public class SessionManager {
+	// How often records of idle sessions are expired, in milliseconds.
+	private static final long EXPIRE_PERIOD = 1000;
+	// The number of records looked at each time.
+	private static final int EXPIRE_BATCH = 4096;
+
+	// The engine of sessions opened without a tenant.
+	private final Engine engine;
+	// The engines of the tenants, or null.
+	private final EngineRegistry registry;
+	private final long idleTimeoutMillis;
+	private final ConcurrentHashMap<String, Entry> sessions = new ConcurrentHashMap<String, Entry>();
+	private final ScheduledExecutorService evictor;
+	// Where sessions are saved, or null to keep them in memory only.
+	private final SessionStore store;
+
+	/**
+	 * Creates a new SessionManager.
+	 * 
+	 * @param engine
+	 *            The engine backing all sessions.
+	 * @param idleTimeoutMillis
+	 *            How long a session may be unused before it is evicted.
+	 */
+	public SessionManager(Engine engine, long idleTimeoutMillis) {
+		this(engine, idleTimeoutMillis, null);
+	}
+
+	/**
+	 * Creates a new SessionManager saving its sessions to a store.
+	 * 
+	 * @param engine
+	 *            The engine backing all sessions.
+	 * @param idleTimeoutMillis
+	 *            How long a session may be unused before it is evicted.
+	 * @param store
+	 *            Where sessions are saved, or null to keep them in memory
+	 *            only.
+	 */
+	public SessionManager(Engine engine, long idleTimeoutMillis,
+			SessionStore store) {
+		this(engine, null, idleTimeoutMillis, store);
+	}
+
+	/**
+	 * Creates a new SessionManager for the tenants of a registry.
+	 * 
+	 * @param engine
+	 *            The engine backing sessions opened without a tenant.
+	 * @param registry
+	 *            The engines of the tenants, or null.
+	 * @param idleTimeoutMillis
+	 *            How long a session may be unused before it is evicted.
+	 * @param store
+	 *            Where sessions are saved, or null to keep them in memory
+	 *            only.
+	 */
+	public SessionManager(Engine engine, EngineRegistry registry,
+			long idleTimeoutMillis, SessionStore store) {
+		this.engine = engine;
+		this.registry = registry;
+		this.store = store;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "eliza-session-evictor");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1000, idleTimeoutMillis / 4);
+		evictor.scheduleWithFixedDelay(this::evictIdle, period, period,
+				TimeUnit.MILLISECONDS);
+		if (store != null)
+			evictor.scheduleWithFixedDelay(this::expireStored, EXPIRE_PERIOD,
+					EXPIRE_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Returns the engine of a tenant.
+	 * 
+	 * @param tenant
+	 *            The name of the tenant, or null for sessions without one.
+	 * @return The engine, or null if there is no such tenant.
+	 */
+	public Engine getTenantEngine(String tenant) {
+		if (tenant == null)
+			return engine;
+		return registry == null ? null : registry.get(tenant);
+	}
+
+	/**
+	 * Returns the engine backing a session.
+	 * 
+	 * @param id
+	 *            The id of the session.
+	 * @return The engine, or null if there is no open session with that id.
+	 */
+	public Engine getSessionEngine(String id) {
+		Entry entry = sessions.get(id);
+		if (entry == null)
+			entry = restore(id);
+		return entry == null ? null : entry.engine;
+	}
+
+	/**
+	 * Open a new session.
+	 * 
+	 * @return The id of the new session.
+	 */
+	public String open() {
+		return add(engine.newSession(), engine, null);
+	}
+
+	/**
+	 * Open a new session for a tenant.
+	 * 
+	 * @param tenant
+	 *            The name of the tenant, or null to open a session without one.
+	 * @param seed
+	 *            The seed of the session's random choices, or null for an
+	 *            unseeded session.
+	 * @return The id of the new session, or null if there is no such tenant.
+	 */
+	public String open(String tenant, Long seed) {
+		Engine engine = getTenantEngine(tenant);
+		if (engine == null)
+			return null;
+		Session session = seed == null ? engine.newSession() : engine
+				.newSession(seed);
+		return add(session, engine, tenant);
+	}
+
+	/**
+	 * Open a new session whose random choices are drawn from a seeded
+	 * generator, so that the conversation can be reproduced.
+	 * 
+	 * @param seed
+	 *            The seed.
+	 * @return The id of the new session.
+	 */
+	public String open(long seed) {
+		return add(engine.newSession(seed), engine, null);
+	}
+
+	private String add(Session session, Engine engine, String tenant) {
+		String id = UUID.randomUUID().toString();
+		sessions.put(id, new Entry(session, engine, tenant));
+		return id;
+	}
+
+	/**
+	 * Look up an open session and mark it as used.
+	 * 
+	 * @param id
+	 *            The id of the session.
+	 * @return The session, or null if there is no open session with that id.
+	 */
+	public Session get(String id) {
+		Entry entry = sessions.get(id);
+		if (entry == null) {
+			entry = restore(id);
+			if (entry == null)
+				return null;
+		}
+		entry.lastAccess = System.currentTimeMillis();
+		return entry.session;
+	}
+
+	/**
+	 * Restore a session from the store.
+	 * 
+	 * @param id
+	 *            The id of the session.
+	 * @return The restored session, or null if it is not stored or has been
+	 *         idle for too long.
+	 */
+	private Entry restore(String id) {
+		UUID uuid = parse(id);
+		if (store == null || uuid == null)
+			return null;
+		int slot = store.find(uuid);
+		if (slot < 0)
+			return null;
+		int tenantId = store.getTenant(slot);
+		String tenant = store.getTenantName(tenantId);
+		Engine engine = tenantId == 0 ? this.engine : tenant == null ? null
+				: getTenantEngine(tenant);
+		if (engine == null
+				|| store.getLastAccess(slot) < System.currentTimeMillis()
+						- idleTimeoutMillis) {
+			store.remove(slot);
+			return null;
+		}
+		Session session = engine.newSession();
+		store.read(slot, session);
+		Entry entry = new Entry(session, engine, tenant);
+		entry.slot = slot;
+		Entry existing = sessions.putIfAbsent(id, entry);
+		return existing != null ? existing : entry;
+	}
+
+	/**
+	 * Save a session to the store, if there is one. The session must not be
+	 * used by another thread meanwhile.
+	 * 
+	 * @param id
+	 *            The id of the session.
+	 */
+	public void save(String id) {
+		if (store == null)
+			return;
+		Entry entry = sessions.get(id);
+		if (entry == null)
+			return;
+		UUID uuid = UUID.fromString(id);
+		try {
+			// the record may have expired since the session was restored
+			if (entry.slot < 0
+					|| !store.write(entry.slot, uuid, entry.session)) {
+				entry.slot = store.insert(uuid, store
+						.getTenantId(entry.tenant));
+				store.write(entry.slot, uuid, entry.session);
+			}
+		} catch (IOException e) {
+			// the store is full: the conversation goes on, but cannot be
+			// resumed after a restart
+		}
+	}
+
+	/**
+	 * Close a session.
+	 * 
+	 * @param id
+	 *            The id of the session.
+	 * @return Whether there was an open session with that id.
+	 */
+	public boolean close(String id) {
+		Entry entry = sessions.remove(id);
+		if (store == null)
+			return entry != null;
+		int slot;
+		if (entry != null) {
+			slot = entry.slot;
+		} else {
+			UUID uuid = parse(id);
+			slot = uuid == null ? -1 : store.find(uuid);
+		}
+		if (slot >= 0)
+			store.remove(slot);
+		return entry != null || slot >= 0;
+	}
+
+	/**
+	 * Returns the number of open sessions.
+	 * 
+	 * @return The number of open sessions.
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * Remove all sessions which have been idle for longer than the timeout.
+	 */
+	private void evictIdle() {
+		long oldest = System.currentTimeMillis() - idleTimeoutMillis;
+		Iterator<Entry> it = sessions.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().lastAccess < oldest)
+				it.remove();
+		}
+	}
+
+	/**
+	 * Remove the records of sessions which have been idle for longer than the
+	 * timeout from the next batch of records of the store.
+	 */
+	private void expireStored() {
+		store.removeOlderThan(System.currentTimeMillis() - idleTimeoutMillis,
+				EXPIRE_BATCH);
+	}
+
+	/**
+	 * Parse a session id.
+	 * 
+	 * @return The id as a UUID, or null if it is not a valid id.
+	 */
+	private static UUID parse(String id) {
+		try {
+			return UUID.fromString(id);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Stop the eviction thread.
+	 */
+	public void shutdown() {
+		evictor.shutdownNow();
+	}
+
+	/**
+	 * An open session, its engine and the time it was last used.
+	 */
+	private static class Entry {
+		private final Session session;
+		private final Engine engine;
+		// The name of the session's tenant, or null.
+		private final String tenant;
+		private volatile long lastAccess = System.currentTimeMillis();
+		// The index of the session's record in the store, or -1 if it has
+		// not been saved yet.
+		private volatile int slot = -1;
+
+		private Entry(Session session, Engine engine, String tenant) {
+			this.session = session;
+			this.engine = engine;
+			this.tenant = tenant;
+		}
+	}
+}
@@ -0,0 +1,555 @@
+package eliza.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eliza.Session;
+
+/**
+ * SessionStore keeps the state of open conversations in a memory-mapped file,
+ * so that they can be resumed after the server is restarted. The file is a
+ * hash table of fixed-size records, one per session, holding the session's id,
+ * its tenant, when it was last used and the shuffle cursors of its
+ * randomizers. Records are found by probing from the hash of the id, so only
+ * the sessions in use are ever read into the heap. The header records how far
+ * from its hash any record was ever put, so looking up an id which is not
+ * stored stops there rather than probing past every removed record.
+ *
+ * A record names its tenant by a number the store gives it, see
+ * getTenantId. The names of the tenants are kept in a table after the header,
+ * so a session is restored for the same tenant whatever order the tenants are
+ * registered in after a restart.
+ *
+ * Records of idle sessions are removed a few at a time, see removeOlderThan,
+ * so expiring them does not read the whole file at once.
+ *
+ * Writes go to the mapped pages and are forced to disk periodically by a
+ * background thread rather than on every write, so a crash may lose the last
+ * moments of a conversation. A record torn by a crash only holds shuffle
+ * cursors, which at worst make a reply repeat.
+ *
+ * Only the cursors are stored. A seeded session draws its random choices from
+ * ThreadLocalRandom once it has been restored. The size of a record is fixed
+ * when the file is created, so it should leave room for reassembly lists added
+ * to the script later. A session with more cursors than a record holds is
+ * stored without them, which is reported once and counted.
+ *
+ * Different records may be read and written by different threads at once. A
+ * record must only be written by one thread at a time.
+ *
+ * @author Ole & Peter
+ *
+ */
+public class SessionStore {
+	// Identifies a session store file.
+	private static final int MAGIC = 0x454c5a53;
+	private static final int VERSION = 3;
+	private static final int HEADER_SIZE = 32;
+	// The size of the table of tenant names following the header.
+	private static final int TENANTS_SIZE = 64 * 1024;
+	// The maximum number of bytes mapped by one buffer.
+	private static final int CHUNK_SIZE = 1 << 30;
+	// States of a record.
+	private static final int EMPTY = 0;
+	private static final int USED = 1;
+	private static final int DELETED = 2;
+	// Offset of the probe limit in the header.
+	private static final int HEADER_PROBE_LIMIT = 16;
+	// Offset of the number of tenant names in the header.
+	private static final int HEADER_TENANT_COUNT = 20;
+	// The number of locks records are guarded by.
+	private static final int LOCK_COUNT = 64;
+	// Offsets of the fields of a record.
+	private static final int STATE = 0;
+	private static final int CURSOR_COUNT = 4;
+	private static final int ID_HIGH = 8;
+	private static final int ID_LOW = 16;
+	private static final int LAST_ACCESS = 24;
+	private static final int TENANT = 32;
+	private static final int CURSORS = 40;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer header;
+	// The names of the tenants, each as a two byte length and UTF-8.
+	private final MappedByteBuffer tenants;
+	// The names of the tenants by their id less one, and their ids.
+	private final ArrayList<String> tenantNames = new ArrayList<String>();
+	private final HashMap<String, Integer> tenantIds = new HashMap<String, Integer>();
+	// The end of the last name in the table.
+	private int tenantsEnd;
+	private final MappedByteBuffer[] chunks;
+	private final int capacity;
+	// The most probes needed to find any record inserted so far.
+	private volatile int probeLimit;
+	private final int maxCursors;
+	private final int recordSize;
+	private final int recordsPerChunk;
+	private final ScheduledExecutorService flusher;
+	// The number of writes whose cursors did not fit in a record.
+	private final AtomicLong unsaved = new AtomicLong();
+	/*
+	 * Guard the state and id of the records, locks[slot % LOCK_COUNT] that of
+	 * a slot, so that a write never goes to a record which has just been
+	 * given to another session.
+	 */
+	private final Object[] locks = new Object[LOCK_COUNT];
+	// The slot the next call of removeOlderThan starts at.
+	private int expireNext;
+
+	/**
+	 * Opens a session store, creating the file if it does not exist.
+	 *
+	 * @param filename
+	 *            The path of the store file.
+	 * @param capacity
+	 *            The number of sessions a new file has room for. An existing
+	 *            file keeps its capacity.
+	 * @param maxCursors
+	 *            The number of cursors a record of a new file has room for,
+	 *            normally the number of randomizers of the script, or of all
+	 *            scripts of an EngineRegistry. An existing file keeps the size
+	 *            of its records, and the cursors of sessions which do not fit
+	 *            are not stored.
+	 * @param flushMillis
+	 *            How often changes are forced to disk, in milliseconds.
+	 * @throws IOException
+	 *             If the file cannot be opened or is not a session store.
+	 */
+	public SessionStore(String filename, int capacity, int maxCursors,
+			long flushMillis) throws IOException {
+		Path path = Paths.get(filename);
+		channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer fields = ByteBuffer.allocate(HEADER_SIZE);
+			if (channel.size() == 0) {
+				fields.putInt(MAGIC).putInt(VERSION).putInt(capacity)
+						.putInt(maxCursors).putInt(1).flip();
+				channel.write(fields, 0);
+				probeLimit = 1;
+			} else {
+				channel.read(fields, 0);
+				fields.flip();
+				if (fields.remaining() < 20 || fields.getInt() != MAGIC
+						|| fields.getInt() != VERSION)
+					throw new IOException(filename + " is not a session store.");
+				capacity = fields.getInt();
+				// the records keep the layout they were written with
+				maxCursors = fields.getInt();
+				probeLimit = fields.getInt();
+			}
+			this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_SIZE);
+			tenants = channel.map(FileChannel.MapMode.READ_WRITE,
+					HEADER_SIZE, TENANTS_SIZE);
+			readTenants(filename);
+			this.capacity = capacity;
+			this.maxCursors = maxCursors;
+			recordSize = CURSORS + 8 * maxCursors;
+			recordsPerChunk = CHUNK_SIZE / recordSize;
+			chunks = new MappedByteBuffer[(capacity + recordsPerChunk - 1)
+					/ recordsPerChunk];
+			for (int i = 0; i < chunks.length; i++) {
+				int records = Math.min(recordsPerChunk, capacity - i
+						* recordsPerChunk);
+				// mapping past the end grows the file, leaving it sparse
+				chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+						HEADER_SIZE + TENANTS_SIZE + (long) i * recordsPerChunk
+								* recordSize,
+						(long) records * recordSize);
+			}
+			if (probeLimit <= 0 || probeLimit > capacity)
+				throw new IOException(filename + " is corrupt.");
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+		flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "eliza-session-store-flusher");
+			t.setDaemon(true);
+			return t;
+		});
+		flusher.scheduleWithFixedDelay(this::force, flushMillis, flushMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Read the table of tenant names.
+	 */
+	private void readTenants(String filename) throws IOException {
+		int count = header.getInt(HEADER_TENANT_COUNT);
+		if (count < 0)
+			throw new IOException(filename + " is corrupt.");
+		int position = 0;
+		for (int i = 0; i < count; i++) {
+			if (position + 2 > TENANTS_SIZE)
+				throw new IOException(filename + " is corrupt.");
+			int length = tenants.getShort(position) & 0xffff;
+			if (position + 2 + length > TENANTS_SIZE)
+				throw new IOException(filename + " is corrupt.");
+			byte[] bytes = new byte[length];
+			tenants.get(position + 2, bytes);
+			String name = new String(bytes, StandardCharsets.UTF_8);
+			tenantNames.add(name);
+			tenantIds.put(name, tenantNames.size());
+			position += 2 + length;
+		}
+		tenantsEnd = position;
+	}
+
+	/**
+	 * Returns the number a tenant is identified by in the records of the
+	 * store, adding the tenant to the table if it is not in it yet.
+	 *
+	 * @param tenant
+	 *            The name of the tenant, or null for sessions without one.
+	 * @return The number, 0 for sessions without a tenant.
+	 * @throws IOException
+	 *             If the table of tenant names is full.
+	 */
+	public synchronized int getTenantId(String tenant) throws IOException {
+		if (tenant == null)
+			return 0;
+		Integer id = tenantIds.get(tenant);
+		if (id != null)
+			return id;
+		byte[] bytes = tenant.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > 0xffff
+				|| tenantsEnd + 2 + bytes.length > TENANTS_SIZE)
+			throw new IOException("The session store has no room for tenant "
+					+ tenant + ".");
+		tenants.putShort(tenantsEnd, (short) bytes.length);
+		tenants.put(tenantsEnd + 2, bytes);
+		tenantsEnd += 2 + bytes.length;
+		tenantNames.add(tenant);
+		// the name only counts once it is in place
+		header.putInt(HEADER_TENANT_COUNT, tenantNames.size());
+		tenantIds.put(tenant, tenantNames.size());
+		return tenantNames.size();
+	}
+
+	/**
+	 * Returns the name of a tenant.
+	 *
+	 * @param id
+	 *            The number identifying the tenant, as given by getTenantId.
+	 * @return The name, or null for sessions without a tenant or if no
+	 *         tenant has the number.
+	 */
+	public synchronized String getTenantName(int id) {
+		if (id < 1 || id > tenantNames.size())
+			return null;
+		return tenantNames.get(id - 1);
+	}
+
+	/**
+	 * Returns the number of sessions the store has room for.
+	 *
+	 * @return The capacity.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of cursors a record has room for.
+	 *
+	 * @return The number of cursors.
+	 */
+	public int getMaxCursors() {
+		return maxCursors;
+	}
+
+	/**
+	 * Returns how often the cursors of a session could not be saved because
+	 * the session had more than a record has room for, e.g. since a reload
+	 * added reassembly lists to the script.
+	 *
+	 * @return The number of writes which stored no cursors.
+	 */
+	public long getUnsavedCount() {
+		return unsaved.get();
+	}
+
+	/**
+	 * Returns the most records a lookup probes before giving up.
+	 *
+	 * @return The probe limit.
+	 */
+	int getProbeLimit() {
+		return probeLimit;
+	}
+
+	/**
+	 * Find the record of a session.
+	 *
+	 * @param id
+	 *            The id of the session.
+	 * @return The index of the record, or -1 if the session is not stored.
+	 */
+	public int find(UUID id) {
+		long high = id.getMostSignificantBits();
+		long low = id.getLeastSignificantBits();
+		int slot = home(high, low);
+		int limit = probeLimit;
+		for (int probes = 0; probes < limit; probes++) {
+			ByteBuffer chunk = chunk(slot);
+			int offset = offset(slot);
+			int state = chunk.getInt(offset + STATE);
+			if (state == EMPTY)
+				return -1;
+			if (state == USED && chunk.getLong(offset + ID_HIGH) == high
+					&& chunk.getLong(offset + ID_LOW) == low)
+				return slot;
+			slot = next(slot);
+		}
+		return -1;
+	}
+
+	/**
+	 * Add a record for a session which is not stored yet.
+	 *
+	 * @param id
+	 *            The id of the session.
+	 * @param tenant
+	 *            The number identifying the tenant of the session, as given
+	 *            by getTenantId.
+	 * @return The index of the new record.
+	 * @throws IOException
+	 *             If the store is full.
+	 */
+	public synchronized int insert(UUID id, int tenant) throws IOException {
+		long high = id.getMostSignificantBits();
+		long low = id.getLeastSignificantBits();
+		int slot = home(high, low);
+		for (int probes = 0; probes < capacity; probes++) {
+			ByteBuffer chunk = chunk(slot);
+			int offset = offset(slot);
+			synchronized (lock(slot)) {
+				if (chunk.getInt(offset + STATE) != USED) {
+					chunk.putInt(offset + CURSOR_COUNT, 0);
+					chunk.putLong(offset + ID_HIGH, high);
+					chunk.putLong(offset + ID_LOW, low);
+					chunk.putLong(offset + LAST_ACCESS, System
+							.currentTimeMillis());
+					chunk.putInt(offset + TENANT, tenant);
+					if (probes >= probeLimit) {
+						probeLimit = probes + 1;
+						header.putInt(HEADER_PROBE_LIMIT, probeLimit);
+					}
+					// the record only counts once its id is in place
+					chunk.putInt(offset + STATE, USED);
+					return slot;
+				}
+			}
+			slot = next(slot);
+		}
+		throw new IOException("The session store is full.");
+	}
+
+	/**
+	 * Store the cursors of a session. If the session has more cursors than a
+	 * record has room for, none are stored and it restarts its shuffles when
+	 * restored. This is counted, see getUnsavedCount.
+	 *
+	 * @param slot
+	 *            The index of the session's record.
+	 * @param id
+	 *            The id of the session.
+	 * @param session
+	 *            The session.
+	 * @return Whether the record still belonged to the session. If it has
+	 *         been removed meanwhile, e.g. as the session had been idle for
+	 *         too long, nothing is written and the session needs a new
+	 *         record.
+	 */
+	public boolean write(int slot, UUID id, Session session) {
+		ByteBuffer chunk = chunk(slot);
+		int offset = offset(slot);
+		int count = session.getCursorCount();
+		if (count > maxCursors) {
+			if (unsaved.getAndIncrement() == 0)
+				System.err.println("WARNING: sessions have " + count
+						+ " cursors but the session store only has room for "
+						+ maxCursors + ", so their cursors are not saved.");
+			count = 0;
+		}
+		synchronized (lock(slot)) {
+			if (chunk.getInt(offset + STATE) != USED
+					|| chunk.getLong(offset + ID_HIGH) != id
+							.getMostSignificantBits()
+					|| chunk.getLong(offset + ID_LOW) != id
+							.getLeastSignificantBits())
+				return false;
+			for (int i = 0; i < count; i++) {
+				chunk.putLong(offset + CURSORS + 8 * i, session.getCursor(i));
+			}
+			chunk.putInt(offset + CURSOR_COUNT, count);
+			chunk.putLong(offset + LAST_ACCESS, System.currentTimeMillis());
+			return true;
+		}
+	}
+
+	/**
+	 * Restore the cursors of a session. They are only restored if the session
+	 * has as many cursors as were stored, since otherwise they belong to
+	 * another script.
+	 *
+	 * @param slot
+	 *            The index of the session's record.
+	 * @param session
+	 *            The session to restore the cursors of.
+	 */
+	public void read(int slot, Session session) {
+		ByteBuffer chunk = chunk(slot);
+		int offset = offset(slot);
+		int count = chunk.getInt(offset + CURSOR_COUNT);
+		if (count != session.getCursorCount())
+			return;
+		for (int i = 0; i < count; i++) {
+			session.setCursor(i, chunk.getLong(offset + CURSORS + 8 * i));
+		}
+	}
+
+	/**
+	 * Returns when a session was last stored.
+	 *
+	 * @param slot
+	 *            The index of the session's record.
+	 * @return The time as given by System.currentTimeMillis().
+	 */
+	public long getLastAccess(int slot) {
+		return chunk(slot).getLong(offset(slot) + LAST_ACCESS);
+	}
+
+	/**
+	 * Returns the tenant of a session.
+	 *
+	 * @param slot
+	 *            The index of the session's record.
+	 * @return The number identifying the tenant, as given to insert, see
+	 *         getTenantName.
+	 */
+	public int getTenant(int slot) {
+		return chunk(slot).getInt(offset(slot) + TENANT);
+	}
+
+	/**
+	 * Remove the record of a session.
+	 *
+	 * @param slot
+	 *            The index of the session's record.
+	 */
+	public synchronized void remove(int slot) {
+		synchronized (lock(slot)) {
+			// the slot stays occupied so that probes for other ids go past it
+			chunk(slot).putInt(offset(slot) + STATE, DELETED);
+		}
+	}
+
+	/**
+	 * Remove the records of sessions last stored before a given time among
+	 * some of the records, starting where the previous call stopped. Calling
+	 * this regularly expires every record in turn while only reading a few
+	 * pages of the file each time.
+	 *
+	 * @param oldest
+	 *            The time as given by System.currentTimeMillis().
+	 * @param count
+	 *            The number of records to look at.
+	 * @return The number of records removed.
+	 */
+	public int removeOlderThan(long oldest, int count) {
+		int slot;
+		synchronized (this) {
+			slot = expireNext;
+			count = Math.min(count, capacity);
+			expireNext = (int) ((slot + (long) count) % capacity);
+		}
+		int removed = 0;
+		for (int i = 0; i < count; i++) {
+			if (isOlderThan(slot, oldest)) {
+				synchronized (this) {
+					synchronized (lock(slot)) {
+						// it may have been written meanwhile
+						if (isOlderThan(slot, oldest)) {
+							chunk(slot).putInt(offset(slot) + STATE, DELETED);
+							removed++;
+						}
+					}
+				}
+			}
+			slot = next(slot);
+		}
+		return removed;
+	}
+
+	private boolean isOlderThan(int slot, long oldest) {
+		ByteBuffer chunk = chunk(slot);
+		int offset = offset(slot);
+		return chunk.getInt(offset + STATE) == USED
+				&& chunk.getLong(offset + LAST_ACCESS) < oldest;
+	}
+
+	/**
+	 * Write all changes to disk.
+	 */
+	public void force() {
+		header.force();
+		tenants.force();
+		for (MappedByteBuffer chunk : chunks) {
+			chunk.force();
+		}
+	}
+
+	/**
+	 * Write all changes to disk and close the file. The store must not be used
+	 * afterwards.
+	 *
+	 * @throws IOException
+	 *             If the file cannot be closed.
+	 */
+	public void close() throws IOException {
+		flusher.shutdownNow();
+		force();
+		channel.close();
+	}
+
+	private int home(long high, long low) {
+		long hash = high ^ low;
+		hash ^= hash >>> 32;
+		return (int) ((hash & 0x7fffffffL) % capacity);
+	}
+
+	private Object lock(int slot) {
+		return locks[slot % LOCK_COUNT];
+	}
+
+	private int next(int slot) {
+		return slot + 1 == capacity ? 0 : slot + 1;
+	}
+
+	private ByteBuffer chunk(int slot) {
+		return chunks[slot / recordsPerChunk];
+	}
+
+	private int offset(int slot) {
+		return (slot % recordsPerChunk) * recordSize;
+	}
+}
@@ -0,0 +1,546 @@
+package eliza.server;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import eliza.Engine;
+import eliza.Session;
+import eliza.transcript.TranscriptLogger;
+
+/**
+ * SidecarServer serves Eliza conversations over a Unix domain socket, for
+ * services on the same host which want a reply without the cost of HTTP. One
+ * selector thread reads requests and writes responses for all connections,
+ * and a small pool of worker threads generates the replies.
+ *
+ * Every message is a frame: a four byte length, then that many bytes. All
+ * numbers are big-endian, and a session id is sent as the 16 bytes of its
+ * UUID.
+ *
+ * <pre>
+ * request:  type (1 byte), session id (16), text (UTF-8, the rest)
+ * response: status (1 byte), alive (1), session id (16), text (UTF-8, the rest)
+ *
+ * OPEN   open a session, the text naming its tenant or empty for none;
+ *        the session id is ignored, the response has the new id and the
+ *        welcome message
+ * INPUT  send the text as input to a session, the response has the reply
+ * CLOSE  close a session, the response has no text
+ * </pre>
+ *
+ * A client need not wait for a response before sending the next request.
+ * Requests on one connection are handled one at a time and answered in the
+ * order they were sent, so a client wanting several replies worked on at once
+ * opens several connections.
+ *
+ * @author Ole & Peter
+ *
+ */
+public class SidecarServer {
+	// Types of request.
+	public static final byte OPEN = 1;
+	public static final byte INPUT = 2;
+	public static final byte CLOSE = 3;
+	// Statuses of a response.
+	public static final byte OK = 0;
+	public static final byte NOT_FOUND = 1;
+	public static final byte GONE = 2;
+	public static final byte BAD_REQUEST = 3;
+	public static final byte ERROR = 4;
+	// The length of the fields before the text of a request.
+	public static final int REQUEST_HEADER_LENGTH = 17;
+	// The length of the fields before the text of a response.
+	public static final int RESPONSE_HEADER_LENGTH = 18;
+	// Maximum length of a request frame, not counting its length prefix.
+	public static final int MAX_REQUEST_LENGTH = REQUEST_HEADER_LENGTH + 64 * 1024;
+
+	// The size of pooled buffers. Larger frames get a buffer of their own.
+	private static final int BUFFER_SIZE = 8 * 1024;
+	// The maximum number of unused buffers kept in the pool.
+	private static final int MAX_FREE_BUFFERS = 256;
+	// The number of unanswered requests past which a connection is not read.
+	private static final int MAX_PENDING = 256;
+	// How long to stop accepting connections after accepting one failed, in
+	// milliseconds, e.g. as the process has run out of file descriptors.
+	private static final long ACCEPT_RETRY_MILLIS = 100;
+
+	private final SessionManager sessions;
+	private final Path path;
+	private final ServerSocketChannel server;
+	private final Selector selector;
+	private final SelectionKey acceptKey;
+	// When to accept connections again after a failure, or 0. Only used by
+	// the selector thread.
+	private long acceptPausedUntil;
+	private final ExecutorService workers;
+	private final Thread selectorThread;
+	private final BufferPool buffers = new BufferPool(BUFFER_SIZE,
+			MAX_FREE_BUFFERS);
+	// Connections with responses to write.
+	private final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<Connection>();
+	private volatile boolean running;
+	// Where exchanges are logged, or null.
+	private volatile TranscriptLogger transcript;
+
+	/**
+	 * Creates a new SidecarServer. The server is not started. An existing
+	 * file at the socket's path, e.g. left behind by a server which was
+	 * killed, is replaced. The SessionManager may be shared with other
+	 * servers, so stopping the server does not shut it down.
+	 *
+	 * @param sessions
+	 *            The sessions to serve.
+	 * @param socket
+	 *            The path of the socket.
+	 * @param workerCount
+	 *            The number of threads generating replies.
+	 * @throws IOException
+	 *             If the socket cannot be bound.
+	 */
+	public SidecarServer(SessionManager sessions, String socket,
+			int workerCount) throws IOException {
+		this.sessions = sessions;
+		path = Paths.get(socket);
+		Files.deleteIfExists(path);
+		server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			server.bind(UnixDomainSocketAddress.of(path));
+			server.configureBlocking(false);
+			selector = Selector.open();
+			acceptKey = server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+		workers = Executors.newFixedThreadPool(workerCount, r -> {
+			Thread t = new Thread(r, "eliza-sidecar-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		selectorThread = new Thread(this::run, "eliza-sidecar-selector");
+	}
+
+	/**
+	 * Start accepting connections.
+	 */
+	public void start() {
+		running = true;
+		selectorThread.start();
+	}
+
+	/**
+	 * Stop the server, closing all connections and removing the socket file.
+	 * Requests being handled are abandoned.
+	 *
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the selector
+	 *             thread to finish.
+	 */
+	public void stop() throws InterruptedException {
+		running = false;
+		selector.wakeup();
+		selectorThread.join();
+		workers.shutdown();
+	}
+
+	public SessionManager getSessions() {
+		return sessions;
+	}
+
+	/**
+	 * Log every exchange to a transcript.
+	 *
+	 * @param transcript
+	 *            The transcript logger, or null to stop logging.
+	 */
+	public void setTranscript(TranscriptLogger transcript) {
+		this.transcript = transcript;
+	}
+
+	/**
+	 * The loop of the selector thread. A failure to accept or serve one
+	 * connection is reported and the loop goes on; only a failure of the
+	 * selector itself ends it.
+	 */
+	private void run() {
+		try {
+			while (running) {
+				if (acceptPausedUntil == 0) {
+					selector.select();
+				} else {
+					long wait = acceptPausedUntil - System.currentTimeMillis();
+					if (wait > 0)
+						selector.select(wait);
+					if (System.currentTimeMillis() >= acceptPausedUntil) {
+						acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+						acceptPausedUntil = 0;
+					}
+				}
+				Connection connection;
+				while ((connection = ready.poll()) != null) {
+					connection.queued.set(false);
+					serve(connection, false);
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else
+						serve((Connection) key.attachment(), key.isReadable());
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("ERROR in sidecar server:\n" + e.getMessage());
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() != null)
+					close((Connection) key.attachment());
+			}
+			try {
+				selector.close();
+				server.close();
+				Files.deleteIfExists(path);
+			} catch (IOException e) {
+				// nothing left to do
+			}
+		}
+	}
+
+	/**
+	 * Accept a connection. If that fails, accepting is paused for a moment,
+	 * rather than failing again straight away for as long as the cause lasts.
+	 */
+	private void accept() {
+		SocketChannel channel;
+		try {
+			channel = server.accept();
+		} catch (IOException e) {
+			System.err.println("ERROR accepting a sidecar connection:\n"
+					+ e.getMessage());
+			acceptKey.interestOps(0);
+			acceptPausedUntil = System.currentTimeMillis()
+					+ ACCEPT_RETRY_MILLIS;
+			return;
+		}
+		if (channel == null)
+			return;
+		try {
+			channel.configureBlocking(false);
+			Connection connection = new Connection(channel);
+			connection.key = channel.register(selector, SelectionKey.OP_READ,
+					connection);
+		} catch (IOException e) {
+			try {
+				channel.close();
+			} catch (IOException e2) {
+				// the connection is gone either way
+			}
+		}
+	}
+
+	/**
+	 * Read from a connection if it has sent something, and write what it has
+	 * been answered. A connection which fails is closed.
+	 */
+	private void serve(Connection connection, boolean readable) {
+		try {
+			if (readable)
+				read(connection);
+			if (connection.key.isValid())
+				write(connection);
+		} catch (CancelledKeyException e) {
+			close(connection);
+		}
+	}
+
+	/**
+	 * Read what a connection has sent and queue the complete requests.
+	 */
+	private void read(Connection connection) {
+		if (connection.in == null)
+			connection.in = buffers.take();
+		ByteBuffer in = connection.in;
+		try {
+			if (connection.channel.read(in) < 0) {
+				close(connection);
+				return;
+			}
+		} catch (IOException e) {
+			close(connection);
+			return;
+		}
+		in.flip();
+		while (in.remaining() >= 4) {
+			int length = in.getInt(in.position());
+			if (length < REQUEST_HEADER_LENGTH || length > MAX_REQUEST_LENGTH) {
+				// not a client of this protocol
+				close(connection);
+				return;
+			}
+			if (in.remaining() < 4 + length)
+				break;
+			in.getInt();
+			byte type = in.get();
+			UUID id = new UUID(in.getLong(), in.getLong());
+			byte[] text = new byte[length - REQUEST_HEADER_LENGTH];
+			in.get(text);
+			connection.add(new Request(type, id, new String(text,
+					StandardCharsets.UTF_8)));
+		}
+		if (!in.hasRemaining()) {
+			buffers.release(in);
+			connection.in = null;
+			return;
+		}
+		in.compact();
+		if (in.position() >= 4) {
+			int needed = 4 + in.getInt(0);
+			if (needed > in.capacity()) {
+				// a frame larger than a pooled buffer
+				ByteBuffer large = ByteBuffer.allocate(needed);
+				in.flip();
+				large.put(in);
+				buffers.release(in);
+				connection.in = large;
+			}
+		}
+	}
+
+	/**
+	 * Write the responses of a connection, for as long as it takes them, and
+	 * update what the selector waits for.
+	 */
+	private void write(Connection connection) {
+		if (!connection.key.isValid())
+			return;
+		ByteBuffer response;
+		while ((response = connection.out.poll()) != null) {
+			connection.writing.add(response);
+		}
+		try {
+			while (!connection.writing.isEmpty()) {
+				ByteBuffer[] batch = connection.writing
+						.toArray(new ByteBuffer[connection.writing.size()]);
+				if (connection.channel.write(batch) == 0)
+					break;
+				while (!connection.writing.isEmpty()
+						&& !connection.writing.peek().hasRemaining()) {
+					buffers.release(connection.writing.poll());
+				}
+			}
+		} catch (IOException e) {
+			close(connection);
+			return;
+		}
+		int ops = 0;
+		if (connection.getPending() < MAX_PENDING)
+			ops |= SelectionKey.OP_READ;
+		if (!connection.writing.isEmpty())
+			ops |= SelectionKey.OP_WRITE;
+		connection.key.interestOps(ops);
+	}
+
+	private void close(Connection connection) {
+		connection.key.cancel();
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+			// the connection is gone either way
+		}
+		if (connection.in != null) {
+			buffers.release(connection.in);
+			connection.in = null;
+		}
+		while (!connection.writing.isEmpty()) {
+			buffers.release(connection.writing.poll());
+		}
+	}
+
+	/**
+	 * Handle a request on a worker thread.
+	 *
+	 * @return The response frame, ready to be written.
+	 */
+	private ByteBuffer handle(Request request) {
+		switch (request.type) {
+		case OPEN:
+			return open(request);
+		case INPUT:
+			return respond(request);
+		case CLOSE:
+			return response(sessions.close(request.id.toString()) ? OK
+					: NOT_FOUND, false, request.id, "");
+		default:
+			return response(BAD_REQUEST, false, request.id, "");
+		}
+	}
+
+	private ByteBuffer open(Request request) {
+		String id = sessions.open(request.text.isEmpty() ? null
+				: request.text, null);
+		if (id == null)
+			return response(NOT_FOUND, false, request.id, "");
+		Session session = sessions.get(id);
+		String welcome = sessions.getSessionEngine(id).getWelcomeMessage(
+				session);
+		sessions.save(id);
+		return response(OK, true, UUID.fromString(id), welcome);
+	}
+
+	private ByteBuffer respond(Request request) {
+		long received = System.currentTimeMillis();
+		String id = request.id.toString();
+		Session session = sessions.get(id);
+		Engine engine = sessions.getSessionEngine(id);
+		if (session == null || engine == null)
+			return response(NOT_FOUND, false, request.id, "");
+		String output;
+		boolean alive;
+		// a session holds the state of one conversation at a time
+		synchronized (session) {
+			if (!session.isAlive())
+				return response(GONE, false, request.id, "");
+			output = engine.generateResponse(session, request.text);
+			alive = session.isAlive();
+			TranscriptLogger transcript = this.transcript;
+			if (transcript != null)
+				transcript.log(id, request.text, output, session.getKeyword(),
+						received, System.currentTimeMillis());
+			if (alive)
+				sessions.save(id);
+		}
+		if (!alive)
+			sessions.close(id);
+		return response(OK, alive, request.id, output);
+	}
+
+	/**
+	 * Encode a response frame.
+	 */
+	private ByteBuffer response(byte status, boolean alive, UUID id,
+			String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		int length = RESPONSE_HEADER_LENGTH + bytes.length;
+		ByteBuffer frame = 4 + length <= BUFFER_SIZE ? buffers.take()
+				: ByteBuffer.allocate(4 + length);
+		frame.putInt(length).put(status).put((byte) (alive ? 1 : 0));
+		frame.putLong(id.getMostSignificantBits()).putLong(
+				id.getLeastSignificantBits());
+		frame.put(bytes).flip();
+		return frame;
+	}
+
+	/**
+	 * A request read from a connection.
+	 */
+	private static class Request {
+		private final byte type;
+		private final UUID id;
+		private final String text;
+
+		private Request(byte type, UUID id, String text) {
+			this.type = type;
+			this.id = id;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * The state of a client connection. The requests are handled by one
+	 * worker at a time, in order.
+	 */
+	private class Connection {
+		private final SocketChannel channel;
+		private SelectionKey key;
+		// Only used by the selector thread: the partly read input, or null,
+		// and the responses being written.
+		private ByteBuffer in;
+		private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<ByteBuffer>();
+		// Requests waiting for a worker, guarded by this.
+		private final ArrayDeque<Request> requests = new ArrayDeque<Request>();
+		// Whether a worker is handling the requests, guarded by this.
+		private boolean scheduled;
+		// Responses made by the workers.
+		private final ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+		// Whether the connection is in the ready queue.
+		private final AtomicBoolean queued = new AtomicBoolean();
+
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Queue a request, and stop reading from the connection if the client
+		 * is too far ahead.
+		 */
+		private void add(Request request) {
+			boolean schedule;
+			int pending;
+			synchronized (this) {
+				requests.add(request);
+				schedule = !scheduled;
+				scheduled = true;
+				pending = requests.size();
+			}
+			if (schedule)
+				workers.execute(this::handleRequests);
+			if (pending >= MAX_PENDING)
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+
+		private synchronized int getPending() {
+			return requests.size();
+		}
+
+		/**
+		 * Handle the queued requests, on a worker thread.
+		 */
+		private void handleRequests() {
+			while (true) {
+				Request request;
+				synchronized (this) {
+					request = requests.poll();
+					if (request == null) {
+						scheduled = false;
+						return;
+					}
+				}
+				ByteBuffer response;
+				try {
+					response = handle(request);
+				} catch (RuntimeException e) {
+					// answer anyway, so that later responses stay in order
+					response = response(ERROR, false, request.id, "");
+				}
+				out.add(response);
+				if (!queued.getAndSet(true)) {
+					ready.add(this);
+					selector.wakeup();
+				}
+			}
+		}
+	}
+}
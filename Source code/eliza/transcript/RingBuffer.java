@@ -0,0 +1,105 @@
+package eliza.transcript;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue without locks for many producers and a single consumer.
+ * Each slot has a sequence number telling whether it is free for the producer
+ * of a given turn or holds an element for the consumer, so producers only
+ * contend on a compare-and-set of the tail and never wait for each other.
+ *
+ * @author Ole & Peter
+ *
+ * @param <E>
+ *            The type of the elements.
+ */
+public class RingBuffer<E> {
+	private final int mask;
+	private final AtomicReferenceArray<E> elements;
+	// The turn each slot is ready for: equal to the tail when the slot is free
+	// for a producer, one more than the head when it holds an element.
+	private final AtomicLongArray sequences;
+	// The number of elements ever added.
+	private final AtomicLong tail = new AtomicLong();
+	// The number of elements ever removed, only used by the consumer.
+	private long head;
+
+	/**
+	 * Creates a new RingBuffer.
+	 *
+	 * @param capacity
+	 *            The maximum number of elements, rounded up to a power of two.
+	 */
+	public RingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		mask = size - 1;
+		elements = new AtomicReferenceArray<E>(size);
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Returns the number of elements the buffer can hold.
+	 *
+	 * @return The capacity.
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Add an element. May be called by any thread.
+	 *
+	 * @param element
+	 *            The element, not null.
+	 * @return false if the buffer is full.
+	 */
+	public boolean offer(E element) {
+		while (true) {
+			long turn = tail.get();
+			int slot = (int) turn & mask;
+			long sequence = sequences.get(slot);
+			if (sequence == turn) {
+				if (tail.compareAndSet(turn, turn + 1)) {
+					elements.lazySet(slot, element);
+					sequences.set(slot, turn + 1);
+					return true;
+				}
+			} else if (sequence < turn) {
+				// the consumer has not yet removed the element of the last lap
+				return false;
+			}
+			// another producer took this turn, try the next one
+		}
+	}
+
+	/**
+	 * Tells whether there is nothing to remove. Must only be called by the
+	 * consumer thread.
+	 *
+	 * @return true if the buffer is empty.
+	 */
+	public boolean isEmpty() {
+		return sequences.get((int) head & mask) != head + 1;
+	}
+
+	/**
+	 * Remove the oldest element. Must only be called by the consumer thread.
+	 *
+	 * @return The element, or null if the buffer is empty.
+	 */
+	public E poll() {
+		int slot = (int) head & mask;
+		if (sequences.get(slot) != head + 1)
+			return null;
+		E element = elements.get(slot);
+		elements.lazySet(slot, null);
+		sequences.set(slot, head + mask + 1);
+		head++;
+		return element;
+	}
+}
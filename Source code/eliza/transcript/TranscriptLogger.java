@@ -0,0 +1,390 @@
+package eliza.transcript;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * TranscriptLogger appends every exchange of a conversation to a log file
+ * without slowing down the reply. Callers only add a record to a RingBuffer; a
+ * single background thread takes the records in batches and writes each batch
+ * with one gathering write. The log has one JSON object per line with the
+ * fields "session", "received", "replied", "keyword", "input" and "output",
+ * the times being milliseconds since the epoch.
+ *
+ * When the log grows past its maximum size it is renamed with the time as a
+ * suffix and a new log is started. Renamed logs may be compressed with gzip by
+ * another background thread.
+ *
+ * If records come in faster than they can be written the buffer fills up, and
+ * the OverflowPolicy decides whether further records are dropped and counted,
+ * or the caller waits for room.
+ *
+ * @author Ole & Peter
+ *
+ */
+public class TranscriptLogger {
+	/**
+	 * What to do with a record when the buffer is full.
+	 */
+	public enum OverflowPolicy {
+		// Drop the record and count it.
+		DROP,
+		// Wait until there is room for the record.
+		BLOCK
+	}
+
+	// The maximum number of records written at once.
+	private static final int BATCH_SIZE = 256;
+	// How long a caller waits before trying again when the buffer is full.
+	private static final long FULL_WAIT_NANOS = TimeUnit.MICROSECONDS
+			.toNanos(100);
+	private static final String ROTATED_SUFFIX = ".yyyyMMdd-HHmmss-SSS";
+	private static final String COMPRESSED_SUFFIX = ".gz";
+
+	private final Path path;
+	private final long maxFileSize;
+	private final OverflowPolicy policy;
+	private final RingBuffer<Record> buffer;
+	// Compresses rotated logs, or null to leave them as they are.
+	private final ExecutorService compressor;
+	private final Thread writer;
+	private final LongAdder dropped = new LongAdder();
+	private volatile long written;
+	private volatile boolean closed;
+	// Whether the writer is about to park or parked, so that callers know to
+	// wake it up.
+	private volatile boolean idle;
+	// The last error writing the log, or null.
+	private volatile IOException error;
+
+	// Only used by the writer thread.
+	private FileChannel channel;
+	private long size;
+	// The size past which the log is rotated, more than maxFileSize after a
+	// failed rotation.
+	private long rotateAt;
+	private final ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+
+	/**
+	 * Creates a new TranscriptLogger and starts its writer thread. An existing
+	 * log is appended to.
+	 *
+	 * @param filename
+	 *            The path of the log.
+	 * @param maxFileSize
+	 *            The size in bytes past which the log is rotated.
+	 * @param compress
+	 *            Whether to compress rotated logs.
+	 * @param capacity
+	 *            The number of records the buffer holds.
+	 * @param policy
+	 *            What to do with a record when the buffer is full.
+	 * @throws IOException
+	 *             If the log cannot be opened.
+	 */
+	public TranscriptLogger(String filename, long maxFileSize,
+			boolean compress, int capacity, OverflowPolicy policy)
+			throws IOException {
+		this.path = Paths.get(filename);
+		this.maxFileSize = maxFileSize;
+		this.rotateAt = maxFileSize;
+		this.policy = policy;
+		buffer = new RingBuffer<Record>(capacity);
+		open();
+		compressor = compress ? Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "eliza-transcript-compressor");
+			t.setDaemon(true);
+			return t;
+		}) : null;
+		writer = new Thread(this::run, "eliza-transcript-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Log an exchange. May be called by any thread.
+	 *
+	 * @param session
+	 *            The id of the conversation.
+	 * @param input
+	 *            The user's input.
+	 * @param output
+	 *            Eliza's reply.
+	 * @param keyword
+	 *            The keyword the reply was made from, or null.
+	 * @param received
+	 *            When the input was received, as given by
+	 *            System.currentTimeMillis().
+	 * @param replied
+	 *            When the reply was made.
+	 * @return false if the record was dropped.
+	 */
+	public boolean log(String session, String input, String output,
+			String keyword, long received, long replied) {
+		Record record = new Record(session, input, output, keyword, received,
+				replied);
+		while (!closed) {
+			if (buffer.offer(record)) {
+				if (idle)
+					LockSupport.unpark(writer);
+				return true;
+			}
+			if (policy == OverflowPolicy.DROP)
+				break;
+			LockSupport.parkNanos(FULL_WAIT_NANOS);
+		}
+		dropped.increment();
+		return false;
+	}
+
+	/**
+	 * Returns the number of records dropped because the buffer was full, the
+	 * logger was closed or the log could not be written.
+	 *
+	 * @return The number of dropped records.
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Returns the number of records written to the log.
+	 *
+	 * @return The number of written records.
+	 */
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * Returns the last error writing the log.
+	 *
+	 * @return The error, or null if there has been none.
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	/**
+	 * Write all records logged so far and close the log. Records logged
+	 * afterwards are dropped.
+	 *
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the writer.
+	 */
+	public void close() throws InterruptedException {
+		closed = true;
+		LockSupport.unpark(writer);
+		writer.join();
+		if (compressor != null) {
+			compressor.shutdown();
+			compressor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * The loop of the writer thread.
+	 */
+	private void run() {
+		try {
+			while (true) {
+				// read the flag first, so that nothing logged before close()
+				// is left behind
+				boolean last = closed;
+				if (drain() == 0) {
+					if (last)
+						break;
+					// log() wakes the writer once it sees the flag, and the
+					// buffer is checked again after setting it so that a
+					// record added in between is not left waiting
+					idle = true;
+					if (buffer.isEmpty() && !closed)
+						LockSupport.park(this);
+					idle = false;
+				}
+			}
+		} finally {
+			try {
+				channel.force(false);
+				channel.close();
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+	}
+
+	/**
+	 * Write a batch of records.
+	 *
+	 * @return The number of records taken from the buffer.
+	 */
+	private int drain() {
+		int count = 0;
+		long bytes = 0;
+		Record record;
+		while (count < BATCH_SIZE && (record = buffer.poll()) != null) {
+			batch[count] = ByteBuffer.wrap(record.toJson().getBytes(
+					StandardCharsets.UTF_8));
+			bytes += batch[count].remaining();
+			count++;
+		}
+		if (count == 0)
+			return 0;
+		try {
+			if (size > 0 && size + bytes > rotateAt)
+				rotate();
+			long remaining = bytes;
+			while (remaining > 0) {
+				remaining -= channel.write(batch, 0, count);
+			}
+			size += bytes;
+			written += count;
+		} catch (IOException e) {
+			error = e;
+			dropped.add(count);
+		}
+		for (int i = 0; i < count; i++) {
+			batch[i] = null;
+		}
+		return count;
+	}
+
+	private void open() throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		size = channel.size();
+	}
+
+	/**
+	 * Rename the log and start a new one. If the log cannot be renamed the
+	 * error is kept, the old log is written to, and renaming is tried again
+	 * once it has grown by another maxFileSize.
+	 */
+	private void rotate() throws IOException {
+		channel.close();
+		String suffix = new SimpleDateFormat(ROTATED_SUFFIX).format(new Date());
+		Path rotated = Paths.get(path + suffix);
+		for (int i = 1; Files.exists(rotated)
+				|| Files.exists(Paths.get(rotated + COMPRESSED_SUFFIX)); i++) {
+			rotated = Paths.get(path + suffix + "-" + i);
+		}
+		try {
+			Files.move(path, rotated);
+		} catch (IOException e) {
+			error = e;
+			open();
+			rotateAt = size + maxFileSize;
+			return;
+		}
+		open();
+		rotateAt = maxFileSize;
+		if (compressor != null) {
+			final Path file = rotated;
+			compressor.execute(() -> compress(file));
+		}
+	}
+
+	/**
+	 * Compress a rotated log with gzip and delete the original. If it cannot
+	 * be compressed it is kept as it is.
+	 *
+	 * @param file
+	 *            The rotated log.
+	 */
+	private void compress(Path file) {
+		Path compressed = Paths.get(file + COMPRESSED_SUFFIX);
+		try {
+			try (InputStream in = Files.newInputStream(file);
+					OutputStream out = new GZIPOutputStream(Files
+							.newOutputStream(compressed))) {
+				in.transferTo(out);
+			}
+			Files.delete(file);
+		} catch (IOException e) {
+			error = e;
+			try {
+				Files.deleteIfExists(compressed);
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * One logged exchange.
+	 */
+	private static class Record {
+		private final String session;
+		private final String input;
+		private final String output;
+		private final String keyword;
+		private final long received;
+		private final long replied;
+
+		private Record(String session, String input, String output,
+				String keyword, long received, long replied) {
+			this.session = session;
+			this.input = input;
+			this.output = output;
+			this.keyword = keyword;
+			this.received = received;
+			this.replied = replied;
+		}
+
+		/**
+		 * Returns the record as a line of JSON.
+		 */
+		private String toJson() {
+			StringBuilder json = new StringBuilder(input.length()
+					+ output.length() + 160);
+			json.append("{\"session\":");
+			appendString(json, session);
+			json.append(",\"received\":").append(received);
+			json.append(",\"replied\":").append(replied);
+			json.append(",\"keyword\":");
+			appendString(json, keyword);
+			json.append(",\"input\":");
+			appendString(json, input);
+			json.append(",\"output\":");
+			appendString(json, output);
+			return json.append("}\n").toString();
+		}
+
+		/**
+		 * Append a string as a quoted and escaped JSON string, or null.
+		 */
+		private static void appendString(StringBuilder json, String str) {
+			if (str == null) {
+				json.append("null");
+				return;
+			}
+			json.append('"');
+			for (int i = 0; i < str.length(); i++) {
+				char c = str.charAt(i);
+				if (c == '"' || c == '\\') {
+					json.append('\\').append(c);
+				} else if (c < 0x20) {
+					json.append(String.format("\\u%04x", (int) c));
+				} else {
+					json.append(c);
+				}
+			}
+			json.append('"');
+		}
+	}
+}
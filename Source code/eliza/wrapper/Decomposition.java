@@ -1,6 +1,9 @@
 package eliza.wrapper;
 
-import java.util.ArrayList;
+import eliza.Session;
+import eliza.matching.GlobMatch;
+import eliza.matching.GlobPattern;
+import eliza.matching.ReassemblyTemplate;
 
 /**
  * Wrapper for the decomposition rules and associated reassembly rules.
@@ -11,6 +14,14 @@ import java.util.ArrayList;
 public class Decomposition {
 	private String rule;
 	private StringArrayRandomizer reassembly;
+	// The compiled rule, or null if the rule is not yet bound to a keyword.
+	private GlobPattern pattern;
+	// The reassembly rules split into text and references, in the order of
+	// the randomizer, or null until first used. Only set in the decomposition
+	// compiled copies are made from.
+	private volatile ReassemblyTemplate[] templates;
+	// The decomposition this one is a compiled copy of, or null.
+	private final Decomposition source;
 
 	/**
 	 * Creates a new Decomposition object.
@@ -18,24 +29,114 @@ public class Decomposition {
 	 * @param rule
 	 *            The decomposition rule.
 	 * @param reassembly
-	 *            An ArrayList of reassembly rules.
+	 *            The reassembly rules.
 	 */
-	public Decomposition(String rule, ArrayList<String> reassembly) {
+	public Decomposition(String rule, StringArrayRandomizer reassembly) {
+		this(rule, reassembly, null, null);
+	}
+
+	private Decomposition(String rule, StringArrayRandomizer reassembly,
+			GlobPattern pattern, Decomposition source) {
 		this.rule = rule;
-		this.reassembly = new StringArrayRandomizer(reassembly);
+		this.reassembly = reassembly;
+		this.pattern = pattern;
+		this.source = source;
+	}
+
+	/**
+	 * Compile the reassembly rules of a decomposition rule.
+	 */
+	private static ReassemblyTemplate[] compileTemplates(String rule,
+			StringArrayRandomizer reassembly) {
+		int groupCount = 0;
+		for (int i = 0; i < rule.length(); i++) {
+			if (rule.charAt(i) == '*')
+				groupCount++;
+		}
+		ReassemblyTemplate[] templates = new ReassemblyTemplate[reassembly
+				.size()];
+		for (int i = 0; i < templates.length; i++) {
+			templates[i] = new ReassemblyTemplate(reassembly.get(i), groupCount);
+		}
+		return templates;
 	}
 
 	public String getRule() {
 		return rule;
 	}
 
+	public StringArrayRandomizer getReassemblyRules() {
+		return reassembly;
+	}
+
 	/**
 	 * Get a random reassembly rule.
 	 * 
+	 * @param session
+	 *            The conversation whose shuffle state is used.
 	 * @return A reassembly rule.
 	 */
-	public String getReassembly() {
-		return reassembly.next();
+	public String getReassembly(Session session) {
+		return reassembly.next(session);
+	}
+
+	/**
+	 * Get a random reassembly rule, compiled.
+	 * 
+	 * @param session
+	 *            The conversation whose shuffle state is used.
+	 * @return A compiled reassembly rule.
+	 */
+	public ReassemblyTemplate getTemplate(Session session) {
+		// compiled copies share the templates of their source
+		Decomposition owner = source != null ? source : this;
+		ReassemblyTemplate[] templates = owner.templates;
+		if (templates == null) {
+			// compiling twice at once is harmless
+			templates = compileTemplates(rule, reassembly);
+			owner.templates = templates;
+		}
+		return templates[reassembly.nextIndex(session)];
+	}
+
+	/**
+	 * Creates a copy of this decomposition with its rule compiled. The copy
+	 * shares the reassembly rules, and their compiled templates, with this
+	 * decomposition.
+	 * 
+	 * @param pattern
+	 *            The rule compiled for a keyword, as done by
+	 *            Keyword.compileDecomposition.
+	 * @return A compiled decomposition.
+	 */
+	public Decomposition compile(GlobPattern pattern) {
+		return new Decomposition(rule, reassembly, pattern, source != null ? source
+				: this);
+	}
+
+	/**
+	 * Match a sentence against the compiled rule. Precondition: the rule has
+	 * been compiled.
+	 * 
+	 * @param sentence
+	 *            An input sentence.
+	 * @return The captured groups, or null if the sentence does not fit the
+	 *         rule.
+	 */
+	public GlobMatch match(String sentence) {
+		return pattern.match(sentence);
+	}
+
+	/**
+	 * Check whether a sentence fits the compiled rule, without capturing any
+	 * groups. Precondition: the rule has been compiled.
+	 * 
+	 * @param sentence
+	 *            An input sentence.
+	 * @return Whether the sentence fits the rule.
+	 */
+	public boolean fits(CharSequence sentence) {
+		return pattern.matches(sentence);
 	}
 
 }
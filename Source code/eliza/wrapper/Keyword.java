@@ -1,9 +1,10 @@
 package eliza.wrapper;
 
 import java.util.ArrayList;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import eliza.matching.GlobPattern;
+
 /**
  * The Keyword class is mostly used as a wrapper, containing information about
  * the keyword itself, its priority and decomposition rules. It is also used to
@@ -14,7 +15,14 @@ import java.util.regex.Pattern;
 public class Keyword implements Comparable<Keyword> {
 	private String keyword;
 	private int priority;
-	private ArrayList<Decomposition> decomp;
+	// The decomposition rules as given.
+	private ArrayList<Decomposition> rules;
+	// The decomposition rules compiled for this keyword, or null until first
+	// used.
+	private volatile ArrayList<Decomposition> decomp;
+	// Finds the keyword with word boundaries on both sides, or null until
+	// first used.
+	private volatile Pattern pattern;
 
 	/**
 	 * Constructor which initialized a new Keyword object with a given keyword,
@@ -23,15 +31,19 @@ public class Keyword implements Comparable<Keyword> {
 	 * @param keyword
 	 *            The term to look for in input strings.
 	 * @param priority
-	 *            Integer representation of the priority of this keyword (1 is
-	 *            max, 10 is min).
+	 *            Integer representation of the priority of this keyword. The
+	 *            lower the number, the higher the priority, so 1 is more
+	 *            important than 10. Any int may be used.
 	 * @param decomp
-	 *            An array of decomposition rules.
+	 *            An array of decomposition rules. They are compiled for this
+	 *            keyword when the keyword is first used, so the list may be
+	 *            shared between synonyms and a keyword which is never found
+	 *            costs little.
 	 */
 	public Keyword(String keyword, int priority, ArrayList<Decomposition> decomp) {
 		this.keyword = keyword;
 		this.priority = priority;
-		this.decomp = decomp;
+		this.rules = decomp;
 	}
 
 	public String getKeyword() {
@@ -42,7 +54,34 @@ public class Keyword implements Comparable<Keyword> {
 		return keyword;
 	}
 
+	/**
+	 * Returns the decomposition rules, compiled for this keyword.
+	 * 
+	 * @return The compiled decomposition rules.
+	 */
 	public ArrayList<Decomposition> getDecomp() {
+		ArrayList<Decomposition> decomp = this.decomp;
+		return decomp != null ? decomp : compile();
+	}
+
+	/**
+	 * Returns the decomposition rules as given, without compiling them.
+	 *
+	 * @return The decomposition rules, which may be shared with synonyms.
+	 */
+	public ArrayList<Decomposition> getRules() {
+		return rules;
+	}
+
+	private synchronized ArrayList<Decomposition> compile() {
+		if (decomp == null) {
+			ArrayList<Decomposition> compiled = new ArrayList<Decomposition>(
+					rules.size());
+			for (Decomposition d : rules) {
+				compiled.add(d.compile(compileDecomposition(d.getRule())));
+			}
+			decomp = compiled;
+		}
 		return decomp;
 	}
 
@@ -51,44 +90,62 @@ public class Keyword implements Comparable<Keyword> {
 	}
 
 	/**
-	 * Compare this keyword with another Keyword. Used for sorting purposes.
+	 * Compare this keyword with another Keyword by priority. Used for sorting
+	 * purposes. Any two priorities compare correctly, however far apart.
 	 * 
 	 * @see Comparable#compareTo(Keyword)
 	 */
 	public int compareTo(Keyword other) {
-		return this.priority - other.priority;
+		return Integer.compare(this.priority, other.priority);
 	}
 
+	/**
+	 * Check whether a sentence contains this keyword and fits one of its
+	 * decomposition rules.
+	 * 
+	 * @param sentence
+	 *            An input sentence.
+	 * @return Whether the keyword can be applied to the sentence.
+	 */
 	public boolean matches(String sentence) {
-		if (!Pattern.compile("\\b" + keyword + "\\b").matcher(sentence).find())
-			return false;
-		for (Decomposition d : getDecomp()) {
-			String rule = d.getRule();
-			rule = formatDecomposition(rule);
-			Matcher m = Pattern.compile(rule).matcher(sentence);
-			if (m.find())
+		Pattern pattern = this.pattern;
+		if (pattern == null) {
+			pattern = Pattern.compile("\\b" + keyword + "\\b");
+			this.pattern = pattern;
+		}
+		return pattern.matcher(sentence).find() && fits(sentence);
+	}
+
+	/**
+	 * Check whether a sentence fits one of the decomposition rules of this
+	 * keyword, without first checking that the sentence contains the keyword.
+	 * Used when the keyword has already been found by a KeywordIndex.
+	 * 
+	 * @param sentence
+	 *            An input sentence.
+	 * @return Whether the sentence fits one of the decomposition rules.
+	 */
+	public boolean fits(CharSequence sentence) {
+		ArrayList<Decomposition> decomp = getDecomp();
+		for (int i = 0; i < decomp.size(); i++) {
+			if (decomp.get(i).fits(sentence))
 				return true;
 		}
 		return false;
 	}
 
 	/**
-	 * Format the decomposition rule so that it can be used in a regular
-	 * expression.
+	 * Compile the decomposition rule for this keyword. The rule refers to the
+	 * whole input sentence.
 	 * 
 	 * @param rule
 	 *            A decomposition rule.
-	 * @return A regex-compatible decomposition rule.
+	 * @return The compiled decomposition rule.
 	 */
-	public String formatDecomposition(String rule) {
+	public GlobPattern compileDecomposition(String rule) {
 		rule = rule.toLowerCase();
 		// $ refers to synonyms
 		rule = rule.replace("$", getKeyword());
-		// star refers to any number of characters
-		rule = rule.replace("*", "(.*)");
-		// replace spaces with whitespace
-		rule = rule.replace(" ", "\\s");
-		// the rule refers to the whole input sentence
-		return "^" + rule + "$";
+		return new GlobPattern(rule);
 	}
 }
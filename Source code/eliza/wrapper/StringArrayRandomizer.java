@@ -1,43 +1,250 @@
 package eliza.wrapper;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collections;
 
-import eliza.methods.RandomMethods;
+import eliza.Session;
 
 /**
  * The ArrayRandomizer stores an array of strings and has a next() method which
  * selects a random string from the array, but does not return the same string
  * twice until all strings in the array have been returned.
  * 
+ * The strings are never modified, so a StringArrayRandomizer can be shared by
+ * many conversations. Each Session stores how far it has come in the current
+ * shuffle as a single long: a random seed selecting a permutation of the
+ * strings, and the number of strings already returned from it.
+ * 
+ * The strings may also be given as positions of UTF-8 text in a buffer, e.g. a
+ * script read by ScriptReader, in which case they are only decoded when the
+ * randomizer is first used. Until then they may be moved to another buffer,
+ * so that the randomizers of a script can share one holding only their
+ * strings.
+ * 
  * @author Ole & Peter
  * 
  */
 public class StringArrayRandomizer {
+	// Number of rounds in the Feistel network used to permute indexes.
+	private static final int ROUNDS = 4;
+
+	// The strings, or null until they have been decoded.
+	private volatile String[] values;
+	// The buffer and positions the strings are decoded from, or null once
+	// they have been.
+	private ByteBuffer text;
+	private int[] bounds;
+	private final int size;
+	// The index of this randomizer's state in a Session.
+	private int id;
+
+	/**
+	 * Creates a new StringArrayRandomizer.
+	 * 
+	 * @param arr
+	 *            The strings to choose from.
+	 * @param id
+	 *            The index of this randomizer's state in a Session. Each
+	 *            randomizer of a script needs a different id.
+	 */
+	public StringArrayRandomizer(ArrayList<String> arr, int id) {
+		values = arr.toArray(new String[arr.size()]);
+		size = values.length;
+		this.id = id;
+	}
+
+	/**
+	 * Creates a new StringArrayRandomizer whose strings are decoded from a
+	 * buffer when first used. The buffer must not change meanwhile.
+	 * 
+	 * @param text
+	 *            The buffer holding the strings as UTF-8.
+	 * @param bounds
+	 *            The start and end of each string in the buffer.
+	 * @param id
+	 *            The index of this randomizer's state in a Session. Each
+	 *            randomizer of a script needs a different id.
+	 */
+	public StringArrayRandomizer(ByteBuffer text, int[] bounds, int id) {
+		this.text = text;
+		this.bounds = bounds;
+		size = bounds.length / 2;
+		this.id = id;
+	}
 
-	private ArrayList<String> values;
-	private int max;
+	public int getId() {
+		return id;
+	}
 
-	public StringArrayRandomizer(ArrayList<String> arr) {
-		values = arr;
-		max = arr.size() - 1;
+	/**
+	 * Returns the number of strings to choose from.
+	 * 
+	 * @return The number of strings.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns one of the strings.
+	 * 
+	 * @param i
+	 *            An index in the range 0 to size() - 1.
+	 * @return The string at index i.
+	 */
+	public String get(int i) {
+		return values()[i];
 	}
 
 	/**
 	 * Selects a random string from the array, but does not return the same
 	 * string twice until all strings in the array have been returned.
-	 * Precondition: unused array contains at least one element.
 	 * 
+	 * @param session
+	 *            The conversation whose shuffle state is used.
 	 * @return A randomly selected string from the array.
+	 * @throws IllegalStateException
+	 *             If there are no strings to choose from.
+	 */
+	public String next(Session session) {
+		return values()[nextIndex(session)];
+	}
+
+	/**
+	 * Selects the index of a random string, as next does, for callers which
+	 * keep something derived from each string.
+	 * 
+	 * @param session
+	 *            The conversation whose shuffle state is used.
+	 * @return The index of a randomly selected string.
+	 * @throws IllegalStateException
+	 *             If there are no strings to choose from.
 	 */
-	public String next() {
-		int i = RandomMethods.random(max);
-		String result = values.get(i);
-		// swap elements in index i and max.
-		Collections.swap(values, i, max);
-		if (max == 0)
-			max = values.size();
-		max--;
+	public int nextIndex(Session session) {
+		if (size == 0)
+			throw new IllegalStateException("There are no strings to choose "
+					+ "from.");
+		long cursor = session.getRandomizerCursor(id);
+		int seed = (int) (cursor >>> 32);
+		int position = (int) cursor;
+		if (position == 0 || position >= size) {
+			// start a new shuffle
+			seed = session.getRandom().nextInt();
+			position = 0;
+		}
+		int result = permute(position, size, seed);
+		session.setRandomizerCursor(id, ((long) seed << 32) | (position + 1));
 		return result;
 	}
+
+	/**
+	 * Returns the number of bytes the strings take in the buffer they are
+	 * decoded from.
+	 * 
+	 * @return The number of bytes, or 0 if the strings have been decoded.
+	 */
+	public synchronized int getEncodedLength() {
+		if (text == null)
+			return 0;
+		int length = 0;
+		for (int i = 0; i < bounds.length; i += 2) {
+			length += bounds[i + 1] - bounds[i];
+		}
+		return length;
+	}
+
+	/**
+	 * Copy the strings to another buffer and decode them from there when
+	 * first used. Does nothing if they have been decoded.
+	 * 
+	 * @param target
+	 *            The buffer to copy the strings to, from its position on. Its
+	 *            position is moved past them, and the bytes it holds must not
+	 *            change afterwards.
+	 */
+	public synchronized void moveTo(ByteBuffer target) {
+		if (text == null)
+			return;
+		int[] moved = new int[bounds.length];
+		for (int i = 0; i < bounds.length; i += 2) {
+			moved[i] = target.position();
+			target.put(text.slice(bounds[i], bounds[i + 1] - bounds[i]));
+			moved[i + 1] = target.position();
+		}
+		text = target.asReadOnlyBuffer();
+		bounds = moved;
+	}
+
+	/**
+	 * Returns the strings, decoding them the first time.
+	 */
+	private String[] values() {
+		String[] values = this.values;
+		return values != null ? values : decode();
+	}
+
+	private synchronized String[] decode() {
+		if (values == null) {
+			String[] decoded = new String[size];
+			for (int i = 0; i < size; i++) {
+				byte[] bytes = new byte[bounds[2 * i + 1] - bounds[2 * i]];
+				text.get(bounds[2 * i], bytes);
+				decoded[i] = new String(bytes, StandardCharsets.UTF_8);
+			}
+			values = decoded;
+			// the buffer may be unmapped once nothing refers to it
+			text = null;
+			bounds = null;
+		}
+		return values;
+	}
+
+	/**
+	 * Maps an index to its position in a random permutation of the range 0 to
+	 * size - 1, without storing the permutation. A Feistel network gives a
+	 * permutation of a power of two range, and indexes falling outside the
+	 * range are permuted again until they fall inside it.
+	 * 
+	 * @param index
+	 *            An index in the range 0 to size - 1.
+	 * @param size
+	 *            The number of elements, at least 1.
+	 * @param seed
+	 *            Selects the permutation.
+	 * @return The permuted index, in the range 0 to size - 1.
+	 */
+	private static int permute(int index, int size, int seed) {
+		if (size < 1)
+			throw new IllegalArgumentException("Cannot permute " + size
+					+ " elements.");
+		int bits = 32 - Integer.numberOfLeadingZeros(size - 1);
+		// both halves of the Feistel network need the same number of bits
+		bits = Math.max(2, bits + (bits & 1));
+		int half = bits / 2;
+		int mask = (1 << half) - 1;
+		int x = index;
+		do {
+			int left = x >>> half;
+			int right = x & mask;
+			for (int round = 0; round < ROUNDS; round++) {
+				int next = left ^ (mix(right, seed, round) & mask);
+				left = right;
+				right = next;
+			}
+			x = (left << half) | right;
+		} while (x >= size);
+		return x;
+	}
+
+	/**
+	 * The round function of the Feistel network.
+	 */
+	private static int mix(int value, int seed, int round) {
+		int h = value * 0x9E3779B9 + seed + round * 0x85EBCA6B;
+		h ^= h >>> 16;
+		h *= 0x7FEB352D;
+		h ^= h >>> 15;
+		return h;
+	}
 }
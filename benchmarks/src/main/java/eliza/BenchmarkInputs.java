@@ -0,0 +1,105 @@
+package eliza;
+
+import java.io.IOException;
+
+import eliza.exception.FileFormatException;
+
+/**
+ * Scripts and input mixes shared by the benchmarks. The script is read from
+ * the path in the eliza.script system property, by default the script shipped
+ * in "Compiled Eliza".
+ * 
+ * @author Ole & Peter
+ * 
+ */
+public class BenchmarkInputs {
+	// The default script, relative to the project folder.
+	private static final String DEFAULT_SCRIPT = "Compiled Eliza/script.txt";
+
+	// Short single sentences which match a keyword.
+	private static final String[] SHORT = { "I believe you are a robot",
+			"My mother is angry with me", "I am sad because of you",
+			"I want to talk about my dad", "Hello Eliza", "I think so",
+			"Why?", "I have a problem" };
+
+	// Long pastes of several sentences.
+	private static final String[] LONG = {
+			"Well, I don't know where to start. My mother is always angry with me, "
+					+ "and my dad never listens. I believe they love me, but it "
+					+ "doesn't feel like it. I think I am sad because of them. "
+					+ "Sometimes I want to talk about it, but I can't.",
+			"I've been thinking about this for a long time; my problem is that I "
+					+ "cannot sleep. I used to be happy. Everyone hates me at work, "
+					+ "and my brother is not helping! I would like to discuss my "
+					+ "life with someone who understands." };
+
+	// Sentences without any keyword, which fall through to otherResponse.
+	private static final String[] NO_KEYWORD = { "blah blah",
+			"The weather was nice on Tuesday",
+			"It rained all over the garden and the cat got wet",
+			"Whatever, the train left at seven" };
+
+	// Inputs containing a quit command.
+	private static final String[] QUIT = { "bye", "Ok, goodbye then",
+			"I have to go. See ya", "Catch you later, Eliza" };
+
+	/**
+	 * Returns the path of the script used by the benchmarks.
+	 * 
+	 * @return A path to a script file.
+	 */
+	public static String scriptPath() {
+		return System.getProperty("eliza.script", DEFAULT_SCRIPT);
+	}
+
+	/**
+	 * Load the script used by the benchmarks.
+	 * 
+	 * @return A compiled script.
+	 * @throws IOException
+	 *             If the script cannot be read.
+	 * @throws FileFormatException
+	 *             If the script is formatted incorrectly.
+	 */
+	public static Script loadScript() throws IOException, FileFormatException {
+		return new Script(scriptPath());
+	}
+
+	/**
+	 * Returns the inputs of a named mix.
+	 * 
+	 * @param mix
+	 *            One of "short", "long", "noKeyword" and "quit".
+	 * @return The inputs of the mix.
+	 */
+	public static String[] get(String mix) {
+		if (mix.equals("short"))
+			return SHORT;
+		if (mix.equals("long"))
+			return LONG;
+		if (mix.equals("noKeyword"))
+			return NO_KEYWORD;
+		if (mix.equals("quit"))
+			return QUIT;
+		throw new IllegalArgumentException("Unknown input mix: " + mix);
+	}
+
+	/**
+	 * Returns the inputs of a mix in the form the engine matches against:
+	 * lower case, with the pre-substitution rules applied.
+	 * 
+	 * @param engine
+	 *            The engine whose rules are applied.
+	 * @param mix
+	 *            The name of the mix.
+	 * @return The normalized inputs.
+	 */
+	public static String[] normalized(Engine engine, String mix) {
+		String[] inputs = get(mix).clone();
+		for (int i = 0; i < inputs.length; i++) {
+			inputs[i] = Engine.preSubstitution(engine.getScript(), inputs[i]
+					.trim().toLowerCase());
+		}
+		return inputs;
+	}
+}
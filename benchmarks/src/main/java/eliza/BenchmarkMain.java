@@ -0,0 +1,33 @@
+package eliza;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that allocation rates are
+ * reported next to the throughput. Accepts the usual JMH command line options,
+ * for example:
+ * 
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar EngineBenchmark -p mix=long
+ * </pre>
+ * 
+ * Run from the project folder, or set -Deliza.script to the script to use.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws RunnerException,
+			CommandLineOptionException {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		Options options = new OptionsBuilder().parent(cmd).addProfiler(
+				GCProfiler.class).build();
+		new org.openjdk.jmh.runner.Runner(options).run();
+	}
+}
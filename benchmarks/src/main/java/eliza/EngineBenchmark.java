@@ -0,0 +1,87 @@
+package eliza;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eliza.exception.FileFormatException;
+
+/**
+ * Benchmarks of the Engine's response generation, end to end and stage by
+ * stage, for each input mix.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EngineBenchmark {
+
+	@Param( { "short", "long", "noKeyword", "quit" })
+	public String mix;
+
+	private Engine engine;
+	// The same engine with the analysis of inputs cached.
+	private Engine cachedEngine;
+	private Session session;
+	private String[] inputs;
+	private String[] normalized;
+	private int next;
+
+	@Setup
+	public void setUp() throws IOException, FileFormatException {
+		engine = new Engine(BenchmarkInputs.loadScript());
+		session = engine.newSession();
+		cachedEngine = new Engine(engine.getScript());
+		cachedEngine.setCache(1024, 0);
+		inputs = BenchmarkInputs.get(mix);
+		normalized = BenchmarkInputs.normalized(engine, mix);
+	}
+
+	private int nextIndex() {
+		int i = next;
+		next = i + 1 == inputs.length ? 0 : i + 1;
+		return i;
+	}
+
+	@Benchmark
+	public String generateResponse() {
+		return engine.generateResponse(session, inputs[nextIndex()]);
+	}
+
+	@Benchmark
+	public String generateCachedResponse() {
+		return cachedEngine.generateResponse(session, inputs[nextIndex()]);
+	}
+
+	@Benchmark
+	public boolean isQuitCommand() {
+		return Engine.isQuitCommand(engine.getScript(), normalized[nextIndex()]);
+	}
+
+	@Benchmark
+	public String preSubstitution() {
+		return Engine.preSubstitution(engine.getScript(), inputs[nextIndex()]);
+	}
+
+	@Benchmark
+	public String postSubstitution() {
+		return Engine.postSubstitution(engine.getScript(),
+				normalized[nextIndex()]);
+	}
+}
@@ -0,0 +1,80 @@
+package eliza;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import eliza.exception.FileFormatException;
+import eliza.wrapper.Keyword;
+
+/**
+ * Benchmarks of keyword matching: Keyword.matches for every keyword of the
+ * script, and the KeywordIndex scan which replaces it in the engine, both
+ * plain and stemmed.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class KeywordBenchmark {
+
+	@Param( { "short", "long", "noKeyword", "quit" })
+	public String mix;
+
+	private Script script;
+	private String[] sentences;
+	private ArrayList<Keyword> found = new ArrayList<Keyword>();
+	private int next;
+
+	@Setup
+	public void setUp() throws IOException, FileFormatException {
+		script = BenchmarkInputs.loadScript();
+		sentences = BenchmarkInputs.normalized(new Engine(script), mix);
+	}
+
+	private String nextSentence() {
+		String sentence = sentences[next];
+		next = next + 1 == sentences.length ? 0 : next + 1;
+		return sentence;
+	}
+
+	@Benchmark
+	public void matchesAllKeywords(Blackhole bh) {
+		String sentence = nextSentence();
+		for (Keyword key : script.getKeywords()) {
+			bh.consume(key.matches(sentence));
+		}
+	}
+
+	@Benchmark
+	public int keywordIndex() {
+		found.clear();
+		script.getKeywordIndex(false).find(nextSentence(), found);
+		return found.size();
+	}
+
+	@Benchmark
+	public int stemmedKeywordIndex() {
+		found.clear();
+		script.getKeywordIndex(true).find(nextSentence(), found);
+		return found.size();
+	}
+}
@@ -0,0 +1,47 @@
+package eliza;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eliza.exception.FileFormatException;
+import eliza.wrapper.StringArrayRandomizer;
+
+/**
+ * Benchmark of StringArrayRandomizer.next on the script's other responses.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RandomizerBenchmark {
+	private StringArrayRandomizer randomizer;
+	private Session session;
+
+	@Setup
+	public void setUp() throws IOException, FileFormatException {
+		Engine engine = new Engine(BenchmarkInputs.loadScript());
+		randomizer = engine.getScript().getOtherResponses();
+		session = engine.newSession();
+	}
+
+	@Benchmark
+	public String next() {
+		return randomizer.next(session);
+	}
+}
@@ -0,0 +1,59 @@
+package eliza;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eliza.exception.FileFormatException;
+
+/**
+ * Benchmarks of loading a script, as done by the Engine constructor, from the
+ * text script and from a compiled snapshot.
+ * 
+ * @author Ole & Peter
+ * 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScriptLoadBenchmark {
+	private File snapshot;
+
+	@Setup
+	public void setUp() throws IOException, FileFormatException {
+		snapshot = File.createTempFile("eliza", ".snapshot");
+		ScriptSnapshot.compile(BenchmarkInputs.scriptPath(), snapshot
+				.getPath());
+	}
+
+	@TearDown
+	public void tearDown() {
+		snapshot.delete();
+	}
+
+	@Benchmark
+	public Engine loadEngine() throws IOException, FileFormatException {
+		return new Engine(BenchmarkInputs.scriptPath());
+	}
+
+	@Benchmark
+	public Engine loadSnapshot() throws IOException, FileFormatException {
+		return new Engine(ScriptSnapshot.read(snapshot.getPath(),
+				BenchmarkInputs.scriptPath()));
+	}
+}
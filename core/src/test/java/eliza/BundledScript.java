@@ -0,0 +1,56 @@
+package eliza;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import eliza.exception.FileFormatException;
+import eliza.wrapper.Keyword;
+import eliza.wrapper.SubstitutionRule;
+
+/**
+ * Gives tests access to the script shipped in the "Compiled Eliza" folder and
+ * to the parts of it which are only visible inside the eliza package.
+ *
+ * @author Ole & Peter
+ *
+ */
+public final class BundledScript {
+	private static Script script;
+
+	private BundledScript() {
+	}
+
+	/**
+	 * @return The path of the bundled script, relative to the core module.
+	 */
+	public static Path path() {
+		return Paths.get("..", "Compiled Eliza", "script.txt");
+	}
+
+	/**
+	 * @return The bundled script, read once.
+	 */
+	public static synchronized Script read() throws IOException,
+			FileFormatException {
+		if (script == null)
+			script = new Script(path().toString());
+		return script;
+	}
+
+	public static List<Keyword> keywords() throws IOException,
+			FileFormatException {
+		return read().getKeywords();
+	}
+
+	public static List<SubstitutionRule> preSubstitutionRules()
+			throws IOException, FileFormatException {
+		return read().getPreSubstitutionRules();
+	}
+
+	public static List<SubstitutionRule> postSubstitutionRules()
+			throws IOException, FileFormatException {
+		return read().getPostSubstitutionRules();
+	}
+}
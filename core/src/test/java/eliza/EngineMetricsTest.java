@@ -0,0 +1,49 @@
+package eliza;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import eliza.metrics.EngineMetrics;
+
+/**
+ * Checks that an Engine counts keyword hits on every reply, whether or not the
+ * analysis of the input was cached.
+ *
+ * @author Ole & Peter
+ *
+ */
+class EngineMetricsTest {
+	// Holds one keyword, which fits the sentence.
+	private static final String INPUT = "I believe it will rain";
+
+	@Test
+	void countsKeywordHitsOfCachedInputs() throws Exception {
+		EngineMetrics uncached = replies(0);
+		EngineMetrics cached = replies(16);
+		assertEquals(5, cached.getCacheHits());
+		assertEquals(uncached.getKeywordHits(), cached.getKeywordHits());
+		assertEquals(uncached.getKeywordHitCounts(), cached
+				.getKeywordHitCounts());
+		assertEquals(6, cached.getKeywordHitCounts().get("believe"));
+		// one decomposition is applied for each keyword found
+		assertEquals(cached.getKeywordHits(), cached.getDecompositionHits());
+	}
+
+	/**
+	 * Answer the same input six times.
+	 *
+	 * @return The metrics recorded.
+	 */
+	private static EngineMetrics replies(int cacheSize) throws Exception {
+		Engine engine = new Engine(BundledScript.read());
+		engine.setCache(cacheSize, 0);
+		EngineMetrics metrics = new EngineMetrics();
+		engine.setMetrics(metrics);
+		Session session = engine.newSession(1);
+		for (int i = 0; i < 6; i++) {
+			engine.generateResponse(session, INPUT);
+		}
+		return metrics;
+	}
+}
@@ -0,0 +1,36 @@
+package eliza;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that an Engine gives the same replies whether or not it stems
+ * keywords.
+ *
+ * @author Ole & Peter
+ *
+ */
+class EngineTest {
+	// Inputs with keywords and inflections of them.
+	private static final String[] INPUTS = { "I believe you",
+			"she believes me", "I dreamed of you", "I dream of my mother",
+			"everybody dreams", "are you a computer", "I remember nothing",
+			"I always feel happy", "blah blah" };
+
+	@Test
+	void answersTheSameWhenStemming() throws Exception {
+		String script = BundledScript.path().toString();
+		Engine plain = new Engine(script);
+		Engine stemmed = new Engine(script);
+		stemmed.setStemming(true);
+		Session a = plain.newSession(25);
+		Session b = stemmed.newSession(25);
+		for (int n = 0; n < 3; n++) {
+			for (String input : INPUTS) {
+				assertEquals(plain.generateResponse(a, input), stemmed
+						.generateResponse(b, input), input);
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package eliza;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import eliza.wrapper.SubstitutionRule;
+
+/**
+ * Checks Normalizer against the chain of regular expressions and string
+ * copies input used to go through before the keyword scan.
+ *
+ * @author Ole & Peter
+ *
+ */
+class NormalizerTest {
+	// Parts of random inputs: words, some of them pre-substituted, and
+	// characters which are filtered, collapsed or split at.
+	private static final String[] PARTS = { "I", "i'm", "I'M", "you're",
+			"so", "Also", "don't", "mother", "sad", "x_so", "caf\u00e9",
+			"\u0130", "\ud835\udc9c", "a-b", "#", "_", " ", " ", "  ", "\t",
+			".", ",", "!", "?", ";", ":", ". ", "...", "'", "\"", "&" };
+
+	@Test
+	void splitsSentencesAsTheRegexPipeline() throws Exception {
+		Script script = BundledScript.read();
+		Random random = new Random(14);
+		for (int n = 0; n < 20000; n++) {
+			StringBuilder input = new StringBuilder();
+			int count = random.nextInt(12);
+			for (int i = 0; i < count; i++) {
+				input.append(PARTS[random.nextInt(PARTS.length)]);
+				if (random.nextBoolean())
+					input.append(' ');
+			}
+			String str = input.toString();
+			assertEquals(regexSentences(script, str), sentences(script, str),
+					str);
+		}
+	}
+
+	@Test
+	void dropsEmptySentencesAsSplitDoes() throws Exception {
+		Script script = BundledScript.read();
+		assertEquals(Arrays.asList("", "you are sad"), sentences(script,
+				" . You're sad!?! "));
+		assertEquals(Arrays.asList(), sentences(script, "...."));
+		assertEquals(Arrays.asList(""), sentences(script, ""));
+	}
+
+	@Test
+	void lowerCasesAsInTheRootLocale() throws Exception {
+		Script script = BundledScript.read();
+		Locale locale = Locale.getDefault();
+		Locale.setDefault(new Locale("tr", "TR"));
+		try {
+			String input = "I LIKE TITLES. DIZZY IS IT";
+			List<String> sentences = sentences(script, input);
+			assertEquals(regexSentences(script, input), sentences);
+			assertFalse(sentences.toString().contains("\u0131"), sentences
+					.toString());
+		} finally {
+			Locale.setDefault(locale);
+		}
+	}
+
+	@Test
+	void growsWhenLowerCasingLengthensTheInput() throws Exception {
+		Script script = BundledScript.read();
+		// each capital I with a dot turns into two characters
+		String input = "so " + "\u0130".repeat(300) + " sad";
+		assertEquals(regexSentences(script, input), sentences(script, input));
+	}
+
+	@Test
+	void leavesNothingOfALongerInputBehind() throws Exception {
+		Script script = BundledScript.read();
+		// more sentences than the bounds start with, then more characters
+		// than a pooled normalizer may keep
+		for (String input : new String[] { "so sad. ".repeat(2000),
+				"mother. ".repeat(10000) }) {
+			assertEquals(regexSentences(script, input), sentences(script,
+					input));
+			assertEquals(Arrays.asList("i dream"), sentences(script,
+					"I dream"));
+		}
+	}
+
+	@Test
+	void viewsSentencesAsTheirStrings() throws Exception {
+		Script script = BundledScript.read();
+		Normalizer normalizer = Normalizer.acquire();
+		try {
+			normalizer.substitute(script, "My mother; is sad, truly");
+			normalizer.split();
+			assertEquals(3, normalizer.getSentenceCount());
+			for (int i = 0; i < normalizer.getSentenceCount(); i++) {
+				String expected = normalizer.getSentenceString(i);
+				CharSequence sentence = normalizer.getSentence(i);
+				assertEquals(expected.length(), sentence.length());
+				for (int j = 0; j < expected.length(); j++) {
+					assertEquals(expected.charAt(j), sentence.charAt(j));
+				}
+				assertEquals(expected, sentence.toString());
+				assertEquals(expected.substring(1), sentence.subSequence(1,
+						expected.length()));
+			}
+		} finally {
+			normalizer.release();
+		}
+	}
+
+	private static List<String> sentences(Script script, String input) {
+		Normalizer normalizer = Normalizer.acquire();
+		try {
+			normalizer.substitute(script, input);
+			normalizer.split();
+			ArrayList<String> sentences = new ArrayList<String>();
+			for (int i = 0; i < normalizer.getSentenceCount(); i++) {
+				sentences.add(normalizer.getSentenceString(i));
+			}
+			return sentences;
+		} finally {
+			normalizer.release();
+		}
+	}
+
+	/**
+	 * The sentences of an input as they were found before Normalizer.
+	 */
+	private static List<String> regexSentences(Script script, String input) {
+		input = input.trim().toLowerCase(Locale.ROOT);
+		input = applySubstitution(input, script.getPreSubstitutionRules())
+				.toLowerCase(Locale.ROOT);
+		input = Pattern.compile("[\\W_&&[^ -'.,:;!?]]").matcher(input)
+				.replaceAll("");
+		input = Pattern.compile(" {2,}").matcher(input).replaceAll(" ");
+		return Arrays.asList(input.split("[.,:;!?] *"));
+	}
+
+	private static String applySubstitution(String str,
+			List<SubstitutionRule> rules) {
+		for (SubstitutionRule rule : rules) {
+			String find = rule.getFind().toLowerCase(Locale.ROOT);
+			if (!str.contains(find))
+				continue;
+			String replacement = rule.getReplacement();
+			if (replacement.equals("_"))
+				replacement = "";
+			else
+				replacement = "_" + replacement;
+			replacement = replacement.replace(" ", " _");
+			str = Pattern.compile("\\b" + find + "\\b").matcher(str)
+					.replaceAll(replacement);
+		}
+		return str.replace("_", "");
+	}
+}
@@ -0,0 +1,142 @@
+package eliza;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import eliza.exception.FileFormatException;
+
+/**
+ * Checks that the parts of replaced scripts are dropped from a RulePool, and
+ * that sessions only keep cursors for the randomizers of their own script.
+ *
+ * @author Ole & Peter
+ *
+ */
+class RulePoolTest {
+	// Starts the reassembly rules of a keyword of the bundled script.
+	private static final String DECOMPOSITION = "d:I believe *\n";
+
+	@TempDir
+	Path folder;
+
+	@Test
+	void reloadingATenantDoesNotGrowThePool() throws Exception {
+		Path alice = write("alice.txt", script());
+		Path bob = write("bob.txt", script());
+		EngineRegistry registry = new EngineRegistry();
+		registry.load("alice", alice.toString());
+		registry.load("bob", bob.toString());
+		// replaced scripts get their keyword index straight away
+		registry.get("bob").getScript().getKeywordIndex(false);
+		RulePool pool = registry.getPool();
+		int shared = pool.size();
+		int edited = 0;
+		for (int i = 0; i < 20; i++) {
+			write("bob.txt", withReassembly("Edit " + i + "?"));
+			registry.load("bob", bob.toString());
+			if (i == 0)
+				edited = pool.size();
+			assertEquals(edited, pool.size());
+		}
+		assertTrue(edited > shared);
+		// back to the script alice has, nothing of the edits is left
+		write("bob.txt", script());
+		registry.load("bob", bob.toString());
+		assertEquals(shared, pool.size());
+	}
+
+	@Test
+	void keepsThePartsOtherTenantsUse() throws Exception {
+		Path alice = write("alice.txt", script());
+		Path bob = write("bob.txt", script());
+		EngineRegistry registry = new EngineRegistry();
+		Engine engine = registry.load("alice", alice.toString());
+		registry.load("bob", bob.toString());
+		Script script = engine.getScript();
+		write("bob.txt", withReassembly("Edited?"));
+		registry.load("bob", bob.toString());
+		// a script read now shares everything with alice's
+		Script copy = new Script(alice.toString(), registry.getPool());
+		assertSame(script.getKeywords().get(0), copy.getKeywords().get(0));
+		assertSame(script.getPostSubstitution(), copy.getPostSubstitution());
+		Session session = engine.newSession(1);
+		assertNotNull(engine.generateResponse(session, "I believe in you"));
+	}
+
+	@Test
+	void releasesAScriptWhichFailsToRead() throws Exception {
+		Path alice = write("alice.txt", script());
+		EngineRegistry registry = new EngineRegistry();
+		registry.load("alice", alice.toString());
+		RulePool pool = registry.getPool();
+		int size = pool.size();
+		String script = withReassembly("Cut?");
+		Path cut = write("cut.txt", script.substring(0, script.indexOf(
+				"Cut?")));
+		assertThrows(FileFormatException.class, () -> registry.load("bob",
+				cut.toString()));
+		assertEquals(size, pool.size());
+	}
+
+	@Test
+	void sizesSessionsByTheirOwnScript() throws Exception {
+		Path alice = write("alice.txt", script());
+		Path bob = write("bob.txt", withReassembly("Bob?"));
+		EngineRegistry registry = new EngineRegistry();
+		Engine aliceEngine = registry.load("alice", alice.toString());
+		Engine bobEngine = registry.load("bob", bob.toString());
+		int aliceCursors = aliceEngine.getScript().getRandomizerCount();
+		assertEquals(aliceCursors + 1, bobEngine.getScript()
+				.getRandomizerCount());
+		// bob's new list may take any id, alice's sessions keep their size
+		for (int i = 0; i < 5; i++) {
+			write("bob.txt", withReassembly("Bob " + i + "?"));
+			registry.load("bob", bob.toString());
+		}
+		Session session = aliceEngine.newSession(1);
+		for (int i = 0; i < 10; i++) {
+			assertNotNull(aliceEngine.generateResponse(session,
+					"I believe in you"));
+		}
+		assertEquals(aliceCursors, session.getCursorCount());
+		session = bobEngine.newSession(1);
+		for (int i = 0; i < 10; i++) {
+			assertNotNull(bobEngine.generateResponse(session,
+					"I believe in you"));
+		}
+		assertEquals(aliceCursors + 1, session.getCursorCount());
+	}
+
+	/**
+	 * @return The bundled script with a decomposition rule of its own, whose
+	 *         only reassembly rule is the given one.
+	 */
+	private static String withReassembly(String reassembly) throws Exception {
+		return script().replace(DECOMPOSITION, "d:* I really believe *\nr:"
+				+ reassembly + "\n" + DECOMPOSITION);
+	}
+
+	/**
+	 * @return The bundled script, with Unix line endings.
+	 */
+	private static String script() throws Exception {
+		return new String(Files.readAllBytes(BundledScript.path()),
+				StandardCharsets.UTF_8).replace("\r\n", "\n");
+	}
+
+	private Path write(String name, String text) throws Exception {
+		Path file = folder.resolve(name);
+		Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+}
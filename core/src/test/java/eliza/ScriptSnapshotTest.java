@@ -0,0 +1,147 @@
+package eliza;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import eliza.exception.FileFormatException;
+
+/**
+ * Checks that a ScriptSnapshot answers as the script it was compiled from, and
+ * is rejected once the script or the snapshot format has changed or the
+ * snapshot is damaged.
+ *
+ * @author Ole & Peter
+ *
+ */
+class ScriptSnapshotTest {
+	private static final String[] INPUTS = { "I believe you are sad",
+			"my mother hates me", "I am happy", "you are a computer",
+			"blah blah" };
+
+	@TempDir
+	Path folder;
+
+	@Test
+	void answersAsTheScript() throws Exception {
+		Path script = copyScript();
+		String snapshot = folder.resolve("script.snap").toString();
+		ScriptSnapshot.compile(script.toString(), snapshot);
+		Engine expected = new Engine(script.toString());
+		Engine engine = new Engine(ScriptSnapshot.read(snapshot, script
+				.toString()));
+		Session a = expected.newSession(8);
+		Session b = engine.newSession(8);
+		for (int n = 0; n < 3; n++) {
+			for (String input : INPUTS) {
+				assertEquals(expected.generateResponse(a, input), engine
+						.generateResponse(b, input), input);
+			}
+		}
+	}
+
+	@Test
+	void rejectsASnapshotOfAnEditedScript() throws Exception {
+		Path script = copyScript();
+		String snapshot = folder.resolve("script.snap").toString();
+		ScriptSnapshot.compile(script.toString(), snapshot);
+		// the same size, so only the contents tell
+		String text = new String(Files.readAllBytes(script),
+				StandardCharsets.UTF_8);
+		Files.write(script, text.replace("Goodbye", "Farewel")
+				.getBytes(StandardCharsets.UTF_8));
+		FileFormatException e = assertThrows(FileFormatException.class,
+				() -> ScriptSnapshot.read(snapshot, script.toString()));
+		assertTrue(e.getMessage().contains("out of date"), e.getMessage());
+	}
+
+	@Test
+	void rejectsASnapshotOfAnotherVersion() throws Exception {
+		Path script = copyScript();
+		String snapshot = folder.resolve("script.snap").toString();
+		ScriptSnapshot.compile(script.toString(), snapshot);
+		RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+		try {
+			raf.seek(4);
+			raf.writeInt(1);
+		} finally {
+			raf.close();
+		}
+		FileFormatException e = assertThrows(FileFormatException.class,
+				() -> ScriptSnapshot.read(snapshot, script.toString()));
+		assertTrue(e.getMessage().startsWith("Not a script snapshot"), e
+				.getMessage());
+	}
+
+	@Test
+	void rejectsADamagedSnapshot() throws Exception {
+		Path script = copyScript();
+		String snapshot = folder.resolve("script.snap").toString();
+		ScriptSnapshot.compile(script.toString(), snapshot);
+		RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+		try {
+			raf.seek(raf.length() / 2);
+			int b = raf.read();
+			raf.seek(raf.length() / 2);
+			raf.write(b ^ 1);
+		} finally {
+			raf.close();
+		}
+		FileFormatException e = assertThrows(FileFormatException.class,
+				() -> ScriptSnapshot.read(snapshot, script.toString()));
+		assertTrue(e.getMessage().startsWith("Snapshot is corrupt"), e
+				.getMessage());
+	}
+
+	@Test
+	void rejectsACountLargerThanTheSnapshot() throws Exception {
+		Path script = copyScript();
+		String snapshot = folder.resolve("script.snap").toString();
+		ScriptSnapshot.compile(script.toString(), snapshot);
+		// the count of randomizers, with a checksum to match
+		RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+		try {
+			raf.seek(24);
+			raf.writeInt(0x7ffffff0);
+			byte[] body = new byte[(int) raf.length() - 24];
+			raf.seek(24);
+			raf.readFully(body);
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			raf.seek(16);
+			raf.writeLong(crc.getValue());
+		} finally {
+			raf.close();
+		}
+		assertThrows(FileFormatException.class, () -> ScriptSnapshot.read(
+				snapshot, script.toString()));
+	}
+
+	@Test
+	void replacesASnapshotWithoutLeavingFilesBehind() throws Exception {
+		Path script = copyScript();
+		String snapshot = folder.resolve("script.snap").toString();
+		ScriptSnapshot.compile(script.toString(), snapshot);
+		ScriptSnapshot.compile(script.toString(), snapshot);
+		try (Stream<Path> files = Files.list(folder)) {
+			assertEquals(2, files.count());
+		}
+		ScriptSnapshot.read(snapshot, script.toString());
+	}
+
+	private Path copyScript() throws Exception {
+		Path file = folder.resolve("script.txt");
+		Files.copy(BundledScript.path(), file);
+		return file;
+	}
+}
@@ -0,0 +1,94 @@
+package eliza;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import eliza.wrapper.StringArrayRandomizer;
+
+/**
+ * Checks that a Script read from a file keeps answering as it did when the
+ * file is rewritten or cut short after it has been read, and that it keeps no
+ * more of the file than its rules.
+ *
+ * @author Ole & Peter
+ *
+ */
+class ScriptTest {
+	// Inputs which reach rules all over the script, several times each.
+	private static final String[] INPUTS = { "I believe you are sad",
+			"my mother hates me", "I dreamt about you", "I am happy",
+			"you are a computer", "because I can't", "maybe", "yes",
+			"I remember my father", "what do you think", "hello", "sorry",
+			"I want everybody to like me", "blah blah" };
+
+	@TempDir
+	Path folder;
+
+	@Test
+	void answersTheSameAfterTheFileIsRewritten() throws Exception {
+		Engine expected = new Engine(BundledScript.read());
+		Path file = folder.resolve("script.txt");
+		Files.copy(BundledScript.path(), file);
+		Engine engine = new Engine(new Script(file.toString()));
+		// overwrite the file in place, then cut it short
+		byte[] junk = new byte[(int) Files.size(file)];
+		Arrays.fill(junk, (byte) 'x');
+		RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+		try {
+			raf.write(junk);
+			raf.setLength(10);
+		} finally {
+			raf.close();
+		}
+		Session a = expected.newSession(23);
+		Session b = engine.newSession(23);
+		for (int n = 0; n < 5; n++) {
+			for (String input : INPUTS) {
+				assertEquals(expected.generateResponse(a, input), engine
+						.generateResponse(b, input), input);
+			}
+		}
+	}
+
+	@Test
+	void keepsOnlyTheBytesOfItsRules() throws Exception {
+		Path file = folder.resolve("script.txt");
+		Files.copy(BundledScript.path(), file);
+		Script script = new Script(file.toString());
+		// a script read with a pool decodes every rule straight away
+		Script decoded = new Script(file.toString(), new RulePool());
+		ArrayList<StringArrayRandomizer> randomizers = script.getRandomizers();
+		assertEquals(decoded.getRandomizerCount(), randomizers.size());
+		long length = 0;
+		long bytes = 0;
+		for (StringArrayRandomizer randomizer : randomizers) {
+			length += randomizer.getEncodedLength();
+			for (int i = 0; i < randomizer.size(); i++) {
+				bytes += randomizer.get(i).getBytes(StandardCharsets.UTF_8)
+						.length;
+			}
+		}
+		assertEquals(bytes, length);
+		assertTrue(length < Files.size(file));
+		for (int i = 0; i < randomizers.size(); i++) {
+			StringArrayRandomizer expected = decoded.getRandomizers().get(i);
+			StringArrayRandomizer randomizer = randomizers.get(i);
+			assertEquals(expected.size(), randomizer.size());
+			for (int j = 0; j < expected.size(); j++) {
+				assertEquals(expected.get(j), randomizer.get(j));
+			}
+			// and nothing is left to decode
+			assertEquals(0, randomizer.getEncodedLength());
+		}
+	}
+}
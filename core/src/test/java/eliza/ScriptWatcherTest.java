@@ -0,0 +1,185 @@
+package eliza;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import eliza.exception.FileFormatException;
+
+/**
+ * Checks that ScriptWatcher swaps in edited scripts and keeps the old script
+ * when the file does not hold a whole script, and that it notices edits to
+ * the fragments a script includes.
+ *
+ * @author Ole & Peter
+ *
+ */
+class ScriptWatcherTest {
+	@TempDir
+	Path folder;
+
+	@Test
+	void reloadsAnEditedScript() throws Exception {
+		Path file = copyScript("script.txt");
+		Engine engine = new Engine(new Script(file.toString()));
+		Script old = engine.getScript();
+		ScriptWatcher watcher = new ScriptWatcher(engine, file.toString());
+		try {
+			write(file, script().replace(";Welcome\n", ";Welcome\nHowdy.\n"));
+			assertTrue(watcher.reload());
+			assertNull(watcher.getLastError());
+			assertNotSame(old, engine.getScript());
+			assertTrue(engine.getScript().getWelcomeMessages()
+					.contains("Howdy."));
+		} finally {
+			watcher.close();
+		}
+	}
+
+	@Test
+	void keepsTheOldScriptWhenASaveIsCutShort() throws Exception {
+		Path file = copyScript("script.txt");
+		Engine engine = new Engine(new Script(file.toString()));
+		Script old = engine.getScript();
+		ScriptWatcher watcher = new ScriptWatcher(engine, file.toString());
+		try {
+			write(file, ";Welcome\nhi\n;Final\nbye\n");
+			assertFalse(watcher.reload());
+			assertTrue(watcher.getLastError() instanceof FileFormatException);
+			assertSame(old, engine.getScript());
+			// the engine still answers inputs without keywords
+			Session session = engine.newSession(1);
+			assertNotNull(engine.generateResponse(session, "blah blah"));
+		} finally {
+			watcher.close();
+		}
+	}
+
+	@Test
+	void keepsTheOldScriptWhenASaveIsCutInsideTheKeywords() throws Exception {
+		Path file = copyScript("script.txt");
+		Engine engine = new Engine(new Script(file.toString()));
+		Script old = engine.getScript();
+		ScriptWatcher watcher = new ScriptWatcher(engine, file.toString());
+		try {
+			String script = script();
+			String cut = "d:I believe *\n";
+			write(file, script.substring(0, script.indexOf(cut)
+					+ cut.length()));
+			assertFalse(watcher.reload());
+			assertTrue(watcher.getLastError() instanceof FileFormatException);
+			assertSame(old, engine.getScript());
+		} finally {
+			watcher.close();
+		}
+	}
+
+	@Test
+	void reloadsTheScriptOfATenant() throws Exception {
+		Path file = copyScript("tenant.txt");
+		EngineRegistry registry = new EngineRegistry();
+		Engine engine = registry.load("bob", file.toString());
+		Script old = engine.getScript();
+		ScriptWatcher watcher = new ScriptWatcher(registry, "bob",
+				file.toString());
+		try {
+			write(file, script().replace(";Welcome\n", ";Welcome\nHowdy.\n"));
+			assertTrue(watcher.reload());
+			assertSame(engine, registry.get("bob"));
+			assertNotSame(old, engine.getScript());
+			assertTrue(engine.getScript().getWelcomeMessages()
+					.contains("Howdy."));
+			write(file, ";Welcome\nhi\n");
+			Script reloaded = engine.getScript();
+			assertFalse(watcher.reload());
+			assertSame(reloaded, engine.getScript());
+		} finally {
+			watcher.close();
+		}
+	}
+
+	@Test
+	void reloadsWhenAFragmentIsEdited() throws Exception {
+		Path file = folder.resolve("script.txt");
+		write(folder.resolve("parts").resolve("welcome.txt"), "Howdy.\n");
+		write(file, withWelcomeFragment());
+		Engine engine = new Engine(new Script(file.toString()));
+		ScriptWatcher watcher = new ScriptWatcher(engine, file.toString());
+		try {
+			watcher.start();
+			write(folder.resolve("parts").resolve("welcome.txt"), "Hiya.\n");
+			awaitWelcome(engine, "Hiya.");
+		} finally {
+			watcher.close();
+		}
+	}
+
+	@Test
+	void watchesAFragmentIncludedByAReload() throws Exception {
+		Path file = copyScript("script.txt");
+		Engine engine = new Engine(new Script(file.toString()));
+		ScriptWatcher watcher = new ScriptWatcher(engine, file.toString());
+		try {
+			write(folder.resolve("parts").resolve("welcome.txt"), "Howdy.\n");
+			write(file, withWelcomeFragment());
+			assertTrue(watcher.reload());
+			watcher.start();
+			write(folder.resolve("parts").resolve("welcome.txt"), "Hiya.\n");
+			awaitWelcome(engine, "Hiya.");
+		} finally {
+			watcher.close();
+		}
+	}
+
+	/**
+	 * Wait for the watcher to reload a script with a welcome message.
+	 */
+	private static void awaitWelcome(Engine engine, String message)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 20000;
+		while (!engine.getScript().getWelcomeMessages().contains(message)) {
+			assertTrue(System.currentTimeMillis() < deadline,
+					"not reloaded");
+			Thread.sleep(20);
+		}
+	}
+
+	/**
+	 * @return The bundled script, taking its welcome messages from a fragment
+	 *         in another folder.
+	 */
+	private static String withWelcomeFragment() throws Exception {
+		return script().replace(";Welcome\n",
+				";Welcome\n;Include parts/welcome.txt\n");
+	}
+
+	private Path copyScript(String name) throws Exception {
+		Path file = folder.resolve(name);
+		write(file, script());
+		return file;
+	}
+
+	/**
+	 * @return The bundled script, with Unix line endings.
+	 */
+	private static String script() throws Exception {
+		return new String(Files.readAllBytes(BundledScript.path()),
+				StandardCharsets.UTF_8).replace("\r\n", "\n");
+	}
+
+	private static void write(Path file, String text) throws Exception {
+		Files.createDirectories(file.getParent());
+		Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+	}
+}
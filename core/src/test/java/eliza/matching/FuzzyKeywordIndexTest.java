@@ -0,0 +1,200 @@
+package eliza.matching;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import eliza.wrapper.Decomposition;
+import eliza.wrapper.Keyword;
+
+/**
+ * Checks FuzzyKeywordIndex against comparing a word with every keyword.
+ *
+ * @author Ole & Peter
+ *
+ */
+class FuzzyKeywordIndexTest {
+
+	@Test
+	void correctsMisspeltKeywords() {
+		FuzzyKeywordIndex index = new FuzzyKeywordIndex(keywords("mother",
+				"believe", "dream", "think"), Arrays.asList("thing"));
+		assertEquals("mother", correct(index, "mohter", 2));
+		assertEquals("believe", correct(index, "beleive", 2));
+		// known words, short words and other first letters are left alone
+		assertNull(correct(index, "thing", 2));
+		assertNull(correct(index, "drem", 2));
+		assertNull(correct(index, "nother", 2));
+		assertNull(correct(index, "mohter", 0));
+	}
+
+	@Test
+	void allowsMoreEditsForLongerWords() {
+		FuzzyKeywordIndex index = new FuzzyKeywordIndex(keywords("mother",
+				"computers"), new ArrayList<String>());
+		assertNull(correct(index, "mthr", 2));
+		assertEquals("mother", correct(index, "mothr", 2));
+		assertEquals("mother", correct(index, "mothar", 2));
+		assertNull(correct(index, "mohtar", 2));
+		// each swap of adjacent letters is one edit
+		assertEquals("computers", correct(index, "cmoputers", 2));
+		assertEquals("computers", correct(index, "cmoputres", 2));
+		assertNull(correct(index, "cmoputres", 1));
+		assertNull(correct(index, "cmoptures", 2));
+		assertNull(correct(index, "mothermothermother", 2));
+	}
+
+	@Test
+	void prefersTheHighestPriorityThenTheFirstKeyword() {
+		List<Keyword> keywords = keywords("dreamt", "dreams");
+		FuzzyKeywordIndex index = new FuzzyKeywordIndex(keywords,
+				new ArrayList<String>());
+		assertEquals("dreams", correct(index, "dreamx", 2));
+		keywords.add(new Keyword("dreamt", 0, new ArrayList<Decomposition>()));
+		index = new FuzzyKeywordIndex(keywords, new ArrayList<String>());
+		// the highest priority of the keywords sharing a string counts
+		assertEquals(2, index.size());
+		assertEquals("dreamt", correct(index, "dreamx", 2));
+	}
+
+	@Test
+	void onlyCorrectsToSimpleKeywords() {
+		FuzzyKeywordIndex index = new FuzzyKeywordIndex(keywords(
+				"i remember", "caf\u00e9s", "mother"), new ArrayList<String>());
+		assertEquals(1, index.size());
+		// the words of other keywords are known, but not corrected to
+		assertNull(correct(index, "remember", 2));
+		assertNull(correct(index, "remembr", 2));
+		assertNull(correct(index, "\u00e9mother", 2));
+		assertNull(correct(index, "9mother", 2));
+	}
+
+	@Test
+	void correctsAWordWithinAText() {
+		FuzzyKeywordIndex index = new FuzzyKeywordIndex(keywords("mother"),
+				new ArrayList<String>());
+		char[] text = "my mohter is sad".toCharArray();
+		assertEquals("mother", index.correct(text, 3, 9, 2));
+		assertNull(index.correct(text, 0, 2, 2));
+	}
+
+	@Test
+	void findsTheClosestKeywordAsALinearScan() {
+		Random random = new Random(24);
+		ArrayList<Keyword> keywords = new ArrayList<Keyword>();
+		HashSet<String> seen = new HashSet<String>();
+		while (keywords.size() < 2000) {
+			String word = word(random);
+			if (seen.add(word))
+				keywords.add(new Keyword(word, random.nextInt(10),
+						new ArrayList<Decomposition>()));
+		}
+		FuzzyKeywordIndex index = new FuzzyKeywordIndex(keywords,
+				new ArrayList<String>());
+		for (int n = 0; n < 5000; n++) {
+			String word = word(random);
+			String expected = seen.contains(word) ? null : closest(keywords,
+					word);
+			assertEquals(expected, correct(index, word, 2), word);
+		}
+	}
+
+	/**
+	 * The keyword a word would be corrected to, found by comparing it with
+	 * every keyword.
+	 */
+	private static String closest(List<Keyword> keywords, String word) {
+		int allowed = word.length() <= 4 ? 0 : word.length() <= 8 ? 1 : 2;
+		String best = null;
+		int bestDistance = allowed + 1;
+		int bestPriority = 0;
+		for (Keyword key : keywords) {
+			String keyword = key.getKeyword();
+			if (keyword.charAt(0) != word.charAt(0))
+				continue;
+			int d = distance(word, keyword);
+			if (d < bestDistance
+					|| (d == bestDistance && d <= allowed && (key
+							.getPriority() < bestPriority || (key
+							.getPriority() == bestPriority && keyword
+							.compareTo(best) < 0)))) {
+				best = keyword;
+				bestDistance = d;
+				bestPriority = key.getPriority();
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * The unrestricted Damerau-Levenshtein distance, as given by Lowrance and
+	 * Wagner.
+	 */
+	private static int distance(String a, String b) {
+		int m = a.length();
+		int n = b.length();
+		int infinity = m + n;
+		int[][] d = new int[m + 2][n + 2];
+		int[] lastRow = new int[128];
+		d[0][0] = infinity;
+		for (int i = 0; i <= m; i++) {
+			d[i + 1][0] = infinity;
+			d[i + 1][1] = i;
+		}
+		for (int j = 0; j <= n; j++) {
+			d[0][j + 1] = infinity;
+			d[1][j + 1] = j;
+		}
+		for (int i = 1; i <= m; i++) {
+			int lastColumn = 0;
+			for (int j = 1; j <= n; j++) {
+				int k = lastRow[b.charAt(j - 1)];
+				int l = lastColumn;
+				int cost = 1;
+				if (a.charAt(i - 1) == b.charAt(j - 1)) {
+					cost = 0;
+					lastColumn = j;
+				}
+				d[i + 1][j + 1] = Math.min(Math.min(d[i][j] + cost,
+						d[i + 1][j] + 1), Math.min(d[i][j + 1] + 1, d[k][l]
+						+ (i - k - 1) + 1 + (j - l - 1)));
+			}
+			lastRow[a.charAt(i - 1)] = i;
+		}
+		return d[m + 1][n + 1];
+	}
+
+	private static String correct(FuzzyKeywordIndex index, String word,
+			int maxDistance) {
+		return index.correct(word.toCharArray(), 0, word.length(),
+				maxDistance);
+	}
+
+	private static List<Keyword> keywords(String... words) {
+		ArrayList<Keyword> keywords = new ArrayList<Keyword>();
+		for (String word : words) {
+			keywords.add(new Keyword(word, 5, new ArrayList<Decomposition>()));
+		}
+		return keywords;
+	}
+
+	/**
+	 * @return A random word of 3 to 12 letters from a small alphabet, so that
+	 *         many words are close to each other.
+	 */
+	private static String word(Random random) {
+		StringBuilder word = new StringBuilder();
+		int length = 3 + random.nextInt(10);
+		for (int i = 0; i < length; i++) {
+			word.append((char) ('a' + random.nextInt(6)));
+		}
+		return word.toString();
+	}
+}
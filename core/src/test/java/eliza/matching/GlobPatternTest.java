@@ -0,0 +1,179 @@
+package eliza.matching;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import eliza.BundledScript;
+import eliza.wrapper.Decomposition;
+import eliza.wrapper.Keyword;
+
+/**
+ * Checks GlobPattern against the regular expressions decomposition rules used
+ * to be translated to, in which each star was a greedy (.*) group.
+ *
+ * @author Ole & Peter
+ *
+ */
+class GlobPatternTest {
+	// The words of random rules and sentences.
+	private static final String[] WORDS = { "i", "am", "you", "are", "a",
+			"i am", "sad", "my", "mother" };
+	// What the words of a random sentence are separated by.
+	private static final String[] SEPARATORS = { " ", " ", " ", "", "\t",
+			"\n" };
+
+	@Test
+	void matchesRandomRulesAsRegex() {
+		Random random = new Random(12);
+		for (int n = 0; n < 2000; n++) {
+			StringBuilder rule = new StringBuilder();
+			int count = 1 + random.nextInt(5);
+			for (int i = 0; i < count; i++) {
+				if (i > 0 && random.nextBoolean())
+					rule.append(' ');
+				rule.append(random.nextInt(3) == 0 ? "*"
+						: WORDS[random.nextInt(WORDS.length)]);
+			}
+			GlobPattern pattern = new GlobPattern(rule.toString());
+			Pattern regex = regex(rule.toString());
+			for (int m = 0; m < 20; m++) {
+				assertMatchesAsRegex(pattern, regex, sentence(random));
+			}
+		}
+	}
+
+	@Test
+	void matchesTheRulesOfTheBundledScriptAsRegex() throws Exception {
+		Random random = new Random(13);
+		for (Keyword key : BundledScript.keywords()) {
+			for (Decomposition d : key.getRules()) {
+				GlobPattern pattern = key.compileDecomposition(d.getRule());
+				String rule = d.getRule().toLowerCase()
+						.replace("$", key.getKeyword());
+				Pattern regex = regex(rule);
+				for (int m = 0; m < 200; m++) {
+					String sentence = sentence(random);
+					if (m % 2 == 0)
+						sentence = sentence + " " + key.getKeyword() + " "
+								+ sentence(random);
+					assertMatchesAsRegex(pattern, regex, sentence);
+				}
+			}
+		}
+	}
+
+	@Test
+	void givesTheFirstStarTheLongestTextAndNoLineTerminator() {
+		GlobMatch match = new GlobPattern("* am *").match("i am sad am happy");
+		assertNotNull(match);
+		assertEquals("i am sad", match.group(1));
+		assertEquals("happy", match.group(2));
+		assertNull(new GlobPattern("* sad").match("i\nam sad"));
+	}
+
+	@Test
+	void matchesARuleWithoutStarsExactly() {
+		GlobPattern pattern = new GlobPattern("i am");
+		assertEquals(0, pattern.groupCount());
+		assertEquals(0, pattern.match("i am").groupCount());
+		assertNull(pattern.match("i am sad"));
+		assertNull(pattern.match("so i am"));
+		assertTrue(new GlobPattern("").matches(""));
+		assertFalse(new GlobPattern("").matches(" "));
+	}
+
+	@Test
+	void letsStarsCaptureNothing() {
+		assertGroups("*", "", "");
+		assertGroups("*", "i am sad", "i am sad");
+		// the first of two adjacent stars takes everything
+		assertGroups("**", "i am", "i am", "");
+		assertGroups("i am *", "i am ", "");
+		assertGroups("* i am", " i am", "");
+		assertNull(new GlobPattern("i am *").match("i am"));
+	}
+
+	@Test
+	void matchesOneWhitespaceCharacterForASpace() {
+		assertGroups("i am *", "i\tam\fsad", "sad");
+		assertNull(new GlobPattern("i am").match("i  am"));
+		assertNull(new GlobPattern("i am").match("iam"));
+		// a space may match a line terminator, a star may not
+		assertGroups("* i am *", "so i\nam sad", "so", "sad");
+		assertGroups("* am", "x\ram", "x");
+		for (String terminator : new String[] { "\r", "\u0085", "\u2028",
+				"\u2029" }) {
+			assertNull(new GlobPattern("* sad").match("i" + terminator
+					+ "am sad"));
+		}
+	}
+
+	/**
+	 * Assert that a rule matches a sentence, both with and without the
+	 * captures, and captures the given groups.
+	 */
+	private static void assertGroups(String rule, String sentence,
+			String... groups) {
+		GlobPattern pattern = new GlobPattern(rule);
+		String message = rule + " / " + sentence;
+		assertTrue(pattern.matches(sentence), message);
+		GlobMatch match = pattern.match(sentence);
+		assertNotNull(match, message);
+		assertEquals(groups.length, match.groupCount(), message);
+		for (int group = 1; group <= groups.length; group++) {
+			assertEquals(groups[group - 1], match.group(group), message);
+		}
+	}
+
+	private static void assertMatchesAsRegex(GlobPattern pattern,
+			Pattern regex, String sentence) {
+		Matcher m = regex.matcher(sentence);
+		boolean expected = m.find();
+		String message = pattern + " / " + sentence;
+		assertEquals(expected, pattern.matches(sentence), message);
+		GlobMatch match = pattern.match(sentence);
+		if (!expected) {
+			assertNull(match, message);
+			return;
+		}
+		assertNotNull(match, message);
+		assertEquals(m.groupCount(), match.groupCount(), message);
+		for (int group = 1; group <= m.groupCount(); group++) {
+			assertEquals(m.group(group), match.group(group), message);
+		}
+	}
+
+	/**
+	 * The regular expression a rule of words, spaces and stars used to be
+	 * translated to.
+	 */
+	private static Pattern regex(String rule) {
+		return Pattern.compile("^" + rule.replace("*", "(.*)").replace(" ",
+				"\\s") + "$");
+	}
+
+	private static String sentence(Random random) {
+		ArrayList<String> words = new ArrayList<String>();
+		int count = random.nextInt(7);
+		for (int i = 0; i < count; i++) {
+			words.add(WORDS[random.nextInt(WORDS.length)]);
+		}
+		StringBuilder sentence = new StringBuilder();
+		for (int i = 0; i < words.size(); i++) {
+			if (i > 0)
+				sentence.append(SEPARATORS[random.nextInt(SEPARATORS.length)]);
+			sentence.append(words.get(i));
+		}
+		return sentence.toString();
+	}
+}
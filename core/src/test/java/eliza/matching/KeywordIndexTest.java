@@ -0,0 +1,246 @@
+package eliza.matching;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import eliza.BundledScript;
+import eliza.wrapper.Decomposition;
+import eliza.wrapper.Keyword;
+
+/**
+ * Checks KeywordIndex against the regular expression search it replaced,
+ * which looked for \bkeyword\b in each sentence.
+ *
+ * @author Ole & Peter
+ *
+ */
+class KeywordIndexTest {
+	// Words which are not keywords, or contain keywords.
+	private static final String[] OTHER_WORDS = { "the", "hi", "this", "mom",
+			"mothers", "x", "myself", "sometimes", "ia", "abc", "i'd" };
+	// What the words of a sentence are separated by.
+	private static final String[] SEPARATORS = { " ", " ", " ", "", "'", "-",
+			"  " };
+
+	@Test
+	void findsTheKeywordsOfTheBundledScript() throws Exception {
+		List<Keyword> keywords = BundledScript.keywords();
+		assertFindsAsRegex(keywords, new KeywordIndex(keywords), 1);
+	}
+
+	@Test
+	void findsKeywordsSharingPrefixesAndSuffixes() {
+		ArrayList<Keyword> keywords = new ArrayList<Keyword>();
+		String[] words = { "i", "i am", "am", "a", "an", "and", "can", "can't",
+				"you", "you're", "your", "yourself", "self", "are", "re" };
+		for (int i = 0; i < words.length; i++) {
+			keywords.add(new Keyword(words[i], i % 4,
+					new ArrayList<Decomposition>()));
+		}
+		assertFindsAsRegex(keywords, new KeywordIndex(keywords), 2);
+	}
+
+	@Test
+	void findsKeywordsOnlyAsWholeWords() {
+		KeywordIndex index = index("mother", "i", "can't");
+		assertEquals(words(), find(index, ""));
+		assertEquals(words("mother"), find(index, "mother"));
+		assertEquals(words(), find(index, "mothers grandmother"));
+		// an apostrophe ends a word, unless the keyword holds it
+		assertEquals(words("i"), find(index, "i'd"));
+		assertEquals(words("i", "can't"), find(index, "i can't"));
+		assertEquals(words(), find(index, "scan'ts"));
+		assertEquals(words("mother", "i"), find(index, "mother-i"));
+	}
+
+	@Test
+	void findsEachKeywordOnceInTheOrderItFirstEnds() {
+		KeywordIndex index = index("a b", "b", "c");
+		// "a b" and "b" end together, the longer one first
+		assertEquals(words("c", "b", "a b"), find(index, "c b a b c"));
+		assertEquals(words("a b", "b"), find(index, "a b"));
+	}
+
+	@Test
+	void findsAllKeywordsSharingAString() {
+		Keyword first = keyword("you", 3);
+		Keyword second = keyword("you", 1);
+		KeywordIndex index = new KeywordIndex(Arrays.asList(keyword("i", 0),
+				first, second));
+		ArrayList<Keyword> found = new ArrayList<Keyword>();
+		index.find("you and you", found);
+		assertEquals(Arrays.asList(first, second), found);
+	}
+
+	@Test
+	void sortsAnyPrioritiesIntoBuckets() {
+		Keyword[] keys = { keyword("a", 5), keyword("b", -3), keyword("c", 5),
+				keyword("d", 0), keyword("e", Integer.MAX_VALUE) };
+		KeywordIndex index = new KeywordIndex(Arrays.asList(keys));
+		assertEquals(4, index.getBucketCount());
+		int[] buckets = { 2, 0, 2, 1, 3 };
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(buckets[i], index.getBucket(keys[i]), keys[i]
+					.getKeyword());
+		}
+	}
+
+	@Test
+	void reportsTheKeywordsOfTheBaseIndexFirst() {
+		KeywordIndex base = index("mother");
+		assertFalse(base.isLayered());
+		Keyword father = keyword("father", -1);
+		KeywordIndex index = new KeywordIndex(base, Arrays.asList(father));
+		assertTrue(index.isLayered());
+		assertEquals(words("mother", "father"), find(index,
+				"father and mother"));
+		// the buckets span the priorities of both
+		assertEquals(2, index.getBucketCount());
+		assertEquals(0, index.getBucket(father));
+	}
+
+	@Test
+	void stemmedIndexFindsWhatThePlainIndexFinds() throws Exception {
+		ArrayList<Keyword> keywords = new ArrayList<Keyword>(
+				BundledScript.keywords());
+		// inflections which share stems, and words which only look inflected
+		String[] words = { "believe", "believes", "believed", "believing",
+				"happy", "happiness", "happily", "dream", "dreams", "dreamed",
+				"dreamingly", "less", "lesson", "lies", "lied", "liar", "is",
+				"as", "ss", "sadness", "sad", "kind", "kindly", "kindness" };
+		for (int i = 0; i < words.length; i++) {
+			keywords.add(new Keyword(words[i], i % 5,
+					new ArrayList<Decomposition>()));
+		}
+		KeywordIndex plain = new KeywordIndex(keywords);
+		KeywordIndex stemmed = new KeywordIndex(null, keywords, true);
+		assertFindsAsRegex(keywords, stemmed, 25);
+		ArrayList<String> sentenceWords = new ArrayList<String>();
+		for (Keyword key : keywords) {
+			sentenceWords.add(key.getKeyword());
+		}
+		for (String word : OTHER_WORDS) {
+			sentenceWords.add(word);
+		}
+		Random random = new Random(26);
+		ArrayList<Keyword> expected = new ArrayList<Keyword>();
+		ArrayList<Keyword> found = new ArrayList<Keyword>();
+		for (int n = 0; n < 20000; n++) {
+			String sentence = sentence(random, sentenceWords);
+			expected.clear();
+			plain.find(sentence, expected);
+			found.clear();
+			stemmed.find(sentence, found);
+			// the same keywords, in the same order
+			assertEquals(expected, found, sentence);
+		}
+		for (Keyword key : keywords) {
+			assertEquals(plain.getBucket(key), stemmed.getBucket(key));
+		}
+	}
+
+	@Test
+	void stemmedIndexFindsOnlyTheKeywordOfTheWord() {
+		Keyword believe = keyword("believe", 2);
+		Keyword believes = keyword("believes", 1);
+		Keyword also = keyword("believes", 4);
+		Keyword phrase = keyword("i believe", 0);
+		KeywordIndex index = new KeywordIndex(null, Arrays.asList(believe,
+				believes, also, phrase), true);
+		assertTrue(index.isStemmed());
+		ArrayList<Keyword> found = new ArrayList<Keyword>();
+		index.find("she believes", found);
+		assertEquals(Arrays.asList(believes, also), found);
+		// a keyword of several words is still found by the automaton
+		found.clear();
+		index.find("i believe", found);
+		assertEquals(Arrays.asList(phrase, believe), found);
+		// words with the stem of a keyword are not that keyword
+		assertEquals(words(), find(index, "believed believing believ"));
+		assertEquals(words("believe"), find(index, "believe"));
+	}
+
+	/**
+	 * @return An index of keywords of priority 0.
+	 */
+	private static KeywordIndex index(String... words) {
+		ArrayList<Keyword> keywords = new ArrayList<Keyword>();
+		for (String word : words) {
+			keywords.add(keyword(word, 0));
+		}
+		return new KeywordIndex(keywords);
+	}
+
+	private static Keyword keyword(String word, int priority) {
+		return new Keyword(word, priority, new ArrayList<Decomposition>());
+	}
+
+	/**
+	 * @return The strings of the keywords an index finds in a sentence.
+	 */
+	private static List<String> find(KeywordIndex index, String sentence) {
+		ArrayList<Keyword> found = new ArrayList<Keyword>();
+		index.find(sentence, found);
+		ArrayList<String> words = new ArrayList<String>();
+		for (Keyword key : found) {
+			words.add(key.getKeyword());
+		}
+		return words;
+	}
+
+	private static List<String> words(String... words) {
+		return Arrays.asList(words);
+	}
+
+	/**
+	 * Find the keywords of random sentences made of keywords and other words,
+	 * both with the index and with regular expressions.
+	 */
+	static void assertFindsAsRegex(List<Keyword> keywords, KeywordIndex index,
+			long seed) {
+		ArrayList<String> words = new ArrayList<String>();
+		ArrayList<Pattern> patterns = new ArrayList<Pattern>();
+		for (Keyword key : keywords) {
+			words.add(key.getKeyword());
+			patterns.add(Pattern.compile("\\b" + key.getKeyword() + "\\b"));
+		}
+		for (String word : OTHER_WORDS) {
+			words.add(word);
+		}
+		Random random = new Random(seed);
+		ArrayList<Keyword> found = new ArrayList<Keyword>();
+		for (int n = 0; n < 20000; n++) {
+			String sentence = sentence(random, words);
+			LinkedHashSet<Keyword> expected = new LinkedHashSet<Keyword>();
+			for (int i = 0; i < keywords.size(); i++) {
+				if (patterns.get(i).matcher(sentence).find())
+					expected.add(keywords.get(i));
+			}
+			found.clear();
+			index.find(sentence, found);
+			assertEquals(expected.size(), found.size(), sentence);
+			assertEquals(expected, new LinkedHashSet<Keyword>(found), sentence);
+		}
+	}
+
+	static String sentence(Random random, List<String> words) {
+		StringBuilder sentence = new StringBuilder();
+		int count = 1 + random.nextInt(8);
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				sentence.append(SEPARATORS[random.nextInt(SEPARATORS.length)]);
+			sentence.append(words.get(random.nextInt(words.size())));
+		}
+		return sentence.toString();
+	}
+}
@@ -0,0 +1,110 @@
+package eliza.matching;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import eliza.BundledScript;
+import eliza.Engine;
+import eliza.Session;
+import eliza.wrapper.Decomposition;
+import eliza.wrapper.Keyword;
+
+/**
+ * Checks which characters of a reassembly rule ReassemblyTemplate takes for
+ * references, and the replies it builds.
+ *
+ * @author Ole & Peter
+ *
+ */
+class ReassemblyTemplateTest {
+
+	@Test
+	void keepsDigitsThatAreNotReferences() {
+		// more than the number of stars
+		assertRenders("I have 2 cats", "I have 2 cats", 1);
+		// part of a number or a word
+		assertRenders("Play it as mp3", "Play it as mp3", 1);
+		assertRenders("It is 1984", "It is 1984", 9);
+		assertRenders("Route 1a", "Route 1a", 1);
+		assertRenders("Nothing at 0", "Nothing at 0", 9);
+	}
+
+	@Test
+	void replacesEveryGroup() {
+		assertRenders("a b c d e f g h i", "1 2 3 4 5 6 7 8 9", 9);
+		assertRenders("[i, c]", "[9, 3]", 9);
+		assertRenders("Why do you say a?", "Why do you say 1?", 1);
+	}
+
+	@Test
+	void keepsDigitsOfTheKeyword() {
+		ReassemblyTemplate template = new ReassemblyTemplate("$ and 1", 2);
+		assertEquals("mp3 and 2 things", template.render("mp3", new String[] {
+				null, "2 things", "y" }));
+		template = new ReassemblyTemplate("Say $ again", 9);
+		assertEquals("Say 1 2 again", template.render("1 2", g(9)));
+	}
+
+	@Test
+	void tellsWhichGroupsAreReferred() {
+		ReassemblyTemplate template = new ReassemblyTemplate(
+				"Why 3, not 1 or mp2? $", 3);
+		assertTrue(template.references(1));
+		assertFalse(template.references(2));
+		assertTrue(template.references(3));
+		// the keyword is not a group
+		assertFalse(template.references(0));
+		assertFalse(new ReassemblyTemplate("Tell me 2 things", 1)
+				.references(2));
+	}
+
+	@Test
+	void printsTheRule() {
+		String rule = "Why 3, not 1 or mp2? $";
+		assertEquals(rule, new ReassemblyTemplate(rule, 3).toString());
+	}
+
+	@Test
+	void compiledDecompositionsShareTemplates() throws Exception {
+		Engine engine = new Engine(BundledScript.read());
+		Session session = engine.newSession(1);
+		for (Keyword key : BundledScript.keywords()) {
+			for (Decomposition d : key.getRules()) {
+				Decomposition compiled = d.compile(new GlobPattern(d
+						.getRule()));
+				int rules = d.getReassemblyRules().size();
+				Set<ReassemblyTemplate> seen = Collections.newSetFromMap(
+						new IdentityHashMap<ReassemblyTemplate, Boolean>());
+				for (int i = 0; i < rules * 4; i++) {
+					seen.add((i % 2 == 0 ? d : compiled).getTemplate(session));
+				}
+				// one template for each rule, not one for each copy
+				assertTrue(seen.size() <= rules, d.getRule());
+			}
+		}
+	}
+
+	private static void assertRenders(String expected, String rule,
+			int groupCount) {
+		assertEquals(expected, new ReassemblyTemplate(rule, groupCount).render(
+				"key", g(groupCount)));
+	}
+
+	/**
+	 * The groups "a" to the n:th letter, indexed from 1.
+	 */
+	private static String[] g(int n) {
+		String[] groups = new String[n + 1];
+		for (int i = 1; i <= n; i++) {
+			groups[i] = String.valueOf((char) ('a' + i - 1));
+		}
+		return groups;
+	}
+}
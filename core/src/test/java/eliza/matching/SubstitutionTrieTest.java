@@ -0,0 +1,200 @@
+package eliza.matching;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import eliza.BundledScript;
+import eliza.wrapper.SubstitutionRule;
+
+/**
+ * Checks SubstitutionTrie against the rule by rule regular expression
+ * substitution it replaced.
+ *
+ * @author Ole & Peter
+ *
+ */
+class SubstitutionTrieTest {
+	// Words of the substitution rules of the bundled script, and others.
+	private static final String[] WORDS = { "i", "am", "you", "are", "my",
+			"me", "myself", "your", "yourself", "he", "is", "she", "they",
+			"i'm", "also", "so", "indeed", "don't", "can't", "i've",
+			"might've", "you're", "x", "mother's", "a", "amiss", "mine" };
+	// What the words of an input are separated by.
+	private static final String[] SEPARATORS = { " ", " ", " ", ", ", "'",
+			"." };
+
+	@Test
+	void appliesPreSubstitutionsAsBefore() throws Exception {
+		assertSubstitutesAsRegex(BundledScript.preSubstitutionRules(), 3);
+	}
+
+	@Test
+	void appliesPostSubstitutionsAsBefore() throws Exception {
+		assertSubstitutesAsRegex(BundledScript.postSubstitutionRules(), 4);
+	}
+
+	@Test
+	void appliesOverlappingRulesInScriptOrder() {
+		// am is listed first, so "i am" is left with no "am" to replace
+		assertEquals("i are here",
+				apply("i am here", "am", "are", "i am", "you are"));
+		assertEquals("you are here",
+				apply("i am here", "i am", "you are", "am", "are"));
+		// a later phrase starting further left is still applied
+		assertEquals("a x", apply("a b c", "b c", "x", "a b", "y"));
+		// b c is blocked by c d, which leaves a b to be applied
+		assertEquals("z y", apply("a b c d", "c d", "y", "b c", "x", "a b",
+				"z"));
+		// a phrase overlapping itself is replaced from the left
+		assertEquals("x a", apply("a a a", "a a", "x"));
+		assertEquals("x x", apply("a a a a", "a a", "x"));
+		// a deleted phrase blocks the rules after it as well
+		assertEquals("a ", apply("a b c", "b c", "_", "a b", "x"));
+	}
+
+	@Test
+	void appliesRandomRulesAsBefore() {
+		String[] phrases = { "a", "b", "c", "a b", "b c", "c a", "a a",
+				"a b c", "b a b", "ab" };
+		String[] replacements = { "x", "y z", "_", "a", "b c" };
+		Random random = new Random(5);
+		for (int n = 0; n < 2000; n++) {
+			List<SubstitutionRule> rules = new ArrayList<SubstitutionRule>();
+			StringBuilder listed = new StringBuilder();
+			int count = 1 + random.nextInt(6);
+			for (int i = 0; i < count; i++) {
+				String find = phrases[random.nextInt(phrases.length)];
+				String replacement = replacements[random
+						.nextInt(replacements.length)];
+				rules.add(new SubstitutionRule(find, replacement));
+				listed.append(find).append('>').append(replacement)
+						.append("; ");
+			}
+			SubstitutionTrie trie = new SubstitutionTrie(rules);
+			for (int k = 0; k < 20; k++) {
+				StringBuilder input = new StringBuilder();
+				int words = 1 + random.nextInt(8);
+				for (int i = 0; i < words; i++) {
+					if (i > 0)
+						input.append(i % 3 == 0 ? ", " : " ");
+					input.append("abc".charAt(random.nextInt(3)));
+				}
+				String str = input.toString();
+				String expected = applySubstitution(str, rules);
+				assertEquals(expected, trie.apply(str), listed + str);
+				assertEquals(expected, applyToChars(trie, str), str);
+			}
+		}
+	}
+
+	@Test
+	void appliesToCharsAsToStrings() {
+		SubstitutionTrie trie = trie("i am", "you are", "am", "_");
+		char[] src = "so i am, am i".toCharArray();
+		char[] dst = new char[32];
+		int written = trie.apply(src, src.length, dst);
+		assertEquals("so you are,  i", new String(dst, 0, written));
+		// the unused end of src is ignored
+		written = trie.apply(src, 7, dst);
+		assertEquals("so you are", new String(dst, 0, written));
+		// too small a result array is reported rather than overrun
+		assertEquals(-1, trie.apply(src, src.length, new char[13]));
+		assertEquals(14, trie.apply(src, src.length, new char[14]));
+	}
+
+	@Test
+	void neverSubstitutesAReplacement() throws Exception {
+		SubstitutionTrie post = new SubstitutionTrie(
+				BundledScript.postSubstitutionRules());
+		assertEquals("you are sure I am", post.apply("i am sure you are"));
+		assertEquals("your yourself", post.apply("my myself"));
+	}
+
+	@Test
+	void findsWordBoundariesAsRegex() throws Exception {
+		SubstitutionTrie pre = new SubstitutionTrie(
+				BundledScript.preSubstitutionRules());
+		// a combining mark is part of the word of the letter before it
+		assertEquals("si\u0307so", pre.apply("si\u0307so"));
+		// as is a letter outside the Basic Multilingual Plane
+		assertEquals("\ud835\udc9cso", pre.apply("\ud835\udc9cso"));
+		assertEquals("caf\u00e9  x", pre.apply("caf\u00e9 so x"));
+	}
+
+	@Test
+	void returnsTheSameStringIfNoRuleApplies() throws Exception {
+		SubstitutionTrie post = new SubstitutionTrie(
+				BundledScript.postSubstitutionRules());
+		String str = "amiss mine";
+		assertSame(str, post.apply(str));
+	}
+
+	private static void assertSubstitutesAsRegex(List<SubstitutionRule> rules,
+			long seed) {
+		SubstitutionTrie trie = new SubstitutionTrie(rules);
+		Random random = new Random(seed);
+		for (int n = 0; n < 20000; n++) {
+			StringBuilder input = new StringBuilder();
+			int count = 1 + random.nextInt(8);
+			for (int i = 0; i < count; i++) {
+				if (i > 0)
+					input.append(SEPARATORS[random.nextInt(SEPARATORS.length)]);
+				input.append(WORDS[random.nextInt(WORDS.length)]);
+			}
+			String str = input.toString();
+			assertEquals(applySubstitution(str, rules), trie.apply(str), str);
+		}
+	}
+
+	/**
+	 * Apply rules given as pairs of a phrase and its replacement.
+	 */
+	private static String apply(String str, String... findAndReplace) {
+		return trie(findAndReplace).apply(str);
+	}
+
+	private static SubstitutionTrie trie(String... findAndReplace) {
+		List<SubstitutionRule> rules = new ArrayList<SubstitutionRule>();
+		for (int i = 0; i < findAndReplace.length; i += 2)
+			rules.add(new SubstitutionRule(findAndReplace[i],
+					findAndReplace[i + 1]));
+		return new SubstitutionTrie(rules);
+	}
+
+	private static String applyToChars(SubstitutionTrie trie, String str) {
+		char[] dst = new char[4 * str.length() + 8];
+		int written = trie.apply(str.toCharArray(), str.length(), dst);
+		return new String(Arrays.copyOf(dst, written));
+	}
+
+	/**
+	 * The substitution as it was done before SubstitutionTrie: each rule in
+	 * turn, with replacements marked by underscores so that no later rule
+	 * applies to them.
+	 */
+	private static String applySubstitution(String str,
+			List<SubstitutionRule> rules) {
+		for (SubstitutionRule rule : rules) {
+			String find = rule.getFind().toLowerCase();
+			if (!str.contains(find))
+				continue;
+			String replacement = rule.getReplacement();
+			if (replacement.equals("_"))
+				replacement = "";
+			else
+				replacement = "_" + replacement;
+			replacement = replacement.replace(" ", " _");
+			str = Pattern.compile("\\b" + find + "\\b").matcher(str)
+					.replaceAll(replacement);
+		}
+		return str.replace("_", "");
+	}
+}
@@ -0,0 +1,48 @@
+package eliza.matching;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the stems SuffixStemmer gives inflected words, and the words it
+ * leaves alone.
+ *
+ * @author Ole & Peter
+ *
+ */
+class SuffixStemmerTest {
+
+	@Test
+	void givesInflectionsTheStemOfTheWord() {
+		assertStems("believ", "believe", "believes", "believed", "believing");
+		assertStems("happ", "happy", "happiness", "happily");
+		assertStems("dream", "dream", "dreams", "dreaming", "dreamingly");
+	}
+
+	@Test
+	void keepsShortWordsAndDoubleS() {
+		assertStems("less", "less");
+		assertStems("lesson", "lesson");
+		// cutting "ed" would leave too short a stem
+		assertStems("lie", "lies");
+		assertStems("lied", "lied");
+		assertStems("is", "is");
+		assertStems("as", "as");
+		assertStems("sad", "sad");
+	}
+
+	@Test
+	void findsTheStemOfAWordWithinAText() {
+		String text = "i believed it";
+		assertEquals(6, SuffixStemmer.stemLength(text, 2, 10));
+		assertEquals(1, SuffixStemmer.stemLength(text, 0, 1));
+	}
+
+	private static void assertStems(String stem, String... words) {
+		for (String word : words) {
+			int length = SuffixStemmer.stemLength(word, 0, word.length());
+			assertEquals(stem, word.substring(0, length), word);
+		}
+	}
+}
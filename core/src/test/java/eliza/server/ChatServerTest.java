@@ -0,0 +1,42 @@
+package eliza.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import eliza.BundledScript;
+import eliza.Engine;
+
+/**
+ * Checks that stopping a ChatServer leaves a SessionManager it was given
+ * running, since other servers may share it.
+ *
+ * @author Ole & Peter
+ *
+ */
+class ChatServerTest {
+	// The shortest timeout the evictor checks for at its own pace.
+	private static final long IDLE_TIMEOUT = 1000;
+
+	@Test
+	void leavesSharedSessionsRunningWhenStopped() throws Exception {
+		SessionManager sessions = new SessionManager(new Engine(BundledScript
+				.read()), IDLE_TIMEOUT);
+		try {
+			ChatServer server = new ChatServer(sessions, 0, null);
+			server.start();
+			server.stop(0);
+			sessions.open();
+			assertEquals(1, sessions.size());
+			// idle sessions are still evicted
+			long deadline = System.currentTimeMillis() + 5 * IDLE_TIMEOUT;
+			while (sessions.size() > 0
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			assertEquals(0, sessions.size());
+		} finally {
+			sessions.shutdown();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package eliza.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.file.Path;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import eliza.BundledScript;
+import eliza.Engine;
+import eliza.EngineRegistry;
+
+/**
+ * Checks that a SessionManager restores a stored session for the tenant it
+ * was opened for, whichever tenants are registered after a restart.
+ *
+ * @author Ole & Peter
+ *
+ */
+class SessionManagerTest {
+	private static final long IDLE_TIMEOUT = 60000;
+	private static final long FLUSH_MILLIS = 60000;
+
+	@TempDir
+	Path folder;
+
+	@Test
+	void restoresASessionForItsTenantByName() throws Exception {
+		String file = folder.resolve("sessions.store").toString();
+		String id = openAndSave(file, "alice", "bob");
+
+		// the tenants are registered in another order, and with another one
+		EngineRegistry registry = registry("bob", "carol");
+		SessionStore store = store(file);
+		SessionManager sessions = new SessionManager(engine(), registry,
+				IDLE_TIMEOUT, store);
+		try {
+			assertSame(registry.get("bob"), sessions.getSessionEngine(id));
+			assertNotNull(sessions.get(id));
+		} finally {
+			sessions.shutdown();
+			store.close();
+		}
+	}
+
+	@Test
+	void dropsASessionWhoseTenantIsGone() throws Exception {
+		String file = folder.resolve("sessions.store").toString();
+		String id = openAndSave(file, "alice", "bob");
+
+		SessionStore store = store(file);
+		SessionManager sessions = new SessionManager(engine(),
+				registry("alice"), IDLE_TIMEOUT, store);
+		try {
+			assertNull(sessions.get(id));
+			assertEquals(-1, store.find(UUID.fromString(id)));
+		} finally {
+			sessions.shutdown();
+			store.close();
+		}
+	}
+
+	/**
+	 * Open a session for the last of some tenants, and save it to a store.
+	 *
+	 * @return The id of the session.
+	 */
+	private String openAndSave(String file, String... tenants)
+			throws Exception {
+		EngineRegistry registry = registry(tenants);
+		SessionStore store = store(file);
+		SessionManager sessions = new SessionManager(engine(), registry,
+				IDLE_TIMEOUT, store);
+		try {
+			String tenant = tenants[tenants.length - 1];
+			String id = sessions.open(tenant, 1L);
+			registry.get(tenant).generateResponse(sessions.get(id),
+					"I believe you are sad");
+			sessions.save(id);
+			return id;
+		} finally {
+			sessions.shutdown();
+			store.close();
+		}
+	}
+
+	private static EngineRegistry registry(String... tenants)
+			throws Exception {
+		EngineRegistry registry = new EngineRegistry();
+		for (String tenant : tenants) {
+			registry.load(tenant, BundledScript.path().toString());
+		}
+		return registry;
+	}
+
+	private static Engine engine() throws Exception {
+		return new Engine(BundledScript.read());
+	}
+
+	private static SessionStore store(String file) throws Exception {
+		return new SessionStore(file, 100, 200, FLUSH_MILLIS);
+	}
+}
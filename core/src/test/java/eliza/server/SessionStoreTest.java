@@ -0,0 +1,234 @@
+package eliza.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import eliza.BundledScript;
+import eliza.Engine;
+import eliza.Script;
+import eliza.Session;
+
+/**
+ * Checks that a SessionStore can be reopened after the script changes, that
+ * lookups stay short however many sessions have come and gone, and that
+ * records are expired safely and know their tenants by name.
+ *
+ * @author Ole & Peter
+ *
+ */
+class SessionStoreTest {
+	// How often the stores of the tests are forced to disk, in milliseconds.
+	private static final long FLUSH_MILLIS = 60000;
+
+	@TempDir
+	Path folder;
+
+	@Test
+	void reopensAStoreWrittenForAnotherScript() throws Exception {
+		Engine engine = new Engine(BundledScript.read());
+		Session session = engine.newSession(1);
+		for (int i = 0; i < 20; i++) {
+			engine.generateResponse(session, "I believe you are sad");
+		}
+		int cursors = session.getCursorCount();
+		String file = folder.resolve("sessions.store").toString();
+		UUID id = UUID.randomUUID();
+		SessionStore store = new SessionStore(file, 100, cursors, FLUSH_MILLIS);
+		int slot = store.insert(id, 0);
+		store.write(slot, id, session);
+		store.close();
+
+		// a d: line has since been added to the script
+		store = new SessionStore(file, 50, cursors + 1, FLUSH_MILLIS);
+		try {
+			assertEquals(100, store.getCapacity());
+			assertEquals(slot, store.find(id));
+			Session restored = engine.newSession(2);
+			store.read(slot, restored);
+			for (int i = 0; i < cursors; i++) {
+				assertEquals(session.getCursor(i), restored.getCursor(i));
+			}
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	void countsSessionsWhoseCursorsNoLongerFit() throws Exception {
+		String text = new String(Files.readAllBytes(BundledScript.path()),
+				StandardCharsets.UTF_8);
+		Path script = folder.resolve("script.txt");
+		Files.write(script, text.getBytes(StandardCharsets.UTF_8));
+		Engine engine = new Engine(script.toString());
+		Session session = engine.newSession(1);
+		engine.generateResponse(session, "I believe you are sad");
+		int cursors = session.getCursorCount();
+		SessionStore tight = new SessionStore(folder.resolve("tight.store")
+				.toString(), 10, cursors, FLUSH_MILLIS);
+		SessionStore roomy = new SessionStore(folder.resolve("roomy.store")
+				.toString(), 10, 2 * cursors, FLUSH_MILLIS);
+		try {
+			// a reload adds a reassembly list
+			String added = text.replace("d:I believe *",
+					"d:* I really believe *\r\nr:Really?\r\nd:I believe *");
+			Files.write(script, added.getBytes(StandardCharsets.UTF_8));
+			engine.setScript(new Script(script.toString()));
+			engine.generateResponse(session, "I believe you are sad");
+			assertEquals(cursors + 1, session.getCursorCount());
+
+			UUID id = UUID.randomUUID();
+			int slot = tight.insert(id, 0);
+			tight.write(slot, id, session);
+			assertEquals(1, tight.getUnsavedCount());
+			slot = roomy.insert(id, 0);
+			roomy.write(slot, id, session);
+			assertEquals(0, roomy.getUnsavedCount());
+			Session restored = engine.newSession(2);
+			roomy.read(slot, restored);
+			for (int i = 0; i < cursors + 1; i++) {
+				assertEquals(session.getCursor(i), restored.getCursor(i));
+			}
+		} finally {
+			tight.close();
+			roomy.close();
+		}
+	}
+
+	@Test
+	void boundsLookupsAfterManyRemovals() throws Exception {
+		String file = folder.resolve("churn.store").toString();
+		int capacity = 1000;
+		Random random = new Random(18);
+		ArrayList<UUID> kept = new ArrayList<UUID>();
+		SessionStore store = new SessionStore(file, capacity, 4, FLUSH_MILLIS);
+		try {
+			for (int i = 0; i < 200000; i++) {
+				UUID id = new UUID(random.nextLong(), random.nextLong());
+				int slot = store.insert(id, 0);
+				if (kept.size() < capacity / 2 && i % 2 == 0)
+					kept.add(id);
+				else
+					store.remove(slot);
+			}
+			// every slot but the kept ones has been removed at some point
+			assertTrue(store.getProbeLimit() < capacity / 10,
+					"probe limit " + store.getProbeLimit());
+			assertAllFound(store, kept, random);
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	void expiresRecordsABatchAtATime() throws Exception {
+		String file = folder.resolve("expiry.store").toString();
+		SessionStore store = new SessionStore(file, 100, 4, FLUSH_MILLIS);
+		try {
+			ArrayList<UUID> ids = new ArrayList<UUID>();
+			for (int i = 0; i < 50; i++) {
+				UUID id = UUID.randomUUID();
+				store.insert(id, 0);
+				ids.add(id);
+			}
+			long later = System.currentTimeMillis() + 1000;
+			int removed = 0;
+			for (int pass = 0; pass < 4; pass++) {
+				int batch = store.removeOlderThan(later, 25);
+				assertTrue(batch <= 25);
+				removed += batch;
+			}
+			assertEquals(50, removed);
+			assertEquals(0, store.removeOlderThan(later, 100));
+			for (UUID id : ids) {
+				assertEquals(-1, store.find(id));
+			}
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	void doesNotWriteToARecordGivenToAnotherSession() throws Exception {
+		String file = folder.resolve("reused.store").toString();
+		Session session = new Engine(BundledScript.read()).newSession(1);
+		SessionStore store = new SessionStore(file, 1, 100, FLUSH_MILLIS);
+		try {
+			UUID expired = UUID.randomUUID();
+			int slot = store.insert(expired, 0);
+			assertTrue(store.write(slot, expired, session));
+			store.removeOlderThan(System.currentTimeMillis() + 1000, 1);
+			assertFalse(store.write(slot, expired, session));
+			// the only slot now belongs to another session
+			UUID other = UUID.randomUUID();
+			assertEquals(slot, store.insert(other, 0));
+			assertFalse(store.write(slot, expired, session));
+			assertTrue(store.write(slot, other, session));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	void keepsTheNamesOfTenants() throws Exception {
+		String file = folder.resolve("tenants.store").toString();
+		SessionStore store = new SessionStore(file, 10, 4, FLUSH_MILLIS);
+		int bob = store.getTenantId("bob");
+		int alice = store.getTenantId("alice");
+		assertEquals(0, store.getTenantId(null));
+		assertEquals(bob, store.getTenantId("bob"));
+		store.close();
+		store = new SessionStore(file, 10, 4, FLUSH_MILLIS);
+		try {
+			assertEquals("bob", store.getTenantName(bob));
+			assertEquals("alice", store.getTenantName(alice));
+			assertEquals(alice, store.getTenantId("alice"));
+			assertNull(store.getTenantName(0));
+			assertNull(store.getTenantName(3));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	void rejectsACorruptProbeLimit() throws Exception {
+		Path path = folder.resolve("corrupt.store");
+		SessionStore store = new SessionStore(path.toString(), 100, 4,
+				FLUSH_MILLIS);
+		store.insert(UUID.randomUUID(), 0);
+		store.close();
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.allocate(4), 16);
+		}
+		assertThrows(IOException.class, () -> new SessionStore(path
+				.toString(), 100, 4, FLUSH_MILLIS));
+	}
+
+	private static void assertAllFound(SessionStore store,
+			ArrayList<UUID> kept, Random random) {
+		for (UUID id : kept) {
+			assertTrue(store.find(id) >= 0, id.toString());
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(-1, store.find(new UUID(random.nextLong(), random
+					.nextLong())));
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package eliza.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import eliza.BundledScript;
+import eliza.Engine;
+
+/**
+ * Checks the frames a SidecarServer answers, the order it answers them in, and
+ * that it stops reading from a client which is too far ahead.
+ *
+ * @author Ole & Peter
+ *
+ */
+class SidecarServerTest {
+	private static final long IDLE_TIMEOUT = 60000;
+	// The size of the server's pooled buffers.
+	private static final int BUFFER_SIZE = 8 * 1024;
+	// The number of unanswered requests past which a connection is not read.
+	private static final int MAX_PENDING = 256;
+
+	@TempDir
+	Path folder;
+
+	private SessionManager sessions;
+	private SidecarServer server;
+
+	@AfterEach
+	void stop() throws Exception {
+		if (server != null)
+			server.stop();
+		if (sessions != null)
+			sessions.shutdown();
+	}
+
+	@Test
+	void opensAnswersAndClosesSessions() throws Exception {
+		try (SocketChannel client = start(2)) {
+			Response opened = call(client, SidecarServer.OPEN, new UUID(0, 0),
+					"");
+			assertEquals(SidecarServer.OK, opened.status);
+			assertTrue(opened.alive);
+			assertFalse(opened.text.isEmpty());
+			UUID id = opened.id;
+
+			Response reply = call(client, SidecarServer.INPUT, id,
+					"I believe you are sad");
+			assertEquals(SidecarServer.OK, reply.status);
+			assertTrue(reply.alive);
+			assertEquals(id, reply.id);
+			assertFalse(reply.text.isEmpty());
+
+			assertEquals(SidecarServer.OK, call(client, SidecarServer.CLOSE,
+					id, "").status);
+			assertEquals(SidecarServer.NOT_FOUND, call(client,
+					SidecarServer.INPUT, id, "hello").status);
+			assertEquals(SidecarServer.NOT_FOUND, call(client,
+					SidecarServer.CLOSE, id, "").status);
+			// there are no tenants
+			assertEquals(SidecarServer.NOT_FOUND, call(client,
+					SidecarServer.OPEN, id, "bob").status);
+			assertEquals(SidecarServer.BAD_REQUEST, call(client, (byte) 9,
+					id, "").status);
+		}
+	}
+
+	@Test
+	void answersPipelinedRequestsInOrder() throws Exception {
+		try (SocketChannel client = start(4)) {
+			UUID open = call(client, SidecarServer.OPEN, new UUID(0, 0), "").id;
+			ArrayList<UUID> sent = new ArrayList<UUID>();
+			for (int i = 0; i < 100; i++) {
+				UUID id = i % 3 == 0 ? open : UUID.randomUUID();
+				send(client, SidecarServer.INPUT, id, "I believe you");
+				sent.add(id);
+			}
+			for (UUID id : sent) {
+				Response response = receive(client);
+				assertEquals(id, response.id);
+				assertEquals(id == open ? SidecarServer.OK
+						: SidecarServer.NOT_FOUND, response.status);
+			}
+		}
+	}
+
+	@Test
+	void readsAFrameLargerThanABuffer() throws Exception {
+		try (SocketChannel client = start(2)) {
+			UUID id = call(client, SidecarServer.OPEN, new UUID(0, 0), "").id;
+			String input = "I believe " + "you are sad ".repeat(BUFFER_SIZE
+					/ 6);
+			assertTrue(input.length() > BUFFER_SIZE);
+			Response reply = call(client, SidecarServer.INPUT, id, input);
+			assertEquals(SidecarServer.OK, reply.status);
+			assertEquals(id, reply.id);
+			// and the next frame after it
+			assertEquals(SidecarServer.OK, call(client, SidecarServer.INPUT,
+					id, "I believe you").status);
+		}
+	}
+
+	@Test
+	void stopsReadingFromAClientTooFarAhead() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		sessions = new SessionManager(new Engine(BundledScript.read()),
+				IDLE_TIMEOUT) {
+			@Override
+			public boolean close(String id) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.close(id);
+			}
+		};
+		try (SocketChannel client = connect(1)) {
+			// the only worker waits in the first request
+			send(client, SidecarServer.CLOSE, UUID.randomUUID(), "");
+			client.configureBlocking(false);
+			ArrayList<UUID> sent = new ArrayList<UUID>();
+			ByteBuffer partial = null;
+			while (sent.size() < 100000) {
+				UUID id = UUID.randomUUID();
+				ByteBuffer frame = frame(SidecarServer.INPUT, id, "");
+				client.write(frame);
+				if (frame.position() == 0)
+					break;
+				sent.add(id);
+				if (frame.hasRemaining()) {
+					partial = frame;
+					break;
+				}
+			}
+			// the socket filled up once the server stopped reading
+			assertTrue(sent.size() > MAX_PENDING, "sent " + sent.size());
+			assertTrue(sent.size() < 100000, "sent " + sent.size());
+			release.countDown();
+			client.configureBlocking(true);
+			while (partial != null && partial.hasRemaining()) {
+				client.write(partial);
+			}
+			assertEquals(SidecarServer.NOT_FOUND, receive(client).status);
+			for (UUID id : sent) {
+				Response response = receive(client);
+				assertEquals(id, response.id);
+				assertEquals(SidecarServer.NOT_FOUND, response.status);
+			}
+		}
+	}
+
+	@Test
+	void closesAConnectionWithABadLength() throws Exception {
+		for (int length : new int[] { 3, SidecarServer.MAX_REQUEST_LENGTH + 1,
+				-1 }) {
+			try (SocketChannel client = start(1)) {
+				ByteBuffer frame = ByteBuffer.allocate(4 + 17);
+				frame.putInt(length).put(SidecarServer.INPUT).putLong(1)
+						.putLong(2).flip();
+				client.write(frame);
+				assertEquals(-1, client.read(ByteBuffer.allocate(64)));
+			}
+			server.stop();
+			sessions.shutdown();
+			server = null;
+			sessions = null;
+		}
+	}
+
+	/**
+	 * Start a server with the bundled script and connect to it.
+	 */
+	private SocketChannel start(int workers) throws Exception {
+		sessions = new SessionManager(new Engine(BundledScript.read()),
+				IDLE_TIMEOUT);
+		return connect(workers);
+	}
+
+	private SocketChannel connect(int workers) throws Exception {
+		String socket = folder.resolve("eliza.sock").toString();
+		server = new SidecarServer(sessions, socket, workers);
+		server.start();
+		SocketChannel client = SocketChannel
+				.open(StandardProtocolFamily.UNIX);
+		client.connect(UnixDomainSocketAddress.of(socket));
+		return client;
+	}
+
+	private static Response call(SocketChannel client, byte type, UUID id,
+			String text) throws IOException {
+		send(client, type, id, text);
+		return receive(client);
+	}
+
+	private static void send(SocketChannel client, byte type, UUID id,
+			String text) throws IOException {
+		ByteBuffer frame = frame(type, id, text);
+		while (frame.hasRemaining()) {
+			client.write(frame);
+		}
+	}
+
+	private static ByteBuffer frame(byte type, UUID id, String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = ByteBuffer.allocate(4
+				+ SidecarServer.REQUEST_HEADER_LENGTH + bytes.length);
+		frame.putInt(SidecarServer.REQUEST_HEADER_LENGTH + bytes.length)
+				.put(type).putLong(id.getMostSignificantBits()).putLong(
+						id.getLeastSignificantBits()).put(bytes).flip();
+		return frame;
+	}
+
+	private static Response receive(SocketChannel client) throws IOException {
+		ByteBuffer length = readFully(client, 4);
+		ByteBuffer body = readFully(client, length.getInt());
+		byte status = body.get();
+		boolean alive = body.get() != 0;
+		UUID id = new UUID(body.getLong(), body.getLong());
+		String text = StandardCharsets.UTF_8.decode(body).toString();
+		return new Response(status, alive, id, text);
+	}
+
+	private static ByteBuffer readFully(SocketChannel client, int length)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (client.read(buffer) < 0)
+				throw new EOFException();
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * A response frame.
+	 */
+	private static class Response {
+		private final byte status;
+		private final boolean alive;
+		private final UUID id;
+		private final String text;
+
+		private Response(byte status, boolean alive, UUID id, String text) {
+			this.status = status;
+			this.alive = alive;
+			this.id = id;
+			this.text = text;
+		}
+	}
+}
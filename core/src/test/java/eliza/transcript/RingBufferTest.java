@@ -0,0 +1,80 @@
+package eliza.transcript;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a RingBuffer keeps the order of each producer, loses nothing
+ * when many threads add at once, and refuses elements when it is full.
+ *
+ * @author Ole & Peter
+ *
+ */
+class RingBufferTest {
+
+	@Test
+	void refusesElementsWhenFull() {
+		RingBuffer<Integer> buffer = new RingBuffer<Integer>(3);
+		assertEquals(4, buffer.capacity());
+		assertTrue(buffer.isEmpty());
+		assertNull(buffer.poll());
+		for (int i = 0; i < 4; i++) {
+			assertTrue(buffer.offer(i));
+		}
+		assertFalse(buffer.offer(4));
+		assertFalse(buffer.isEmpty());
+		assertEquals(0, buffer.poll());
+		assertTrue(buffer.offer(4));
+		assertFalse(buffer.offer(5));
+		for (int i = 1; i <= 4; i++) {
+			assertEquals(i, buffer.poll());
+		}
+		assertTrue(buffer.isEmpty());
+		assertNull(buffer.poll());
+	}
+
+	@Test
+	void takesElementsFromManyThreads() throws Exception {
+		int producers = 4;
+		int count = 20000;
+		RingBuffer<int[]> buffer = new RingBuffer<int[]>(64);
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < count; i++) {
+					while (!buffer.offer(new int[] { producer, i })) {
+						Thread.yield();
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		// the next element expected from each producer
+		int[] next = new int[producers];
+		for (int taken = 0; taken < producers * count;) {
+			int[] element = buffer.poll();
+			if (element == null) {
+				Thread.yield();
+				continue;
+			}
+			assertEquals(next[element[0]], element[1]);
+			next[element[0]]++;
+			taken++;
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(buffer.isEmpty());
+		for (int p = 0; p < producers; p++) {
+			assertEquals(count, next[p]);
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package eliza.transcript;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import eliza.transcript.TranscriptLogger.OverflowPolicy;
+
+/**
+ * Checks that a TranscriptLogger writes every record it accepts, counts the
+ * ones it does not, and rotates its log without losing any.
+ *
+ * @author Ole & Peter
+ *
+ */
+class TranscriptLoggerTest {
+	// A size the logs of the tests never reach.
+	private static final long NO_ROTATION = Long.MAX_VALUE;
+	private static final int THREADS = 4;
+	private static final int RECORDS = 5000;
+
+	@TempDir
+	Path folder;
+
+	@Test
+	void writesEverythingLoggedBeforeClose() throws Exception {
+		Path log = folder.resolve("transcript.log");
+		TranscriptLogger logger = new TranscriptLogger(log.toString(),
+				NO_ROTATION, false, 1024, OverflowPolicy.BLOCK);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(logger.log("s", "input " + i, "output", null, i, i + 1));
+		}
+		logger.close();
+		assertEquals(100, logger.getWritten());
+		List<String> lines = Files.readAllLines(log);
+		assertEquals(100, lines.size());
+		assertEquals("{\"session\":\"s\",\"received\":7,\"replied\":8,"
+				+ "\"keyword\":null,\"input\":\"input 7\","
+				+ "\"output\":\"output\"}", lines.get(7));
+		// nothing is taken after close
+		assertFalse(logger.log("s", "late", "output", null, 0, 0));
+		assertEquals(1, logger.getDropped());
+		assertNull(logger.getError());
+	}
+
+	@Test
+	void blockedCallersLoseNothing() throws Exception {
+		Path log = folder.resolve("transcript.log");
+		TranscriptLogger logger = new TranscriptLogger(log.toString(),
+				NO_ROTATION, false, 2, OverflowPolicy.BLOCK);
+		assertEquals(THREADS * RECORDS, logConcurrently(logger));
+		logger.close();
+		assertEquals(0, logger.getDropped());
+		assertEquals(THREADS * RECORDS, logger.getWritten());
+		assertEquals(THREADS * RECORDS, Files.readAllLines(log).size());
+	}
+
+	@Test
+	void droppedRecordsAreCounted() throws Exception {
+		Path log = folder.resolve("transcript.log");
+		TranscriptLogger logger = new TranscriptLogger(log.toString(),
+				NO_ROTATION, false, 2, OverflowPolicy.DROP);
+		long accepted = logConcurrently(logger);
+		logger.close();
+		// how many are dropped depends on how fast the writer is
+		assertEquals(accepted, logger.getWritten());
+		assertEquals(THREADS * RECORDS - accepted, logger.getDropped());
+		assertEquals(accepted, Files.readAllLines(log).size());
+	}
+
+	@Test
+	void rotatesAndCompressesTheLog() throws Exception {
+		Path log = folder.resolve("transcript.log");
+		TranscriptLogger logger = new TranscriptLogger(log.toString(), 1000,
+				true, 1024, OverflowPolicy.BLOCK);
+		for (int i = 0; i < 200; i++) {
+			logger.log("s", "input " + i, "output", "key", i, i);
+			// a log is only rotated between batches
+			if (i % 20 == 19)
+				awaitWritten(logger, i + 1);
+		}
+		logger.close();
+		assertNull(logger.getError());
+		List<Path> rotated = files().stream().filter(p -> !p.equals(log))
+				.collect(Collectors.toList());
+		assertFalse(rotated.isEmpty());
+		int lines = Files.readAllLines(log).size();
+		for (Path file : rotated) {
+			assertTrue(file.toString().endsWith(".gz"), file.toString());
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(
+					new GZIPInputStream(Files.newInputStream(file)),
+					StandardCharsets.UTF_8))) {
+				long count = in.lines().count();
+				assertTrue(count > 0);
+				lines += count;
+			}
+		}
+		assertEquals(200, lines);
+	}
+
+	@Test
+	void keepsWritingWhenTheLogCannotBeRotated() throws Exception {
+		Path log = folder.resolve("transcript.log");
+		TranscriptLogger logger = new TranscriptLogger(log.toString(), 1,
+				false, 1024, OverflowPolicy.BLOCK);
+		logger.log("s", "first", "output", null, 0, 0);
+		awaitWritten(logger, 1);
+		// the log cannot be renamed once it is gone
+		Files.delete(log);
+		logger.log("s", "second", "output", null, 0, 0);
+		logger.close();
+		assertTrue(logger.getError() instanceof NoSuchFileException);
+		assertEquals(0, logger.getDropped());
+		assertEquals(2, logger.getWritten());
+		List<String> lines = Files.readAllLines(log);
+		assertEquals(1, lines.size());
+		assertTrue(lines.get(0).contains("second"));
+		assertEquals(List.of(log), files());
+	}
+
+	/**
+	 * Log RECORDS records from each of THREADS threads at once.
+	 *
+	 * @return The number of records the logger accepted.
+	 */
+	private static long logConcurrently(TranscriptLogger logger)
+			throws InterruptedException {
+		AtomicLong accepted = new AtomicLong();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++) {
+			final String session = "session " + t;
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < RECORDS; i++) {
+					if (logger.log(session, "input " + i, "output", null, i,
+							i))
+						accepted.incrementAndGet();
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return accepted.get();
+	}
+
+	private static void awaitWritten(TranscriptLogger logger, long count)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (logger.getWritten() < count) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+	}
+
+	private List<Path> files() throws IOException {
+		try (Stream<Path> files = Files.list(folder)) {
+			return files.sorted().collect(Collectors.toList());
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package eliza.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+/**
+ * A corpus of recorded conversations to replay. The file has the same format
+ * as those replayed in batch mode: one utterance per line, and conversations
+ * separated by empty lines.
+ *
+ * @author Ole & Peter
+ *
+ */
+public class Corpus {
+	private final ArrayList<String[]> conversations = new ArrayList<String[]>();
+	private int utterances;
+
+	/**
+	 * Read a corpus file.
+	 *
+	 * @param filename
+	 *            The path of the corpus file.
+	 * @throws IOException
+	 *             If the file cannot be read or holds no utterances.
+	 */
+	public Corpus(String filename) throws IOException {
+		BufferedReader in = Files.newBufferedReader(Paths.get(filename),
+				StandardCharsets.UTF_8);
+		try {
+			ArrayList<String> lines = new ArrayList<String>();
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					add(lines);
+				} else {
+					lines.add(line);
+				}
+			}
+			add(lines);
+		} finally {
+			in.close();
+		}
+		if (conversations.isEmpty())
+			throw new IOException("The corpus " + filename
+					+ " holds no conversations.");
+	}
+
+	private void add(ArrayList<String> lines) {
+		if (lines.isEmpty())
+			return;
+		conversations.add(lines.toArray(new String[lines.size()]));
+		utterances += lines.size();
+		lines.clear();
+	}
+
+	/**
+	 * @return The number of conversations.
+	 */
+	public int size() {
+		return conversations.size();
+	}
+
+	/**
+	 * @return The number of utterances in all conversations.
+	 */
+	public int getUtterances() {
+		return utterances;
+	}
+
+	/**
+	 * @param i
+	 *            The index of a conversation.
+	 * @return The utterances of the conversation.
+	 */
+	public String[] get(int i) {
+		return conversations.get(i);
+	}
+}
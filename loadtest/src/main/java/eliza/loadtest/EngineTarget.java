@@ -0,0 +1,46 @@
+package eliza.loadtest;
+
+import eliza.Engine;
+import eliza.Session;
+
+/**
+ * A target holding conversations with an Engine in the same process, which
+ * measures the engine alone.
+ *
+ * @author Ole & Peter
+ *
+ */
+public class EngineTarget implements Target {
+	private final Engine engine;
+
+	/**
+	 * Creates a new EngineTarget.
+	 *
+	 * @param engine
+	 *            The engine to hold the conversations with.
+	 */
+	public EngineTarget(Engine engine) {
+		this.engine = engine;
+	}
+
+	public Conversation open() {
+		final Session session = engine.newSession();
+		engine.getWelcomeMessage(session);
+		return new Conversation() {
+			public String send(String input) {
+				return engine.generateResponse(session, input);
+			}
+
+			public boolean isAlive() {
+				return session.isAlive();
+			}
+
+			public void close() {
+				// the session is simply left to the garbage collector
+			}
+		};
+	}
+
+	public void close() {
+	}
+}
@@ -0,0 +1,140 @@
+package eliza.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+/**
+ * A target holding conversations with a server started with server=port,
+ * which measures the engine together with the HTTP layer.
+ *
+ * @author Ole & Peter
+ *
+ */
+public class HttpTarget implements Target {
+	private static final String CONTEXT = "/sessions";
+	// How long to wait for a reply before counting it as an error.
+	private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+	private final URI base;
+	private final HttpClient client;
+
+	/**
+	 * Creates a new HttpTarget.
+	 *
+	 * @param url
+	 *            The address of the server, for example http://localhost:8080.
+	 */
+	public HttpTarget(String url) {
+		if (url.endsWith("/"))
+			url = url.substring(0, url.length() - 1);
+		base = URI.create(url + CONTEXT);
+		client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(TIMEOUT).build();
+	}
+
+	public Conversation open() throws IOException {
+		String json = send(HttpRequest.newBuilder(base).POST(
+				HttpRequest.BodyPublishers.noBody()), 201);
+		final URI session = URI.create(base + "/" + field(json, "session"));
+		return new Conversation() {
+			private boolean alive = true;
+
+			public String send(String input) throws IOException {
+				String json = HttpTarget.this.send(HttpRequest.newBuilder(
+						session).POST(
+						HttpRequest.BodyPublishers.ofString(input,
+								StandardCharsets.UTF_8)), 200);
+				alive = !json.contains("\"alive\":false");
+				return field(json, "output");
+			}
+
+			public boolean isAlive() {
+				return alive;
+			}
+
+			public void close() throws IOException {
+				// the server closes a session once it has been told to quit
+				if (alive)
+					HttpTarget.this.send(HttpRequest.newBuilder(session)
+							.DELETE(), 204);
+				alive = false;
+			}
+		};
+	}
+
+	public void close() {
+	}
+
+	/**
+	 * Send a request and check the status of the reply.
+	 *
+	 * @param request
+	 *            The request to send.
+	 * @param status
+	 *            The status the reply should have.
+	 * @return The body of the reply.
+	 * @throws IOException
+	 *             If the request fails or the reply has another status.
+	 */
+	private String send(HttpRequest.Builder request, int status)
+			throws IOException {
+		HttpResponse<String> response;
+		try {
+			response = client.send(request.timeout(TIMEOUT).build(),
+					HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a reply.", e);
+		}
+		if (response.statusCode() != status)
+			throw new IOException("Unexpected status " + response.statusCode()
+					+ " from " + response.uri());
+		return response.body();
+	}
+
+	/**
+	 * Read a string field of a reply. The replies of the server are flat JSON
+	 * objects, so no general JSON parser is needed.
+	 *
+	 * @param json
+	 *            A reply.
+	 * @param name
+	 *            The name of the field.
+	 * @return The value of the field.
+	 * @throws IOException
+	 *             If the reply has no such field.
+	 */
+	static String field(String json, String name) throws IOException {
+		String key = "\"" + name + "\":\"";
+		int i = json.indexOf(key);
+		if (i < 0)
+			throw new IOException("No field " + name + " in reply: " + json);
+		StringBuilder value = new StringBuilder();
+		for (i += key.length(); i < json.length(); i++) {
+			char c = json.charAt(i);
+			if (c == '"')
+				return value.toString();
+			if (c == '\\' && i + 1 < json.length()) {
+				c = json.charAt(++i);
+				if (c == 'u' && i + 4 < json.length()) {
+					c = (char) Integer.parseInt(json.substring(i + 1, i + 5), 16);
+					i += 4;
+				} else if (c == 'n') {
+					c = '\n';
+				} else if (c == 't') {
+					c = '\t';
+				} else if (c == 'r') {
+					c = '\r';
+				}
+			}
+			value.append(c);
+		}
+		throw new IOException("Unterminated field " + name + " in reply: "
+				+ json);
+	}
+}
@@ -0,0 +1,157 @@
+package eliza.loadtest;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import eliza.metrics.LatencyHistogram;
+
+/**
+ * The measurements of one phase of a load test: the latency of every reply,
+ * and counts of conversations and errors. Any number of threads may record
+ * at once.
+ *
+ * @author Ole & Peter
+ *
+ */
+public class LoadStats {
+	private static final double NANOS_PER_MICRO = 1e3;
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LongAdder conversations = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final long start = System.nanoTime();
+	// The end of the phase, or 0 while it is running.
+	private volatile long end;
+
+	/**
+	 * Record a reply.
+	 *
+	 * @param nanos
+	 *            How long the reply took, in nanoseconds.
+	 */
+	public void reply(long nanos) {
+		latency.record(nanos);
+	}
+
+	/**
+	 * Count a finished conversation.
+	 */
+	public void conversation() {
+		conversations.increment();
+	}
+
+	/**
+	 * Count a failed request.
+	 */
+	public void error() {
+		errors.increment();
+	}
+
+	/**
+	 * End the phase. Replies recorded afterwards still count, but the
+	 * throughput is worked out over the phase as it was when it ended.
+	 */
+	public void end() {
+		end = System.nanoTime();
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	public long getReplies() {
+		return latency.getCount();
+	}
+
+	public long getConversations() {
+		return conversations.sum();
+	}
+
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	/**
+	 * @return The length of the phase in seconds.
+	 */
+	public double getSeconds() {
+		long stop = end == 0 ? System.nanoTime() : end;
+		return (stop - start) / 1e9;
+	}
+
+	/**
+	 * @return The number of replies per second.
+	 */
+	public double getThroughput() {
+		double seconds = getSeconds();
+		return seconds == 0 ? 0 : getReplies() / seconds;
+	}
+
+	/**
+	 * Print a summary of the measurements.
+	 *
+	 * @param out
+	 *            The stream to print to.
+	 */
+	public void print(PrintStream out) {
+		out.printf(Locale.ROOT, "Duration:      %.1f s%n", getSeconds());
+		out.printf(Locale.ROOT, "Conversations: %d%n", getConversations());
+		out.printf(Locale.ROOT, "Replies:       %d%n", getReplies());
+		out.printf(Locale.ROOT, "Errors:        %d%n", getErrors());
+		out.printf(Locale.ROOT, "Throughput:    %.1f replies/s%n",
+				getThroughput());
+		out.printf(Locale.ROOT, "Latency (us):  mean %.1f  p50 %.1f  "
+				+ "p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n", latency
+				.getMean()
+				/ NANOS_PER_MICRO, micros(latency.getMedian()),
+				micros(latency.get90thPercentile()), micros(latency
+						.get99thPercentile()), micros(latency
+						.get999thPercentile()), micros(latency.getMax()));
+	}
+
+	/**
+	 * Write the latency histogram as CSV, one line per non-empty bucket, with
+	 * the largest latency of the bucket in microseconds, the number of
+	 * replies in it and the percentage of replies at or below it.
+	 *
+	 * @param filename
+	 *            The path of the CSV file.
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 */
+	public void writeCsv(String filename) throws IOException {
+		SortedMap<Long, Long> distribution = latency.getDistribution();
+		long total = 0;
+		for (long count : distribution.values()) {
+			total += count;
+		}
+		PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths
+				.get(filename), StandardCharsets.UTF_8));
+		try {
+			out.println("latency_us,count,percentile");
+			long seen = 0;
+			for (Map.Entry<Long, Long> bucket : distribution.entrySet()) {
+				seen += bucket.getValue();
+				out.printf(Locale.ROOT, "%.3f,%d,%.4f%n", bucket.getKey()
+						/ NANOS_PER_MICRO, bucket.getValue(), 100.0 * seen
+						/ total);
+			}
+		} finally {
+			out.close();
+		}
+		if (out.checkError())
+			throw new IOException("Could not write " + filename);
+	}
+
+	private static double micros(long nanos) {
+		return nanos / NANOS_PER_MICRO;
+	}
+}
@@ -0,0 +1,281 @@
+package eliza.loadtest;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import eliza.Engine;
+import eliza.exception.FileFormatException;
+import eliza.methods.ThreadMethods;
+
+/**
+ * LoadTest holds many conversations at once with an Engine or a server and
+ * reports the latency of the replies. Each simulated user replays
+ * conversations of a recorded corpus on its own virtual thread, pausing
+ * between utterances as a person typing would.
+ *
+ * The test first runs for a warm-up period whose measurements are thrown
+ * away, then measures for the given duration. A summary is printed and the
+ * latency histogram is written to a CSV file.
+ *
+ * <pre>
+ * script=script.txt    the script of the in-process engine
+ * corpus=corpus.txt    the conversations to replay
+ * target=url           test a server started with server=port instead, or
+ *                      with unix:path one started with socket=path
+ * sessions=1000        the number of concurrent conversations
+ * duration=60          seconds to measure for
+ * warmup=10            seconds to run before measuring
+ * minthink=1500        shortest pause before an utterance, in milliseconds
+ * maxthink=2000        longest pause before an utterance, in milliseconds
+ * cache=1024           inputs whose analysis the in-process engine caches
+ * csv=loadtest.csv     where to write the latency histogram
+ * </pre>
+ *
+ * @author Ole & Peter
+ *
+ */
+public class LoadTest {
+	// The think time defaults are those of Runner's sleep option.
+	private static final int DEFAULT_MIN_THINK = 1500;
+	private static final int DEFAULT_MAX_THINK = 2000;
+	private static final String DEFAULT_SCRIPT = "script.txt";
+	private static final String DEFAULT_CORPUS = "corpus.txt";
+	private static final String DEFAULT_CSV = "loadtest.csv";
+	private static final int DEFAULT_SESSIONS = 1000;
+	private static final int DEFAULT_DURATION = 60;
+	private static final int DEFAULT_WARMUP = 10;
+	private static final int DEFAULT_CACHE_SIZE = 1024;
+	// Marks a target given as the path of a Unix domain socket.
+	private static final String UNIX_PREFIX = "unix:";
+	// Seconds to wait for the simulated users to stop.
+	private static final int SHUTDOWN_TIMEOUT = 30;
+
+	private final Target target;
+	private final Corpus corpus;
+	private final int minThink;
+	private final int maxThink;
+	// The measurements of the current phase.
+	private volatile LoadStats stats = new LoadStats();
+	private volatile boolean running = true;
+
+	/**
+	 * Creates a new LoadTest.
+	 *
+	 * @param target
+	 *            The target to hold the conversations with.
+	 * @param corpus
+	 *            The conversations to replay.
+	 * @param minThink
+	 *            The shortest pause before an utterance, in milliseconds.
+	 * @param maxThink
+	 *            The longest pause before an utterance, in milliseconds.
+	 */
+	public LoadTest(Target target, Corpus corpus, int minThink, int maxThink) {
+		this.target = target;
+		this.corpus = corpus;
+		this.minThink = minThink;
+		this.maxThink = Math.max(minThink, maxThink);
+	}
+
+	/**
+	 * Run the test.
+	 *
+	 * @param sessions
+	 *            The number of concurrent conversations.
+	 * @param warmup
+	 *            The number of seconds to run before measuring.
+	 * @param duration
+	 *            The number of seconds to measure for.
+	 * @return The measurements taken after the warm-up.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	public LoadStats run(int sessions, int warmup, int duration)
+			throws InterruptedException {
+		ExecutorService executor = ThreadMethods.newThreadPerTaskExecutor();
+		try {
+			for (int i = 0; i < sessions; i++) {
+				final int user = i;
+				executor.execute(() -> simulate(user));
+			}
+			Thread.sleep(warmup * 1000L);
+			LoadStats measured = new LoadStats();
+			stats = measured;
+			Thread.sleep(duration * 1000L);
+			measured.end();
+			return measured;
+		} finally {
+			running = false;
+			executor.shutdownNow();
+			executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Replay conversations of the corpus one after another until the test
+	 * ends. Each user starts at a different conversation.
+	 *
+	 * @param user
+	 *            The number of the simulated user.
+	 */
+	private void simulate(int user) {
+		int next = user % corpus.size();
+		try {
+			// spread the first utterances out over one think time
+			Thread.sleep(ThreadLocalRandom.current().nextInt(maxThink + 1));
+			while (running) {
+				converse(corpus.get(next));
+				next = (next + 1) % corpus.size();
+			}
+		} catch (InterruptedException e) {
+			// the test is over
+		}
+	}
+
+	/**
+	 * Hold one conversation. Requests cut off by the end of the test are not
+	 * counted as errors.
+	 *
+	 * @param utterances
+	 *            The utterances of the conversation.
+	 * @throws InterruptedException
+	 *             If the test ends while the user is thinking.
+	 */
+	private void converse(String[] utterances) throws InterruptedException {
+		Target.Conversation conversation;
+		try {
+			conversation = target.open();
+		} catch (IOException e) {
+			if (running)
+				stats.error();
+			think();
+			return;
+		}
+		try {
+			for (String input : utterances) {
+				if (!running || !conversation.isAlive())
+					break;
+				think();
+				long start = System.nanoTime();
+				conversation.send(input);
+				stats.reply(System.nanoTime() - start);
+			}
+			conversation.close();
+			stats.conversation();
+		} catch (IOException e) {
+			if (running)
+				stats.error();
+		}
+	}
+
+	/**
+	 * Pause for a random think time.
+	 */
+	private void think() throws InterruptedException {
+		Thread.sleep(ThreadLocalRandom.current().nextInt(minThink,
+				maxThink + 1));
+	}
+
+	/**
+	 * Parse the arguments, run the test and report the results.
+	 *
+	 * @param args
+	 *            Options of the form name=value, see the class comment.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		String script = DEFAULT_SCRIPT;
+		String corpusFile = DEFAULT_CORPUS;
+		// the address of the server to test, or null to test an engine in
+		// this process
+		String url = null;
+		int sessions = DEFAULT_SESSIONS;
+		int duration = DEFAULT_DURATION;
+		int warmup = DEFAULT_WARMUP;
+		int minThink = DEFAULT_MIN_THINK;
+		int maxThink = DEFAULT_MAX_THINK;
+		int cacheSize = DEFAULT_CACHE_SIZE;
+		String csv = DEFAULT_CSV;
+
+		for (String arg : args) {
+			if (arg.startsWith("script=")) {
+				script = arg.substring(7);
+			} else if (arg.startsWith("corpus=")) {
+				corpusFile = arg.substring(7);
+			} else if (arg.startsWith("target=")) {
+				url = arg.substring(7);
+			} else if (arg.startsWith("sessions=")) {
+				sessions = Integer.parseInt(arg.substring(9));
+			} else if (arg.startsWith("duration=")) {
+				duration = Integer.parseInt(arg.substring(9));
+			} else if (arg.startsWith("warmup=")) {
+				warmup = Integer.parseInt(arg.substring(7));
+			} else if (arg.startsWith("minthink=")) {
+				minThink = Integer.parseInt(arg.substring(9));
+			} else if (arg.startsWith("maxthink=")) {
+				maxThink = Integer.parseInt(arg.substring(9));
+			} else if (arg.startsWith("cache=")) {
+				cacheSize = Integer.parseInt(arg.substring(6));
+			} else if (arg.startsWith("csv=")) {
+				csv = arg.substring(4);
+			} else {
+				System.out.println("Invalid argument: " + arg);
+			}
+		}
+
+		Corpus corpus;
+		Target target;
+		try {
+			corpus = new Corpus(corpusFile);
+			if (url == null) {
+				Engine engine = new Engine(script);
+				engine.setCache(cacheSize, 0);
+				target = new EngineTarget(engine);
+			} else if (url.startsWith(UNIX_PREFIX)) {
+				target = new SidecarTarget(url.substring(UNIX_PREFIX.length()));
+			} else {
+				target = new HttpTarget(url);
+			}
+		} catch (FileNotFoundException e) {
+			System.err.println("ERROR: " + e.getMessage());
+			return;
+		} catch (IOException e) {
+			System.err.println("ERROR reading file:\n" + e.getMessage());
+			return;
+		} catch (FileFormatException e) {
+			System.out.println("Script file not formatted properly. "
+					+ e.getMessage());
+			return;
+		}
+
+		System.out.println("Target:        "
+				+ (url == null ? "engine (" + script + ")" : url));
+		System.out.println("Corpus:        " + corpus.size()
+				+ " conversations, " + corpus.getUtterances() + " utterances");
+		System.out.println("Sessions:      " + sessions + ", think time "
+				+ minThink + "-" + maxThink + " ms");
+		if (Runtime.version().feature() < 21)
+			System.out.println("Java " + Runtime.version().feature()
+					+ " has no virtual threads, using platform threads.");
+		System.out.println("Warming up for " + warmup + " s, then measuring for "
+				+ duration + " s.");
+
+		LoadStats stats;
+		try {
+			stats = new LoadTest(target, corpus, minThink, maxThink).run(
+					sessions, warmup, duration);
+		} finally {
+			target.close();
+		}
+		System.out.println();
+		stats.print(System.out);
+		try {
+			stats.writeCsv(csv);
+			System.out.println("Latency histogram written to " + csv + ".");
+		} catch (IOException e) {
+			System.err.println("ERROR writing " + csv + ":\n" + e.getMessage());
+		}
+	}
+}
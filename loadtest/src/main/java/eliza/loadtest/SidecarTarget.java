@@ -0,0 +1,225 @@
+package eliza.loadtest;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eliza.server.SidecarServer;
+
+/**
+ * A target holding conversations with a server started with socket=path. The
+ * conversations share a few connections, on which requests are pipelined: a
+ * conversation sends its request and waits for its response while others do
+ * the same on the same connection.
+ *
+ * @author Ole & Peter
+ *
+ */
+public class SidecarTarget implements Target {
+	// The number of connections the conversations are spread over.
+	private static final int CONNECTIONS = 4;
+	// How long to wait for a reply before counting it as an error.
+	private static final long TIMEOUT_SECONDS = 30;
+
+	private final Link[] links = new Link[CONNECTIONS];
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Creates a new SidecarTarget, connecting to the server.
+	 *
+	 * @param socket
+	 *            The path of the server's socket.
+	 * @throws IOException
+	 *             If the server cannot be connected to.
+	 */
+	public SidecarTarget(String socket) throws IOException {
+		UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socket);
+		try {
+			for (int i = 0; i < links.length; i++) {
+				links[i] = new Link(address);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public Conversation open() throws IOException {
+		final Link link = links[Math.floorMod(next.getAndIncrement(),
+				links.length)];
+		Response welcome = link.call(SidecarServer.OPEN, new UUID(0, 0), "");
+		final UUID session = welcome.id;
+		return new Conversation() {
+			private boolean alive = true;
+
+			public String send(String input) throws IOException {
+				Response reply = link.call(SidecarServer.INPUT, session, input);
+				alive = reply.alive;
+				return reply.text;
+			}
+
+			public boolean isAlive() {
+				return alive;
+			}
+
+			public void close() throws IOException {
+				// the server closes a session once it has been told to quit
+				if (alive)
+					link.call(SidecarServer.CLOSE, session, "");
+				alive = false;
+			}
+		};
+	}
+
+	public void close() {
+		for (Link link : links) {
+			if (link != null)
+				link.close();
+		}
+	}
+
+	/**
+	 * A decoded response frame.
+	 */
+	private static class Response {
+		private final byte status;
+		private final boolean alive;
+		private final UUID id;
+		private final String text;
+
+		private Response(byte status, boolean alive, UUID id, String text) {
+			this.status = status;
+			this.alive = alive;
+			this.id = id;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * One connection to the server. Responses come back in the order the
+	 * requests were sent, so each is handed to the oldest waiting caller.
+	 */
+	private static class Link {
+		private final SocketChannel channel;
+		// The callers waiting for a response, oldest first, guarded by this.
+		private final ArrayDeque<CompletableFuture<Response>> waiting = new ArrayDeque<CompletableFuture<Response>>();
+		private final Thread reader;
+		// Why the connection failed, or null, guarded by this.
+		private IOException error;
+
+		private Link(UnixDomainSocketAddress address) throws IOException {
+			channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+			channel.connect(address);
+			reader = new Thread(this::read, "eliza-sidecar-reader");
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/**
+		 * Send a request and wait for its response.
+		 *
+		 * @return The response, whose status is OK.
+		 * @throws IOException
+		 *             If the request fails or the response has another status.
+		 */
+		private Response call(byte type, UUID id, String text)
+				throws IOException {
+			byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer frame = ByteBuffer.allocate(4
+					+ SidecarServer.REQUEST_HEADER_LENGTH + bytes.length);
+			frame.putInt(SidecarServer.REQUEST_HEADER_LENGTH + bytes.length)
+					.put(type).putLong(id.getMostSignificantBits())
+					.putLong(id.getLeastSignificantBits()).put(bytes).flip();
+			CompletableFuture<Response> future = new CompletableFuture<Response>();
+			synchronized (this) {
+				if (error != null)
+					throw error;
+				waiting.add(future);
+				while (frame.hasRemaining()) {
+					channel.write(frame);
+				}
+			}
+			Response response;
+			try {
+				response = future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for a reply.",
+						e);
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			} catch (TimeoutException e) {
+				throw new IOException("No reply within " + TIMEOUT_SECONDS
+						+ " s.");
+			}
+			if (response.status != SidecarServer.OK)
+				throw new IOException("Unexpected status " + response.status
+						+ " for " + id);
+			return response;
+		}
+
+		/**
+		 * The loop of the reader thread.
+		 */
+		private void read() {
+			ByteBuffer length = ByteBuffer.allocate(4);
+			try {
+				while (true) {
+					length.clear();
+					fill(length);
+					ByteBuffer frame = ByteBuffer.allocate(length.getInt(0));
+					fill(frame);
+					byte status = frame.get();
+					boolean alive = frame.get() != 0;
+					UUID id = new UUID(frame.getLong(), frame.getLong());
+					String text = StandardCharsets.UTF_8.decode(frame)
+							.toString();
+					CompletableFuture<Response> future;
+					synchronized (this) {
+						future = waiting.poll();
+					}
+					if (future != null)
+						future.complete(new Response(status, alive, id, text));
+				}
+			} catch (IOException e) {
+				synchronized (this) {
+					error = e;
+					for (CompletableFuture<Response> future : waiting) {
+						future.completeExceptionally(e);
+					}
+					waiting.clear();
+				}
+			}
+		}
+
+		/**
+		 * Read until a buffer is full, then flip it.
+		 */
+		private void fill(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0)
+					throw new EOFException("The server closed the connection.");
+			}
+			buffer.flip();
+		}
+
+		private void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// the connection is gone either way
+			}
+		}
+	}
+}
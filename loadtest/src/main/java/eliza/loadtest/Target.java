@@ -0,0 +1,59 @@
+package eliza.loadtest;
+
+import java.io.IOException;
+
+/**
+ * Something the load generator holds conversations with: an Engine in the same
+ * process, or a server.
+ *
+ * @author Ole & Peter
+ *
+ */
+public interface Target {
+
+	/**
+	 * Start a conversation.
+	 *
+	 * @return The new conversation.
+	 * @throws IOException
+	 *             If the conversation cannot be started.
+	 */
+	Conversation open() throws IOException;
+
+	/**
+	 * Release any resources held by the target.
+	 */
+	void close();
+
+	/**
+	 * One conversation with a target. A conversation is used by one thread at
+	 * a time.
+	 */
+	interface Conversation {
+
+		/**
+		 * Send an utterance and wait for the reply.
+		 *
+		 * @param input
+		 *            The utterance.
+		 * @return The reply.
+		 * @throws IOException
+		 *             If the reply cannot be obtained.
+		 */
+		String send(String input) throws IOException;
+
+		/**
+		 * @return Whether the conversation may go on, that is whether no quit
+		 *         command has been sent.
+		 */
+		boolean isAlive();
+
+		/**
+		 * End the conversation, if the target has not ended it already.
+		 *
+		 * @throws IOException
+		 *             If the conversation cannot be ended.
+		 */
+		void close() throws IOException;
+	}
+}